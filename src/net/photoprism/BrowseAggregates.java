@@ -0,0 +1,345 @@
+package net.photoprism;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The browse landing pages (recent days, months, people) as running
+ * totals, so that showing one doesn't mean a GROUP BY over every
+ * image the visitor can see.
+ *
+ * The totals are kept per tag set rather than per tag.  Every image is
+ * filed under the exact set of tags it has, like {3, 17}, and each
+ * set has a count and lowest imageid for every day, month and person
+ * its images have.  A visitor's page adds up the sets that share any
+ * tag with them.  Since each image is in exactly one set, an image
+ * visible through two tags is counted once, which per-tag totals
+ * can't do without looking at the images.  There are far fewer sets
+ * than images: most photos carry only the tag they were uploaded
+ * under.
+ *
+ * When the lowest imageid of a total is taken away, the next one is
+ * looked up through the Rescan the owner supplies, the next time
+ * someone asks.
+ *
+ * Not thread safe; SearchIndex owns one and does the locking.
+ *
+ * @version 20261018
+ */
+
+public class BrowseAggregates
+{
+   public static final int DAY = 0;
+   public static final int MONTH = 1;
+   public static final int PERSON = 2;
+
+   /** the day of an image with no ts, which is left out of days and months */
+   public static final int NO_DAY = Integer.MIN_VALUE + 1;
+
+   /**
+    * finds the lowest live imageid in tag set <code>set</code> with
+    * the given day, month, or person, or 0 if there are none
+    */
+
+   public interface Rescan
+   {
+      int min(BrowseAggregates agg, int set, int kind, int key);
+   }
+
+   /**
+    * one thumbnail on a browse page: a day, month or person, how many
+    * images it has, and the lowest imageid to show for it
+    */
+
+   public static class Group
+   {
+      public final int key;
+      public int count;
+      public int min;
+
+      Group(int key, int count, int min)
+      {
+         this.key = key;
+         this.count = count;
+         this.min = min;
+      }
+   }
+
+   public BrowseAggregates(Rescan rescan)
+   {
+      this.rescan = rescan;
+   }
+
+   /**
+    * count a live image.  Images with no tags can't be seen by anyone
+    * and aren't counted.
+    */
+
+   public void add(int img, int day, int[] tags, int[] people)
+   {
+      if (tags.length == 0) return;
+      int s = intern(tags);
+      grow(img);
+      this.setOf[img] = s;
+      TagSet ts = this.sets.get(s);
+      if (day != NO_DAY) {
+         bump(ts.days, day, img);
+         bump(ts.months, month(day), img);
+      }
+      for (int p : people) bump(ts.people, p, img);
+   }
+
+   /**
+    * stop counting img, which had this day and these people when it
+    * was added
+    */
+
+   public void remove(int img, int day, int[] people)
+   {
+      int s = setOf(img);
+      if (s < 0) return;
+      this.setOf[img] = -1;
+      TagSet ts = this.sets.get(s);
+      if (day != NO_DAY) {
+         drop(ts.days, day, img);
+         drop(ts.months, month(day), img);
+      }
+      for (int p : people) drop(ts.people, p, img);
+   }
+
+   /**
+    * @return which tag set img was counted under, or -1
+    */
+
+   public int setOf(int img)
+   {
+      return (img < this.setOf.length) ? this.setOf[img] : -1;
+   }
+
+   /**
+    * @return the n latest days with anything for this visitor, latest
+    * first
+    */
+
+   public List<Group> days(List<Integer> viewTags, int n)
+   {
+      HashMap<Integer, Group> ret = new HashMap<Integer, Group>();
+      for (int s : visibleSets(viewTags)) {
+         // the top n of each set is all that can make the top n overall
+         int k = 0;
+         for (Map.Entry<Integer, Group> e :
+                 this.sets.get(s).days.descendingMap().entrySet()) {
+            if (k++ == n) break;
+            merge(ret, s, DAY, e.getValue());
+         }
+      }
+      List<Group> list = sorted(ret, true);
+      return (list.size() > n) ? list.subList(0, n) : list;
+   }
+
+   /**
+    * @return every month with anything for this visitor, latest first.
+    * Keys are year * 12 + month - 1.
+    */
+
+   public List<Group> months(List<Integer> viewTags)
+   {
+      HashMap<Integer, Group> ret = new HashMap<Integer, Group>();
+      for (int s : visibleSets(viewTags)) {
+         for (Group g : this.sets.get(s).months.values()) {
+            merge(ret, s, MONTH, g);
+         }
+      }
+      return sorted(ret, true);
+   }
+
+   /**
+    * @return every person in anything this visitor can see, by id
+    */
+
+   public List<Group> people(List<Integer> viewTags)
+   {
+      HashMap<Integer, Group> ret = new HashMap<Integer, Group>();
+      for (int s : visibleSets(viewTags)) {
+         for (Group g : this.sets.get(s).people.values()) {
+            merge(ret, s, PERSON, g);
+         }
+      }
+      return sorted(ret, false);
+   }
+
+   /**
+    * @return the month key for a day (days since 1970-01-01)
+    */
+
+   public static int month(int day)
+   {
+      LocalDate d = LocalDate.ofEpochDay(day);
+      return d.getYear() * 12 + d.getMonthValue() - 1;
+   }
+
+   /**
+    * @return the year of a day (days since 1970-01-01), the same as
+    * LocalDate.ofEpochDay(day).getYear() but with no LocalDate, for
+    * counting a million of them
+    */
+
+   public static int year(int day)
+   {
+      // Howard Hinnant's civil_from_days, in years starting March 1
+      long z = day + 719468L;
+      long era = Math.floorDiv(z, 146097);
+      long doe = z - era * 146097;
+      long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+      long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+      long mp = (5 * doy + 2) / 153;
+      return (int)(yoe + era * 400 + ((mp >= 10) ? 1 : 0));
+   }
+
+   /**
+    * @return the tags of set number s; don't change it
+    */
+
+   public int[] tags(int s)
+   {
+      return this.sets.get(s).tags;
+   }
+
+   public long bytes()
+   {
+      long b = this.setOf.length * 4L;
+      for (TagSet ts : this.sets) {
+         b += 64 + ts.tags.length * 4 +
+            (ts.days.size() + ts.months.size() + ts.people.size()) * 80L;
+      }
+      return b;
+   }
+
+   public String toString()
+   {
+      long groups = 0;
+      for (TagSet ts : this.sets) {
+         groups += ts.days.size() + ts.months.size() + ts.people.size();
+      }
+      return "BrowseAggregates(" + this.sets.size() + " tag sets, " +
+         groups + " groups)";
+   }
+
+   /**
+    * the totals for the images that have exactly these tags
+    */
+
+   private static class TagSet
+   {
+      final int[] tags;
+      final TreeMap<Integer, Group> days = new TreeMap<Integer, Group>();
+      final TreeMap<Integer, Group> months = new TreeMap<Integer, Group>();
+      final HashMap<Integer, Group> people = new HashMap<Integer, Group>();
+
+      TagSet(int[] tags)
+      {
+         this.tags = tags;
+      }
+   }
+
+   private int intern(int[] tags)
+   {
+      int[] key = tags.clone();
+      Arrays.sort(key);
+      List<Integer> k = new ArrayList<Integer>(key.length);
+      for (int t : key) k.add(t);
+      Integer s = this.setIds.get(k);
+      if (s == null) {
+         s = this.sets.size();
+         this.sets.add(new TagSet(key));
+         this.setIds.put(k, s);
+         for (int t : key) {
+            this.setsByTag.computeIfAbsent(t, x -> new ArrayList<Integer>())
+               .add(s);
+         }
+      }
+      return s;
+   }
+
+   private List<Integer> visibleSets(List<Integer> viewTags)
+   {
+      // a set with two visible tags must only be counted once
+      boolean[] seen = new boolean[this.sets.size()];
+      ArrayList<Integer> ret = new ArrayList<Integer>();
+      for (int t : viewTags) {
+         List<Integer> l = this.setsByTag.get(t);
+         if (l == null) continue;
+         for (int s : l) {
+            if (!seen[s]) {
+               seen[s] = true;
+               ret.add(s);
+            }
+         }
+      }
+      return ret;
+   }
+
+   private void merge(Map<Integer, Group> into, int s, int kind, Group g)
+   {
+      if (g.min == 0) g.min = this.rescan.min(this, s, kind, g.key);
+      Group r = into.get(g.key);
+      if (r == null) {
+         into.put(g.key, new Group(g.key, g.count, g.min));
+      } else {
+         r.count += g.count;
+         if (g.min < r.min) r.min = g.min;
+      }
+   }
+
+   private static List<Group> sorted(Map<Integer, Group> m, boolean desc)
+   {
+      ArrayList<Group> ret = new ArrayList<Group>(m.values());
+      ret.sort((a, b) -> desc ? Integer.compare(b.key, a.key)
+               : Integer.compare(a.key, b.key));
+      return ret;
+   }
+
+   private static void bump(Map<Integer, Group> m, int key, int img)
+   {
+      Group g = m.get(key);
+      if (g == null) {
+         m.put(key, new Group(key, 1, img));
+      } else {
+         g.count++;
+         if (g.min != 0 && img < g.min) g.min = img;
+      }
+   }
+
+   private static void drop(Map<Integer, Group> m, int key, int img)
+   {
+      Group g = m.get(key);
+      if (g == null) return;
+      if (--g.count == 0) {
+         m.remove(key);
+      } else if (g.min == img) {
+         g.min = 0;   // found again by merge(), if anyone asks
+      }
+   }
+
+   private void grow(int img)
+   {
+      if (img < this.setOf.length) return;
+      int n = Math.max(img + 1, this.setOf.length + this.setOf.length / 2);
+      int old = this.setOf.length;
+      this.setOf = Arrays.copyOf(this.setOf, n);
+      Arrays.fill(this.setOf, old, n, -1);
+   }
+
+   private final Rescan rescan;
+   private final ArrayList<TagSet> sets = new ArrayList<TagSet>();
+   private final HashMap<List<Integer>, Integer> setIds =
+      new HashMap<List<Integer>, Integer>();
+   private final HashMap<Integer, List<Integer>> setsByTag =
+      new HashMap<Integer, List<Integer>>();
+   private int[] setOf = new int[0];
+}
@@ -1,14 +1,25 @@
 package net.photoprism;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.json.JSONArray;
@@ -48,6 +59,9 @@ public class BrowseREST extends PhotoServlet
     *      ppl: list of { id: 1, name: 'xyz' } objects
     *      tag: list of { tag: 'xyz', lvl: 'r|d|w' } objects
     *      many other attributes; see renderDetails()
+    *
+    * In mode "d", a limit (and after) parameter asks for one page of
+    * the details, and adds SearchREST's total, estimate and next.
     *      
     */
    
@@ -69,6 +83,15 @@ public class BrowseREST extends PhotoServlet
 
 		String mode = req.getParameter("mode");
 
+      // everything but the details comes out the same for everyone
+      // with the same tag levels, so it can come from ResponseCache
+      String key = null;
+      long version = DataVersion.get();
+      if (mode != null && mode.length() == 1 && "rmlpn".contains(mode)) {
+         key = ResponseCache.key(perms.fingerprint(), req);
+         if (ResponseCache.serve(req, res, key)) return;
+      }
+
       // here is where to write your output
       JSONObject ret = new JSONObject();
       ret.put("title", "you forgot to set title lol");
@@ -88,33 +111,45 @@ public class BrowseREST extends PhotoServlet
          if ("r".equals(mode)) {
             // recent
             ret.put("title", "Most Recent");
-            PreparedStatement st = prepStatement(perms, SQL_RECENT);
-            makeListFromSt(st, ret);
-            st.close();
+            List<BrowseAggregates.Group> groups = SearchIndex.browse
+               (perms.viewableTags(), BrowseAggregates.DAY, 12);
+            if (groups != null) {
+               ret.put("images", renderDays(groups));
+            } else {
+               PreparedStatement st =
+                  prepStatement(perms, "browse_recent", SQL_RECENT);
+               makeListFromSt(st, ret);
+            }
          } else if ("m".equals(mode)) {
             // by month
             ret.put("title", "Choose Month");
-            PreparedStatement st = prepStatement(perms, SQL_MONTH);
-            JSONArray imgs = new JSONArray();
-            String group = null;
-            ResultSet rs = st.executeQuery();
-            while (rs.next()) {
-               if (!rs.getString(5).equals(group)) {
-                  group = rs.getString(5);
-                  JSONObject hdr = new JSONObject();
-                  hdr.put("hdr", group);
-                  imgs.put(hdr);
+            List<BrowseAggregates.Group> groups = SearchIndex.browse
+               (perms.viewableTags(), BrowseAggregates.MONTH, 0);
+            if (groups != null) {
+               ret.put("images", renderMonths(groups));
+            } else {
+               PreparedStatement st =
+                  prepStatement(perms, "browse_month", SQL_MONTH);
+               JSONArray imgs = new JSONArray();
+               String group = null;
+               ResultSet rs = st.executeQuery();
+               while (rs.next()) {
+                  if (!rs.getString(5).equals(group)) {
+                     group = rs.getString(5);
+                     JSONObject hdr = new JSONObject();
+                     hdr.put("hdr", group);
+                     imgs.put(hdr);
+                  }
+                  JSONObject img = new JSONObject();
+                  img.put("id", rs.getInt(1));
+                  img.put("count", rs.getInt(2));
+                  img.put("text", rs.getString(3));
+                  img.put("act", rs.getString(4));
+                  imgs.put(img);
                }
-               JSONObject img = new JSONObject();
-               img.put("id", rs.getInt(1));
-               img.put("count", rs.getInt(2));
-               img.put("text", rs.getString(3));
-               img.put("act", rs.getString(4));
-               imgs.put(img);
+               rs.close();
+               ret.put("images", imgs);
             }
-            rs.close();
-            st.close();
-            ret.put("images", imgs);
          } else if ("l".equals(mode)) {
             // by location
             int root = 1; // 1 is the root of the location tree
@@ -128,72 +163,99 @@ public class BrowseREST extends PhotoServlet
          } else if ("p".equals(mode)) {
             // by person
             ret.put("title", "Choose Person");
-            PreparedStatement st = prepStatement(perms, SQL_PERSON);
-            makeListFromSt(st, ret);
-            st.close();
+            List<BrowseAggregates.Group> groups = SearchIndex.browse
+               (perms.viewableTags(), BrowseAggregates.PERSON, 0);
+            if (groups != null) {
+               ret.put("images", renderPeople(groups));
+            } else {
+               PreparedStatement st =
+                  prepStatement(perms, "browse_person", SQL_PERSON);
+               makeListFromSt(st, ret);
+            }
          } else if ("n".equals(mode)) {
             // return just the count of how many new
             ret.put("title", "");
-            ret.put("n", SearchREST.searchDb(perms.viewableTags(),
-                                             "newimage=true")
+            ret.put("n", SearchREST.search(perms.viewableTags(),
+                                           SearchIndex.NEW, 0, 0,
+                                           SearchFilter.NEW)
                     .size());
          } else if ("d".equals(mode)) {
-            List<Integer> ids = null;
+            SearchREST.Query query = null;
             String q = null;
-            JSONArray imgs = new JSONArray();
+            String person = null;
 
-            q = PhotoUtils.sanitizeStr(req.getParameter("date"));
-            if (q != null) {
-               ret.put("title", q);
-               q = "date(ts)=" + PhotoUtils.quoteString(q);
-               ids = SearchREST.searchDb(perms.viewableTags(), q);
-            }
+            try {
+               q = req.getParameter("date");
+               if (q != null) {
+                  LocalDate day = LocalDate.parse(q);
+                  ret.put("title", q);
+                  query = new SearchREST.Query
+                     (SearchIndex.DAY, (int)day.toEpochDay(),
+                      (int)day.toEpochDay(), SearchFilter.day(day));
+               }
 
-            q = PhotoUtils.sanitizeStr(req.getParameter("month"));
-            if (q != null) {
-               String[] parts = q.split("-");
-               int month = Integer.parseInt(parts[1]);
-               ret.put("title", MONTHS[month] + " " + parts[0]);
-               String quote_mon = PhotoUtils.quoteString(q + "-01");
-               String where = "i.ts >= date " + quote_mon +
-                  " AND i.ts < date " + quote_mon + "+ INTERVAL '1 month'";
-               ids = SearchREST.searchDb(perms.viewableTags(), where);
-            }
+               q = req.getParameter("month");
+               if (q != null) {
+                  YearMonth month = YearMonth.parse(q);
+                  ret.put("title", MONTHS[month.getMonthValue()] + " " +
+                          month.getYear());
+                  query = new SearchREST.Query
+                     (SearchIndex.DAY, (int)month.atDay(1).toEpochDay(),
+                      (int)month.atEndOfMonth().toEpochDay(),
+                      SearchFilter.month(month));
+               }
 
-            q = PhotoUtils.sanitizeInt(req.getParameter("person"));
-            if (q != null) {
-               ids = SearchREST.searchDb(perms.viewableTags(),
-                                         "s.subject=" + q);
-               // only translate personID to name if there were valid
-               // results
-               if (ids != null && ids.size() > 0) {
-                  PreparedStatement st = db.prepareStatement(SQL_NAME);
-                  st.setInt(1, Integer.parseInt(q));
-                  ResultSet rs = st.executeQuery();
-                  rs.next();
-                  ret.put("title", rs.getString(1));
-                  rs.close();
-                  st.close();
-               } else {
-                  ret.put("title", "No results");
+               q = req.getParameter("person");
+               if (q != null) {
+                  int p = Integer.parseInt(q);
+                  person = q;
+                  query = new SearchREST.Query(SearchIndex.PERSON, p, 0,
+                                               SearchFilter.person(p));
                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+               res.sendError(SC_BAD_REQUEST, "bad search: " + e.getMessage());
+               return;
             }
 
-            q = PhotoUtils.sanitizeStr(req.getParameter("tag"));
+            q = req.getParameter("tag");
             if (q != null) {
                ret.put("title", q);
-               q = "tag.tag=" + PhotoUtils.quoteString(q);
-               ids = SearchREST.searchDb(perms.viewableTags(), q);
+               int tagid = TokenUtils.lookupTag(q, db());
+               if (tagid < 0) tagid = Integer.MIN_VALUE;
+               query = new SearchREST.Query(SearchIndex.TAG, tagid, 0,
+                                            SearchFilter.tag(q));
             }
 
             if (req.getParameter("new") != null) {
                ret.put("title", "New");
-               ids = SearchREST.searchDb(perms.viewableTags(),
-                                         "newimage=true");
+               query = new SearchREST.Query(SearchIndex.NEW, 0, 0,
+                                            SearchFilter.NEW);
             }
 
-            renderDetails(perms, ids, imgs);
-            ret.put("images", imgs);
+            // with a limit, just one page of them (see SearchREST)
+            SearchIndex.Page page = null;
+            q = PhotoUtils.sanitizeInt(req.getParameter("limit"));
+            if (query != null && q != null) {
+               try {
+                  page = SearchREST.searchPage
+                     (perms.viewableTags(), query, req.getParameter("after"),
+                      Integer.parseInt(q));
+               } catch (IllegalArgumentException e) {
+                  res.sendError(SC_BAD_REQUEST, e.getMessage());
+                  return;
+               }
+               JSONObject p = SearchREST.pageJSON(page);
+               for (String k : JSONObject.getNames(p)) ret.put(k, p.get(k));
+            }
+
+            // a person's title depends on whether there were any, so
+            // it goes after the images
+            if (person != null) ret.remove("title");
+
+            // the details can be thousands of images, so they are
+            // written out as they are read rather than put in ret
+            streamDetails(res, ret, perms, query, page, person);
+            return;
          }
 
          // make a last pass and fill in "h" and "w" for any that are missing
@@ -208,7 +270,12 @@ public class BrowseREST extends PhotoServlet
       }
 
       // only now does anything actually get committed to the client
-      sendJSON(res, ret);
+      if (key != null) {
+         ResponseCache.send(req, res, key, version, ret.toString(),
+                            "text/json");
+      } else {
+         sendJSON(res, ret);
+      }
 		return;
 	}
 
@@ -235,12 +302,79 @@ public class BrowseREST extends PhotoServlet
    (TokenUtils.Perms perms, List<Integer>ids, JSONArray imgs)
    throws SQLException
    {
-      List<Photo> photos = Photo.fetchMany(db, perms, ids);
+      List<Photo> photos = Photo.fetchMany(db(), perms, ids);
       if (photos == null) return false;
       for (Photo p : photos) { imgs.put(p.toJSON()); }
       return (photos.size() > 0);
    }
 
+   /**
+    * sends ret, plus the details of what query finds (or just this
+    * page of it) as its "images", writing each image as it is found
+    * instead of building the whole answer and then its String first.
+    * The images are copied out of DetailCache where it has them, and
+    * otherwise come off a cursor (see Photo.fetchEach), which is one
+    * query for all of them.  Once the first bytes have gone out a
+    * database error can't become a 500 any more, so it just cuts the
+    * answer short, which the client will fail to parse.
+    *
+    * @param person personid to make the title from, or null
+    */
+
+   private void streamDetails
+   (HttpServletResponse res, JSONObject ret, TokenUtils.Perms perms,
+    SearchREST.Query query, SearchIndex.Page page, String person)
+   throws IOException
+   {
+      OutputStream out = new BufferedOutputStream(startJSON(res));
+      StringBuilder head = new StringBuilder("{");
+      for (String k : JSONObject.getNames(ret)) {
+         head.append(JSONObject.quote(k)).append(':')
+            .append(JSONObject.valueToString(ret.get(k))).append(',');
+      }
+      head.append("\"images\":[");
+      out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+
+      StringBuilder tail = new StringBuilder("]");
+      try {
+         DetailCache.Writer w = new DetailCache.Writer(out, perms);
+         if (page != null) {
+            w.ids(db(), page.ids);
+         } else if (query != null) {
+            SearchREST.searchEach(query, w);
+         }
+         streamed.incrementAndGet();
+         streamedImages.addAndGet(w.count());
+
+         // only translate personID to name if there were valid
+         // results
+         if (person != null && w.count() > 0) {
+            PreparedStatement st = StatementCache.prepare
+               (db(), "browse_name", SQL_NAME);
+            st.setInt(1, Integer.parseInt(person));
+            ResultSet rs = st.executeQuery();
+            rs.next();
+            tail.append(",\"title\":")
+               .append(JSONObject.quote(rs.getString(1)));
+            rs.close();
+         } else if (person != null) {
+            tail.append(",\"title\":\"No results\"");
+         }
+      } catch (SQLException e) {
+         log("streaming details: " + e);
+         if (!res.isCommitted()) {
+            res.reset();
+            res.sendError(SC_SERVFAIL, e.toString());
+            return;
+         }
+         out.close();
+         return;
+      }
+      tail.append('}');
+      out.write(tail.toString().getBytes(StandardCharsets.UTF_8));
+      out.close();
+   }
+
    /**
     * location searches are weird, because they are a hybrid where a
     * particular location has both pictures to show and child
@@ -262,108 +396,38 @@ public class BrowseREST extends PhotoServlet
    throws SQLException
    {
       boolean had_children = false;
-      PreparedStatement st = null;
-      ResultSet rs = null;
-      String place_name = null;
-
-      // we are going to need the name of the place.
-      st = prepStatement(perms, SQL_LOCNAME);
-      st.setInt(1, root);
-      rs = st.executeQuery();
-      rs.next();
-      place_name = rs.getString(1);
-      rs.close();
 
-      // look for child locations.  The "images at this location"
-      // query is expensive to construct, so we do it once and give it
-      // to locationThumb which will use it recursively.
-
-      PreparedStatement scoped_st = prepStatement
-         (perms, "SELECT MAX(imageid), COUNT(imageid) " +
-          SQL_IMAGES_SCOPED + "AND i.location=?");
-
-      st = db.prepareStatement
-         ("SELECT description, locationid FROM location WHERE parent=? " +
-          "ORDER BY 1;");
-      st.setInt(1, root);
-      rs = st.executeQuery();
-      while (rs.next()) {
-         // this recursively walks the tree
-         JSONObject thumb = locationThumb(scoped_st, rs.getInt(2));
-         if (thumb.getInt("count") > 0) {
-            // finish decorating the thumb object for display
-            thumb.put("act", "dl" + rs.getInt(2));
-            thumb.put("text", rs.getString(1));
+      // the tree and the counts under each child come from memory
+      // (or one query, if nobody with these tags has looked lately)
+      LocationTree.Node place = LocationTree.get(root, db());
+      if (place == null) throw new SQLException("no location " + root);
+      LocationTree.Counts counts =
+         LocationTree.counts(perms.viewableTags(), db());
+
+      for (LocationTree.Node child : place.children()) {
+         if (counts.count(child) > 0) {
+            JSONObject thumb = new JSONObject();
+            thumb.put("id", counts.max(child));
+            thumb.put("count", counts.count(child));
+            thumb.put("act", "dl" + child.id);
+            thumb.put("text", child.description);
             imgs.put(thumb);
             had_children = true;
          }
       }
-      rs.close();
-      st.close();
-      scoped_st.close();
 
       // now look for pictures to show in detail form
-      List<Integer> ids = SearchREST.searchDb(perms.viewableTags(),
-                                              "l.locationid=" + root);
+      List<Integer> ids = SearchREST.search(perms.viewableTags(),
+                                            SearchIndex.LOCATION, root, 0,
+                                            SearchFilter.location(root));
       if (ids.size() > 0 && had_children) {
          JSONObject hdr = new JSONObject();
-         hdr.put("hdr", "Photos in " + place_name);
+         hdr.put("hdr", "Photos in " + place.description);
          imgs.put(hdr);
       }
       renderDetails(perms, ids, imgs);
 
-      return place_name;
-   }
-
-   /**
-    * the "locationThumb" for id i is max(imgid), count(imgid) for all
-    * imgid that are visible to you where location = (i or any
-    * descendant of i).
-    *
-    * This recurses and could be very expensive.  An alternative would
-    * be to summon forth all the (imageid, location) tuples that you can
-    * see through perms, and iterate through them all once and build a
-    * histogram.
-    */
-
-   private JSONObject locationThumb(PreparedStatement scoped_st, int locid)
-   throws SQLException
-   {
-      int imgid = 0;
-      int count = 0;
-      scoped_st.setInt(2, locid);
-      ResultSet rs = scoped_st.executeQuery();
-      if (rs.next()) {
-         if (rs.getInt(2) > 0) {
-            imgid = rs.getInt(1);
-            count = rs.getInt(2);
-         }
-      }
-      rs.close();
-
-      // now look at children.  We don't want to create what could be
-      // dozens of open database cursors, so we copy the list into a
-      // local variable before recursing.
-      ArrayList<Integer> children = new ArrayList<Integer>();
-      PreparedStatement st = db.prepareStatement
-         ("SELECT locationid FROM location WHERE parent=? " +
-          "ORDER BY description;");
-      st.setInt(1, locid);
-      rs = st.executeQuery();
-      while (rs.next()) { children.add(rs.getInt(1)); }
-      rs.close();
-
-      for (int i : children) {
-         JSONObject obj = locationThumb(scoped_st, i);
-         if (obj.getInt("id") > imgid) imgid = obj.getInt("id");
-         count += obj.getInt("count");
-      }
-
-      JSONObject ret = new JSONObject();
-      ret.put("id", imgid);
-      ret.put("count", count);
-      // note that we aren't setting act or text here
-      return ret;
+      return place.description;
    }
 
    private class ImgDims {
@@ -394,6 +458,75 @@ public class BrowseREST extends PhotoServlet
       obj.put("images", imgs);
    }
 
+   /*
+    * the next three turn SearchIndex.browse() results into the same
+    * thumbs that SQL_RECENT, SQL_MONTH and SQL_PERSON make, except
+    * that an image visible through two tags is only counted once.
+    */
+
+   private JSONArray renderDays(List<BrowseAggregates.Group> groups)
+   {
+      JSONArray imgs = new JSONArray();
+      for (BrowseAggregates.Group g : groups) {
+         String date = LocalDate.ofEpochDay(g.key).toString();
+         imgs.put(thumb(g, date, "ddd" + date));
+      }
+      return imgs;
+   }
+
+   private JSONArray renderMonths(List<BrowseAggregates.Group> groups)
+   {
+      JSONArray imgs = new JSONArray();
+      int year = Integer.MIN_VALUE;
+      for (BrowseAggregates.Group g : groups) {
+         int y = g.key / 12;
+         int m = g.key % 12 + 1;
+         if (y != year) {
+            year = y;
+            JSONObject hdr = new JSONObject();
+            hdr.put("hdr", Integer.toString(y));
+            imgs.put(hdr);
+         }
+         // TO_CHAR(ts, 'Month YYYY') pads the month out to 9
+         String name = Month.of(m).getDisplayName(TextStyle.FULL,
+                                                  Locale.ENGLISH);
+         imgs.put(thumb(g, String.format("%-9s %04d", name, y),
+                        String.format("ddm%04d-%02d", y, m)));
+      }
+      return imgs;
+   }
+
+   private JSONArray renderPeople(List<BrowseAggregates.Group> groups)
+      throws SQLException
+   {
+      JSONArray imgs = new JSONArray();
+      if (groups.isEmpty()) return imgs;
+      HashMap<Integer, BrowseAggregates.Group> byId =
+         new HashMap<Integer, BrowseAggregates.Group>();
+      for (BrowseAggregates.Group g : groups) byId.put(g.key, g);
+
+      PreparedStatement st = StatementCache.prepare
+         (db(), "browse_names", SQL_NAMES);
+      st.setArray(1, db().createArrayOf("INTEGER", byId.keySet().toArray()));
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+         imgs.put(thumb(byId.get(rs.getInt(1)), rs.getString(2),
+                        "ddp" + rs.getInt(1)));
+      }
+      rs.close();
+      return imgs;
+   }
+
+   private JSONObject thumb(BrowseAggregates.Group g, String text, String act)
+   {
+      JSONObject img = new JSONObject();
+      img.put("id", g.min);
+      img.put("count", g.count);
+      img.put("text", text);
+      img.put("act", act);
+      return img;
+   }
+
    /**
     * Given an "imgs" array that has at least "id" defined on each
     * entry, add "hgt" and "wid" members which are the native pixel
@@ -417,9 +550,10 @@ public class BrowseREST extends PhotoServlet
          }
       }
 
-      PreparedStatement st = db.prepareStatement
-         ("SELECT imageid, height, width FROM image WHERE imageid = ANY(?);");
-      st.setArray(1, db.createArrayOf("INTEGER", dims.keySet().toArray()));
+      PreparedStatement st = StatementCache.prepare
+         (db(), "browse_dims",
+          "SELECT imageid, height, width FROM image WHERE imageid = ANY(?);");
+      st.setArray(1, db().createArrayOf("INTEGER", dims.keySet().toArray()));
       ResultSet rs = st.executeQuery();
       while (rs.next()) {
          // clunk clunk through Java's crapass non-native-type hashes
@@ -443,15 +577,21 @@ public class BrowseREST extends PhotoServlet
       }
    }
 
-   private PreparedStatement prepStatement(TokenUtils.Perms perms, String sql)
+   private PreparedStatement prepStatement
+   (TokenUtils.Perms perms, String name, String sql)
       throws SQLException
    {
-      PreparedStatement st = db.prepareStatement(sql);
-      st.setArray(1, db.createArrayOf("INTEGER",
+      PreparedStatement st = StatementCache.prepare(db(), name, sql);
+      st.setArray(1, db().createArrayOf("INTEGER",
                                       perms.viewableTags().toArray()));
       return st;
    }
       
+   private static final AtomicLong streamed =
+      Vars.counter("browse_streamed_responses");
+   private static final AtomicLong streamedImages =
+      Vars.counter("browse_streamed_images");
+
    /*
     * and now for a bunch of definitely not stored procedures
     */
@@ -488,6 +628,12 @@ public class BrowseREST extends PhotoServlet
       "WHERE i.deleted IS NULL AND it.tag = ANY(?) " +
       " GROUP BY 3, 4, p.lastname ORDER BY p.lastname;";
 
+   // names for the people SearchIndex.browse() found, in the same
+   // order as SQL_PERSON
+   private static String SQL_NAMES =
+      "SELECT personid, CONCAT(firstname, ' ', lastname) " +
+      "FROM person WHERE personid = ANY(?) ORDER BY lastname;";
+
    // TODO: the next two could be dangerous if called in a context
    // where the permission to read the names or locations has not been
    // checked.
@@ -496,9 +642,6 @@ public class BrowseREST extends PhotoServlet
       "SELECT CONCAT(firstname, ' ', lastname) " +
       "FROM person WHERE personid = ?;";
 
-   private static String SQL_LOCNAME =
-      "SELECT description FROM location WHERE locationid = ?;";
-
    private static String SQL_LOCCHILDREN =
       "SELECT MIN(imageid), COUNT(*), l.description, l.locationid " +
       "FROM image i " +
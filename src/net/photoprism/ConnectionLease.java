@@ -0,0 +1,188 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands each thread its own database connection out of the container
+ * pool, for as long as it is working on one request.  This replaces
+ * the single static Connection that every servlet used to share, on
+ * which the JDBC driver serialized every query in the webapp.
+ *
+ * get() borrows lazily, so a request that is answered from a cache
+ * never touches the pool, and calling it again on the same thread
+ * returns the same connection (which keeps EditREST's transaction on
+ * one connection).  PhotoServlet.service() calls release() when the
+ * request is done, whatever happened in between.
+ *
+ * A thread that gets a connection outside of service() has to call
+ * release() itself.  If it forgets, the lease shows up in
+ * db_lease_oldest_ms, and describe() will say who took it.
+ *
+ * @version 20261018
+ */
+
+public class ConnectionLease
+{
+   private static class Lease
+   {
+      final Connection conn;
+      final Thread thread;
+      final long since;
+      final Throwable where;
+
+      Lease(Connection conn, Throwable where)
+      {
+         this.conn = conn;
+         this.thread = Thread.currentThread();
+         this.since = System.currentTimeMillis();
+         this.where = where;
+      }
+   }
+
+   /**
+    * the connection this thread is using, borrowed from the pool if
+    * it doesn't have one yet.  Waits up to the pool's maxWait if the
+    * pool is empty, then throws.
+    */
+
+   public static Connection get() throws SQLException
+   {
+      Lease l = current.get();
+      if (l != null) return l.conn;
+
+      long start = System.nanoTime();
+      Connection c;
+      try { c = PhotoUtils.getConnection(); }
+      catch (SQLException e) {
+         failures.incrementAndGet();
+         throw e;
+      }
+      long waited = (System.nanoTime() - start) / 1000000;
+      leases.incrementAndGet();
+      waitMsTotal.addAndGet(waited);
+      waitMsMax.accumulateAndGet(waited, Math::max);
+
+      l = new Lease(c, trace ? new Throwable("leased here") : null);
+      current.set(l);
+      active.put(l.thread, l);
+      return c;
+   }
+
+   /**
+    * @return true if this thread is holding a connection
+    */
+
+   public static boolean held()
+   {
+      return current.get() != null;
+   }
+
+   /**
+    * gives this thread's connection back to the pool, if it has one.
+    * Safe to call any number of times.
+    *
+    * @return how many ms the connection was held, or -1 if there was
+    * none
+    */
+
+   public static long release()
+   {
+      Lease l = current.get();
+      if (l == null) return -1;
+      current.remove();
+      active.remove(l.thread);
+      long held = System.currentTimeMillis() - l.since;
+      heldMsTotal.addAndGet(held);
+      try { l.conn.close(); }
+      catch (SQLException e) { closeErrors.incrementAndGet(); }
+      return held;
+   }
+
+   /**
+    * records that a lease was found still held when it should not
+    * have been, and gives it back.
+    *
+    * @return a description of the lease, for the log
+    */
+
+   public static String reclaim()
+   {
+      if (!held()) return null;
+      leaks.incrementAndGet();
+      String s = describe(current.get());
+      release();
+      return s;
+   }
+
+   /**
+    * @param on if true, remember a stack trace for every lease, so a
+    * leak report can say where it came from.  Costs a Throwable per
+    * lease; leave it off unless hunting.
+    */
+
+   public static void setTrace(boolean on)
+   {
+      trace = on;
+   }
+
+   /**
+    * @return who has been holding a connection the longest, and since
+    * when, or null if nobody has one
+    */
+
+   public static String oldest()
+   {
+      Lease o = null;
+      for (Lease l : active.values()) {
+         if (o == null || l.since < o.since) o = l;
+      }
+      return (o == null) ? null : describe(o);
+   }
+
+   private static String describe(Lease l)
+   {
+      StringBuffer s = new StringBuffer();
+      s.append(l.thread.getName()).append(" has held a connection for ")
+         .append(System.currentTimeMillis() - l.since).append("ms");
+      if (l.where != null) {
+         for (StackTraceElement e : l.where.getStackTrace()) {
+            s.append("\n\tat ").append(e);
+         }
+      }
+      return s.toString();
+   }
+
+   private static long oldestMs()
+   {
+      long now = System.currentTimeMillis();
+      long max = 0;
+      for (Lease l : active.values()) max = Math.max(max, now - l.since);
+      return max;
+   }
+
+   private static final ThreadLocal<Lease> current = new ThreadLocal<Lease>();
+   private static final Map<Thread, Lease> active =
+      new ConcurrentHashMap<Thread, Lease>();
+   private static volatile boolean trace = false;
+
+   private static final AtomicLong leases = Vars.counter("db_leases");
+   private static final AtomicLong failures = Vars.counter("db_lease_failures");
+   private static final AtomicLong leaks = Vars.counter("db_lease_leaks");
+   private static final AtomicLong closeErrors =
+      Vars.counter("db_lease_close_errors");
+   private static final AtomicLong waitMsTotal =
+      Vars.counter("db_lease_wait_ms_total");
+   private static final AtomicLong waitMsMax =
+      Vars.counter("db_lease_wait_ms_max");
+   private static final AtomicLong heldMsTotal =
+      Vars.counter("db_lease_held_ms_total");
+
+   static {
+      Vars.gauge("db_leases_active", () -> active.size());
+      Vars.gauge("db_lease_oldest_ms", () -> oldestMs());
+   }
+}
@@ -0,0 +1,48 @@
+package net.photoprism;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A number that goes up whenever something a cached answer could show
+ * is written: images, the tags and people on them, their locations.
+ * A cache remembers the number an answer was made at, and the answer
+ * is stale once the number has moved.  Every write path calls
+ * changed().
+ *
+ * It starts at the time the class is loaded, in ms, rather than 0, so
+ * that a number handed out (say in an ETag) before a restart isn't
+ * handed out again after it.
+ *
+ * It only knows about writes made in this JVM.  A command line tool
+ * that writes the database (GPXInserter) moves its own copy, so
+ * caches still need a maximum age.
+ *
+ * @version 20261018
+ */
+
+public class DataVersion
+{
+   /**
+    * @return the current version
+    */
+
+   public static long get()
+   {
+      return version.get();
+   }
+
+   /**
+    * something was written; everything cached before now is stale
+    */
+
+   public static void changed()
+   {
+      version.incrementAndGet();
+   }
+
+   private static final AtomicLong version = Vars.counter("data_version");
+
+   static {
+      version.compareAndSet(0, System.currentTimeMillis());
+   }
+}
@@ -0,0 +1,300 @@
+package net.photoprism;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+
+/**
+ * Each image's detail object (Photo.toJSON()) kept already serialized,
+ * as UTF-8 bytes, so that a browse page can be sent by copying bytes
+ * instead of fetching and rebuilding a JSONObject per image per
+ * request.
+ *
+ * The only part of the detail object that depends on who is asking
+ * is "dl" and "ed", which come from the visitor's level on the
+ * image's tags.  So what's kept is the rest of the object without its
+ * closing brace, plus the tag ids, and the Writer adds one of three
+ * endings for each visitor.
+ *
+ * Code that changes an image calls invalidate(id).  Nothing renames a
+ * location or a person yet, but whatever does should call clear().
+ * Entries are also dropped after maxAgeMs, which is all that catches
+ * changes made by another process, like GPXInserter run from the
+ * command line.  A fetch that overlaps an invalidation doesn't keep
+ * what it read.
+ *
+ * Off (maxEntries 0) until setLimits() is called; the Writer still
+ * works, it just fetches everything.
+ *
+ * @version 20261018
+ */
+
+public class DetailCache
+{
+   /**
+    * one image, serialized
+    */
+
+   public static class Fragment
+   {
+      final byte[] json;
+      final int[] tags;
+      final long at;
+
+      Fragment(byte[] json, int[] tags, long at)
+      {
+         this.json = json;
+         this.tags = tags;
+         this.at = at;
+      }
+
+      /** @return the most the visitor can do with this image */
+      public int level(TokenUtils.Perms perms)
+      {
+         int lvl = TokenUtils.Perms.NONE;
+         for (int t : this.tags) {
+            lvl = Math.max(lvl, perms.tag_map.getOrDefault
+                           (t, TokenUtils.Perms.NONE));
+         }
+         return lvl;
+      }
+
+      public int bytes()
+      {
+         return 48 + this.json.length + this.tags.length * 4;
+      }
+   }
+
+   /**
+    * writes detail objects, comma separated, to an OutputStream that
+    * is in the middle of a JSON array, from the cache where it can.
+    * Also a Photo.Each, for photos the caller fetched itself.
+    */
+
+   public static class Writer implements Photo.Each
+   {
+      private final OutputStream out;
+      private final TokenUtils.Perms perms;
+      private long gen = generation();
+      private int count = 0;
+
+      public Writer(OutputStream out, TokenUtils.Perms perms)
+      {
+         this.out = out;
+         this.perms = perms;
+      }
+
+      /**
+       * writes these images, in this order, fetching the ones that
+       * aren't cached CHUNK at a time.  Images the visitor can't read
+       * are left out.
+       */
+
+      public void ids(Connection db, List<Integer> ids)
+      throws SQLException, IOException
+      {
+         for (int from = 0; from < ids.size(); from += CHUNK) {
+            List<Integer> chunk =
+               ids.subList(from, Math.min(ids.size(), from + CHUNK));
+            Fragment[] f = new Fragment[chunk.size()];
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < f.length; i++) {
+               f[i] = get(chunk.get(i));
+               if (f[i] == null) missing.add(chunk.get(i));
+            }
+            if (missing.size() > 0) {
+               HashMap<Integer, Fragment> got =
+                  new HashMap<Integer, Fragment>();
+               this.gen = generation();
+               Photo.fetchEach(db, this.perms, missing,
+                               p -> got.put(p.id, put(p, this.gen)));
+               for (int i = 0; i < f.length; i++) {
+                  if (f[i] == null) f[i] = got.get(chunk.get(i));
+               }
+            }
+            for (Fragment x : f) {
+               if (x != null) write(x);
+            }
+         }
+      }
+
+      /** writes p, and caches it */
+      public void photo(Photo p) throws IOException
+      {
+         write(put(p, this.gen));
+      }
+
+      public TokenUtils.Perms perms()
+      {
+         return this.perms;
+      }
+
+      /** @return how many have been written */
+      public int count()
+      {
+         return this.count;
+      }
+
+      private void write(Fragment f) throws IOException
+      {
+         int lvl = f.level(this.perms);
+         if (lvl < TokenUtils.Perms.READ) return;
+         if (this.count++ > 0) this.out.write(',');
+         this.out.write(f.json);
+         this.out.write((lvl >= TokenUtils.Perms.WRITE) ? END_WRITE
+                        : (lvl >= TokenUtils.Perms.DOWNLOAD) ? END_DOWNLOAD
+                        : END_READ);
+      }
+   }
+
+   /**
+    * @param maxEntries most images to keep; 0 turns the cache off
+    * @param maxAgeMs longest to keep one
+    */
+
+   public static void setLimits(int maxEntries, long maxAgeMs)
+   {
+      synchronized (cache) {
+         DetailCache.maxEntries = maxEntries;
+         DetailCache.maxAgeMs = maxAgeMs;
+         clear();
+      }
+   }
+
+   /**
+    * @return image id's fragment, or null if it isn't cached
+    */
+
+   public static Fragment get(int id)
+   {
+      Fragment f;
+      synchronized (cache) {
+         f = cache.get(id);
+         if (f != null && System.currentTimeMillis() - f.at > maxAgeMs) {
+            cache.remove(id);
+            bytes -= f.bytes();
+            f = null;
+         }
+      }
+      ((f == null) ? misses : hits).incrementAndGet();
+      return f;
+   }
+
+   /**
+    * serializes p, and keeps it unless something has been invalidated
+    * since generation() returned gen
+    */
+
+   public static Fragment put(Photo p, long gen)
+   {
+      JSONObject j = p.toJSON();
+      j.remove("dl");
+      j.remove("ed");
+      String s = j.toString();
+      // everything but the closing brace; "id" is always there, so
+      // an ending that starts with a comma is always right
+      byte[] json = s.substring(0, s.length() - 1)
+         .getBytes(StandardCharsets.UTF_8);
+      int[] tags = new int[(p.tags == null) ? 0 : p.tags.size()];
+      for (int i = 0; i < tags.length; i++) tags[i] = p.tags.get(i).id;
+      Fragment f = new Fragment(json, tags, System.currentTimeMillis());
+
+      synchronized (cache) {
+         if (maxEntries > 0 && gen == generation) {
+            Fragment old = cache.put(p.id, f);
+            if (old != null) bytes -= old.bytes();
+            bytes += f.bytes();
+         }
+      }
+      return f;
+   }
+
+   /**
+    * to pass to put() later; take it before reading from the database
+    */
+
+   public static long generation()
+   {
+      synchronized (cache) {
+         return generation;
+      }
+   }
+
+   /**
+    * image id changed
+    */
+
+   public static void invalidate(int id)
+   {
+      synchronized (cache) {
+         generation++;
+         Fragment f = cache.remove(id);
+         if (f != null) bytes -= f.bytes();
+      }
+      invalidations.incrementAndGet();
+   }
+
+   /**
+    * something many images show changed
+    */
+
+   public static void clear()
+   {
+      synchronized (cache) {
+         generation++;
+         cache.clear();
+         bytes = 0;
+      }
+      invalidations.incrementAndGet();
+   }
+
+   // how many ids Writer.ids() looks up, and fetches, at once
+   private static final int CHUNK = 500;
+
+   private static final byte[] END_READ = bytes("}");
+   private static final byte[] END_DOWNLOAD = bytes(",\"dl\":true}");
+   private static final byte[] END_WRITE = bytes(",\"dl\":true,\"ed\":true}");
+
+   private static byte[] bytes(String s)
+   {
+      return s.getBytes(StandardCharsets.UTF_8);
+   }
+
+   // guards everything below
+   private static final Map<Integer, Fragment> cache =
+      new LinkedHashMap<Integer, Fragment>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Fragment> e) {
+            if (size() <= maxEntries) return false;
+            bytes -= e.getValue().bytes();
+            return true;
+         }
+      };
+   private static int maxEntries = 0;
+   private static long maxAgeMs = 600000;
+   private static long generation = 0;
+   private static long bytes = 0;
+
+   private static final AtomicLong hits = Vars.counter("detail_cache_hits");
+   private static final AtomicLong misses =
+      Vars.counter("detail_cache_misses");
+   private static final AtomicLong invalidations =
+      Vars.counter("detail_cache_invalidations");
+
+   static {
+      Vars.gauge("detail_cache_size", () -> {
+            synchronized (cache) { return cache.size(); }
+         });
+      Vars.gauge("detail_cache_bytes", () -> {
+            synchronized (cache) { return bytes; }
+         });
+   }
+}
@@ -45,8 +45,8 @@ public class EditREST extends PhotoServlet
       Photo p;
       try {
          int imgID = Integer.parseInt(req.getParameter("img"));
-         p = Photo.fetchOne(db, getPerms(req), imgID);
-         p.populateAll(db);
+         p = Photo.fetchOne(db(), getPerms(req), imgID);
+         p.populateAll(db());
          sendJSON(res, p.toJSON());
       } catch (NumberFormatException e) {
          res.sendError(SC_BAD_REQUEST, "bad img parameter");
@@ -94,7 +94,7 @@ public class EditREST extends PhotoServlet
       try {
          perms = getPerms(req);
          imgID = Integer.parseInt(req.getParameter("img"));
-         p = perms.imgPerm(imgID, db);
+         p = perms.imgPerm(imgID, db());
       } catch (NumberFormatException e) {
          res.sendError(SC_BAD_REQUEST, "bad img parameter");
          return;
@@ -114,6 +114,9 @@ public class EditREST extends PhotoServlet
       ArrayList<Integer> tag_add = new ArrayList<Integer>();
       ArrayList<Integer> tag_del = new ArrayList<Integer>();
       int new_loc = 0;
+      // true if anything changed that pkeep would render differently:
+      // rotation, or anything the watermark template can refer to.
+      boolean rerender = false;
 
       Photo.NullBool newflag = new Photo.NullBool();
       Photo.NullBool delflag = new Photo.NullBool();
@@ -151,6 +154,7 @@ public class EditREST extends PhotoServlet
             break;
          case "cap":
             set_image.add("caption=" + PhotoUtils.quoteString(v));
+            rerender = true;
             break;
          case "fls":
             if ("true".equals(v) || "false".equals(v)) {
@@ -162,18 +166,22 @@ public class EditREST extends PhotoServlet
             break;
          case "ts":
             set_image.add("ts=" + PhotoUtils.quoteString(v));
+            rerender = true;
             break;
          case "rot":
             set_image.add("rotation=" + PhotoUtils.sanitizeInt(v));
+            rerender = true;
             break;
          case "loc":
             set_image.add("location=" + PhotoUtils.sanitizeInt(v));
             new_loc = Integer.parseInt(v);
+            rerender = true;
             break;
          case "loc_fre":
             try {
-               new_loc = addFreeformLocation(v, imgID, db);
+               new_loc = addFreeformLocation(v, imgID, db());
                set_image.add("location=" + new_loc);
+               rerender = true;
             } catch (SQLException e) {
                res.sendError(SC_SERVFAIL, "from addFreeformLocation: " + e);
                return;
@@ -206,11 +214,12 @@ public class EditREST extends PhotoServlet
             }
             break;
          case "exf":
-            try { ExifReader.updateExif(imgID, db); }
+            try { ExifReader.updateExif(imgID, db()); }
             catch (IOException | SQLException e) {
                res.sendError(SC_SERVFAIL, "in updateExif: " + e);
                return;
             }
+            rerender = true;
             break;
          default:
             // look in the FIELDS table for a large number of varchar
@@ -220,6 +229,7 @@ public class EditREST extends PhotoServlet
                if (f[0].equals(k)) {
                   if (v.length() <= Integer.parseInt(f[2])) {
                      set_image.add(f[1] + "=" + PhotoUtils.quoteString(v));
+                     if ("wmk".equals(k)) rerender = true;
                      ok = true;
                      break;
                   } else {
@@ -244,13 +254,14 @@ public class EditREST extends PhotoServlet
 
       // and now to deal with the requested changes
       String sql = null;
+      boolean committed = false;
 
       try {
-         db.setAutoCommit(false);
+         db().setAutoCommit(false);
          PreparedStatement st;
 
          if (set_image.size() > 0) {
-            st = db.prepareStatement
+            st = db().prepareStatement
                ("UPDATE image SET " + String.join(", ", set_image) +
                 " WHERE imageid = " + imgID + ";");
             st.executeUpdate();
@@ -262,7 +273,7 @@ public class EditREST extends PhotoServlet
             // join table
             sql = "SELECT psid FROM imagesubject " +
                "WHERE image=? AND subject=?;";
-            st = db.prepareStatement(sql);
+            st = db().prepareStatement(sql);
             st.setInt(1, imgID);
             st.setInt(2, i);
             if (st.executeQuery().next()) {
@@ -270,7 +281,7 @@ public class EditREST extends PhotoServlet
             }
             sql = "INSERT INTO imagesubject (image, subject) " +
                "VALUES (?, ?);";
-            st = db.prepareStatement(sql);
+            st = db().prepareStatement(sql);
             st.setInt(1, imgID);
             st.setInt(2, i);
             st.executeUpdate();
@@ -279,7 +290,7 @@ public class EditREST extends PhotoServlet
 
          for (int i : person_del) {
             sql = "DELETE FROM imagesubject WHERE image=? AND subject=?;";
-            st = db.prepareStatement(sql);
+            st = db().prepareStatement(sql);
             st.setInt(1, imgID);
             st.setInt(2, i);
             st.executeUpdate();
@@ -287,24 +298,57 @@ public class EditREST extends PhotoServlet
          }
 
          for (int i : tag_add) {
-            TagREST.tryAddTag(imgID, i, req, db);
+            TagREST.tryAddTag(imgID, i, req, db());
          }
 
          for (int i : tag_del) {
-            TagREST.tryDeleteTag(imgID, i, req, db);
+            TagREST.tryDeleteTag(imgID, i, req, db());
          }
 
-         db.commit();
+         db().commit();
+         committed = true;
 
       } catch (SQLException e) {
          log("on commit: " + e);
-         try { db.rollback(); }
+         try { db().rollback(); }
          catch (SQLException nowwhat) { log("on rollback: " + nowwhat); }
          res.sendError(SC_SERVFAIL, e.toString() + "\n" + sql);
          return;
       } finally {
-         try { db.setAutoCommit(true); }
+         try { db().setAutoCommit(true); }
          catch (SQLException e) { log("on setAutoCommit: " + e); }
+         // tryAddTag/tryDeleteTag told the indexes before we knew
+         // whether this would commit.  If it didn't, whether or not
+         // the rollback worked, read back what the database has.
+         if (!committed && tag_add.size() + tag_del.size() > 0) {
+            try {
+               ImageTagIndex.reload(imgID, db());
+               SearchIndex.reload(imgID, db());
+               TextIndex.reload(imgID, db());
+            }
+            catch (SQLException e) { log("on index reload: " + e); }
+            LocationTree.changed();
+            DetailCache.invalidate(imgID);
+            DataVersion.changed();
+         }
+      }
+
+      // date, location, people, flags: easier to read it all back
+      try { SearchIndex.reload(imgID, db()); }
+      catch (SQLException e) { log("on search index reload: " + e); }
+      try { TextIndex.reload(imgID, db()); }
+      catch (SQLException e) { log("on text index reload: " + e); }
+      LocationTree.changed();
+      // and again, now that it's committed, in case somebody read
+      // the old one back in meanwhile
+      DetailCache.invalidate(imgID);
+      DataVersion.changed();
+
+      // the rendition cache is keyed on the rendering instructions,
+      // so it would miss anyway, but there's no sense leaving the old
+      // renditions around to take up space.  Same for a deleted image.
+      if (rerender || (!delflag.isnull && delflag.val)) {
+         ImageREST.invalidate(imgID);
       }
 
       // now attempt to construct a return object that contains only
@@ -313,18 +357,18 @@ public class EditREST extends PhotoServlet
       Photo ret;
       JSONObject j = new JSONObject();
       try {
-         ret = Photo.fetchOne(db, perms, imgID);
+         ret = Photo.fetchOne(db(), perms, imgID);
          if (new_loc > 0) {
             ret.location = new Photo.LocationNode(new_loc, null);
-            ret.populateLocations(db);
+            ret.populateLocations(db());
             j.put("loc", ret.locationToJson());
          }
          if (tag_add.size() + tag_del.size() > 0) {
-            ret.populateTags(db);
+            ret.populateTags(db());
             j.put("tag", ret.tagsToJson());
          }
          if (person_add.size() + person_del.size() > 0) {
-            ret.populatePeople(db);
+            ret.populatePeople(db());
             j.put("ppl", ret.peopleToJson());
          }
       } catch (SQLException e) {
@@ -386,6 +430,7 @@ public class EditREST extends PhotoServlet
       rs = st.executeQuery();
       if (rs.next()) new_loc = rs.getInt(1);
       rs.close();
+      LocationTree.invalidate();
 
       return new_loc;
    }
@@ -407,7 +452,7 @@ public class EditREST extends PhotoServlet
          (" ", Arrays.copyOfRange(parts, 0, parts.length - 1));
       String lname = parts[parts.length - 1];
 
-      PreparedStatement st = db.prepareStatement
+      PreparedStatement st = db().prepareStatement
          ("INSERT INTO person (firstname, lastname) VALUES (?, ?);");
       st.setString(1, fname);
       st.setString(2, lname);
@@ -425,7 +470,7 @@ public class EditREST extends PhotoServlet
       String sql = "SELECT personid FROM person " +
          "WHERE UPPER(CONCAT(firstname, ' ', lastname)) " +
          " = UPPER(?);";
-      PreparedStatement st = db.prepareStatement(sql);
+      PreparedStatement st = db().prepareStatement(sql);
       st.setString(1, name);
       if (debug) log("lookForPerson name=" + name);
       ResultSet rs = st.executeQuery();
@@ -443,12 +488,12 @@ public class EditREST extends PhotoServlet
    private int addFreeformTag(String text, HttpServletRequest req)
    throws SQLException
    {
-      int tagid = TokenUtils.lookupTag(text, db);
+      int tagid = TokenUtils.lookupTag(text, db());
       if (tagid < 0) {
          // no tag exists by this name; create one
          if (text.length() > 15)
             throw new IllegalArgumentException("max tag length is 15");
-         PreparedStatement st = db.prepareStatement
+         PreparedStatement st = db().prepareStatement
             ("INSERT INTO tag (tag, description) VALUES (?, 'new tag') " +
              "RETURNING id;"); // look out, postgres only
          st.setString(1, text);
@@ -461,7 +506,7 @@ public class EditREST extends PhotoServlet
          rs.close();
       } else {
          // this tag already exists; check if you are allowed to apply it.
-         if (!TokenUtils.canAddTag(tagid, findCookie(req, "token"), db)) {
+         if (!TokenUtils.canAddTag(tagid, findCookie(req, "token"), db())) {
             throw new IllegalArgumentException("not allowed to add tag");
          }
       }
@@ -276,6 +276,8 @@ public class ExifReader
          System.out.println(sql.toString());
       } else {
          db.createStatement().executeUpdate(sql.toString());
+         DetailCache.invalidate(imageID);
+         DataVersion.changed();
       }
 
       in.close();
@@ -0,0 +1,223 @@
+package net.photoprism;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A search with any mix of filters, and for each kind of filter, how
+ * many images each choice would leave.  The browse pages can only
+ * narrow by one thing at a time; this is for narrowing by several.
+ * Everything comes out of SearchIndex in one pass, so it answers 503
+ * until the index is loaded rather than trying it in SQL.
+ *
+ * @version 20261018
+ */
+
+public class FacetREST extends PhotoServlet
+{
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * All parameters are optional, and any of them can be combined:
+    *
+    * <ul>
+    * <li><code>from</code>, <code>to</code>: first and last day, as
+    * 2004-07-01, or a year (2004) for all of it
+    * <li><code>p</code>: a PersonID.  Repeat it for images with all of
+    * them in.
+    * <li><code>t</code>: a tag id.  Repeat it for images with all of
+    * them.
+    * <li><code>l</code>: a LocationID, meaning there or anywhere under
+    * it.  Repeat it for any of them.
+    * <li><code>cam</code>: a camera, as EXIF has it ("" for none).
+    * Repeat it for any of them.
+    * <li><code>n</code>: only new images
+    * <li><code>limit</code>, <code>after</code>: page size (default
+    * 100) and where to start, as for SearchREST
+    * </ul>
+    *
+    * <p>The answer is SearchREST's page object, plus <code>facets</code>:
+    * <code>year</code>, <code>person</code>, <code>tag</code>,
+    * <code>location</code> (the places directly under the one asked
+    * for, or under Earth, each counting everything inside it),
+    * <code>camera</code>, and <code>new</code>.  Years, places,
+    * cameras and new are counted as if that filter hadn't been given,
+    * so the other choices still show; people and tags are counted
+    * among the matches.</p>
+    */
+
+   public void doGet(HttpServletRequest req, HttpServletResponse res)
+   throws IOException
+   {
+      List<Integer> view_tags;
+      try { view_tags = getPerms(req).viewableTags(); }
+      catch (SQLException e) {
+         res.sendError(SC_SERVFAIL, e.toString());
+         return;
+      }
+      if (view_tags == null || view_tags.size() == 0) {
+         res.sendError(SC_FORBIDDEN, "no valid tokens");
+         return;
+      }
+
+      SearchIndex.FacetQuery q = new SearchIndex.FacetQuery();
+      int root = EARTH;
+      int limit = DEFAULT_PAGE;
+      int after;
+      try {
+         String s = req.getParameter("from");
+         if (s != null) q.firstDay = day(s, false);
+         s = req.getParameter("to");
+         if (s != null) q.lastDay = day(s, true);
+         q.people = ints(req.getParameterValues("p"));
+         q.tags = ints(req.getParameterValues("t"));
+         int[] l = ints(req.getParameterValues("l"));
+         if (l.length > 0) {
+            LinkedHashSet<Integer> all = new LinkedHashSet<Integer>();
+            for (int id : l) {
+               for (int sub : LocationTree.subtree(id, db())) all.add(sub);
+            }
+            q.locations = all.stream().mapToInt(Integer::intValue).toArray();
+            if (l.length == 1) root = l[0];
+         }
+         q.cameras = req.getParameterValues("cam");
+         q.fresh = req.getParameter("n") != null;
+         s = PhotoUtils.sanitizeInt(req.getParameter("limit"));
+         if (s != null) limit = Integer.parseInt(s);
+         limit = Math.max(1, Math.min(limit, SearchREST.MAX_PAGE));
+         after = (int)SearchREST.parseToken(req.getParameter("after"))[0];
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+         // NumberFormatException is an IllegalArgumentException
+         res.sendError(SC_BAD_REQUEST, "bad search: " + e.getMessage());
+         return;
+      } catch (SQLException e) {
+         res.sendError(SC_SERVFAIL, e.toString());
+         return;
+      }
+
+      SearchIndex.Facets f = SearchIndex.facets(view_tags, q, after, limit);
+      if (f == null) {
+         res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                       "search index not loaded yet");
+         return;
+      }
+
+      try {
+         Connection db = db();
+         JSONObject ret = SearchREST.pageJSON(f.page);
+         ret.put("ids", new JSONArray(f.page.ids));
+         JSONObject facets = new JSONObject();
+
+         JSONArray years = new JSONArray();
+         for (int[] y : f.years) {
+            years.put(new JSONObject().put("id", y[0]).put("count", y[1]));
+         }
+         facets.put("year", years);
+         facets.put("person", named(db, "facet_people", SQL_PEOPLE, f.people));
+         facets.put("tag", named(db, "facet_tags", SQL_TAGS, f.tags));
+
+         LocationTree.Node place = LocationTree.get(root, db);
+         JSONArray places = new JSONArray();
+         if (place != null) {
+            LocationTree.Counts counts = LocationTree.rollUp(f.locations, db);
+            for (LocationTree.Node child : place.children()) {
+               if (counts.count(child) == 0) continue;
+               places.put(new JSONObject().put("id", child.id)
+                          .put("text", child.description)
+                          .put("count", counts.count(child)));
+            }
+         }
+         facets.put("location", places);
+
+         JSONArray cams = new JSONArray();
+         for (Map.Entry<String, Integer> e : f.cameras.entrySet()) {
+            if (cams.length() == FACET_MAX) break;
+            cams.put(new JSONObject().put("text", e.getKey())
+                     .put("count", e.getValue()));
+         }
+         facets.put("camera", cams);
+         facets.put("new", f.fresh);
+         ret.put("facets", facets);
+         sendJSON(res, ret);
+      } catch (SQLException e) {
+         res.sendError(SC_SERVFAIL, e.toString());
+      }
+   }
+
+   // epoch day of 2004-07-01, or of the first or last day of 2004
+   private static int day(String s, boolean last)
+   {
+      if (s.matches("\\d{4}")) {
+         int y = Integer.parseInt(s);
+         return (int)(last ? LocalDate.of(y, 12, 31) : LocalDate.of(y, 1, 1))
+            .toEpochDay();
+      }
+      return (int)LocalDate.parse(s).toEpochDay();
+   }
+
+   private static int[] ints(String[] values)
+   {
+      if (values == null) return new int[0];
+      int[] ret = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+         ret[i] = Integer.parseInt(values[i]);
+      }
+      return ret;
+   }
+
+   /**
+    * the first FACET_MAX of counts ({ id, count }, most first), with
+    * the name sql gives for each id
+    */
+
+   private static JSONArray named
+   (Connection db, String name, String sql, int[][] counts)
+   throws SQLException
+   {
+      int n = Math.min(counts.length, FACET_MAX);
+      List<Integer> ids = new ArrayList<Integer>(n);
+      for (int i = 0; i < n; i++) ids.add(counts[i][0]);
+      HashMap<Integer, String> names = new HashMap<Integer, String>();
+      if (n > 0) {
+         PreparedStatement st = StatementCache.prepare(db, name, sql);
+         st.setArray(1, db.createArrayOf("INTEGER", ids.toArray()));
+         ResultSet rs = st.executeQuery();
+         while (rs.next()) names.put(rs.getInt(1), rs.getString(2));
+         rs.close();
+      }
+      JSONArray ret = new JSONArray();
+      for (int i = 0; i < n; i++) {
+         ret.put(new JSONObject().put("id", counts[i][0])
+                 .put("text", names.getOrDefault(counts[i][0], ""))
+                 .put("count", counts[i][1]));
+      }
+      return ret;
+   }
+
+   // only people and tags on images the caller can see get here
+   private static final String SQL_PEOPLE =
+      "SELECT personid, CONCAT(firstname, ' ', lastname) " +
+      "FROM person WHERE personid = ANY(?);";
+   private static final String SQL_TAGS =
+      "SELECT id, tag FROM tag WHERE id = ANY(?);";
+
+   /** the location at the top of the tree */
+   private static final int EARTH = 1;
+   private static final int DEFAULT_PAGE = 100;
+   /** the most people, tags or cameras to list */
+   private static final int FACET_MAX = 50;
+}
@@ -132,7 +132,7 @@ public class HistogramServlet extends PhotoServlet
   private void executeQuery()
   {
     try {
-      if (st == null) st = db.createStatement();
+      if (st == null) st = db().createStatement();
       rs = st.executeQuery(sql.toString());
     } catch (SQLException e) {
       log("query failed: " + sql.toString());
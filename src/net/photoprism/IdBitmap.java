@@ -0,0 +1,617 @@
+package net.photoprism;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints (imageids, in practice), after
+ * the fashion of Roaring bitmaps.  The ids are split on their high 16
+ * bits into chunks of 65536.  A chunk with few ids in it keeps them as
+ * a sorted char[]; once it has more than 4096 it switches to a plain
+ * 8k bitmap, which is smaller from there on and much faster to AND
+ * and OR.  Photo ids are dense, so most chunks of a big tag end up as
+ * bitmaps and most chunks of a small one as arrays.
+ *
+ * Not thread safe; SearchIndex does the locking.
+ *
+ * @version 20261018
+ */
+
+public class IdBitmap
+{
+   public IdBitmap()
+   {
+      this.keys = new char[4];
+      this.chunks = new Chunk[4];
+      this.n = 0;
+   }
+
+   public void add(int id)
+   {
+      int i = find((char)(id >>> 16));
+      if (i < 0) {
+         i = -i - 1;
+         insertChunk(i, (char)(id >>> 16), new ArrayChunk());
+      }
+      this.chunks[i] = this.chunks[i].add((char)id);
+   }
+
+   public void remove(int id)
+   {
+      int i = find((char)(id >>> 16));
+      if (i < 0) return;
+      Chunk c = this.chunks[i].remove((char)id);
+      if (c.cardinality() == 0) {
+         removeChunk(i);
+      } else {
+         this.chunks[i] = c;
+      }
+   }
+
+   public boolean contains(int id)
+   {
+      int i = find((char)(id >>> 16));
+      return i >= 0 && this.chunks[i].contains((char)id);
+   }
+
+   public int cardinality()
+   {
+      int c = 0;
+      for (int i = 0; i < this.n; i++) c += this.chunks[i].cardinality();
+      return c;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.n == 0;
+   }
+
+   /**
+    * @return a new bitmap with the ids in either a or b
+    */
+
+   public static IdBitmap or(IdBitmap a, IdBitmap b)
+   {
+      IdBitmap r = new IdBitmap();
+      int i = 0;
+      int j = 0;
+      while (i < a.n || j < b.n) {
+         if (j >= b.n || (i < a.n && a.keys[i] < b.keys[j])) {
+            r.append(a.keys[i], a.chunks[i].copy());
+            i++;
+         } else if (i >= a.n || b.keys[j] < a.keys[i]) {
+            r.append(b.keys[j], b.chunks[j].copy());
+            j++;
+         } else {
+            r.append(a.keys[i], a.chunks[i].or(b.chunks[j]));
+            i++;
+            j++;
+         }
+      }
+      return r;
+   }
+
+   /**
+    * @return a new bitmap with the ids in both a and b
+    */
+
+   public static IdBitmap and(IdBitmap a, IdBitmap b)
+   {
+      IdBitmap r = new IdBitmap();
+      int i = 0;
+      int j = 0;
+      while (i < a.n && j < b.n) {
+         if (a.keys[i] < b.keys[j]) {
+            i++;
+         } else if (b.keys[j] < a.keys[i]) {
+            j++;
+         } else {
+            Chunk c = a.chunks[i].and(b.chunks[j]);
+            if (c.cardinality() > 0) r.append(a.keys[i], c);
+            i++;
+            j++;
+         }
+      }
+      return r;
+   }
+
+   /**
+    * @return how many ids are in both a and b, without making the
+    * bitmap that and() would
+    */
+
+   public static int andCardinality(IdBitmap a, IdBitmap b)
+   {
+      int c = 0;
+      int i = 0;
+      int j = 0;
+      while (i < a.n && j < b.n) {
+         if (a.keys[i] < b.keys[j]) {
+            i++;
+         } else if (b.keys[j] < a.keys[i]) {
+            j++;
+         } else {
+            c += a.chunks[i].andCardinality(b.chunks[j]);
+            i++;
+            j++;
+         }
+      }
+      return c;
+   }
+
+   /**
+    * @return a new bitmap of the first n of ids, which are in
+    * ascending order; much faster than add()ing them one at a time
+    */
+
+   public static IdBitmap of(int[] ids, int n)
+   {
+      IdBitmap r = new IdBitmap();
+      int i = 0;
+      while (i < n) {
+         char key = (char)(ids[i] >>> 16);
+         int j = i;
+         while (j < n && (ids[j] >>> 16) == key) j++;
+         if (j - i > ARRAY_MAX) {
+            BitsChunk b = new BitsChunk();
+            for (int k = i; k < j; k++) {
+               b.w[(char)ids[k] >>> 6] |= 1L << ids[k];
+            }
+            b.card = j - i;
+            r.append(key, b);
+         } else {
+            char[] v = new char[j - i];
+            for (int k = i; k < j; k++) v[k - i] = (char)ids[k];
+            r.append(key, new ArrayChunk(v, j - i));
+         }
+         i = j;
+      }
+      return r;
+   }
+
+   /**
+    * @return a new bitmap with the ids in a that aren't in b
+    */
+
+   public static IdBitmap andNot(IdBitmap a, IdBitmap b)
+   {
+      IdBitmap r = new IdBitmap();
+      int j = 0;
+      for (int i = 0; i < a.n; i++) {
+         while (j < b.n && b.keys[j] < a.keys[i]) j++;
+         Chunk c = (j < b.n && b.keys[j] == a.keys[i]) ?
+            a.chunks[i].andNot(b.chunks[j]) : a.chunks[i].copy();
+         if (c.cardinality() > 0) r.append(a.keys[i], c);
+      }
+      return r;
+   }
+
+   /**
+    * OR of any number of bitmaps, such as one per viewable tag.
+    * Folds them together in one bitmap chunk per key, rather than
+    * making a new bitmap for each step.
+    */
+
+   public static IdBitmap or(Iterable<IdBitmap> all)
+   {
+      IdBitmap r = new IdBitmap();
+      for (IdBitmap b : all) {
+         if (b == null) continue;
+         for (int j = 0; j < b.n; j++) {
+            int i = r.find(b.keys[j]);
+            if (i < 0) {
+               r.insertChunk(-i - 1, b.keys[j], b.chunks[j].copy());
+            } else {
+               r.chunks[i] = r.chunks[i].orInPlace(b.chunks[j]);
+            }
+         }
+      }
+      return r;
+   }
+
+   /**
+    * @return the ids in ascending order
+    */
+
+   public int[] toArray()
+   {
+      int[] ret = new int[cardinality()];
+      int k = 0;
+      for (int i = 0; i < this.n; i++) {
+         k = this.chunks[i].fill(this.keys[i] << 16, ret, k);
+      }
+      return ret;
+   }
+
+   /**
+    * @return approximate bytes of heap used, for the vars page
+    */
+
+   public long bytes()
+   {
+      long b = 32 + this.keys.length * 2 + this.chunks.length * 8;
+      for (int i = 0; i < this.n; i++) b += this.chunks[i].bytes();
+      return b;
+   }
+
+   public String toString()
+   {
+      return "IdBitmap(" + cardinality() + " ids in " + this.n + " chunks)";
+   }
+
+   private int find(char key)
+   {
+      // the common case is adding ids in order
+      if (this.n > 0 && this.keys[this.n - 1] == key) return this.n - 1;
+      return Arrays.binarySearch(this.keys, 0, this.n, key);
+   }
+
+   private void insertChunk(int i, char key, Chunk c)
+   {
+      if (this.n == this.keys.length) {
+         this.keys = Arrays.copyOf(this.keys, this.n * 2);
+         this.chunks = Arrays.copyOf(this.chunks, this.n * 2);
+      }
+      System.arraycopy(this.keys, i, this.keys, i + 1, this.n - i);
+      System.arraycopy(this.chunks, i, this.chunks, i + 1, this.n - i);
+      this.keys[i] = key;
+      this.chunks[i] = c;
+      this.n++;
+   }
+
+   private void removeChunk(int i)
+   {
+      System.arraycopy(this.keys, i + 1, this.keys, i, this.n - i - 1);
+      System.arraycopy(this.chunks, i + 1, this.chunks, i, this.n - i - 1);
+      this.n--;
+      this.chunks[this.n] = null;
+   }
+
+   private void append(char key, Chunk c)
+   {
+      insertChunk(this.n, key, c);
+   }
+
+   /**
+    * the low 16 bits of the ids that share one high 16 bits.  Methods
+    * that change a chunk return the chunk to use from then on, which
+    * may be a different kind.
+    */
+
+   private static abstract class Chunk
+   {
+      abstract Chunk add(char x);
+      abstract Chunk remove(char x);
+      abstract boolean contains(char x);
+      abstract int cardinality();
+      abstract Chunk copy();
+      abstract Chunk or(Chunk o);
+      abstract Chunk orInPlace(Chunk o);
+      abstract Chunk and(Chunk o);
+      abstract int andCardinality(Chunk o);
+      abstract Chunk andNot(Chunk o);
+      abstract int fill(int high, int[] out, int k);
+      abstract long bytes();
+   }
+
+   private static final int ARRAY_MAX = 4096;
+
+   private static class ArrayChunk extends Chunk
+   {
+      char[] v;
+      int n;
+
+      ArrayChunk()
+      {
+         this.v = new char[4];
+         this.n = 0;
+      }
+
+      ArrayChunk(char[] v, int n)
+      {
+         this.v = v;
+         this.n = n;
+      }
+
+      Chunk add(char x)
+      {
+         // in-order appends are the common case at load time
+         if (this.n > 0 && this.v[this.n - 1] < x) {
+            if (this.n == ARRAY_MAX) return toBits().add(x);
+            if (this.n == this.v.length) {
+               this.v = Arrays.copyOf(this.v, newLength());
+            }
+            this.v[this.n++] = x;
+            return this;
+         }
+         int i = Arrays.binarySearch(this.v, 0, this.n, x);
+         if (i >= 0) return this;
+         if (this.n == ARRAY_MAX) return toBits().add(x);
+         i = -i - 1;
+         if (this.n == this.v.length) {
+            this.v = Arrays.copyOf(this.v, newLength());
+         }
+         System.arraycopy(this.v, i, this.v, i + 1, this.n - i);
+         this.v[i] = x;
+         this.n++;
+         return this;
+      }
+
+      private int newLength()
+      {
+         return Math.min(ARRAY_MAX, Math.max(4, this.n * 2));
+      }
+
+      Chunk remove(char x)
+      {
+         int i = Arrays.binarySearch(this.v, 0, this.n, x);
+         if (i < 0) return this;
+         System.arraycopy(this.v, i + 1, this.v, i, this.n - i - 1);
+         this.n--;
+         return this;
+      }
+
+      boolean contains(char x)
+      {
+         return Arrays.binarySearch(this.v, 0, this.n, x) >= 0;
+      }
+
+      int cardinality()
+      {
+         return this.n;
+      }
+
+      Chunk copy()
+      {
+         return new ArrayChunk(Arrays.copyOf(this.v, Math.max(this.n, 1)),
+                               this.n);
+      }
+
+      BitsChunk toBits()
+      {
+         BitsChunk b = new BitsChunk();
+         for (int i = 0; i < this.n; i++) {
+            b.w[this.v[i] >>> 6] |= 1L << this.v[i];
+         }
+         b.card = this.n;
+         return b;
+      }
+
+      Chunk or(Chunk o)
+      {
+         if (o instanceof BitsChunk) return o.or(this);
+         ArrayChunk b = (ArrayChunk)o;
+         if (this.n + b.n > ARRAY_MAX) return toBits().orInPlace(b);
+         char[] r = new char[this.n + b.n];
+         int i = 0, j = 0, k = 0;
+         while (i < this.n && j < b.n) {
+            char x = this.v[i];
+            char y = b.v[j];
+            if (x < y) { r[k++] = x; i++; }
+            else if (y < x) { r[k++] = y; j++; }
+            else { r[k++] = x; i++; j++; }
+         }
+         while (i < this.n) r[k++] = this.v[i++];
+         while (j < b.n) r[k++] = b.v[j++];
+         return new ArrayChunk(r, k);
+      }
+
+      Chunk orInPlace(Chunk o)
+      {
+         return or(o);
+      }
+
+      Chunk and(Chunk o)
+      {
+         char[] r = new char[this.n];
+         int k = 0;
+         if (o instanceof BitsChunk) {
+            BitsChunk b = (BitsChunk)o;
+            for (int i = 0; i < this.n; i++) {
+               if (b.contains(this.v[i])) r[k++] = this.v[i];
+            }
+         } else {
+            ArrayChunk b = (ArrayChunk)o;
+            int i = 0, j = 0;
+            while (i < this.n && j < b.n) {
+               char x = this.v[i];
+               char y = b.v[j];
+               if (x < y) i++;
+               else if (y < x) j++;
+               else { r[k++] = x; i++; j++; }
+            }
+         }
+         return new ArrayChunk(r, k);
+      }
+
+      int andCardinality(Chunk o)
+      {
+         int k = 0;
+         if (o instanceof BitsChunk) {
+            BitsChunk b = (BitsChunk)o;
+            for (int i = 0; i < this.n; i++) {
+               if (b.contains(this.v[i])) k++;
+            }
+         } else {
+            ArrayChunk b = (ArrayChunk)o;
+            int i = 0, j = 0;
+            while (i < this.n && j < b.n) {
+               char x = this.v[i];
+               char y = b.v[j];
+               if (x < y) i++;
+               else if (y < x) j++;
+               else { k++; i++; j++; }
+            }
+         }
+         return k;
+      }
+
+      Chunk andNot(Chunk o)
+      {
+         char[] r = new char[Math.max(this.n, 1)];
+         int k = 0;
+         for (int i = 0; i < this.n; i++) {
+            if (!o.contains(this.v[i])) r[k++] = this.v[i];
+         }
+         return new ArrayChunk(r, k);
+      }
+
+      int fill(int high, int[] out, int k)
+      {
+         for (int i = 0; i < this.n; i++) out[k++] = high | this.v[i];
+         return k;
+      }
+
+      long bytes()
+      {
+         return 32 + this.v.length * 2;
+      }
+   }
+
+   private static class BitsChunk extends Chunk
+   {
+      final long[] w = new long[1024];
+      int card = 0;
+
+      Chunk add(char x)
+      {
+         long bit = 1L << x;
+         if ((this.w[x >>> 6] & bit) == 0) {
+            this.w[x >>> 6] |= bit;
+            this.card++;
+         }
+         return this;
+      }
+
+      Chunk remove(char x)
+      {
+         long bit = 1L << x;
+         if ((this.w[x >>> 6] & bit) != 0) {
+            this.w[x >>> 6] &= ~bit;
+            this.card--;
+         }
+         return (this.card <= ARRAY_MAX) ? toArrayChunk() : this;
+      }
+
+      boolean contains(char x)
+      {
+         return (this.w[x >>> 6] & (1L << x)) != 0;
+      }
+
+      int cardinality()
+      {
+         return this.card;
+      }
+
+      Chunk copy()
+      {
+         BitsChunk b = new BitsChunk();
+         System.arraycopy(this.w, 0, b.w, 0, 1024);
+         b.card = this.card;
+         return b;
+      }
+
+      ArrayChunk toArrayChunk()
+      {
+         char[] v = new char[Math.max(this.card, 1)];
+         int k = 0;
+         for (int i = 0; i < 1024; i++) {
+            long word = this.w[i];
+            while (word != 0) {
+               v[k++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+               word &= word - 1;
+            }
+         }
+         return new ArrayChunk(v, k);
+      }
+
+      Chunk or(Chunk o)
+      {
+         return copy().orInPlace(o);
+      }
+
+      Chunk orInPlace(Chunk o)
+      {
+         if (o instanceof ArrayChunk) {
+            ArrayChunk a = (ArrayChunk)o;
+            for (int i = 0; i < a.n; i++) add(a.v[i]);
+            return this;
+         }
+         BitsChunk b = (BitsChunk)o;
+         int c = 0;
+         for (int i = 0; i < 1024; i++) {
+            this.w[i] |= b.w[i];
+            c += Long.bitCount(this.w[i]);
+         }
+         this.card = c;
+         return this;
+      }
+
+      Chunk and(Chunk o)
+      {
+         if (o instanceof ArrayChunk) return o.and(this);
+         BitsChunk b = (BitsChunk)o;
+         BitsChunk r = new BitsChunk();
+         int c = 0;
+         for (int i = 0; i < 1024; i++) {
+            r.w[i] = this.w[i] & b.w[i];
+            c += Long.bitCount(r.w[i]);
+         }
+         r.card = c;
+         return (c <= ARRAY_MAX) ? r.toArrayChunk() : r;
+      }
+
+      int andCardinality(Chunk o)
+      {
+         if (o instanceof ArrayChunk) return o.andCardinality(this);
+         BitsChunk b = (BitsChunk)o;
+         int c = 0;
+         for (int i = 0; i < 1024; i++) c += Long.bitCount(this.w[i] & b.w[i]);
+         return c;
+      }
+
+      Chunk andNot(Chunk o)
+      {
+         BitsChunk r = (BitsChunk)copy();
+         if (o instanceof ArrayChunk) {
+            ArrayChunk a = (ArrayChunk)o;
+            for (int i = 0; i < a.n; i++) {
+               long bit = 1L << a.v[i];
+               if ((r.w[a.v[i] >>> 6] & bit) != 0) {
+                  r.w[a.v[i] >>> 6] &= ~bit;
+                  r.card--;
+               }
+            }
+            return (r.card <= ARRAY_MAX) ? r.toArrayChunk() : r;
+         }
+         BitsChunk b = (BitsChunk)o;
+         int c = 0;
+         for (int i = 0; i < 1024; i++) {
+            r.w[i] &= ~b.w[i];
+            c += Long.bitCount(r.w[i]);
+         }
+         r.card = c;
+         return (c <= ARRAY_MAX) ? r.toArrayChunk() : r;
+      }
+
+      int fill(int high, int[] out, int k)
+      {
+         for (int i = 0; i < 1024; i++) {
+            long word = this.w[i];
+            while (word != 0) {
+               out[k++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+               word &= word - 1;
+            }
+         }
+         return k;
+      }
+
+      long bytes()
+      {
+         return 8192 + 24;
+      }
+   }
+
+   private char[] keys;
+   private Chunk[] chunks;
+   private int n;
+}
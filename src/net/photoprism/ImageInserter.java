@@ -235,6 +235,11 @@ public class ImageInserter
       st.setInt(2, tag);
       st.executeUpdate();
       st.close();
+      ImageTagIndex.added(newid, tag);
+      SearchIndex.reload(newid, db);
+      TextIndex.reload(newid, db);
+      LocationTree.changed();
+      DataVersion.changed();
     } catch (SQLException e) {
       pw.println("*** database error: " + e.getMessage());
       // still return newid at this point, because the insert into
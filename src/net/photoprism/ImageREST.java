@@ -1,13 +1,28 @@
 package net.photoprism;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -47,8 +62,159 @@ public class ImageREST extends PhotoServlet
 		super.init(config);
 		pkeepCache = config.getInitParameter("pkeepcache");
 		pkeepHost = config.getInitParameter("pkeephost");
+
+      String cachebytes = config.getInitParameter("renditioncache");
+      String itembytes = config.getInitParameter("renditionmaxitem");
+      try {
+         renditions = new RenditionCache
+            (cachebytes == null ? RENDITION_CACHE_BYTES
+             : Long.parseLong(cachebytes),
+             itembytes == null ? RENDITION_MAX_ITEM
+             : Integer.parseInt(itembytes));
+      } catch (NumberFormatException e) {
+         throw new ServletException("bad rendition cache size: " + e);
+      }
+      if (debug) log(renditions.toString());
+
+      // where to pack small renditions; no store if not given
+      String thumbdir = config.getInitParameter("thumbstore");
+      if (thumbdir != null) {
+         try {
+            thumbs = new ThumbStore
+               (new File(thumbdir),
+                intParam(config, "thumbsegment", ThumbStore.DEFAULT_SEGMENT_BYTES),
+                intParam(config, "thumbmaxitem", THUMB_MAX_ITEM));
+         } catch (IOException e) {
+            // not fatal, we just don't get to have nice things
+            log("thumbnail store disabled: " + e);
+         }
+         if (debug) log(String.valueOf(thumbs));
+      }
+
+      views = new ViewLogger(intParam(config, "viewlogqueue", VIEWLOG_QUEUE),
+                             intParam(config, "viewlogbatch", VIEWLOG_BATCH),
+                             intParam(config, "viewlogflushms", VIEWLOG_FLUSH_MS));
+
+      maxAgeThumb = intParam(config, "maxagethumb", 0);
+      maxAgeDisplay = intParam(config, "maxagedisplay", 0);
+      maxAgeOrig = intParam(config, "maxageorig", 0);
+
+      // one UDP channel for the whole JVM, to however many pkeeps are
+      // listed in pkeephost (localhost if none).
+      int timeout = intParam(config, "pkeeptimeout",
+                             (int)PkeepClient.DEFAULT_TIMEOUT_MS);
+      try {
+         PkeepClient pkeep = new PkeepClient
+            (PkeepClient.parseBackends(pkeepHost), timeout);
+         PkeepClient.setShared(pkeep);
+         if (debug) log(pkeep.toString());
+      } catch (IOException e) {
+         throw new ServletException("cannot open pkeep channel: " + e);
+      } catch (NumberFormatException e) {
+         throw new ServletException("bad pkeephost: " + pkeepHost);
+      }
+
+      // requested sizes are rounded up to one of these, so that a
+      // browser asking for 191px and another asking for 192px share
+      // one rendition.
+      String lad = config.getInitParameter("sizeladder");
+      if (lad != null) {
+         try { ladder = parseLadder(lad); }
+         catch (NumberFormatException e) {
+            throw new ServletException("bad sizeladder: " + lad);
+         }
+      }
+
+      // "pkeep" (the default), "fallback" to render here when pkeep
+      // fails, or "java" to not bother pkeep at all.
+      String mode = config.getInitParameter("render");
+      if (mode == null || mode.equals("pkeep")) {
+         renderMode = RENDER_PKEEP;
+      } else if (mode.equals("fallback")) {
+         renderMode = RENDER_FALLBACK;
+      } else if (mode.equals("java")) {
+         renderMode = RENDER_JAVA;
+      } else {
+         throw new ServletException("bad render mode: " + mode);
+      }
+      if (renderMode != RENDER_PKEEP) {
+         String font = config.getInitParameter("renderfont");
+         javaRenderer = new JavaRenderer
+            (intParam(config, "renderthreads", 0),
+             font == null ? null : new File(font));
+         javaRenderer.setPyramid(ladder, longParam
+            (config, "pyramidcache", PYRAMID_CACHE_BYTES));
+         if (debug) log(javaRenderer.toString());
+      }
 	}
 
+   private static long longParam(ServletConfig config, String name, long dfl)
+   throws ServletException
+   {
+      String v = config.getInitParameter(name);
+      if (v == null) return dfl;
+      try { return Long.parseLong(v); }
+      catch (NumberFormatException e) {
+         throw new ServletException("bad " + name + ": " + v);
+      }
+   }
+
+   static int[] parseLadder(String s)
+   {
+      String[] parts = s.split(",");
+      int[] out = new int[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+         out[i] = Integer.parseInt(parts[i].trim());
+      }
+      Arrays.sort(out);
+      return out;
+   }
+
+   /**
+    * @return the smallest rung that is at least size, or size itself
+    * if it is 0 (the original) or bigger than the whole ladder
+    */
+
+   static int snapSize(int size, int[] ladder)
+   {
+      if (size <= 0) return size;
+      for (int rung : ladder) {
+         if (rung >= size) return rung;
+      }
+      return size;
+   }
+
+   /**
+    * forget everything rendered from this image, because an edit
+    * changed how it should look.
+    */
+
+   public static void invalidate(int imgID)
+   {
+      renditions.invalidate(imgID);
+      if (javaRenderer != null) javaRenderer.invalidate(imgID);
+      if (thumbs != null) thumbs.invalidate(imgID);
+   }
+
+   public void destroy()
+   {
+      if (javaRenderer != null) javaRenderer.shutdown();
+      if (thumbs != null) thumbs.close();
+      if (views != null) views.close(VIEWLOG_CLOSE_MS);
+      super.destroy();
+   }
+
+   private static int intParam(ServletConfig config, String name, int dfl)
+   throws ServletException
+   {
+      String v = config.getInitParameter(name);
+      if (v == null) return dfl;
+      try { return Integer.parseInt(v); }
+      catch (NumberFormatException e) {
+         throw new ServletException("bad " + name + ": " + v);
+      }
+   }
+
 	/**
 	 * doGet returns an image in the appropriate mime type.  Images are
 	 * converted to jpeg unless we are returning the original file, in which
@@ -73,6 +239,8 @@ public class ImageREST extends PhotoServlet
 		int imgID = 0;
 		int size = 1024;
       StringBuffer inst = new StringBuffer();
+      String etag = null;
+      long mtime = 0;
       
 		timeCheckpoint(null);
 
@@ -87,6 +255,10 @@ public class ImageREST extends PhotoServlet
          res.sendError(SC_BAD_REQUEST, "non-numeric size: " + parts[1]);
          return;
       }
+      // what was asked for decides the watermark and the rest; the
+      // rung is only what gets rendered
+      int asked = size;
+      size = snapSize(size, ladder);
       if (parts.length > 2) {
          if (parts[2].endsWith(".jpg")) {
             parts[2] = parts[2].substring(0, parts[2].length() - 4);
@@ -100,7 +272,7 @@ public class ImageREST extends PhotoServlet
 
 		try {
          // check permission against tokens
-         int p = getPerms(req).imgPerm(imgID, db);
+         int p = getPerms(req).imgPerm(imgID, db());
          boolean orig = (size == 0);
          if ((p < TokenUtils.Perms.READ) ||
              (orig && p < TokenUtils.Perms.DOWNLOAD)) {
@@ -108,18 +280,15 @@ public class ImageREST extends PhotoServlet
             return;
          }
 
-         if (orig) {
-            res.setHeader("Content-Disposition", "attachment; filename=" +
-                          imgID + ".jpg");
-         }
 
          // nb that the "current user" log field is obsolete but not
          // replaced with anything meaningful yet.
-			if (size >= 450)
-				logView(imgID, 1, size, req.getRemoteHost());
+			if (asked >= 450)
+				views.log(imgID, 1, asked, req.getRemoteHost());
 
-         PreparedStatement st = db.prepareStatement
-            ("SELECT l.description AS loc, " +
+         PreparedStatement st = StatementCache.prepare
+            (db(), "image_inst",
+             "SELECT l.description AS loc, " +
              "i.rotation, i.caption, i.watermark, " +
              "date_part('year', i.ts) AS year, i.imageid " +
              "FROM image i " +
@@ -136,7 +305,7 @@ public class ImageREST extends PhotoServlet
 				inst.append('\n');
 			}
 
-         if (size > 400 && rs.getString("watermark") != null) {
+         if (asked > WATERMARK_MIN_SIZE && rs.getString("watermark") != null) {
             String wm = rs.getString("watermark");
             wm = replaceStr(wm, rs, "(year)", "year");
             wm = replaceStr(wm, rs, "(caption)", "caption");
@@ -147,45 +316,272 @@ public class ImageREST extends PhotoServlet
             inst.append('\n');
          }
 
+         mtime = PhotoUtils.getImageFile(imgID).lastModified();
+         etag = makeETag(imgID, size, rs.getInt("rotation"),
+                         rs.getString("watermark"), inst.toString(), mtime);
          rs.close();
-         st.close();
 
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, e.toString());
          return;
       }
 
+      // Validators.  Only now that we know you may see the image, and
+      // before anybody asks pkeep to do any work, see if you already
+      // have it.  They only go on the response along with the image
+      // (or a 304), never on an error, or a cache could keep the
+      // error as the image.
+      req.setAttribute(VALIDATORS, new Validators
+         (etag, cacheControl(asked), mtime,
+          (size == 0) ? "attachment; filename=" + imgID + ".jpg" : null));
+      if (notModified(req, etag, mtime)) {
+         validators(req, res);
+         res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         timeCheckpoint("not modified");
+         return;
+      }
+
+      // most of the traffic is the same thumbnails over and over, so
+      // see if we already know how to answer without bothering pkeep.
+      RenditionCache.Key key =
+         new RenditionCache.Key(imgID, size, inst.toString());
+      RenditionCache.Rendition cached = renditions.get(key);
+      if (cached != null && sendRendition(key, cached, req, res)) {
+         timeCheckpoint("sent cached rendition");
+         return;
+      }
+      if (thumbs != null) {
+         ByteBuffer packed = thumbs.get(key);
+         if (packed != null) {
+            validators(req, res);
+            sendBuffer(packed, res, "image/jpeg");
+            timeCheckpoint("sent packed thumbnail");
+            return;
+         }
+      }
+
 		// 23 Dec 09 MAD: time to simplify this.  pkeep will handle all requests;
 		//                we will keep no java image stack.
-		
-		String url = null;
+      // (Still the default, but see render() for the ways back.)
       if (debug)
          log("imgid " + imgID + " size " + size + " inst " + inst.toString());
 
-		try {
-			url = PhotoUtils.askPkeep(imgID, size, inst.toString());
-		} catch (SocketTimeoutException e) {
+      final int id = imgID;
+      CompletableFuture<RenditionCache.Rendition> job =
+         render(imgID, size, inst.toString());
+
+      if (!req.isAsyncSupported()) {
+         // something in the filter chain can't go async, so do it the
+         // old way and sit on this thread until the render is done.
+         RenditionCache.Rendition r = null;
+         Throwable err = null;
+         try { r = job.get(); }
+         catch (ExecutionException e) { err = e.getCause(); }
+         catch (InterruptedException e) { err = e; }
+         sendRendered(r, err, key, id, req, res);
+         return;
+      }
+
+      // Otherwise give the worker thread back to Tomcat while pkeep
+      // renders.  Whichever of (render finishes, container times out)
+      // happens first gets to write the response; "done" makes sure
+      // the other one keeps its hands off.
+      final long started = System.nanoTime();
+      final AsyncContext ac = req.startAsync();
+      final AtomicBoolean done = new AtomicBoolean(false);
+      ac.setTimeout(asyncTimeoutMs());
+      ac.addListener(new AsyncListener() {
+            public void onTimeout(AsyncEvent ev) throws IOException {
+               if (!done.compareAndSet(false, true)) return;
+               asyncTimeouts.incrementAndGet();
+               ((HttpServletResponse)ev.getSuppliedResponse()).sendError
+                  (SC_SERVFAIL, "pkeep timed out on imgID " + id);
+               ac.complete();
+            }
+            public void onError(AsyncEvent ev) {
+               // e.g. the client went away; nothing to send, but the
+               // context still has to be finished or it waits for
+               // the timeout
+               if (!done.compareAndSet(false, true)) return;
+               asyncErrors.incrementAndGet();
+               ac.complete();
+            }
+            public void onComplete(AsyncEvent ev) { }
+            public void onStartAsync(AsyncEvent ev) { }
+         });
+      asyncStarted.incrementAndGet();
+
+      // nb. this callback usually runs on the pkeep receiver thread,
+      // which must never do I/O, so the real work goes back to the
+      // container's pool via ac.start().
+      job.whenComplete((r, err) -> {
+            if (!done.compareAndSet(false, true)) return;
+            ac.start(() -> {
+                  try {
+                     sendRendered(r, err, key, id,
+                                  (HttpServletRequest)ac.getRequest(),
+                                  (HttpServletResponse)ac.getResponse());
+                  } catch (IOException e) {
+                     log("sending rendition of " + id + ": " + e);
+                  } finally {
+                     ac.complete();
+                     asyncCompleted.incrementAndGet();
+                     asyncLatencyMs.addAndGet
+                        ((System.nanoTime() - started) / 1000000);
+                  }
+               });
+         });
+	}
+
+   /**
+    * how long the container gives a render before onTimeout: as long
+    * as pkeep may take, then (in fallback mode) a Java render started
+    * only after pkeep gave up, then ASYNC_GRACE_MS.
+    */
+
+   private static long asyncTimeoutMs() throws IOException
+   {
+      long ms = ASYNC_GRACE_MS;
+      if (renderMode != RENDER_JAVA) ms += PkeepClient.shared().getTimeoutMs();
+      if (renderMode != RENDER_PKEEP) ms += JAVA_RENDER_MS;
+      return ms;
+   }
+
+   /**
+    * start rendering, by whichever means the "render" init parameter
+    * says.  In fallback mode, anything short of a usable answer from
+    * pkeep (a timeout, a socket error, or one of its picayune ways of
+    * expressing failure) sends the job to the JavaRenderer instead.
+    *
+    * @return a future for a Rendition that hasn't been cached yet,
+    * which fails with the reason there isn't one
+    */
+
+   private static CompletableFuture<RenditionCache.Rendition> render
+   (int id, int size, String inst)
+   throws IOException
+   {
+      if (renderMode == RENDER_JAVA) return javaRender(id, size, inst);
+
+      CompletableFuture<RenditionCache.Rendition> p =
+         PkeepClient.shared().ask(id, size, inst).thenApply(url -> {
+               if (url == null) {
+                  throw new CompletionException(new IOException
+                     ("no url received for imgid " + id));
+               } else if (!isRenditionUrl(url)) {
+                  // "None", "OH NOES", "expired" for a request that sat
+                  // in its backlog too long, or whatever else it says
+                  // when it has nothing for us
+                  pkeepBadReplies.incrementAndGet();
+                  throw new CompletionException(new IOException
+                     ("pkeep said \"" + url + "\" for imgid " + id));
+               }
+               return new RenditionCache.Rendition(url);
+            });
+      if (renderMode == RENDER_PKEEP) return p;
+
+      return p.handle((r, err) -> {
+            if (err == null) return CompletableFuture.completedFuture(r);
+            pkeepFallbacks.incrementAndGet();
+            return javaRender(id, size, inst);
+         }).thenCompose(f -> f);
+   }
+
+   /**
+    * @return whether a pkeep reply is somewhere to find the rendition:
+    * a file we can read, or a URL to redirect to
+    */
+
+   private static boolean isRenditionUrl(String url)
+   {
+      return url.startsWith("file://") || url.startsWith("http://") ||
+         url.startsWith("https://");
+   }
+
+   private static CompletableFuture<RenditionCache.Rendition> javaRender
+   (int id, int size, String inst)
+   {
+      if (size == 0) {
+         // the original goes out as it is, through sendFile(), rather
+         // than read into the heap
+         File orig = PhotoUtils.getImageFile(id);
+         CompletableFuture<RenditionCache.Rendition> f =
+            new CompletableFuture<RenditionCache.Rendition>();
+         if (orig.canRead()) {
+            f.complete(new RenditionCache.Rendition("file://" + orig));
+         } else {
+            f.completeExceptionally(new FileNotFoundException
+               ("can't open original image " + orig));
+         }
+         return f;
+      }
+      return javaRenderer.render(id, size, inst)
+         .thenApply(b -> new RenditionCache.Rendition(b));
+   }
+
+   /**
+    * turns a fresh rendition (or the way in which we failed to get
+    * one) into a response, and remembers it in the rendition cache
+    * if it was a good one.
+    */
+
+   private void sendRendered
+   (RenditionCache.Rendition r, Throwable err, RenditionCache.Key key,
+    int imgID, HttpServletRequest req, HttpServletResponse res)
+   throws IOException
+   {
+      if (err instanceof CompletionException && err.getCause() != null) {
+         err = err.getCause();
+      }
+      if (err instanceof SocketTimeoutException) {
 			res.sendError(SC_SERVFAIL, "pkeep timed out on imgID " + imgID);
 			return;
-		} catch (SocketException e) {
-			res.sendError(SC_SERVFAIL, "socket error: " + e.toString());
-			return;
-		} catch (UnknownHostException e) {
-         String msg = "how did you manage to make localhost not resolve?";
-			res.sendError(SC_SERVFAIL, msg);
+      } else if (err instanceof RejectedExecutionException) {
+         res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                       "renderer is too busy");
+         return;
+      } else if (err instanceof SocketException ||
+                 err instanceof UnresolvedAddressException) {
+			res.sendError(SC_SERVFAIL, "socket error: " + err.toString());
 			return;
+      } else if (err != null) {
+         res.sendError(SC_SERVFAIL, err.getMessage() == null ?
+                       err.toString() : err.getMessage());
+         return;
 		}
 
-      if (url == null) {
-         res.sendError(SC_SERVFAIL, "no url received for imgid " + imgID);
+      if (r.bytes != null) {
+         // rendered in this JVM
+         if (renditions.wantsBytes(r.bytes.length)) renditions.put(key, r);
+         if (thumbs != null) thumbs.put(key, r.bytes);
+         validators(req, res);
+         sendBytes(r.bytes, res, "image/jpeg");
+         timeCheckpoint("sent java rendition");
          return;
-		} else if (url.startsWith("file://")) {
+		} else if (r.url.startsWith("file://")) {
          // pkeep may respond with a file:// URL, in which case it
          // should have fetched the image to a location we can read.
          // This is the normal case.
-			File pkeepCacheFile = new File(url.substring(7));
+			File pkeepCacheFile = new File(r.url.substring(7));
 			if (pkeepCacheFile.canRead()) {
-				sendFile(pkeepCacheFile, res, "image/jpeg");
+            long len = pkeepCacheFile.length();
+            boolean pack = (thumbs != null && thumbs.wants(len));
+            if (renditions.wantsBytes(len) || pack) {
+               // small enough to keep in memory or in the thumbnail
+               // store, which means we never have to open this file
+               // again.
+               byte[] b = Files.readAllBytes(pkeepCacheFile.toPath());
+               if (renditions.wantsBytes(b.length)) {
+                  renditions.put(key, new RenditionCache.Rendition(b));
+               }
+               if (pack) thumbs.put(key, b);
+               validators(req, res);
+               sendBytes(b, res, "image/jpeg");
+            } else {
+               renditions.put(key, r);
+               validators(req, res);
+               sendFile(pkeepCacheFile, req, res, "image/jpeg");
+            }
 				timeCheckpoint("sent cache file");
 				return;
 			} else {
@@ -194,16 +590,154 @@ public class ImageREST extends PhotoServlet
 				res.sendError(SC_SERVFAIL, msg);
 				return;
 			}
-		} else if (url.startsWith("None") || url.startsWith("OH NOES")) {
-         // pkeep has various picayune ways of expressing failure
-         res.sendError(SC_SERVFAIL, url);
-         return;
-      } else {
+      } else if (r.url.startsWith("http://") || r.url.startsWith("https://")) {
 			// If we receive any other URL, we send it as a 302 redirect.
-			res.sendRedirect(url);
-		}
+         renditions.put(key, r);
+         validators(req, res);
+			res.sendRedirect(r.url);
+		} else {
+         // render() should have turned this into a failure
+         res.sendError(SC_SERVFAIL, "pkeep sent us a bogus url: " + r.url);
+      }
+   }
 
-	}
+   /**
+    * sends a rendition that came out of the cache.  A file:// entry
+    * can go stale if pkeep cleaned up its own cache directory behind
+    * our back, in which case the entry is dropped and we return false
+    * so the caller can go ask pkeep again.
+    *
+    * @return true if a response was sent
+    */
+
+   private boolean sendRendition
+   (RenditionCache.Key key, RenditionCache.Rendition r,
+    HttpServletRequest req, HttpServletResponse res)
+   throws IOException
+   {
+      if (r.bytes != null) {
+         validators(req, res);
+         sendBytes(r.bytes, res, "image/jpeg");
+      } else if (r.url.startsWith("file://")) {
+         File f = new File(r.url.substring(7));
+         if (!f.canRead()) {
+            renditions.remove(key);
+            return false;
+         }
+         validators(req, res);
+         sendFile(f, req, res, "image/jpeg");
+      } else {
+         validators(req, res);
+         res.sendRedirect(r.url);
+      }
+      return true;
+   }
+
+   /**
+    * the headers doGet() works out for an image, kept on the request
+    * until there is a response to put them on
+    */
+
+   private static class Validators
+   {
+      final String etag;
+      final String cacheControl;
+      final long mtime;
+      final String disposition;
+
+      Validators(String etag, String cacheControl, long mtime,
+                 String disposition)
+      {
+         this.etag = etag;
+         this.cacheControl = cacheControl;
+         this.mtime = mtime;
+         this.disposition = disposition;
+      }
+   }
+
+   private static void validators(HttpServletRequest req,
+                                  HttpServletResponse res)
+   {
+      Validators v = (Validators)req.getAttribute(VALIDATORS);
+      if (v == null) return;
+      res.setHeader("ETag", v.etag);
+      res.setHeader("Cache-Control", v.cacheControl);
+      if (v.mtime > 0) res.setDateHeader("Last-Modified", v.mtime);
+      if (v.disposition != null) {
+         res.setHeader("Content-Disposition", v.disposition);
+      }
+   }
+
+   /**
+    * The entity tag covers everything that changes the bytes pkeep
+    * would send: the image, the size, the rotation, the watermark
+    * template, and the expanded instructions (which pick up caption,
+    * location, and year changes that the template refers to), and
+    * the original file's mtime, so a replaced original also changes
+    * the tag.
+    */
+
+   private static String makeETag
+   (int imgID, int size, int rotation, String watermark, String inst,
+    long mtime)
+   {
+      CRC32 crc = new CRC32();
+      String s = rotation + "|" + watermark + "|" + inst + "|" + mtime;
+      crc.update(s.getBytes(StandardCharsets.UTF_8));
+      return "\"" + imgID + "-" + size + "-" +
+         Long.toHexString(crc.getValue()) + "\"";
+   }
+
+   /**
+    * RFC 7232 section 6: If-None-Match wins if present, and only if
+    * it is absent do we look at If-Modified-Since.  This matters here
+    * because Last-Modified is only the original file's mtime and does
+    * not move when somebody rotates the picture, but the ETag does.
+    */
+
+   private static boolean notModified
+   (HttpServletRequest req, String etag, long mtime)
+   {
+      String inm = req.getHeader("If-None-Match");
+      if (inm != null) {
+         for (String t : inm.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) t = t.substring(2);
+            if (t.equals(etag) || t.equals("*")) return true;
+         }
+         return false;
+      }
+      if (mtime <= 0) return false;
+      try {
+         long since = req.getDateHeader("If-Modified-Since");
+         return since >= 0 && mtime / 1000 <= since / 1000;
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+   }
+
+   /**
+    * max-age is configured per size class: originals (size 0),
+    * thumbnails (which never get a watermark), and display sizes.
+    * These are all "private" because the image is only visible to
+    * somebody holding the right tokens, so no shared cache (or ALB)
+    * should keep a copy.  A max-age of 0 turns into no-cache, which
+    * means "keep it, but check with me first" and costs a 304.
+    */
+
+   private static String cacheControl(int size)
+   {
+      int age;
+      if (size == 0) {
+         age = maxAgeOrig;
+      } else if (size <= WATERMARK_MIN_SIZE) {
+         age = maxAgeThumb;
+      } else {
+         age = maxAgeDisplay;
+      }
+      if (age <= 0) return "private, no-cache";
+      return "private, max-age=" + age;
+   }
 
    /**
     * because it takes a lot of annoying boilerplate to avoid crashing
@@ -221,38 +755,98 @@ public class ImageREST extends PhotoServlet
       }
    }
 
-	/**
-	 * log (in a database row) the fact that an image was viewed
-	 *
-	 * @param img ImageID
-	 * @param user PersonID of logged in user, if any
-	 * @param size size of image rendered
-	 * @param client probably the req.getRemoteHost()
-	 */
-
-	private static void logView(int img, int user, int size, String client)
-	{
-		try {
-         PreparedStatement st = db.prepareStatement
-            ("INSERT INTO imageviews (image, person, size, remotehost) " +
-             "VALUES (?, ?, ?, ?);");
-         st.setInt(1, img);
-         st.setInt(2, user);
-         st.setInt(3, size);
-         st.setString(4, client);
-			st.executeUpdate();
-         st.close();
-		} catch (SQLException ignored) {}
-	}
-
 	/**
 	 * the local path to a pkeep-maintained cache
 	 */
 	public static String pkeepCache = null;
 	
 	/**
-	 * hostname where we can find a pkeep process listening to udp
+	 * where we can find pkeep processes listening to udp, as a
+	 * comma-separated list of host or host:port
 	 */
 	public static String pkeepHost = null;
 
+   /**
+    * Cache-Control max-age in seconds for each size class; see
+    * cacheControl().
+    */
+   private static int maxAgeThumb = 0;
+   private static int maxAgeDisplay = 0;
+   private static int maxAgeOrig = 0;
+
+   // renditions bigger than this get the watermark, smaller ones are
+   // thumbnails and don't.
+   private static final int WATERMARK_MIN_SIZE = 400;
+
+   // 64 MB is a few thousand thumbnails; a 200px jpeg is ~5k and a
+   // 450px one is ~30k (see PhotoUtils.estimateJpegSize).
+   private static final long RENDITION_CACHE_BYTES = 64 * PhotoUtils.MB;
+   private static final int RENDITION_MAX_ITEM = 64 * PhotoUtils.KB;
+
+   // the sizes display.js asks for
+   private static final int[] DEFAULT_LADDER = { 192, 350, 640, 1024, 1440, 1920 };
+   private static int[] ladder = DEFAULT_LADDER;
+
+   /**
+    * where logView() used to do a synchronous INSERT per view
+    */
+   private static ViewLogger views = null;
+   private static final int VIEWLOG_QUEUE = 10000;
+   private static final int VIEWLOG_BATCH = 500;
+   private static final int VIEWLOG_FLUSH_MS = 1000;
+   private static final long VIEWLOG_CLOSE_MS = 5000;
+
+   /**
+    * memory-mapped store of small renditions, or null if there is no
+    * thumbstore init parameter
+    */
+   private static ThumbStore thumbs = null;
+   private static final int THUMB_MAX_ITEM = 128 * PhotoUtils.KB;
+
+   // plain renditions for the JavaRenderer to scale down from
+   private static final long PYRAMID_CACHE_BYTES = 32 * PhotoUtils.MB;
+
+   private static final String VALIDATORS = "net.photoprism.ImageREST.validators";
+
+   private static final int RENDER_PKEEP = 0;
+   private static final int RENDER_FALLBACK = 1;
+   private static final int RENDER_JAVA = 2;
+   private static int renderMode = RENDER_PKEEP;
+
+   /**
+    * only exists if the render mode is fallback or java
+    */
+   private static JavaRenderer javaRenderer = null;
+
+   private static final AtomicLong pkeepFallbacks =
+      Vars.counter("imagerest_pkeep_fallbacks");
+   private static final AtomicLong pkeepBadReplies =
+      Vars.counter("imagerest_pkeep_bad_replies");
+
+   // how much longer than pkeep's own timeout the container waits
+   // before giving up on an async request, so that PkeepClient's
+   // SocketTimeoutException normally gets there first.
+   private static final long ASYNC_GRACE_MS = 5000;
+   // what the JavaRenderer may take, including the wait behind its
+   // short queue; it has no timeout of its own
+   private static final long JAVA_RENDER_MS = 30000;
+
+   private static final AtomicLong asyncStarted =
+      Vars.counter("imagerest_async_started");
+   private static final AtomicLong asyncCompleted =
+      Vars.counter("imagerest_async_completed");
+   private static final AtomicLong asyncTimeouts =
+      Vars.counter("imagerest_async_timeouts");
+   private static final AtomicLong asyncErrors =
+      Vars.counter("imagerest_async_errors");
+   private static final AtomicLong asyncLatencyMs =
+      Vars.counter("imagerest_async_latency_ms_total");
+
+   /**
+    * what pkeep has told us recently.  Public so that EditREST can
+    * invalidate entries when an edit changes the rendering.
+    */
+   public static RenditionCache renditions =
+      new RenditionCache(RENDITION_CACHE_BYTES, RENDITION_MAX_ITEM);
+
 }
@@ -0,0 +1,427 @@
+package net.photoprism;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The whole imagetag table in memory, as one sorted int[] of tag ids
+ * per imageid, so that imgPerm() can answer without asking the
+ * database and without boxing an Integer.
+ *
+ * It is loaded by a background thread at startup (see startLoad);
+ * until that finishes, get() says null and callers go to the database
+ * as before.  After that, it is kept up to date by the code in this
+ * JVM that changes imagetag: TagREST, UploadREST and ImageInserter
+ * call added() and removed(), and EditREST calls reload() if its
+ * transaction is rolled back.  Changes made while the load is running
+ * are replayed on top of it when it finishes.
+ *
+ * Images nobody has asked about since startup and that weren't in the
+ * table then (i.e. inserted by an ImageInserter run in some other
+ * JVM) are looked up in the database the first time they come up.
+ * Tags changed in the database by something other than this webapp
+ * are not noticed until restart.
+ *
+ * @version 20261018
+ */
+
+public class ImageTagIndex
+{
+   /**
+    * somewhere to get a database connection from, for the loader
+    * thread.  PhotoUtils::getConnection, in the servlets.
+    */
+
+   public interface ConnectionSource
+   {
+      Connection get() throws SQLException;
+   }
+
+   /**
+    * start loading the index in the background, if nobody has yet.
+    */
+
+   public static synchronized void startLoad(ConnectionSource src)
+   {
+      if (byImage != null || pending != null) return;
+      pending = new ArrayList<int[]>();
+      Thread t = new Thread(() -> load(src), "imagetag-index-loader");
+      t.setDaemon(true);
+      t.start();
+      loader = t;
+   }
+
+   /**
+    * interrupt the loader, if it's still going, so that the webapp
+    * can shut down without it.
+    *
+    * @return the thread to wait for, or null if there never was one
+    */
+
+   public static synchronized Thread stopLoad()
+   {
+      if (loader != null) loader.interrupt();
+      return loader;
+   }
+
+   /**
+    * for the loaders' loops over their rows: give up once stopLoad()
+    * has interrupted us
+    */
+
+   static void checkInterrupted() throws SQLException
+   {
+      if (Thread.currentThread().isInterrupted()) {
+         throw new SQLException("interrupted");
+      }
+   }
+
+   private static void load(ConnectionSource src)
+   {
+      long start = System.currentTimeMillis();
+      int rows = 0;
+      // build into an ordinary array first, then publish it
+      int[][] tags = new int[1024][];
+      try (Connection db = src.get()) {
+         // a cursor, so pgjdbc doesn't pull the whole table into a
+         // ResultSet at once; that only works outside autocommit
+         db.setAutoCommit(false);
+         try (PreparedStatement st = db.prepareStatement
+              ("SELECT image, tag FROM imagetag ORDER BY image, tag;")) {
+            st.setFetchSize(10000);
+            ResultSet rs = st.executeQuery();
+            int img = -1;
+            int[] cur = new int[8];
+            int n = 0;
+            while (rs.next()) {
+               checkInterrupted();
+               int i = rs.getInt(1);
+               if (i != img) {
+                  if (img >= 0) tags = put(tags, img, Arrays.copyOf(cur, n));
+                  img = i;
+                  n = 0;
+               }
+               if (n == cur.length) cur = Arrays.copyOf(cur, n * 2);
+               cur[n++] = rs.getInt(2);
+               rows++;
+            }
+            if (img >= 0) tags = put(tags, img, Arrays.copyOf(cur, n));
+            rs.close();
+         } finally {
+            db.rollback();
+            db.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         // stay unloaded, and everybody keeps using the database
+         loadErrors.incrementAndGet();
+         synchronized (ImageTagIndex.class) {
+            pending = null;
+            ImageTagIndex.class.notifyAll();
+         }
+         return;
+      }
+
+      synchronized (ImageTagIndex.class) {
+         AtomicReferenceArray<int[]> a = new AtomicReferenceArray<int[]>(tags);
+         byImage = a;
+         for (int[] op : pending) apply(op[0], op[1], op[2] > 0);
+         pending = null;
+         ImageTagIndex.class.notifyAll();
+      }
+      loadedRows = rows;
+      loadMs = System.currentTimeMillis() - start;
+   }
+
+   /**
+    * replace the whole index with tags, one sorted int[] per imageid,
+    * for ImageTagIndexBench
+    */
+
+   static synchronized void install(int[][] tags)
+   {
+      byImage = new AtomicReferenceArray<int[]>(tags);
+      pending = null;
+   }
+
+   private static int[][] put(int[][] tags, int img, int[] t)
+   {
+      if (img >= tags.length) {
+         tags = Arrays.copyOf(tags, Math.max(img + 1, tags.length * 2));
+      }
+      tags[img] = t;
+      return tags;
+   }
+
+   /**
+    * @return true once the load has finished
+    */
+
+   public static boolean loaded()
+   {
+      return byImage != null;
+   }
+
+   /**
+    * wait for the load, if one is running.  SearchIndex and TextIndex
+    * load their tags from us rather than reading imagetag again.
+    *
+    * @return true if we are loaded
+    */
+
+   public static synchronized boolean awaitLoad()
+   {
+      while (pending != null && byImage == null) {
+         try { ImageTagIndex.class.wait(); }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+      return byImage != null;
+   }
+
+   /**
+    * @return sorted tag ids on img, or null if we don't know (not
+    * loaded, or never heard of this image).  Don't modify it.
+    */
+
+   public static int[] get(int img)
+   {
+      AtomicReferenceArray<int[]> a = byImage;
+      if (a == null) return null;
+      if (img < 0 || img >= a.length()) return null;
+      return a.get(img);
+   }
+
+   /**
+    * get(), but go to the database if the index doesn't know, and
+    * remember the answer if we are loaded.
+    */
+
+   public static int[] fetch(int img, Connection db) throws SQLException
+   {
+      int[] t = get(img);
+      if (t != null) {
+         hits.incrementAndGet();
+         return t;
+      }
+      misses.incrementAndGet();
+      PreparedStatement st = StatementCache.prepare
+         (db, "imgperm", "SELECT tag FROM imagetag WHERE image=?;");
+      st.setInt(1, img);
+      ResultSet rs = st.executeQuery();
+      int[] cur = new int[4];
+      int n = 0;
+      while (rs.next()) {
+         if (n == cur.length) cur = Arrays.copyOf(cur, n * 2);
+         cur[n++] = rs.getInt(1);
+      }
+      rs.close();
+      t = Arrays.copyOf(cur, n);
+      Arrays.sort(t);
+      remember(img, t);
+      return t;
+   }
+
+   /**
+    * fetch() for many images at once: whatever the index doesn't know
+    * is looked up in one query.
+    *
+    * @return one sorted int[] per element of imgs, in the same order
+    */
+
+   public static int[][] fetch(int[] imgs, Connection db) throws SQLException
+   {
+      int[][] ret = new int[imgs.length][];
+      HashMap<Integer, List<Integer>> missing = null;
+      for (int i = 0; i < imgs.length; i++) {
+         ret[i] = get(imgs[i]);
+         if (ret[i] != null) continue;
+         if (missing == null) missing = new HashMap<Integer, List<Integer>>();
+         missing.put(imgs[i], new ArrayList<Integer>());
+      }
+      hits.addAndGet(imgs.length - ((missing == null) ? 0 : missing.size()));
+      if (missing == null) return ret;
+
+      misses.addAndGet(missing.size());
+      Array ary = db.createArrayOf("INTEGER", missing.keySet().toArray());
+      PreparedStatement st = StatementCache.prepare
+         (db, "imgperm_batch",
+          "SELECT image, tag FROM imagetag WHERE image = ANY(?);");
+      st.setArray(1, ary);
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) missing.get(rs.getInt(1)).add(rs.getInt(2));
+      rs.close();
+
+      HashMap<Integer, int[]> found = new HashMap<Integer, int[]>();
+      for (Map.Entry<Integer, List<Integer>> e : missing.entrySet()) {
+         int[] t = toArray(e.getValue());
+         remember(e.getKey(), t);
+         found.put(e.getKey(), t);
+      }
+      for (int i = 0; i < imgs.length; i++) {
+         if (ret[i] == null) ret[i] = found.get(imgs[i]);
+      }
+      return ret;
+   }
+
+   /**
+    * the best permission a viewer has on an image: the highest
+    * levels[i] such that permTags[i] is one of imgTags.  An image has
+    * a handful of tags and a viewer maybe dozens, so this looks each
+    * image tag up in permTags by binary search.  Allocates nothing.
+    *
+    * @param imgTags from get() or fetch()
+    * @param permTags sorted tag ids the viewer has a token for
+    * @param levels the level for each of permTags
+    * @return the level, or 0 (Perms.NONE) if none match
+    */
+
+   public static int best(int[] imgTags, int[] permTags, int[] levels)
+   {
+      int perm = 0;
+      for (int tag : imgTags) {
+         int at = Arrays.binarySearch(permTags, tag);
+         if (at >= 0 && levels[at] > perm) perm = levels[at];
+      }
+      return perm;
+   }
+
+   private static int[] toArray(List<Integer> l)
+   {
+      int[] t = new int[l.size()];
+      for (int i = 0; i < t.length; i++) t[i] = l.get(i);
+      Arrays.sort(t);
+      return t;
+   }
+
+   /**
+    * note that tag was put on img (and committed, or about to be)
+    */
+
+   public static void added(int img, int tag)
+   {
+      change(img, tag, true);
+   }
+
+   /**
+    * note that tag was taken off of img
+    */
+
+   public static void removed(int img, int tag)
+   {
+      change(img, tag, false);
+   }
+
+   /**
+    * throw away what we think img's tags are and read them again,
+    * e.g. after a rollback.
+    */
+
+   public static void reload(int img, Connection db) throws SQLException
+   {
+      forget(img);
+      fetch(img, db);
+   }
+
+   private static synchronized void change(int img, int tag, boolean add)
+   {
+      if (pending != null) pending.add(new int[] { img, tag, add ? 1 : 0 });
+      if (byImage != null) apply(img, tag, add);
+      updates.incrementAndGet();
+   }
+
+   private static synchronized void forget(int img)
+   {
+      AtomicReferenceArray<int[]> a = byImage;
+      if (a != null && img >= 0 && img < a.length()) a.set(img, null);
+   }
+
+   /**
+    * fill in an image that wasn't known.  Doesn't overwrite anything,
+    * since a concurrent added()/removed() is newer than our query.
+    */
+
+   private static synchronized void remember(int img, int[] t)
+   {
+      if (byImage == null || img < 0) return;
+      grow(img);
+      byImage.compareAndSet(img, null, t);
+   }
+
+   // call with the class locked
+   private static void apply(int img, int tag, boolean add)
+   {
+      if (img < 0) return;
+      grow(img);
+      int[] old = byImage.get(img);
+      if (old == null) old = EMPTY;
+      int at = Arrays.binarySearch(old, tag);
+      int[] t;
+      if (add) {
+         if (at >= 0) return;
+         at = -at - 1;
+         t = new int[old.length + 1];
+         System.arraycopy(old, 0, t, 0, at);
+         t[at] = tag;
+         System.arraycopy(old, at, t, at + 1, old.length - at);
+      } else {
+         if (at < 0) return;
+         t = new int[old.length - 1];
+         System.arraycopy(old, 0, t, 0, at);
+         System.arraycopy(old, at + 1, t, at, old.length - at - 1);
+      }
+      byImage.set(img, t);
+   }
+
+   // call with the class locked.  Readers hold on to whichever array
+   // they read; entries are copied before the new one is published.
+   private static void grow(int img)
+   {
+      AtomicReferenceArray<int[]> a = byImage;
+      if (img < a.length()) return;
+      int n = Math.max(img + 1, a.length() + a.length() / 2);
+      AtomicReferenceArray<int[]> b = new AtomicReferenceArray<int[]>(n);
+      for (int i = 0; i < a.length(); i++) b.set(i, a.get(i));
+      byImage = b;
+   }
+
+   private static long entries()
+   {
+      AtomicReferenceArray<int[]> a = byImage;
+      if (a == null) return 0;
+      long n = 0;
+      for (int i = 0; i < a.length(); i++) if (a.get(i) != null) n++;
+      return n;
+   }
+
+   private static final int[] EMPTY = new int[0];
+
+   private static volatile AtomicReferenceArray<int[]> byImage = null;
+   private static List<int[]> pending = null;
+   private static Thread loader = null;
+   private static volatile long loadedRows = 0;
+   private static volatile long loadMs = 0;
+
+   private static final AtomicLong hits = Vars.counter("tagindex_hits");
+   private static final AtomicLong misses = Vars.counter("tagindex_misses");
+   private static final AtomicLong updates = Vars.counter("tagindex_updates");
+   private static final AtomicLong loadErrors =
+      Vars.counter("tagindex_load_errors");
+
+   static {
+      Vars.gauge("tagindex_images", () -> entries());
+      Vars.gauge("tagindex_loaded_rows", () -> loadedRows);
+      Vars.gauge("tagindex_load_ms", () -> loadMs);
+   }
+}
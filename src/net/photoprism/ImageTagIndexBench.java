@@ -0,0 +1,91 @@
+package net.photoprism;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Times the permission check the way imgPerm used to do it (a
+ * Hashtable lookup per tag row, boxed) against ImageTagIndex's int[]
+ * way, on made-up data the size of a biggish photo database.
+ *
+ * java net.photoprism.ImageTagIndexBench [images] [iterations]
+ *
+ * @version 20261018
+ */
+
+public class ImageTagIndexBench
+{
+   public static void main(String[] args) throws Exception
+   {
+      int nimg = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+      int iters = (args.length > 1) ? Integer.parseInt(args[1]) : 5000000;
+      Random r = new Random(1);
+
+      // every image gets 1-4 of 2000 tags; the viewer has 20 of them
+      int[][] tags = new int[nimg][];
+      for (int i = 0; i < nimg; i++) {
+         int[] t = new int[1 + r.nextInt(4)];
+         for (int j = 0; j < t.length; j++) t[j] = r.nextInt(2000);
+         Arrays.sort(t);
+         tags[i] = t;
+      }
+      ImageTagIndex.install(tags);
+      Hashtable<Integer, Integer> tagMap = new Hashtable<Integer, Integer>();
+      for (int i = 0; i < 20; i++) tagMap.put(r.nextInt(2000), 1 + r.nextInt(3));
+      int[] permTags = new int[tagMap.size()];
+      int[] levels = new int[tagMap.size()];
+      int k = 0;
+      for (int t : new TreeSet<Integer>(tagMap.keySet())) {
+         permTags[k] = t;
+         levels[k++] = tagMap.get(t);
+      }
+      int[] probe = new int[iters];
+      for (int i = 0; i < iters; i++) probe[i] = r.nextInt(nimg);
+
+      ThreadMXBean mx = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long tid = Thread.currentThread().getId();
+      for (int pass = 0; pass < 3; pass++) {
+         long sink = 0;
+         long a0 = mx.getThreadAllocatedBytes(tid);
+         long t0 = System.nanoTime();
+         for (int i = 0; i < iters; i++) {
+            // what the old loop did with each row of its ResultSet
+            int perm = 0;
+            for (int tag : ImageTagIndex.get(probe[i])) {
+               if (tagMap.getOrDefault(tag, 0) > perm) perm = tagMap.get(tag);
+            }
+            sink += perm;
+         }
+         long t1 = System.nanoTime();
+         long a1 = mx.getThreadAllocatedBytes(tid);
+         for (int i = 0; i < iters; i++) {
+            sink += ImageTagIndex.best(ImageTagIndex.get(probe[i]),
+                                       permTags, levels);
+         }
+         long t2 = System.nanoTime();
+         long a2 = mx.getThreadAllocatedBytes(tid);
+         int[] out = new int[1000];
+         int[] batch = new int[1000];
+         for (int i = 0; i + 1000 <= iters; i += 1000) {
+            System.arraycopy(probe, i, batch, 0, 1000);
+            for (int b = 0; b < 1000; b++) {
+               out[b] = ImageTagIndex.best(ImageTagIndex.get(batch[b]),
+                                           permTags, levels);
+            }
+            sink += out[0];
+         }
+         long t3 = System.nanoTime();
+         long a3 = mx.getThreadAllocatedBytes(tid);
+         System.out.printf("boxed %6.1f ns %5.1f B   int[] %6.1f ns %5.1f B   " +
+                           "batch %6.1f ns %5.1f B   (%d)%n",
+                           (t1 - t0) / (double)iters, (a1 - a0) / (double)iters,
+                           (t2 - t1) / (double)iters, (a2 - a1) / (double)iters,
+                           (t3 - t2) / (double)iters, (a3 - a2) / (double)iters,
+                           sink);
+      }
+   }
+}
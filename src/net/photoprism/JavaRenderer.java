@@ -0,0 +1,447 @@
+package net.photoprism;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Renders an image the way pkeep's imgops.render() does, without
+ * leaving the JVM, so that pictures can still be served when pkeep
+ * is down or buried.  It understands the same instruction language
+ * that ImageREST builds:
+ *
+ * <ul>
+ * <li><code>ROTATE n</code> where n is 90, 180, 270 (counterclockwise,
+ *     like PIL's transpose) or h/v for a flip</li>
+ * <li><code>TEXT_RIGHT text</code> and <code>TEXT_LEFT text</code>,
+ *     16px text 20px in from the bottom corner, in black or white
+ *     depending on what is underneath it</li>
+ * </ul>
+ *
+ * Instructions are applied in order, after scaling, as pkeep does.
+ * The JPEG decoder is asked to subsample while decoding, which gets a
+ * 6000px original down to within 2x of the target size without ever
+ * holding the full-size raster; one bicubic pass does the rest.
+ * Better still, if setPyramid() was called, a size we have already
+ * rendered bigger is made from that instead (see plain()).
+ *
+ * Rendering is CPU-bound, so it runs on a pool with one thread per
+ * core and a short queue.  When the queue is full the request fails
+ * right away instead of piling up behind everybody else.
+ *
+ * @version 20261018
+ */
+
+public class JavaRenderer
+{
+   /**
+    * @param threads worker threads; 0 means one per core
+    * @param fontFile TrueType font to draw text with, e.g. pkeep's
+    * Dustismo.ttf, or null for the JVM's sans serif
+    */
+
+   public JavaRenderer(int threads, File fontFile)
+   {
+      if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+      AtomicInteger n = new AtomicInteger();
+      this.pool = new ThreadPoolExecutor
+         (threads, threads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+          r -> {
+            Thread t = new Thread(r, "java-render-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      this.font = loadFont(fontFile);
+      Vars.gauge("java_render_queue", () -> this.pool.getQueue().size());
+   }
+
+   private static Font loadFont(File f)
+   {
+      if (f != null) {
+         try {
+            return Font.createFont(Font.TRUETYPE_FONT, f)
+               .deriveFont(Font.PLAIN, FONT_SIZE);
+         } catch (IOException | FontFormatException e) {
+            // fall through to the default; the text will just look
+            // a little different from pkeep's.
+         }
+      }
+      return new Font(Font.SANS_SERIF, Font.PLAIN, (int)FONT_SIZE);
+   }
+
+   /**
+    * queue a render.
+    *
+    * @param id imageid, whose original is found by PhotoUtils.getImageFile
+    * @param size length of the longer edge, in pixels.  Originals
+    * aren't our business: ImageREST sends those straight from the file.
+    * @param inst rendering instructions
+    * @return a future with the JPEG bytes, which fails with an
+    * IOException if the original can't be read or decoded, or with
+    * RejectedExecutionException if we are too busy.
+    */
+
+   public CompletableFuture<byte[]> render(int id, int size, String inst)
+   {
+      CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+      try {
+         this.pool.execute(() -> {
+               long start = System.nanoTime();
+               try {
+                  f.complete(renderNow(id, PhotoUtils.getImageFile(id),
+                                       size, inst));
+                  renders.incrementAndGet();
+               } catch (IOException | RuntimeException e) {
+                  errors.incrementAndGet();
+                  f.completeExceptionally(e);
+               } finally {
+                  renderMs.addAndGet((System.nanoTime() - start) / 1000000);
+               }
+            });
+      } catch (RejectedExecutionException e) {
+         rejected.incrementAndGet();
+         f.completeExceptionally(e);
+      }
+      return f;
+   }
+
+   /**
+    * keep the plain (scaled and rotated, but not yet watermarked)
+    * version of everything we render, so that a smaller size of the
+    * same image can be made from it instead of from the original.
+    * A browse grid full of 192px thumbnails then costs a decode of a
+    * ~1000px JPEG each instead of a 20 megapixel one.
+    *
+    * @param ladder the sizes ImageREST snaps requests to, ascending;
+    * these are the only sizes we look for
+    * @param maxBytes memory budget for the plain renditions
+    */
+
+   public void setPyramid(int[] ladder, long maxBytes)
+   {
+      this.ladder = ladder;
+      this.pyramid = new RenditionCache("pyramid", maxBytes, Integer.MAX_VALUE);
+   }
+
+   /**
+    * forget the plain renditions of one image, because it was
+    * rotated or its original was replaced.
+    */
+
+   public void invalidate(int id)
+   {
+      if (this.pyramid != null) this.pyramid.invalidate(id);
+   }
+
+   /**
+    * does the work on the calling thread.
+    *
+    * @param id imageid, for finding and keeping plain renditions; 0
+    * to always start from orig
+    */
+
+   public byte[] renderNow(int id, File orig, int size, String inst)
+   throws IOException
+   {
+      if (size <= 0) {
+         throw new IllegalArgumentException("can't render size " + size);
+      }
+
+      // The leading ROTATE steps change which pixels are in the
+      // picture, so they are part of the plain rendition.  Text is
+      // drawn at a fixed pixel size and has to be done per size.
+      String[] steps = inst.split("\n");
+      StringBuffer geom = new StringBuffer();
+      int i = 0;
+      for (; i < steps.length; i++) {
+         if (steps[i].trim().length() == 0) continue;
+         if (!steps[i].toUpperCase().startsWith("ROTATE ")) break;
+         geom.append(steps[i]);
+         geom.append('\n');
+      }
+
+      BufferedImage im = plain(id, orig, size, geom.toString());
+      for (; i < steps.length; i++) {
+         String step = steps[i];
+         int sp = step.indexOf(' ');
+         if (sp < 0) continue;
+         String cmd = step.substring(0, sp).toUpperCase();
+         String arg = step.substring(sp + 1);
+         if (cmd.equals("ROTATE")) {
+            im = rotate(im, arg);
+         } else if (cmd.equals("TEXT_RIGHT") || cmd.equals("TEXT_LEFT")) {
+            drawText(im, arg, cmd.endsWith("RIGHT"));
+         } else {
+            throw new IOException("bogus instruction: " + cmd);
+         }
+      }
+      return encode(im, JPEG_QUALITY);
+   }
+
+   /**
+    * the image at this size with the geometry steps applied, made
+    * from the smallest plain rendition we have that is at least as
+    * big, or from the original if there isn't one.
+    */
+
+   private BufferedImage plain(int id, File orig, int size, String geom)
+   throws IOException
+   {
+      RenditionCache p = this.pyramid;
+      BufferedImage im = null;
+      if (p != null && id > 0) {
+         for (int rung : this.ladder) {
+            if (rung < size) continue;
+            RenditionCache.Rendition r =
+               p.get(new RenditionCache.Key(id, rung, geom));
+            if (r == null) continue;
+            if (rung == size) return decodeBytes(r.bytes);
+            im = scale(decodeBytes(r.bytes), size);
+            derived.incrementAndGet();
+            break;
+         }
+      }
+      if (im == null) {
+         if (!orig.canRead()) {
+            throw new FileNotFoundException("can't open original image " + orig);
+         }
+         im = scale(decode(orig, size), size);
+         for (String step : geom.split("\n")) {
+            int sp = step.indexOf(' ');
+            if (sp > 0) im = rotate(im, step.substring(sp + 1));
+         }
+         fromOriginal.incrementAndGet();
+      }
+      if (p != null && id > 0) {
+         p.put(new RenditionCache.Key(id, size, geom),
+               new RenditionCache.Rendition(encode(im, PLAIN_QUALITY)));
+      }
+      return im;
+   }
+
+   private static BufferedImage decodeBytes(byte[] b) throws IOException
+   {
+      BufferedImage im = ImageIO.read(new ByteArrayInputStream(b));
+      if (im == null) throw new IOException("undecodable plain rendition");
+      return im;
+   }
+
+   /**
+    * decode only as many pixels as we need: every s-th pixel in each
+    * direction, with s as big as it can be while the longer edge
+    * still comes out at least size.
+    */
+
+   private static BufferedImage decode(File orig, int size) throws IOException
+   {
+      ImageInputStream in = ImageIO.createImageInputStream(orig);
+      if (in == null) throw new IOException("can't open " + orig);
+      try {
+         Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+         if (!it.hasNext()) throw new IOException("unknown format: " + orig);
+         ImageReader r = it.next();
+         try {
+            r.setInput(in, true, true);
+            int longer = Math.max(r.getWidth(0), r.getHeight(0));
+            ImageReadParam p = r.getDefaultReadParam();
+            int s = Math.max(1, longer / size);
+            if (s > 1) p.setSourceSubsampling(s, s, 0, 0);
+            return r.read(0, p);
+         } finally {
+            r.dispose();
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   private static BufferedImage scale(BufferedImage src, int size)
+   {
+      int w = src.getWidth();
+      int h = src.getHeight();
+      int neww, newh;
+      if (w > h) {
+         neww = size;
+         newh = Math.max(1, (int)((double)h / w * size));
+      } else {
+         neww = Math.max(1, (int)((double)w / h * size));
+         newh = size;
+      }
+      // drawImage() doesn't filter before it samples, so going down
+      // by more than 2x in one step aliases.  Halve until we're close.
+      while (w / 2 >= neww && h / 2 >= newh) {
+         w /= 2;
+         h /= 2;
+         src = draw(src, w, h);
+      }
+      return draw(src, neww, newh);
+   }
+
+   private static BufferedImage draw(BufferedImage src, int w, int h)
+   {
+      BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = dst.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                         RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                         RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(src, 0, 0, w, h, null);
+      g.dispose();
+      return dst;
+   }
+
+   private static BufferedImage rotate(BufferedImage src, String arg)
+   {
+      int w = src.getWidth();
+      int h = src.getHeight();
+      AffineTransform t;
+      boolean swap = false;
+      switch (arg.trim()) {
+      case "90":  // counterclockwise, like PIL's ROTATE_90
+         t = new AffineTransform(0, -1, 1, 0, 0, w);
+         swap = true;
+         break;
+      case "180":
+         t = new AffineTransform(-1, 0, 0, -1, w, h);
+         break;
+      case "270":
+         t = new AffineTransform(0, 1, -1, 0, h, 0);
+         swap = true;
+         break;
+      case "h":
+         t = new AffineTransform(-1, 0, 0, 1, w, 0);
+         break;
+      case "v":
+         t = new AffineTransform(1, 0, 0, -1, 0, h);
+         break;
+      default:
+         return src;  // pkeep ignores these too
+      }
+      BufferedImage dst = new BufferedImage
+         (swap ? h : w, swap ? w : h, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = dst.createGraphics();
+      g.drawImage(src, t, null);
+      g.dispose();
+      return dst;
+   }
+
+   private void drawText(BufferedImage im, String text, boolean right)
+   {
+      // pkeep does the same; it's easier than getting a real (c)
+      // through browser -> Java -> Postgres -> Java -> udp.
+      text = text.replace("(C)", "\u00a9").replace("(c)", "\u00a9");
+
+      FontRenderContext frc = new FontRenderContext(null, true, true);
+      Rectangle2D box = this.font.getStringBounds(text, frc);
+      int textw = (int)Math.ceil(box.getWidth());
+      int texth = (int)Math.ceil(box.getHeight());
+      int texty = im.getHeight() - texth - TEXT_MARGIN;
+      int textx = right ? im.getWidth() - textw - TEXT_MARGIN : TEXT_MARGIN;
+      // a copyright notice that runs off the picture looks worse than
+      // no copyright notice.
+      if (textx < 0 || texty < 0 || textx + textw > im.getWidth()) return;
+
+      Graphics2D g = im.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                         RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setFont(this.font);
+      g.setColor(brightness(im, textx, texty, textw, texth) < DARK ?
+                 Color.WHITE : Color.BLACK);
+      g.drawString(text, textx, texty - (int)box.getY());
+      g.dispose();
+   }
+
+   // mean of the green channel, which is what imgops._AvgBrightness uses
+   private static int brightness(BufferedImage im, int x, int y, int w, int h)
+   {
+      int[] px = im.getRGB(x, y, w, h, null, 0, w);
+      long total = 0;
+      for (int p : px) total += (p >> 8) & 0xff;
+      return px.length == 0 ? 0 : (int)(total / px.length);
+   }
+
+   private static byte[] encode(BufferedImage im, float quality)
+   throws IOException
+   {
+      ImageWriter w = ImageIO.getImageWritersByFormatName("jpeg").next();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream
+         (PhotoUtils.estimateJpegSize(im.getWidth(), im.getHeight()));
+      try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+         ImageWriteParam p = w.getDefaultWriteParam();
+         p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+         p.setCompressionQuality(quality);
+         w.setOutput(out);
+         w.write(null, new IIOImage(im, null, null), p);
+      } finally {
+         w.dispose();
+      }
+      return bytes.toByteArray();
+   }
+
+   public void shutdown()
+   {
+      this.pool.shutdownNow();
+   }
+
+   public String toString()
+   {
+      return "JavaRenderer(" + this.pool.getMaximumPoolSize() + " threads, " +
+         this.font.getFontName() + ")";
+   }
+
+   private final ThreadPoolExecutor pool;
+   private final Font font;
+   private int[] ladder = new int[0];
+   private RenditionCache pyramid = null;
+
+   private static final int QUEUE_PER_THREAD = 4;
+   private static final float FONT_SIZE = 16f;
+   private static final int TEXT_MARGIN = 20;
+   // imgops picks white under 100 rather than 128, "since it tends
+   // to look better"
+   private static final int DARK = 100;
+   // what PIL uses when you don't say
+   private static final float JPEG_QUALITY = 0.75f;
+   // plain renditions get scaled and compressed again, so start them
+   // off a little better
+   private static final float PLAIN_QUALITY = 0.92f;
+
+   private static final AtomicLong renders = Vars.counter("java_renders");
+   private static final AtomicLong errors = Vars.counter("java_render_errors");
+   private static final AtomicLong rejected =
+      Vars.counter("java_render_rejected");
+   private static final AtomicLong renderMs =
+      Vars.counter("java_render_ms_total");
+   private static final AtomicLong derived =
+      Vars.counter("java_render_from_pyramid");
+   private static final AtomicLong fromOriginal =
+      Vars.counter("java_render_from_original");
+}
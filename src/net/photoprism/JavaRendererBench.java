@@ -0,0 +1,32 @@
+package net.photoprism;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * For timing by hand: renders one original with JavaRenderer the way
+ * ImageREST would ask for it, a number of times, and reports the mean.
+ *
+ * java net.photoprism.JavaRendererBench file size [times] [watermark]
+ *
+ * @version 20261018
+ */
+
+public class JavaRendererBench
+{
+   public static void main(String[] args) throws IOException
+   {
+      File orig = new File(args[0]);
+      int size = Integer.parseInt(args[1]);
+      int times = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+      String inst = args.length > 3 ? "TEXT_RIGHT " + args[3] + "\n" : "";
+      JavaRenderer r = new JavaRenderer(1, null);
+      byte[] out = r.renderNow(0, orig, size, inst);  // warm up
+      long start = System.nanoTime();
+      for (int i = 0; i < times; i++) out = r.renderNow(0, orig, size, inst);
+      long ms = (System.nanoTime() - start) / 1000000;
+      System.out.println(orig + " @" + size + ": " + out.length +
+                         " bytes, " + ((double)ms / times) + "ms each");
+      r.shutdown();
+   }
+}
@@ -34,7 +34,7 @@ public class LocationREST extends PhotoServlet
       // it's OK if locID is missing, we will assume 1 ("Earth")
       try { locID = Integer.parseInt(req.getParameter("id")); }
       catch (NumberFormatException ignored) { }
-      try { ret = getLocationNode(db, locID); }
+      try { ret = getLocationNode(db(), locID); }
       catch (SQLException e) { res.sendError(SC_SERVFAIL, e.toString()); }
       sendJSON(res, ret);
       return;
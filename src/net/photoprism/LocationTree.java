@@ -0,0 +1,320 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The location table, held in memory as a tree, plus how many images
+ * each visitor can see in each subtree.  BrowseREST's location pages
+ * used to walk the tree with two queries per node (the count, and the
+ * children); opening "Earth" was hundreds of round trips.
+ *
+ * The counts for one set of visible tags are worked out in one pass:
+ * get every (imageid, location) the visitor can see, from SearchIndex
+ * if it is loaded or else one query, add each to its own location,
+ * then add every location into its parent, children before parents.
+ * The answer is kept until an image or location changes.  Code that
+ * changes images calls changed(); code that adds locations calls
+ * invalidate(), which also drops the tree.
+ *
+ * @version 20261018
+ */
+
+public class LocationTree
+{
+   /**
+    * one row of the location table
+    */
+
+   public static class Node
+   {
+      public final int id;
+      public final int parent;
+      public final String description;
+      final ArrayList<Node> children = new ArrayList<Node>();
+      int idx = -1;
+
+      Node(int id, int parent, String description)
+      {
+         this.id = id;
+         this.parent = parent;
+         this.description = description;
+      }
+
+      /** @return the child locations, by description */
+      public List<Node> children()
+      {
+         return Collections.unmodifiableList(this.children);
+      }
+   }
+
+   /**
+    * images visible under each location, for one set of tags
+    */
+
+   public static class Counts
+   {
+      final int[] count;
+      final int[] max;
+
+      Counts(int n)
+      {
+         this.count = new int[n];
+         this.max = new int[n];
+      }
+
+      /** @return visible images at n or anywhere under it */
+      public int count(Node n)
+      {
+         return this.count[n.idx];
+      }
+
+      /** @return the highest such imageid, or 0 */
+      public int max(Node n)
+      {
+         return this.max[n.idx];
+      }
+   }
+
+   /**
+    * @return location id, or null if there's no such location
+    */
+
+   public static Node get(int id, Connection db) throws SQLException
+   {
+      return tree(db).byId.get(id);
+   }
+
+   /**
+    * @return the ids of location id and every location under it, or
+    * an empty array if there's no such location
+    */
+
+   public static int[] subtree(int id, Connection db) throws SQLException
+   {
+      Node top = tree(db).byId.get(id);
+      if (top == null) return new int[0];
+      ArrayList<Node> all = new ArrayList<Node>();
+      all.add(top);
+      for (int i = 0; i < all.size(); i++) all.addAll(all.get(i).children);
+      int[] ret = new int[all.size()];
+      for (int i = 0; i < ret.length; i++) ret[i] = all.get(i).id;
+      return ret;
+   }
+
+   /**
+    * @param perLocation images at each location id, not counting the
+    * locations under it (as SearchIndex.facets() gives them)
+    * @return the same added up into subtree counts.  max() is 0.
+    */
+
+   public static Counts rollUp(int[] perLocation, Connection db)
+   throws SQLException
+   {
+      Tree t = tree(db);
+      Counts c = new Counts(t.order.size());
+      for (Node n : t.order) {
+         if (n.id >= 0 && n.id < perLocation.length) {
+            c.count[n.idx] = perLocation[n.id];
+         }
+      }
+      t.rollUp(c);
+      return c;
+   }
+
+   /**
+    * @return subtree counts for a visitor who can see these tags
+    */
+
+   public static Counts counts(List<Integer> viewTags, Connection db)
+   throws SQLException
+   {
+      Tree t = tree(db);
+      List<Integer> key = new ArrayList<Integer>(viewTags);
+      key.sort(null);
+      long gen;
+      synchronized (cache) {
+         Counts c = cache.get(key);
+         if (c != null && t == tree) {
+            hits.incrementAndGet();
+            return c;
+         }
+         gen = generation;
+      }
+      misses.incrementAndGet();
+
+      int[][] pairs = SearchIndex.visibleLocations(viewTags);
+      if (pairs == null) pairs = query(viewTags, db);
+      Counts c = t.count(pairs[0], pairs[1]);
+
+      synchronized (cache) {
+         // don't keep it if something changed while we were counting
+         if (gen == generation && t == tree) cache.put(key, c);
+      }
+      return c;
+   }
+
+   /**
+    * an image was added, deleted, retagged or moved
+    */
+
+   public static void changed()
+   {
+      synchronized (cache) {
+         generation++;
+         cache.clear();
+      }
+   }
+
+   /**
+    * the location table changed; read it again next time
+    */
+
+   public static void invalidate()
+   {
+      synchronized (cache) {
+         generation++;
+         cache.clear();
+         tree = null;
+      }
+   }
+
+   /**
+    * the whole location table, and an order to add up counts in
+    */
+
+   private static class Tree
+   {
+      final HashMap<Integer, Node> byId = new HashMap<Integer, Node>();
+      // parents before children
+      final ArrayList<Node> order = new ArrayList<Node>();
+
+      Counts count(int[] ids, int[] locs)
+      {
+         Counts c = new Counts(this.order.size());
+         for (int i = 0; i < ids.length; i++) {
+            Node n = this.byId.get(locs[i]);
+            if (n == null) continue;
+            c.count[n.idx]++;
+            if (ids[i] > c.max[n.idx]) c.max[n.idx] = ids[i];
+         }
+         rollUp(c);
+         return c;
+      }
+
+      // add every location into its parent, children first
+      void rollUp(Counts c)
+      {
+         for (int i = this.order.size() - 1; i >= 0; i--) {
+            Node n = this.order.get(i);
+            Node p = this.byId.get(n.parent);
+            if (p == null || p == n) continue;
+            c.count[p.idx] += c.count[n.idx];
+            if (c.max[n.idx] > c.max[p.idx]) c.max[p.idx] = c.max[n.idx];
+         }
+      }
+   }
+
+   private static Tree tree(Connection db) throws SQLException
+   {
+      synchronized (cache) {
+         if (tree != null) return tree;
+      }
+      Tree t = new Tree();
+      ArrayList<Node> rows = new ArrayList<Node>();
+      PreparedStatement st = StatementCache.prepare
+         (db, "location_tree",
+          "SELECT locationid, COALESCE(parent, 0), description " +
+          "FROM location ORDER BY description;");
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+         Node n = new Node(rs.getInt(1), rs.getInt(2), rs.getString(3));
+         t.byId.put(n.id, n);
+         rows.add(n);
+      }
+      rs.close();
+
+      // hang each node on its parent (in description order, since
+      // that's how they came back), and then list them top down from
+      // the roots.  Anything in a loop isn't reachable and is left out.
+      ArrayList<Node> roots = new ArrayList<Node>();
+      for (Node n : rows) {
+         Node p = t.byId.get(n.parent);
+         if (p == null || p == n) roots.add(n);
+      }
+      for (Node n : rows) {
+         Node p = t.byId.get(n.parent);
+         if (p != null && p != n) p.children.add(n);
+      }
+      t.order.addAll(roots);
+      for (int i = 0; i < t.order.size(); i++) {
+         t.order.get(i).idx = i;
+         t.order.addAll(t.order.get(i).children);
+      }
+      t.byId.values().removeIf(n -> n.idx < 0);
+
+      synchronized (cache) {
+         if (tree == null) tree = t;
+         return tree;
+      }
+   }
+
+   /**
+    * (imageid, location) for every live image with any of these tags,
+    * each image once
+    */
+
+   private static int[][] query(List<Integer> viewTags, Connection db)
+   throws SQLException
+   {
+      PreparedStatement st = StatementCache.prepare
+         (db, "location_visible",
+          "SELECT i.imageid, i.location FROM image i " +
+          "WHERE i.deleted IS NULL AND i.location IS NOT NULL AND EXISTS " +
+          "(SELECT 1 FROM imagetag it WHERE it.image = i.imageid " +
+          "AND it.tag = ANY(?));");
+      st.setArray(1, db.createArrayOf("INTEGER", viewTags.toArray()));
+      int[] ids = new int[1024];
+      int[] locs = new int[1024];
+      int n = 0;
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+         if (n == ids.length) {
+            ids = Arrays.copyOf(ids, n * 2);
+            locs = Arrays.copyOf(locs, n * 2);
+         }
+         ids[n] = rs.getInt(1);
+         locs[n++] = rs.getInt(2);
+      }
+      rs.close();
+      return new int[][] { Arrays.copyOf(ids, n),
+                           Arrays.copyOf(locs, n) };
+   }
+
+   private static final int CACHE_MAX = 64;
+
+   // guards everything below
+   private static final Map<List<Integer>, Counts> cache =
+      new LinkedHashMap<List<Integer>, Counts>(16, 0.75f, true) {
+         protected boolean removeEldestEntry
+         (Map.Entry<List<Integer>, Counts> e) {
+            return size() > CACHE_MAX;
+         }
+      };
+   private static Tree tree = null;
+   private static long generation = 0;
+
+   private static final AtomicLong hits = Vars.counter("location_counts_hits");
+   private static final AtomicLong misses =
+      Vars.counter("location_counts_misses");
+}
@@ -1,6 +1,6 @@
 package net.photoprism;
 
-import java.sql.Array;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -415,18 +415,6 @@ public class Photo
       }
    }
 
-   // just kill me
-   private static class tagMapVal
-   {
-      public ArrayList<idThing> tags;
-      public int level;
-
-      public tagMapVal() {
-         this.tags = new ArrayList<idThing>();
-         this.level = TokenUtils.Perms.NONE;
-      }
-   }
-
    /**
     * fetchMany() is a factory that instantiates a whole set of
     * mostly-populated Photo objects at once.
@@ -439,122 +427,181 @@ public class Photo
       if (ids == null || ids.size() == 0) return null;
       if (perms == null || perms.size() == 0) return null;
 
-      Array ary = db.createArrayOf("INTEGER", ids.toArray());
-
-      // we make two trips, getting the tag assignments first.  We are
-      // going to iterate through a database resultset of (imageid,
-      // tagid, tagtext) tuples and create a map of
-      //   { imgid: [tag, tag, ...], lvl }
-      // where each 'tag' is an idThing and lvl is the maximum permission
-      // you have for imgid.
-      HashMap<Integer, tagMapVal> tagmap =
-         new HashMap<Integer, tagMapVal>();
-      String sql = "SELECT it.image, t.id, t.tag FROM imagetag it " +
-         "INNER JOIN tag t ON it.tag=t.id " +
-         "WHERE it.image = ANY(?);";
-      PreparedStatement st = db.prepareStatement(sql);
-      st.setArray(1, ary);
+      // one trip: a row per image, with its tags and people already
+      // gathered up into arrays by the server (see SQL_DETAILS)
+      PreparedStatement st = StatementCache.prepare
+         (db, "fetchmany", SQL_DETAILS + "i.imageid = ANY(?) " +
+          "ORDER BY i.ts, i.imageid;");
+      st.setArray(1, db.createArrayOf("INTEGER", ids.toArray()));
       ResultSet rs = st.executeQuery();
+      ArrayList<Photo> ret = new ArrayList<Photo>();
       while (rs.next()) {
-         int imgid = rs.getInt(1);
-         int tagid = rs.getInt(2);
-         int newp = perms.tag_map.getOrDefault(tagid, TokenUtils.Perms.NONE);
-         // create new tagMapVal object if needed
-         if (tagmap.get(imgid) == null) tagmap.put(imgid, new tagMapVal());
-         tagMapVal val = tagmap.get(imgid);
-         // update the tagMapVal object
-         val.tags.add(new idThing(rs.getInt(2), rs.getString(3)));
-         if (newp > val.level) val.level = newp;
+         Photo p = fromRow(rs, perms);
+         if (p.permlevel < TokenUtils.Perms.READ) {
+            // the caller asked for an image that it doesn't have
+            // permission to get--something is severely bork.
+            rs.close();
+            throw new SQLException("no permission for image " + p.id);
+         }
+         ret.add(p);
       }
       rs.close();
-      st.close();
+      return ret;
+   }
 
-      sql = "SELECT imageid, i.caption, i.title, " +           //  1..3
-         "i.aperture, i.shutter, i.exposure, i.flash, " +      //  4..7
-         "i.film, i.process, i.metering, i.camera, " +         //  8..11
-         "i.focallength, i.ts, " +                             // 12..13
-         "i.rotation, l.parent, i.newimage, " +                // 14..16
-         "i.timezone, i.deleted, i.watermark, " +              // 17..19
-         "i.originalfile, i.height, i.width, " +               // 20..22
-         "TO_CHAR(i.ts, 'YYYY-MM-DD') dat, " +                 // 23..24
-         "i.latitude, i.longitude, i.altitude, " +             // 25..27
-         "l.locationid, l.description loc_desc, l.parent, " +  // 28..30
-         "s.personid, CONCAT(s.firstname, ' ', s.lastname) fullname " +
-         "FROM image i " +
-         "LEFT JOIN location l ON i.location = l.locationid " + // 1-1?
-         "LEFT JOIN " +                                         // 1-many
-         "(imagesubject INNER JOIN person ON personid=subject) s " +
-         "ON i.imageid=s.image " +
-         "WHERE i.imageid = ANY(?) " +
-         "ORDER BY i.ts;";
-      st = db.prepareStatement(sql);
-      st.setArray(1, ary);
-      rs = st.executeQuery();
+   /**
+    * what fetchEach() hands each Photo to
+    */
 
-      ArrayList<Photo> ret = new ArrayList<Photo>();
-      int lastid = 0;
-      Photo p = null;
-      while (rs.next()) {
-         if (rs.getInt(1) != lastid) {
-            p = new Photo(rs.getInt(1));
-            // copy in the simple metadata fields
-            p.altitude  = rs.getDouble("altitude");
-            p.aperture  = rs.getString("aperture");
-            p.camera    = rs.getString("camera");
-            p.cap       = rs.getString("caption");
-            p.date      = rs.getString("dat");
-            p.deleted   = rs.getTimestamp("deleted");
-            p.exposure  = rs.getString("exposure");
-            p.file      = rs.getString("originalfile");
-            p.film      = rs.getString("film");
-            p.flash     = new NullBool(rs, "flash");
-            p.focallen  = rs.getString("focallength");
-            p.height    = rs.getInt("height");
-            p.isnew     = new NullBool(rs, "newimage");
-            p.latitude  = rs.getDouble("latitude");
-            p.longitude = rs.getDouble("longitude");
-            p.metering  = rs.getString("metering");
-            p.process   = rs.getString("process");
-            p.rotation  = rs.getInt("rotation");
-            p.shutter   = rs.getString("shutter");
-            p.timezone  = rs.getString("timezone");
-            p.title     = rs.getString("title");
-            p.ts        = rs.getTimestamp("ts");
-            p.watermark = rs.getString("watermark");
-            p.width     = rs.getInt("width");
-
-            // fill in location
-            p.location = new LocationNode(rs.getInt("locationid"),
-                                          rs.getString("loc_desc"));
-
-            // copy list of tags and permission level
-            tagMapVal v = tagmap.get(rs.getInt(1));
-            if (v == null || v.level < TokenUtils.Perms.READ) {
-               // the caller asked for an image that it doesn't have
-               // permission to get--something is severely bork.
-               throw new SQLException("missing tag map entry");
+   public interface Each
+   {
+      void photo(Photo p) throws IOException;
+   }
+
+   /**
+    * fetchEach() makes the same Photos as fetchMany(), but hands each
+    * one over as soon as its row has been read, and reads the rows
+    * through a cursor FETCH_SIZE at a time.  So however many ids
+    * there are, only a few hundred rows and one Photo are in memory
+    * at once.
+    *
+    * Images the perms can't read are skipped, rather than failing
+    * like fetchMany() does, since by then the caller may have sent
+    * half its answer.
+    *
+    * The cursor needs a transaction.  If db is in autocommit, this
+    * opens one and ends it again; otherwise it uses the caller's.
+    *
+    * @return how many photos were handed to each
+    */
+
+   public static int fetchEach
+   (Connection db, TokenUtils.Perms perms, List<Integer> ids, Each each)
+   throws SQLException, IOException
+   {
+      if (ids == null || ids.size() == 0) return 0;
+      return fetchWhere(db, perms, "fetcheach",
+                        new SearchFilter("i.imageid = ANY(?)", ids), each);
+   }
+
+   /**
+    * fetchEach() for the images matching a filter on image i, so
+    * that whatever picks the images can be in the same query as
+    * their details.
+    *
+    * @param name label for StatementCache's counters
+    */
+
+   public static int fetchWhere
+   (Connection db, TokenUtils.Perms perms, String name, SearchFilter where,
+    Each each)
+   throws SQLException, IOException
+   {
+      if (perms == null || perms.size() == 0) return 0;
+
+      boolean autocommit = db.getAutoCommit();
+      if (autocommit) db.setAutoCommit(false);
+      int n = 0;
+      boolean ok = false;
+      try {
+         PreparedStatement st = StatementCache.prepare
+            (db, name,
+             SQL_DETAILS + where.sql() + " ORDER BY i.ts, i.imageid;");
+         st.setFetchSize(FETCH_SIZE);
+         where.bind(st, 1);
+         ResultSet rs = st.executeQuery();
+         try {
+            while (rs.next()) {
+               Photo p = fromRow(rs, perms);
+               if (p.permlevel < TokenUtils.Perms.READ) continue;
+               each.photo(p);
+               n++;
             }
-            p.tags = v.tags;
-            p.permlevel = v.level;
-
-            // create new person list, which this and following rows
-            // in rs will append to.
-            p.people = new ArrayList<idThing>();
-            ret.add(p);
-            lastid = rs.getInt(1);
+         } finally {
+            rs.close();
          }
-         // for each unique photo, rows after the first will vary only
-         // in the personid and fullname columns.
-         if (rs.getInt("personid") > 0) {
-            p.people.add(new idThing(rs.getInt("personid"),
-                                     rs.getString("fullname")));
+         ok = true;
+      } finally {
+         if (autocommit) {
+            try {
+               if (ok) {
+                  db.commit();
+               } else {
+                  // the exception on its way out says more than a
+                  // failed rollback would
+                  try { db.rollback(); }
+                  catch (SQLException e) { }
+               }
+            } finally {
+               db.setAutoCommit(true);
+            }
          }
       }
+      return n;
+   }
 
-      rs.close();
-      st.close();
-      return ret;
+   /**
+    * the Photo in the current row of an SQL_DETAILS query, with its
+    * permlevel worked out from its tags
+    */
+
+   private static Photo fromRow(ResultSet rs, TokenUtils.Perms perms)
+   throws SQLException
+   {
+      Photo p = new Photo(rs.getInt(1));
+      // copy in the simple metadata fields
+      p.altitude  = rs.getDouble("altitude");
+      p.aperture  = rs.getString("aperture");
+      p.camera    = rs.getString("camera");
+      p.cap       = rs.getString("caption");
+      p.date      = rs.getString("dat");
+      p.deleted   = rs.getTimestamp("deleted");
+      p.exposure  = rs.getString("exposure");
+      p.file      = rs.getString("originalfile");
+      p.film      = rs.getString("film");
+      p.flash     = new NullBool(rs, "flash");
+      p.focallen  = rs.getString("focallength");
+      p.height    = rs.getInt("height");
+      p.isnew     = new NullBool(rs, "newimage");
+      p.latitude  = rs.getDouble("latitude");
+      p.longitude = rs.getDouble("longitude");
+      p.metering  = rs.getString("metering");
+      p.process   = rs.getString("process");
+      p.rotation  = rs.getInt("rotation");
+      p.shutter   = rs.getString("shutter");
+      p.timezone  = rs.getString("timezone");
+      p.title     = rs.getString("title");
+      p.ts        = rs.getTimestamp("ts");
+      p.watermark = rs.getString("watermark");
+      p.width     = rs.getInt("width");
+
+      // fill in location
+      p.location = new LocationNode(rs.getInt("locationid"),
+                                    rs.getString("loc_desc"));
+
+      // tags, and the most this visitor can do through any of them
+      Integer[] tagids = (Integer[])rs.getArray("tagids").getArray();
+      String[] tagnames = (String[])rs.getArray("tagnames").getArray();
+      p.tags = new ArrayList<idThing>(tagids.length);
+      p.permlevel = TokenUtils.Perms.NONE;
+      for (int i = 0; i < tagids.length; i++) {
+         p.tags.add(new idThing(tagids[i], tagnames[i]));
+         int lvl = perms.tag_map.getOrDefault(tagids[i],
+                                              TokenUtils.Perms.NONE);
+         if (lvl > p.permlevel) p.permlevel = lvl;
+      }
 
+      // people come as [{"id": 12, "txt": "First Last"}, ..] or null
+      p.people = new ArrayList<idThing>();
+      String ppl = rs.getString("ppl");
+      if (ppl != null) {
+         JSONArray a = new JSONArray(ppl);
+         for (int i = 0; i < a.length(); i++) {
+            JSONObject j = a.getJSONObject(i);
+            p.people.add(new idThing(j.getInt("id"), j.getString("txt")));
+         }
+      }
+      return p;
    }
 
    /**
@@ -714,6 +761,36 @@ public class Photo
       }
    }
 
+   /** how many rows fetchEach() asks the server for at a time */
+   public static final int FETCH_SIZE = 500;
+
+   // everything fetchMany() needs, one row per image, up to the
+   // WHERE clause.  Tags are two arrays in the same order; people
+   // are one JSON array, since their names need to stay with their
+   // ids.
+   private static final String SQL_DETAILS =
+      "SELECT i.imageid, i.caption, i.title, " +
+      "i.aperture, i.shutter, i.exposure, i.flash, " +
+      "i.film, i.process, i.metering, i.camera, " +
+      "i.focallength, i.ts, " +
+      "i.rotation, i.newimage, " +
+      "i.timezone, i.deleted, i.watermark, " +
+      "i.originalfile, i.height, i.width, " +
+      "TO_CHAR(i.ts, 'YYYY-MM-DD') dat, " +
+      "i.latitude, i.longitude, i.altitude, " +
+      "l.locationid, l.description loc_desc, l.parent, " +
+      "ARRAY(SELECT t.id FROM imagetag it INNER JOIN tag t " +
+      "ON it.tag=t.id WHERE it.image=i.imageid ORDER BY t.id) tagids, " +
+      "ARRAY(SELECT t.tag FROM imagetag it INNER JOIN tag t " +
+      "ON it.tag=t.id WHERE it.image=i.imageid ORDER BY t.id) tagnames, " +
+      "(SELECT json_agg(json_build_object('id', p.personid, 'txt', " +
+      "CONCAT(p.firstname, ' ', p.lastname))) " +
+      "FROM imagesubject ims INNER JOIN person p " +
+      "ON ims.subject=p.personid WHERE ims.image=i.imageid) ppl " +
+      "FROM image i " +
+      "LEFT JOIN location l ON i.location = l.locationid " +
+      "WHERE ";
+
    // a month of milliseconds
    private static final long A_MONTH = (long)30 * 86400 * 1000;   
 }
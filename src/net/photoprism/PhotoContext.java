@@ -0,0 +1,108 @@
+package net.photoprism;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Sets up what the whole webapp shares, once, when it is deployed:
+ * the statement and permission caches, the in-memory indexes, and the
+ * detail and response caches.  Their settings are context-params in
+ * web.xml.  They used to be init-params of whichever servlet, which
+ * meant nothing happened until the first request to that servlet (so
+ * /rest/search said 503 until somebody browsed), and a setting given
+ * to two servlets was applied twice.
+ *
+ * @version 20261018
+ */
+
+public class PhotoContext implements ServletContextListener
+{
+   public void contextInitialized(ServletContextEvent e)
+   {
+      ServletContext ctx = e.getServletContext();
+      long n;
+
+      if (ctx.getInitParameter("leasetrace") != null) {
+         ConnectionLease.setTrace(true);
+      }
+      // a setting that is missing or isn't a number gets the default
+      // here; for the first of each group, that's to leave the class
+      // as it is
+      n = param(ctx, "stmtcache", -1);
+      if (n >= 0) {
+         StatementCache.setLimits((int)n, (int)param(ctx, "stmtpromote", 3));
+      }
+      n = param(ctx, "permscachems", -1);
+      if (n >= 0) {
+         TokenUtils.setPermsCache((int)param(ctx, "permscachesize", 10000), n);
+      }
+      n = param(ctx, "detailcache", -1);
+      if (n >= 0) {
+         DetailCache.setLimits((int)n, param(ctx, "detailcachems", 600000));
+      }
+      n = param(ctx, "responsecache", -1);
+      if (n >= 0) {
+         ResponseCache.setLimits((int)n,
+                                 param(ctx, "responsecachemb", 64) * 1048576,
+                                 param(ctx, "responsecachems", 600000));
+      }
+
+      // the loaders run in the background; requests go to SQL until
+      // each one is done
+      if (ctx.getInitParameter("tagindex") != null) {
+         ImageTagIndex.startLoad(PhotoUtils::getConnection);
+      }
+      if (ctx.getInitParameter("searchindex") != null) {
+         SearchIndex.startLoad(PhotoUtils::getConnection);
+      }
+      if (ctx.getInitParameter("textindex") != null) {
+         TextIndex.startLoad(PhotoUtils::getConnection,
+                             (int)param(ctx, "textindex", 1));
+      }
+      ctx.log("PhotoContext: shared caches and indexes set up");
+   }
+
+   /**
+    * a number from a context-param, or dfl if it isn't there or (with
+    * a line in the log) isn't a number
+    */
+
+   private static long param(ServletContext ctx, String name, long dfl)
+   {
+      String s = ctx.getInitParameter(name);
+      if (s == null) return dfl;
+      try { return Long.parseLong(s.trim()); }
+      catch (NumberFormatException e) {
+         ctx.log("PhotoContext: " + name + " \"" + s + "\" isn't a number;" +
+                 " ignoring it");
+         return dfl;
+      }
+   }
+
+   public void contextDestroyed(ServletContextEvent e)
+   {
+      ServletContext ctx = e.getServletContext();
+      // a loader that's still going holds a connection (or several)
+      // and the old classes; give them all STOP_WAIT_MS between them
+      long until = System.currentTimeMillis() + STOP_WAIT_MS;
+      Thread[] loaders = { TextIndex.stopLoad(), SearchIndex.stopLoad(),
+                           ImageTagIndex.stopLoad() };
+      for (Thread t : loaders) {
+         if (t == null) continue;
+         try { t.join(Math.max(1, until - System.currentTimeMillis())); }
+         catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+         if (t.isAlive()) ctx.log("PhotoContext: " + t.getName() +
+                                  " didn't stop");
+      }
+      // the statements live on the pool's connections, which outlast
+      // this webapp
+      StatementCache.closeAll();
+      ctx.log("PhotoContext: loaders stopped, cached statements closed");
+   }
+
+   private static final long STOP_WAIT_MS = 10000;
+}
@@ -1,9 +1,13 @@
 package net.photoprism;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.SQLException;
 import javax.servlet.ServletConfig;
@@ -59,12 +63,22 @@ public class PhotoServlet extends HttpServlet
     // to remember this stuff, since not all programs get
     // to use init parameters
     if (!getDBConnection()) log("database connection failed!");
+
+    String s = config.getInitParameter("leasewarnms");
+    if (s != null) {
+      try { leaseWarnMs = Long.parseLong(s); }
+      catch (NumberFormatException e) {
+        throw new ServletException("bad leasewarnms: " + s);
+      }
+    }
+    // the settings the whole webapp shares are context-params, read
+    // by PhotoContext
   }
 
   /** 
-   * Attempts to connect to the SQL database.  Should be called at
-   * servlet init but might be retried later if the connection is lost
-   * for some reason.  Writes any errors to the servlet log.
+   * Checks that the database can be reached, by borrowing a connection
+   * from the pool and giving it right back.  Writes any errors to the
+   * servlet log.
    *
    * @param none
    * @return true on success
@@ -72,71 +86,236 @@ public class PhotoServlet extends HttpServlet
 
   public boolean getDBConnection()
   {
-    try { db = PhotoUtils.getConnection(); }
+    try { db(); }
     catch (SQLException e) {
-      // 1 Jul 04 MAD: can't call log() if this is a static method
-      // 9 Aug 04 MAD: but why was this a static method?
       log("Unable to open database: " + e.getMessage());
       return false;
     }
+    finally { ConnectionLease.release(); }
     return true;
   }
 
   /**
-   * destroy closes the presumably open database connection
+   * the connection to the photo database for this request.  The first
+   * call in a request borrows one from the pool; it goes back when
+   * service() returns, so don't hang on to it anywhere.
+   */
+
+  protected static Connection db() throws SQLException
+  {
+    return ConnectionLease.get();
+  }
+
+  /**
+   * wraps every request so that whatever connection it borrowed is
+   * returned, even if the servlet blew up.  A request that starts
+   * async has to be done with the database before it leaves doGet().
    */
 
-  public void destroy()
+  protected void service(HttpServletRequest req, HttpServletResponse res)
+  throws ServletException, IOException
   {
-    try { db.close(); }
-    catch(Exception e) {
-      log("closing database connection: " + e);
+    String leak = ConnectionLease.reclaim();
+    if (leak != null) log("reclaimed a leaked database connection: " + leak);
+    try {
+      super.service(req, res);
+    } finally {
+      long held = ConnectionLease.release();
+      if (leaseWarnMs > 0 && held > leaseWarnMs) {
+        log(req.getRequestURI() + " held a database connection for " +
+            held + "ms");
+      }
     }
   }
 
   /**
    * sends a file to a ServletResponse.  sendFile() will set the status
-   * code, mime type, and content length.
+   * code, mime type, and content length.  A single "Range: bytes=..."
+   * request is honored with a 206 (subject to If-Range), so that big
+   * original downloads can be resumed; anything fancier gets the
+   * whole file with a 200, which the RFC allows.
    *
    * @param f File to send
+   * @param req HttpServletRequest, for the Range headers
    * @param r HttpServletResponse to write to
    * @param mimeType String to set response Content-Type to
    */
 
-  protected void sendFile(File f, HttpServletResponse r, String mimeType)
+  protected void sendFile
+  (File f, HttpServletRequest req, HttpServletResponse r, String mimeType)
+  throws IOException
   {
-    r.setStatus(HttpServletResponse.SC_OK);
+    long len = f.length();
+    long start = 0;
+    long end = len - 1;
+
     r.setContentType(mimeType);
-    r.setContentLength((int)f.length());
+    r.setHeader("Accept-Ranges", "bytes");
+    if (!r.containsHeader("Last-Modified"))
+      r.setDateHeader("Last-Modified", f.lastModified());
+
+    String range = req.getHeader("Range");
+    if (range != null && ifRangeMatches(req, r, f)) {
+      long[] span = parseRange(range, len);
+      if (span != null && span.length == 0) {
+        r.setHeader("Content-Range", "bytes */" + len);
+        r.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      } else if (span != null) {
+        start = span[0];
+        end = span[1];
+        r.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        r.setHeader("Content-Range",
+                    "bytes " + start + "-" + end + "/" + len);
+      } else {
+        r.setStatus(HttpServletResponse.SC_OK);
+      }
+    } else {
+      r.setStatus(HttpServletResponse.SC_OK);
+    }
+    r.setContentLengthLong(end - start + 1);
+
+    // If the connector can do sendfile(2) itself, hand it the file
+    // and get out of the way: the bytes never come up into the JVM.
+    // Tomcat only does this for requests that finish synchronously.
+    if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT)) &&
+        !req.isAsyncStarted()) {
+      req.setAttribute(SENDFILE_FILENAME, f.getCanonicalPath());
+      req.setAttribute(SENDFILE_START, Long.valueOf(start));
+      req.setAttribute(SENDFILE_END, Long.valueOf(end + 1));
+      return;
+    }
 
-    // 2 Oct 05 MAD: it was previously noticed that rewriting the copyFile()
-    // method to use 1k buffers made uploading much faster (there is no good
-    // reason, since the BufferedStreams should have taken care of it), but
-    // maybe doing the same here will help?
+    // Otherwise let the FileChannel push the bytes at the output
+    // stream.  This replaces the old 1k-at-a-time loop, and the
+    // try-with-resources finally fixes the 2005 complaint below.
+    //
+    // 2 Oct 05 MAD: processor threads are leaving open handles to
+    // cache files all over the place: could this be a memory leak?
+    try (FileChannel in = FileChannel.open(f.toPath(),
+                                           StandardOpenOption.READ)) {
+      WritableByteChannel out = Channels.newChannel(r.getOutputStream());
+      long pos = start;
+      while (pos <= end) {
+        long n = in.transferTo(pos, end + 1 - pos, out);
+        if (n <= 0) break; // file got shorter under us
+        pos += n;
+      }
+    } catch (IOException e) {
+      // most likely the client went away in the middle
+      log("on sendFile(" + f +"): " + e);
+    }
+  }
+
+  /**
+   * If-Range says "only send me the part if the thing hasn't changed
+   * since I got the first part."  It holds either an entity tag or a
+   * date.  Entity tags are compared against whatever ETag the caller
+   * already put on the response; dates against the file mtime, to the
+   * second.  Weak tags never match, as the RFC requires.
+   *
+   * @return true if the Range header should be honored
+   */
 
-    BufferedOutputStream out = null;
-    FileInputStream in = null;
-    byte[] b = new byte[1024];
+  private static boolean ifRangeMatches
+  (HttpServletRequest req, HttpServletResponse r, File f)
+  {
+    String cond = req.getHeader("If-Range");
+    if (cond == null) return true;
+    cond = cond.trim();
+    if (cond.startsWith("\"")) {
+      return cond.equals(r.getHeader("ETag"));
+    } else if (cond.startsWith("W/")) {
+      return false;
+    }
+    try {
+      long since = req.getDateHeader("If-Range");
+      return since / 1000 == f.lastModified() / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * parses a Range header for a resource that is len bytes long.
+   * Only one range is supported; the three forms are "bytes=a-b",
+   * "bytes=a-", and "bytes=-n" (the last n bytes).
+   *
+   * @return { first, last } inclusive, an empty array if the range
+   * can't be satisfied (416), or null if the header is something we
+   * don't handle and the whole file should be sent.
+   */
 
+  protected static long[] parseRange(String range, long len)
+  {
+    if (!range.startsWith("bytes=")) return null;
+    String spec = range.substring(6).trim();
+    if (spec.indexOf(',') >= 0) return null;
+    int dash = spec.indexOf('-');
+    if (dash < 0) return null;
+    long first;
+    long last;
     try {
-      out = new BufferedOutputStream(r.getOutputStream());
-      in = new FileInputStream(f);
-      while (true) {
-        int bytes = in.read(b);
-        if (bytes == -1) break;
-        out.write(b, 0, bytes);
+      String a = spec.substring(0, dash).trim();
+      String b = spec.substring(dash + 1).trim();
+      if (a.length() == 0) {
+        // suffix range: the last n bytes
+        long n = Long.parseLong(b);
+        if (n <= 0) return new long[0];
+        first = Math.max(0, len - n);
+        last = len - 1;
+      } else {
+        first = Long.parseLong(a);
+        if (first >= len) return new long[0];
+        last = (b.length() == 0) ? len - 1 : Long.parseLong(b);
+        if (last < first) return null;
+        if (last > len - 1) last = len - 1;
       }
-    } catch (IOException e) {
-      log("on sendFile(" + f +"): " + e);
-    } finally {
-      // 2 Oct 05 MAD: processor threads are leaving open handles to
-      // cache files all over the place: could this be a memory leak?
-      try {
-        in.close();
-        out.close();
-      } catch (IOException forgetit) { }
+    } catch (NumberFormatException e) {
+      return null;
     }
+    if (first >= len || first < 0) return new long[0];
+    return new long[] { first, last };
+  }
+
+  /**
+   * sends a byte array that we already have in memory, such as a
+   * rendition out of the RenditionCache.
+   *
+   * @param b bytes to send
+   * @param r HttpServletResponse to write to
+   * @param mimeType String to set response Content-Type to
+   */
 
+  protected void sendBytes(byte[] b, HttpServletResponse r, String mimeType)
+  throws IOException
+  {
+    r.setStatus(HttpServletResponse.SC_OK);
+    r.setContentType(mimeType);
+    r.setContentLength(b.length);
+    r.getOutputStream().write(b);
+    r.getOutputStream().close();
+  }
+
+  /**
+   * sends bytes that are somewhere other than the Java heap, such as
+   * a slice of a memory-mapped ThumbStore segment.
+   *
+   * @param b buffer positioned at the first byte to send; it is
+   * consumed up to its limit
+   * @param r HttpServletResponse to write to
+   * @param mimeType String to set response Content-Type to
+   */
+
+  protected void sendBuffer(ByteBuffer b, HttpServletResponse r, String mimeType)
+  throws IOException
+  {
+    r.setStatus(HttpServletResponse.SC_OK);
+    r.setContentType(mimeType);
+    r.setContentLength(b.remaining());
+    WritableByteChannel out = Channels.newChannel(r.getOutputStream());
+    while (b.hasRemaining()) out.write(b);
+    out.close();
   }
 
   /**
@@ -162,6 +341,21 @@ public class PhotoServlet extends HttpServlet
      sendString(res, ary.toString(), "text/json");
   }
 
+  /**
+   * starts a JSON response body to be written a piece at a time, in
+   * UTF-8, for answers too big to build in memory first.  There's no
+   * content length, so the container sends it chunked, beginning as
+   * soon as its buffer fills.  Close the stream when done.
+   */
+
+  protected OutputStream startJSON(HttpServletResponse res)
+  throws IOException
+  {
+    res.setStatus(SC_OK);
+    res.setContentType("text/json;charset=UTF-8");
+    return res.getOutputStream();
+  }
+
   /**
    * sends any arbitrary String as the response body with the
    * contenttype you specify, correct length, and SC_OK.
@@ -216,7 +410,10 @@ public class PhotoServlet extends HttpServlet
    protected TokenUtils.Perms getPerms(HttpServletRequest req)
    throws SQLException
    {
-      return new TokenUtils.Perms(findCookie(req, "token"), db);
+      // on a cache hit this never borrows a connection at all
+      String cookie = findCookie(req, "token");
+      TokenUtils.Perms p = TokenUtils.Perms.peek(cookie);
+      return (p != null) ? p : TokenUtils.Perms.cached(cookie, db());
    }
 
    /**
@@ -242,10 +439,11 @@ public class PhotoServlet extends HttpServlet
    }
 
   /**
-   * the connection to the photo database
+   * log a request that holds its connection longer than this many ms;
+   * 0 to never complain
    */
 
-  protected static Connection db;
+  protected long leaseWarnMs = 0;
 
   /**
    * servlets should be more loquacious when debug is true
@@ -278,5 +476,19 @@ public class PhotoServlet extends HttpServlet
   protected static final int SC_SERVFAIL =
      HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
+  /**
+   * request attributes for Tomcat's sendfile support.  These are
+   * documented in the connector docs rather than in any API jar.
+   */
+
+  private static final String SENDFILE_SUPPORT =
+     "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME =
+     "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START =
+     "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END =
+     "org.apache.tomcat.sendfile.end";
+
 }
 
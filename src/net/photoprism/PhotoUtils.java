@@ -6,9 +6,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.sql.Connection;
@@ -19,6 +16,7 @@ import java.sql.SQLException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
@@ -285,7 +283,8 @@ public class PhotoUtils
   }
 
   /**
-   * attempts to create a connection to the photo database.
+   * attempts to get a connection to the photo database out of the
+   * container's pool.  Close it to give it back.
    *
    * @exception SQLException if connection failed
    */
@@ -297,15 +296,24 @@ public class PhotoUtils
      // String arguments, the return value is wrong and has to be
      // cast, 45 lines of XML boilerplate that have to be just right
      // in multiple magic-named files, etc etc etc
-     try {
-        InitialContext ct = new InitialContext();
-        DataSource ds = (DataSource)ct.lookup("java:/comp/env/jdbc/postgres");
-        return ds.getConnection();
-     } catch (NamingException e) {
-        throw new SQLException("lol what is a NamingException: " + e);
+     //
+     // The lookup is done once; now that every request borrows a
+     // connection, a JNDI walk each time would be most of the cost.
+     DataSource ds = dataSource;
+     if (ds == null) {
+        try {
+           InitialContext ct = new InitialContext();
+           ds = (DataSource)ct.lookup("java:/comp/env/jdbc/postgres");
+        } catch (NamingException e) {
+           throw new SQLException("lol what is a NamingException: " + e);
+        }
+        dataSource = ds;
      }
+     return ds.getConnection();
   }
 
+  private static volatile DataSource dataSource = null;
+
   /**
    * copies a file, not surprisingly.  Horribly inefficient but
    * did not take long to write.
@@ -392,7 +400,11 @@ public class PhotoUtils
   }
 
    /**
-   * Send an RPC to the pkeep process, which probably manages an S3 backend.
+   * Send an RPC to the pkeep process, which probably manages an S3
+   * backend, and wait for the answer.  This goes through the shared
+   * PkeepClient, so it is safe to call from any number of threads;
+   * servlets that don't want to block should call
+   * PkeepClient.shared().ask() themselves.
    * 
    * @param id imageid
    * @param size length of longer edge, in pixels
@@ -402,32 +414,16 @@ public class PhotoUtils
 
   public static String askPkeep(int id, int size, String inst) 
   throws IOException, SocketException, UnknownHostException {
-
-    // Ask pkeep for a URL.
-    DatagramSocket s = new DatagramSocket();
-    s.setSoTimeout(60000); // Be patient.
-
-    StringBuffer req = new StringBuffer();
-    req.append(4747); // TODO: ticket number is presently ignored
-    req.append(',');
-    req.append(id);
-    req.append(',');
-    req.append(size);
-    req.append(',');
-    req.append(inst);
-    byte[] buf = req.toString().getBytes();
-
-    DatagramPacket p = new DatagramPacket(buf, buf.length,
-        InetAddress.getByName(PKEEP_HOST), 4770);
-    s.send(p);
-
-    p.setData(new byte[1024]);
-    s.receive(p);
-    String msg = new String(p.getData(), 0, p.getLength());
-    if (!msg.startsWith("4747,")) {
-      throw new IOException("ticket number mismatch from pkeep");
+    try {
+      return PkeepClient.shared().ask(id, size, inst).get();
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted waiting for pkeep");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException("from pkeep: " + e.getCause());
     }
-    return msg.substring(5);
   }
 
   // These are the choices the UI will offer in time zone fields.  Choose
@@ -441,7 +437,6 @@ public class PhotoUtils
 
   public static final double EPSILON = 0.00001;
 
-  public static final String PKEEP_HOST = "localhost";
 
   public static final String IMAGE_ROOT = "/srv/photo/pkeep_orig";
   public static final String TRASH_PATH = IMAGE_ROOT + "/trash";
@@ -0,0 +1,541 @@
+package net.photoprism;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Talks to pkeep over one shared UDP channel, instead of opening a
+ * DatagramSocket per request and sitting in receive() for up to a
+ * minute.  Every request gets a real ticket number (pkeep echoes it
+ * back as the first field of the reply), and one receiver thread
+ * matches replies to the CompletableFuture that is waiting for them.
+ * Nobody else ever blocks, which is the point: ImageREST can give
+ * its Tomcat worker back while pkeep thinks.
+ *
+ * Identical requests that overlap in time are collapsed into one: see
+ * ask().
+ *
+ * There can be more than one pkeep.  Images are spread over them by
+ * consistent hashing on the imageid, so each pkeep keeps seeing the
+ * same images and its disk cache stays warm, and adding or removing
+ * a pkeep only moves about 1/n of the images.  A backend that keeps
+ * timing out is skipped for a while.  If the chosen backend hasn't
+ * answered by the time its recent p95 latency has gone by, the same
+ * request is also sent to the next backend on the ring and whichever
+ * answers first wins.  (This assumes every pkeep can see the files
+ * the others write, i.e. pkeepcache is shared storage, or that
+ * they send back URLs anybody can fetch.)
+ *
+ * The wire format is unchanged from askPkeep():
+ *   request: ticket,imageid,size,instructions
+ *   reply:   ticket,url
+ *
+ * @version 20261018
+ */
+
+public class PkeepClient
+{
+   /**
+    * @param backends where the pkeeps listen; must not be empty
+    * @param timeoutMs how long to wait for a reply before failing the
+    * request with a SocketTimeoutException
+    */
+
+   public PkeepClient(List<InetSocketAddress> backends, long timeoutMs)
+   throws IOException
+   {
+      if (backends.isEmpty()) throw new IllegalArgumentException("no pkeeps");
+      this.timeoutMs = timeoutMs;
+      this.backends = new ArrayList<Backend>();
+      this.ring = new TreeMap<Integer, Backend>();
+      for (InetSocketAddress a : backends) {
+         Backend b = new Backend(a);
+         this.backends.add(b);
+         for (int i = 0; i < VNODES; i++) {
+            this.ring.put(mix((b.toString() + "#" + i).hashCode()), b);
+         }
+      }
+      this.channel = DatagramChannel.open();
+      this.channel.bind(null);
+      // start somewhere unpredictable so that a reply that was in
+      // flight when the JVM restarted doesn't match a new request.
+      this.nextTicket = new AtomicInteger
+         ((int)(System.nanoTime() & 0x3fffffff));
+      this.pending = new ConcurrentHashMap<Integer, Attempt>();
+      this.inflight =
+         new ConcurrentHashMap<RenditionCache.Key, CompletableFuture<String>>();
+      ScheduledThreadPoolExecutor timer =
+         new ScheduledThreadPoolExecutor(1, r -> {
+               Thread t = new Thread(r, "pkeep-timeouts");
+               t.setDaemon(true);
+               return t;
+            });
+      // nearly every request is answered long before its timeout, and
+      // a cancelled task would otherwise sit in the queue until then
+      timer.setRemoveOnCancelPolicy(true);
+      this.timer = timer;
+      this.receiver = new Thread(() -> this.receiveLoop(), "pkeep-receiver");
+      this.receiver.setDaemon(true);
+      this.receiver.start();
+      Vars.gauge("pkeep_pending", () -> this.pending.size());
+      Vars.gauge("pkeep_inflight", () -> this.inflight.size());
+      for (Backend b : this.backends) {
+         Vars.gauge("pkeep_" + b.name + "_up",
+                    () -> b.isUp(System.currentTimeMillis()) ? 1 : 0);
+         Vars.gauge("pkeep_" + b.name + "_p95_ms", () -> b.p95Ms());
+      }
+   }
+
+   public PkeepClient(InetSocketAddress backend, long timeoutMs)
+   throws IOException
+   {
+      this(Collections.singletonList(backend), timeoutMs);
+   }
+
+   /**
+    * @param hosts comma-separated list of host or host:port, as in the
+    * pkeephost init parameter.  Null or empty means PKEEP_HOST.
+    * @exception NumberFormatException if a port isn't a number
+    */
+
+   public static List<InetSocketAddress> parseBackends(String hosts)
+   {
+      List<InetSocketAddress> out = new ArrayList<InetSocketAddress>();
+      if (hosts != null) {
+         for (String h : hosts.split(",")) {
+            h = h.trim();
+            if (h.length() == 0) continue;
+            int colon = h.lastIndexOf(':');
+            if (colon > 0) {
+               out.add(new InetSocketAddress
+                       (h.substring(0, colon),
+                        Integer.parseInt(h.substring(colon + 1))));
+            } else {
+               out.add(new InetSocketAddress(h, PKEEP_PORT));
+            }
+         }
+      }
+      if (out.isEmpty()) out.add(new InetSocketAddress(PKEEP_HOST, PKEEP_PORT));
+      return out;
+   }
+
+   /**
+    * the client everybody shares.  ImageREST replaces it at init time
+    * with one built from its init parameters; programs that never see
+    * a servlet config (ExifReader etc.) get the default, which is
+    * pkeep on localhost.
+    */
+
+   public static synchronized PkeepClient shared() throws IOException
+   {
+      if (shared == null) {
+         shared = new PkeepClient
+            (new InetSocketAddress(PKEEP_HOST,
+                                   PKEEP_PORT),
+             DEFAULT_TIMEOUT_MS);
+      }
+      return shared;
+   }
+
+   public static synchronized void setShared(PkeepClient c)
+   {
+      if (shared != null && shared != c) shared.close();
+      shared = c;
+   }
+
+   /**
+    * send a request to pkeep.
+    *
+    * @param id imageid
+    * @param size length of longer edge, in pixels
+    * @param inst rendering instructions understood by pkeep
+    * @return a future that completes with whatever text pkeep sends
+    * back (hopefully a URL), or exceptionally with a
+    * SocketTimeoutException or other IOException.  The future may be
+    * shared with other callers (see below), so don't complete or
+    * cancel it yourself.
+    */
+
+   public CompletableFuture<String> ask(int id, int size, String inst)
+   {
+      // When an album gets shared, dozens of browsers ask for the same
+      // thumbnails in the same second.  Only the first one for a given
+      // rendition actually goes to pkeep; everybody who shows up while
+      // it is in flight gets the same future.
+      RenditionCache.Key k = new RenditionCache.Key(id, size, inst);
+      CompletableFuture<String> mine = new CompletableFuture<String>();
+      CompletableFuture<String> theirs = this.inflight.putIfAbsent(k, mine);
+      if (theirs != null) {
+         collapsed.incrementAndGet();
+         return theirs;
+      }
+      mine.whenComplete((url, err) -> this.inflight.remove(k, mine));
+      send(id, size, inst, mine);
+      return mine;
+   }
+
+   /**
+    * the part of ask() that actually talks to pkeep, completing f
+    * when the first answer (or the timeout) comes.
+    */
+
+   private void send(int id, int size, String inst, CompletableFuture<String> f)
+   {
+      List<Backend> order = replicas(id, System.currentTimeMillis());
+      String body = id + "," + size + "," + inst;
+      List<Attempt> attempts =
+         Collections.synchronizedList(new ArrayList<Attempt>(2));
+
+      requests.incrementAndGet();
+      long start = System.nanoTime();
+      f.whenComplete((url, err) ->
+                     latencyMs.addAndGet((System.nanoTime() - start) / 1000000));
+      attempts.add(sendTo(order.get(0), body, f, false));
+
+      // hedge: if the first choice is slower than usual, ask the next
+      // one too.  Nothing to hedge to with only one pkeep, and no
+      // idea what "usual" is until we've seen some replies.
+      long p95 = order.get(0).p95Ms();
+      ScheduledFuture<?> hedge = null;
+      if (order.size() > 1 && p95 > 0 && p95 < this.timeoutMs) {
+         hedge = this.timer.schedule(() -> {
+               synchronized (attempts) {
+                  if (f.isDone()) return;
+                  hedges.incrementAndGet();
+                  attempts.add(sendTo(order.get(1), body, f, true));
+               }
+            }, p95, TimeUnit.MILLISECONDS);
+      }
+
+      ScheduledFuture<?> timeout = this.timer.schedule(() -> {
+            if (f.completeExceptionally(new SocketTimeoutException
+                  ("pkeep did not answer " + id + "/" + size +
+                   " in " + this.timeoutMs + "ms"))) {
+               timeouts.incrementAndGet();
+            }
+            // anybody who still hasn't answered is in trouble, whether
+            // or not somebody else answered for them.
+            synchronized (attempts) {
+               for (Attempt a : attempts) {
+                  if (this.pending.remove(a.ticket) != null) {
+                     a.backend.failed(System.currentTimeMillis());
+                  }
+               }
+            }
+         }, this.timeoutMs, TimeUnit.MILLISECONDS);
+
+      // once answered, neither task has anything left to do, unless
+      // the loser of a hedge still hasn't answered; then the timeout
+      // stays, to mark its pkeep down if it never does
+      ScheduledFuture<?> h = hedge;
+      f.whenComplete((url, err) -> {
+            if (h != null) h.cancel(false);
+            synchronized (attempts) {
+               for (Attempt a : attempts) {
+                  if (this.pending.containsKey(a.ticket)) return;
+               }
+            }
+            timeout.cancel(false);
+         });
+   }
+
+   private Attempt sendTo
+   (Backend b, String body, CompletableFuture<String> f, boolean hedge)
+   {
+      int ticket = this.nextTicket.getAndIncrement() & 0x3fffffff;
+      Attempt a = new Attempt(ticket, b, f, hedge);
+      this.pending.put(ticket, a);
+      ByteBuffer buf = ByteBuffer.wrap
+         ((ticket + "," + body).getBytes(StandardCharsets.UTF_8));
+      b.sent.incrementAndGet();
+      try {
+         this.channel.send(buf, b.addr);
+      } catch (IOException | UnresolvedAddressException e) {
+         errors.incrementAndGet();
+         this.pending.remove(ticket);
+         b.failed(System.currentTimeMillis());
+         // a hedge that can't be sent is no reason to fail the
+         // request; the first attempt is still out there.
+         if (!hedge) f.completeExceptionally(e);
+      }
+      return a;
+   }
+
+   /**
+    * @return every backend, in the order they should be tried for
+    * this image: walk clockwise around the ring from the image's hash,
+    * healthy backends first.  If they are all down, try them anyway.
+    */
+
+   List<Backend> replicas(int id, long now)
+   {
+      int n = this.backends.size();
+      List<Backend> seen = new ArrayList<Backend>(n);
+      int h = mix(id);
+      for (Backend b : this.ring.tailMap(h).values()) {
+         if (seen.size() == n) break;
+         if (!seen.contains(b)) seen.add(b);
+      }
+      for (Backend b : this.ring.headMap(h).values()) {
+         if (seen.size() == n) break;
+         if (!seen.contains(b)) seen.add(b);
+      }
+      List<Backend> order = new ArrayList<Backend>(n);
+      for (Backend b : seen) if (b.isUp(now)) order.add(b);
+      for (Backend b : seen) if (!b.isUp(now)) order.add(b);
+      return order;
+   }
+
+   // murmur3's finalizer, because String.hashCode() of
+   // "host:port#1" and "host:port#2" are next-door neighbors and
+   // would all bunch up on the ring.
+   private static int mix(int h)
+   {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+   }
+
+   /**
+    * the receiver thread's whole life.  Replies to tickets we have
+    * given up on (timed out, or never sent) are counted and dropped.
+    */
+
+   private void receiveLoop()
+   {
+      ByteBuffer buf = ByteBuffer.allocate(MAX_REPLY);
+      while (this.channel.isOpen()) {
+         try {
+            buf.clear();
+            SocketAddress from = this.channel.receive(buf);
+            if (from == null) continue;
+            buf.flip();
+            String msg = StandardCharsets.UTF_8.decode(buf).toString();
+            int comma = msg.indexOf(',');
+            int ticket;
+            try { ticket = Integer.parseInt(msg.substring(0, comma)); }
+            catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+               errors.incrementAndGet();
+               continue;
+            }
+            Attempt a = this.pending.remove(ticket);
+            if (a == null) {
+               lateReplies.incrementAndGet();
+               continue;
+            }
+            // the loser of a hedge still tells us how fast its pkeep
+            // is, so record the latency before finding out who won.
+            a.backend.answered(System.nanoTime() - a.start);
+            if (a.f.complete(msg.substring(comma + 1))) {
+               replies.incrementAndGet();
+               if (a.hedge) hedgeWins.incrementAndGet();
+            } else {
+               lateReplies.incrementAndGet();
+            }
+         } catch (ClosedChannelException e) {
+            break;
+         } catch (IOException e) {
+            // e.g. ICMP port unreachable surfacing on some platforms;
+            // nothing to match it to, so keep listening.
+            errors.incrementAndGet();
+         }
+      }
+   }
+
+   public void close()
+   {
+      try { this.channel.close(); }
+      catch (IOException ignored) { }
+      this.timer.shutdownNow();
+      for (Attempt a : this.pending.values()) {
+         a.f.completeExceptionally(new IOException("pkeep client closed"));
+      }
+   }
+
+   public long getTimeoutMs()
+   {
+      return this.timeoutMs;
+   }
+
+   public String toString()
+   {
+      return "PkeepClient(" + this.backends + ", timeout " +
+         this.timeoutMs + "ms, " + this.pending.size() + " pending)";
+   }
+
+   /**
+    * one datagram sent to one pkeep.  A hedged request has two of
+    * these pointing at the same future.
+    */
+
+   private static class Attempt
+   {
+      final int ticket;
+      final Backend backend;
+      final CompletableFuture<String> f;
+      final boolean hedge;
+      final long start;
+
+      Attempt(int ticket, Backend backend, CompletableFuture<String> f,
+              boolean hedge)
+      {
+         this.ticket = ticket;
+         this.backend = backend;
+         this.f = f;
+         this.hedge = hedge;
+         this.start = System.nanoTime();
+      }
+   }
+
+   /**
+    * what we know about one pkeep: where it is, whether it has been
+    * answering lately, and how long it usually takes.
+    */
+
+   static class Backend
+   {
+      final InetSocketAddress addr;
+      final String name;
+      final AtomicLong sent;
+      final AtomicLong answered;
+      final AtomicLong failures;
+      private int consecutiveFailures = 0;
+      private long downUntil = 0;
+
+      // the most recent LATENCY_SAMPLES reply times, in a ring
+      private final long[] samples = new long[LATENCY_SAMPLES];
+      private int nSamples = 0;
+      private int nextSample = 0;
+      private long p95 = 0;
+
+      Backend(InetSocketAddress addr)
+      {
+         this.addr = addr;
+         this.name = (addr.getHostString() + "_" + addr.getPort())
+            .replaceAll("[^A-Za-z0-9_]", "_");
+         this.sent = Vars.counter("pkeep_" + this.name + "_sent");
+         this.answered = Vars.counter("pkeep_" + this.name + "_answered");
+         this.failures = Vars.counter("pkeep_" + this.name + "_failures");
+      }
+
+      synchronized boolean isUp(long now)
+      {
+         return now >= this.downUntil;
+      }
+
+      synchronized void answered(long nanos)
+      {
+         this.answered.incrementAndGet();
+         this.consecutiveFailures = 0;
+         this.downUntil = 0;
+         this.samples[this.nextSample] = nanos;
+         this.nextSample = (this.nextSample + 1) % LATENCY_SAMPLES;
+         if (this.nSamples < LATENCY_SAMPLES) this.nSamples++;
+         // sorting 256 longs on every reply would be silly; every
+         // sixteenth is plenty to follow a pkeep that is slowing down.
+         if (this.nSamples == MIN_SAMPLES || this.nextSample % 16 == 0) {
+            long[] s = Arrays.copyOf(this.samples, this.nSamples);
+            Arrays.sort(s);
+            this.p95 = s[(s.length * 95) / 100] / 1000000;
+         }
+      }
+
+      // a backend that fails FAIL_LIMIT times in a row is left alone
+      // for DOWN_MS.  After that it gets traffic again, and one more
+      // failure puts it straight back in the penalty box.
+      synchronized void failed(long now)
+      {
+         this.failures.incrementAndGet();
+         if (++this.consecutiveFailures >= FAIL_LIMIT) {
+            if (this.downUntil <= now) markedDown.incrementAndGet();
+            this.downUntil = now + DOWN_MS;
+         }
+      }
+
+      /**
+       * @return recent p95 reply time in ms (at least 1), or 0 if
+       * there haven't been enough replies to say
+       */
+
+      synchronized long p95Ms()
+      {
+         if (this.nSamples < MIN_SAMPLES) return 0;
+         return Math.max(1, this.p95);
+      }
+
+      public String toString()
+      {
+         return this.addr.getHostString() + ":" + this.addr.getPort();
+      }
+   }
+
+   private static PkeepClient shared = null;
+
+   private final long timeoutMs;
+   private final List<Backend> backends;
+   private final TreeMap<Integer, Backend> ring;
+   private final DatagramChannel channel;
+   private final AtomicInteger nextTicket;
+   private final ConcurrentHashMap<Integer, Attempt> pending;
+   private final ConcurrentHashMap<RenditionCache.Key, CompletableFuture<String>> inflight;
+   private final ScheduledExecutorService timer;
+   private final Thread receiver;
+
+   // pkeep_local.py reads requests with recvfrom(1024), and its
+   // replies are a ticket and a path, so this is plenty.
+   private static final int MAX_REPLY = 4096;
+
+   public static final String PKEEP_HOST = "localhost";
+   public static final int PKEEP_PORT = 4770;
+
+   // same patience as the old blocking askPkeep()
+   public static final long DEFAULT_TIMEOUT_MS = 60000;
+
+   // points per backend on the hash ring.  More points, more even
+   // split; 100 keeps the spread within a few percent.
+   private static final int VNODES = 100;
+
+   private static final int LATENCY_SAMPLES = 256;
+   private static final int MIN_SAMPLES = 20;
+   private static final int FAIL_LIMIT = 3;
+   private static final long DOWN_MS = 10000;
+
+   private static final AtomicLong requests = Vars.counter("pkeep_requests");
+   private static final AtomicLong replies = Vars.counter("pkeep_replies");
+   private static final AtomicLong timeouts = Vars.counter("pkeep_timeouts");
+   private static final AtomicLong errors = Vars.counter("pkeep_errors");
+   private static final AtomicLong collapsed =
+      Vars.counter("pkeep_collapsed");
+   private static final AtomicLong hedges = Vars.counter("pkeep_hedges");
+   private static final AtomicLong hedgeWins =
+      Vars.counter("pkeep_hedge_wins");
+   private static final AtomicLong markedDown =
+      Vars.counter("pkeep_backend_marked_down");
+   private static final AtomicLong lateReplies =
+      Vars.counter("pkeep_late_replies");
+   private static final AtomicLong latencyMs =
+      Vars.counter("pkeep_latency_ms_total");
+}
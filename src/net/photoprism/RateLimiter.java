@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Hashtable;
 import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -199,8 +201,28 @@ public class RateLimiter extends HttpFilter
          // store failures because successes aren't used for
          // anything, but this could change.
          chain.doFilter(req, res);
-         if (res.getStatus() >= 400) {
-            cp.requests.addLast(new LoggedRequest(now, res.getStatus()));
+         if (req.isAsyncStarted()) {
+            // the servlet went async (ImageREST waiting on pkeep), so
+            // the status isn't known yet.  Look at it when it is.
+            req.getAsyncContext().addListener(new AsyncListener() {
+                  public void onComplete(AsyncEvent ev) {
+                     record(cp, now, res.getStatus());
+                  }
+                  public void onTimeout(AsyncEvent ev) { }
+                  public void onError(AsyncEvent ev) { }
+                  public void onStartAsync(AsyncEvent ev) { }
+               });
+         } else {
+            record(cp, now, res.getStatus());
+         }
+      }
+   }
+
+   private void record(ClientProfile cp, long now, int status)
+   {
+      if (status >= 400) {
+         synchronized (cp) {
+            cp.requests.addLast(new LoggedRequest(now, status));
          }
       }
    }
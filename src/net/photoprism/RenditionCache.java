@@ -0,0 +1,277 @@
+package net.photoprism;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache of what pkeep told us about a rendition,
+ * so that the same thumbnail asked for a thousand times a minute only
+ * costs one UDP round trip.  The key is (imageid, size, rendering
+ * instructions), which means an edit that changes the instructions
+ * naturally misses, but EditREST also calls invalidate() so the stale
+ * entries don't hang around taking up space.
+ *
+ * The value is either the bytes of the rendered JPEG (for small
+ * renditions, which is most of the traffic) or the URL pkeep sent
+ * back, either file:// or something we should redirect to.
+ *
+ * Eviction is a segmented LRU weighted by bytes: new entries land in
+ * a "probation" segment, and only get promoted to the "protected"
+ * segment if they are hit again while still on probation.  So a
+ * crawler walking through every image once can only churn the
+ * probation segment, and the browse-page thumbnails that get hit over
+ * and over stay put.  When protected outgrows its share, its oldest
+ * entries are demoted back to probation rather than dropped.
+ *
+ * @version 20261018
+ */
+
+public class RenditionCache
+{
+   /**
+    * @param maxBytes approximate memory budget for all entries
+    * @param maxItemBytes largest rendition whose bytes we will hold;
+    * anything bigger is cached by URL only
+    */
+
+   public RenditionCache(long maxBytes, int maxItemBytes)
+   {
+      this("rendition_cache", maxBytes, maxItemBytes);
+   }
+
+   /**
+    * @param name prefix for this cache's counters in Vars
+    */
+
+   public RenditionCache(String name, long maxBytes, int maxItemBytes)
+   {
+      this.maxBytes = maxBytes;
+      this.maxItemBytes = maxItemBytes;
+      this.protectedMax = maxBytes * PROTECTED_PERCENT / 100;
+      this.probation = new LinkedHashMap<Key, Rendition>(256, 0.75f, true);
+      this.protect = new LinkedHashMap<Key, Rendition>(256, 0.75f, true);
+      this.hits = Vars.counter(name + "_hits");
+      this.misses = Vars.counter(name + "_misses");
+      this.evictions = Vars.counter(name + "_evictions");
+      this.invalidations = Vars.counter(name + "_invalidations");
+      Vars.gauge(name + "_bytes", () -> this.usedBytes());
+      Vars.gauge(name + "_entries", () -> this.size());
+   }
+
+   public static class Key
+   {
+      public final int id;
+      public final int size;
+      public final String inst;
+      private final int hash;
+
+      public Key(int id, int size, String inst)
+      {
+         this.id = id;
+         this.size = size;
+         this.inst = (inst == null) ? "" : inst;
+         this.hash = (id * 31 + size) * 31 + this.inst.hashCode();
+      }
+
+      public int hashCode() { return this.hash; }
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key)) return false;
+         Key k = (Key)o;
+         return k.id == this.id && k.size == this.size &&
+            k.hash == this.hash && k.inst.equals(this.inst);
+      }
+
+      public String toString()
+      {
+         return this.id + "/" + this.size + "/" +
+            Integer.toHexString(this.inst.hashCode());
+      }
+   }
+
+   /**
+    * exactly one of url or bytes is set.
+    */
+
+   public static class Rendition
+   {
+      public final String url;
+      public final byte[] bytes;
+
+      public Rendition(String url)
+      {
+         this.url = url;
+         this.bytes = null;
+      }
+
+      public Rendition(byte[] bytes)
+      {
+         this.url = null;
+         this.bytes = bytes;
+      }
+
+      // a rough guess at what the entry costs us, including the key
+      // and the linked hash map node.
+      long weight(Key k)
+      {
+         long w = 96 + 2 * k.inst.length();
+         if (this.bytes != null) w += this.bytes.length;
+         if (this.url != null) w += 2 * this.url.length();
+         return w;
+      }
+   }
+
+   /**
+    * @return the cached Rendition, or null (and a miss is counted)
+    */
+
+   public synchronized Rendition get(Key k)
+   {
+      Rendition r = this.protect.get(k);
+      if (r != null) {
+         hits.incrementAndGet();
+         return r;
+      }
+      r = this.probation.remove(k);
+      if (r == null) {
+         misses.incrementAndGet();
+         return null;
+      }
+      // second hit: promote, then push protected back down to size
+      long w = r.weight(k);
+      this.probationBytes -= w;
+      this.protect.put(k, r);
+      this.protectedBytes += w;
+      Iterator<Map.Entry<Key, Rendition>> it =
+         this.protect.entrySet().iterator();
+      while (this.protectedBytes > this.protectedMax && it.hasNext()) {
+         Map.Entry<Key, Rendition> e = it.next();
+         if (e.getKey() == k) break;
+         long ew = e.getValue().weight(e.getKey());
+         it.remove();
+         this.protectedBytes -= ew;
+         this.probation.put(e.getKey(), e.getValue());
+         this.probationBytes += ew;
+      }
+      hits.incrementAndGet();
+      return r;
+   }
+
+   public synchronized void put(Key k, Rendition r)
+   {
+      remove(k);
+      long w = r.weight(k);
+      if (w > this.maxBytes) return;
+      this.probation.put(k, r);
+      this.probationBytes += w;
+      evict();
+   }
+
+   /**
+    * @return whether a rendition of this many bytes should be held
+    * as bytes rather than as a URL.
+    */
+
+   public boolean wantsBytes(long length)
+   {
+      return length <= this.maxItemBytes;
+   }
+
+   /**
+    * drop a single entry, for example because the file:// URL it
+    * pointed to has disappeared out of pkeep's cache.
+    */
+
+   public synchronized void remove(Key k)
+   {
+      Rendition r = this.probation.remove(k);
+      if (r != null) this.probationBytes -= r.weight(k);
+      r = this.protect.remove(k);
+      if (r != null) this.protectedBytes -= r.weight(k);
+   }
+
+   /**
+    * drop every rendition of one image, at every size.  This is a
+    * walk over the whole cache, which is fine because it only
+    * happens when somebody saves an edit.
+    */
+
+   public synchronized void invalidate(int imgID)
+   {
+      this.probationBytes -= removeId(this.probation, imgID);
+      this.protectedBytes -= removeId(this.protect, imgID);
+   }
+
+   private long removeId(LinkedHashMap<Key, Rendition> m, int imgID)
+   {
+      long freed = 0;
+      Iterator<Map.Entry<Key, Rendition>> it = m.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<Key, Rendition> e = it.next();
+         if (e.getKey().id == imgID) {
+            freed += e.getValue().weight(e.getKey());
+            it.remove();
+            invalidations.incrementAndGet();
+         }
+      }
+      return freed;
+   }
+
+   // evict from the cold end of probation first; only if probation
+   // is empty do we start eating the protected segment.
+   private void evict()
+   {
+      while (this.probationBytes + this.protectedBytes > this.maxBytes) {
+         LinkedHashMap<Key, Rendition> victims =
+            this.probation.isEmpty() ? this.protect : this.probation;
+         Iterator<Map.Entry<Key, Rendition>> it =
+            victims.entrySet().iterator();
+         if (!it.hasNext()) break;
+         Map.Entry<Key, Rendition> e = it.next();
+         long w = e.getValue().weight(e.getKey());
+         it.remove();
+         if (victims == this.probation) {
+            this.probationBytes -= w;
+         } else {
+            this.protectedBytes -= w;
+         }
+         evictions.incrementAndGet();
+      }
+   }
+
+   public synchronized long usedBytes()
+   {
+      return this.probationBytes + this.protectedBytes;
+   }
+
+   public synchronized int size()
+   {
+      return this.probation.size() + this.protect.size();
+   }
+
+   public String toString()
+   {
+      return "RenditionCache(" + size() + " entries, " + usedBytes() +
+         "/" + this.maxBytes + " bytes, hits=" + hits.get() +
+         " misses=" + misses.get() + " evictions=" + evictions.get() + ")";
+   }
+
+   private final long maxBytes;
+   private final long protectedMax;
+   private final int maxItemBytes;
+   private final LinkedHashMap<Key, Rendition> probation;
+   private final LinkedHashMap<Key, Rendition> protect;
+   private long probationBytes = 0;
+   private long protectedBytes = 0;
+
+   // 80/20 is the split the SLRU papers tend to recommend
+   private static final int PROTECTED_PERCENT = 80;
+
+   private final AtomicLong hits;
+   private final AtomicLong misses;
+   private final AtomicLong evictions;
+   private final AtomicLong invalidations;
+}
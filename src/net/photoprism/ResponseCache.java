@@ -0,0 +1,284 @@
+package net.photoprism;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Whole responses, kept gzipped, for pages that come out the same for
+ * everyone with the same tag levels: the browse landing pages and the
+ * tag list.  Everyone who redeemed the same referral code, say, gets
+ * the page computed once.
+ *
+ * The key is the caller's permission fingerprint (see
+ * TokenUtils.Perms.fingerprint()), the servlet, and the request
+ * parameters in sorted order.  An entry is good for as long as
+ * DataVersion hasn't moved since it was made, and for at most
+ * maxAgeMs, for writes DataVersion can't see.
+ *
+ * Each response carries a weak ETag made of the data version, which
+ * maxAgeMs period it is, and a hash of the key.  A client that sends
+ * it back in If-None-Match gets a 304 without anything being looked
+ * up or computed, until the next write anywhere.
+ *
+ * Off (maxEntries 0) until setLimits() is called; then serve() never
+ * answers and send() just sends.
+ *
+ * @version 20261018
+ */
+
+public class ResponseCache
+{
+   private static class Entry
+   {
+      final byte[] gzip;
+      final String etag;
+      final String type;
+      final long version;
+      final long at;
+
+      Entry(byte[] gzip, String etag, String type, long version)
+      {
+         this.gzip = gzip;
+         this.etag = etag;
+         this.type = type;
+         this.version = version;
+         this.at = System.currentTimeMillis();
+      }
+
+      int bytes()
+      {
+         return 96 + this.gzip.length;
+      }
+   }
+
+   /**
+    * @param maxEntries most responses to keep; 0 turns the cache off
+    * @param maxBytes most compressed bytes to keep
+    * @param maxAgeMs longest to keep one
+    */
+
+   public static void setLimits(int maxEntries, long maxBytes, long maxAgeMs)
+   {
+      synchronized (cache) {
+         ResponseCache.maxEntries = maxEntries;
+         ResponseCache.maxBytes = maxBytes;
+         ResponseCache.maxAgeMs = maxAgeMs;
+         cache.clear();
+         bytes = 0;
+      }
+   }
+
+   /**
+    * @param fingerprint the caller's Perms.fingerprint()
+    * @return the cache key for this request
+    */
+
+   public static String key(String fingerprint, HttpServletRequest req)
+   {
+      StringBuilder sb = new StringBuilder(fingerprint);
+      sb.append(' ').append(req.getServletPath()).append('?');
+      TreeMap<String, String[]> params =
+         new TreeMap<String, String[]>(req.getParameterMap());
+      for (Map.Entry<String, String[]> e : params.entrySet()) {
+         for (String v : e.getValue()) {
+            sb.append(URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8))
+               .append('=')
+               .append(URLEncoder.encode(v, StandardCharsets.UTF_8))
+               .append('&');
+         }
+      }
+      return sb.toString();
+   }
+
+   /**
+    * answers the request if it can: 304 if the client's copy is still
+    * current, or the cached body if there is one.
+    *
+    * @return true if the response has been sent
+    */
+
+   public static boolean serve
+   (HttpServletRequest req, HttpServletResponse res, String key)
+   throws IOException
+   {
+      if (maxEntries <= 0) return false;
+      long version = DataVersion.get();
+      String etag = etag(key, version);
+      if (matches(req.getHeader("If-None-Match"), etag)) {
+         notModified.incrementAndGet();
+         res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         headers(res, etag);
+         return true;
+      }
+
+      Entry e;
+      synchronized (cache) {
+         e = cache.get(key);
+         if (e != null && (e.version != version ||
+                           System.currentTimeMillis() - e.at > maxAgeMs)) {
+            cache.remove(key);
+            bytes -= e.bytes();
+            e = null;
+         }
+      }
+      if (e == null) {
+         misses.incrementAndGet();
+         return false;
+      }
+      hits.incrementAndGet();
+      write(req, res, e);
+      return true;
+   }
+
+   /**
+    * sends body, and keeps it if nothing has been written since
+    * DataVersion said version, which the caller must get before it
+    * starts working out body.
+    */
+
+   public static void send
+   (HttpServletRequest req, HttpServletResponse res, String key,
+    long version, String body, String contentType)
+   throws IOException
+   {
+      if (maxEntries <= 0) {
+         byte[] b = body.getBytes(StandardCharsets.UTF_8);
+         res.setStatus(HttpServletResponse.SC_OK);
+         res.setContentType(contentType + ";charset=UTF-8");
+         res.setContentLength(b.length);
+         res.getOutputStream().write(b);
+         res.getOutputStream().close();
+         return;
+      }
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      try (GZIPOutputStream gz = new GZIPOutputStream(buf)) {
+         gz.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+      Entry e = new Entry(buf.toByteArray(), etag(key, version),
+                          contentType, version);
+      synchronized (cache) {
+         if (version == DataVersion.get() && e.bytes() <= maxBytes) {
+            Entry old = cache.put(key, e);
+            if (old != null) bytes -= old.bytes();
+            bytes += e.bytes();
+            // removeEldestEntry only ever takes one
+            Iterator<Entry> it = cache.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+               bytes -= it.next().bytes();
+               it.remove();
+            }
+         }
+      }
+      write(req, res, e);
+   }
+
+   private static void write
+   (HttpServletRequest req, HttpServletResponse res, Entry e)
+   throws IOException
+   {
+      res.setStatus(HttpServletResponse.SC_OK);
+      res.setContentType(e.type + ";charset=UTF-8");
+      headers(res, e.etag);
+      String accept = req.getHeader("Accept-Encoding");
+      OutputStream out = res.getOutputStream();
+      if (accept != null && accept.contains("gzip")) {
+         res.setHeader("Content-Encoding", "gzip");
+         res.setContentLength(e.gzip.length);
+         out.write(e.gzip);
+      } else {
+         try (InputStream in =
+              new GZIPInputStream(new ByteArrayInputStream(e.gzip))) {
+            in.transferTo(out);
+         }
+      }
+      out.close();
+   }
+
+   private static void headers(HttpServletResponse res, String etag)
+   {
+      res.setHeader("ETag", etag);
+      // the same URL is a different page with a different cookie, and
+      // the browser has to ask every time, but may get a 304
+      res.setHeader("Vary", "Cookie, Accept-Encoding");
+      res.setHeader("Cache-Control", "private, no-cache");
+   }
+
+   // the time part makes 304s run out too, for the writes that
+   // DataVersion doesn't see
+   private static String etag(String key, long version)
+   {
+      long age = System.currentTimeMillis() / Math.max(1, maxAgeMs);
+      return "W/\"" + version + "." + age + "-" +
+         hash(key).substring(0, 16) + "\"";
+   }
+
+   private static boolean matches(String ifNoneMatch, String etag)
+   {
+      if (ifNoneMatch == null) return false;
+      for (String s : ifNoneMatch.split(",")) {
+         if (s.trim().equals(etag)) return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return SHA-256 of s, base64url
+    */
+
+   public static String hash(String s)
+   {
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         return Base64.getUrlEncoder().withoutPadding().encodeToString
+            (md.digest(s.getBytes(StandardCharsets.UTF_8)));
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);  // every JVM has SHA-256
+      }
+   }
+
+   // guards everything below
+   private static final Map<String, Entry> cache =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+            if (size() <= maxEntries) return false;
+            bytes -= e.getValue().bytes();
+            return true;
+         }
+      };
+   private static int maxEntries = 0;
+   private static long maxBytes = 0;
+   private static long maxAgeMs = 0;
+   private static long bytes = 0;
+
+   private static final AtomicLong hits = Vars.counter("response_cache_hits");
+   private static final AtomicLong misses =
+      Vars.counter("response_cache_misses");
+   private static final AtomicLong notModified =
+      Vars.counter("response_cache_not_modified");
+
+   static {
+      Vars.gauge("response_cache_size", () -> {
+            synchronized (cache) { return cache.size(); }
+         });
+      Vars.gauge("response_cache_bytes", () -> {
+            synchronized (cache) { return bytes; }
+         });
+   }
+}
@@ -0,0 +1,175 @@
+package net.photoprism;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The part of a search that says which images, as a WHERE fragment
+ * with ? placeholders and the values that go in them, in order.
+ *
+ * Searches used to be written out as SQL with the value in it
+ * ("date(ts)='2004-07-01'", "s.subject=12"), so every date and every
+ * person was its own statement to StatementCache and its own parse
+ * and plan to postgres, and anything from a request had to be escaped
+ * by hand first.  Here the SQL text only depends on which kinds of
+ * filter there are, so a search for any person is the same statement
+ * as a search for any other person, and gets prepared once.
+ *
+ * The fragments are written against image i alone.  People and tags
+ * are EXISTS subqueries rather than joins, so a search has one row
+ * per image to start with and postgres can walk an index on image in
+ * (ts, imageid) order and stop at a page's worth, without grouping
+ * every match first.  Filters are immutable; and() makes a new one.
+ *
+ * @version 20261018
+ */
+
+public class SearchFilter
+{
+   private final String sql;
+   private final Object[] args;
+
+   /** every image (that the tags allow) */
+   public static final SearchFilter ALL = new SearchFilter("true");
+
+   /** the images marked new */
+   public static final SearchFilter NEW = new SearchFilter("i.newimage");
+
+   /**
+    * @param sql a WHERE fragment, with a ? for each of args
+    * @param args Integer, String, Date, or a List of Integers for an
+    * INTEGER array
+    */
+
+   SearchFilter(String sql, Object... args)
+   {
+      this.sql = sql;
+      this.args = args;
+   }
+
+   /** the images taken on day */
+   public static SearchFilter day(LocalDate day)
+   {
+      return days(day, day);
+   }
+
+   /** the images taken on any day from first to last, inclusive */
+   public static SearchFilter days(LocalDate first, LocalDate last)
+   {
+      // a range on ts rather than date(ts) = ?, so it can use an
+      // index on ts, and so that one day is the same statement too
+      return new SearchFilter("i.ts >= ? AND i.ts < ?",
+                              Date.valueOf(first),
+                              Date.valueOf(last.plusDays(1)));
+   }
+
+   /** the images taken in month */
+   public static SearchFilter month(YearMonth month)
+   {
+      return days(month.atDay(1), month.atEndOfMonth());
+   }
+
+   /** the images person is in */
+   public static SearchFilter person(int person)
+   {
+      return new SearchFilter
+         ("EXISTS (SELECT 1 FROM imagesubject s " +
+          "WHERE s.image = i.imageid AND s.subject = ?)", person);
+   }
+
+   /** the images at location (not the places inside it) */
+   public static SearchFilter location(int location)
+   {
+      return new SearchFilter("i.location = ?", location);
+   }
+
+   /** the images with tag */
+   public static SearchFilter tag(int tag)
+   {
+      return new SearchFilter
+         ("EXISTS (SELECT 1 FROM imagetag t " +
+          "WHERE t.image = i.imageid AND t.tag = ?)", tag);
+   }
+
+   /** the images with the tag called name */
+   public static SearchFilter tag(String name)
+   {
+      return new SearchFilter
+         ("EXISTS (SELECT 1 FROM imagetag t INNER JOIN tag ON t.tag = tag.id " +
+          "WHERE t.image = i.imageid AND tag.tag = ?)", name);
+   }
+
+   /**
+    * @return the images that match both this and f
+    */
+
+   public SearchFilter and(SearchFilter f)
+   {
+      if (this == ALL) return f;
+      if (f == ALL) return this;
+      Object[] both = Arrays.copyOf(this.args,
+                                    this.args.length + f.args.length);
+      System.arraycopy(f.args, 0, both, this.args.length, f.args.length);
+      return new SearchFilter("(" + this.sql + ") AND (" + f.sql + ")",
+                              both);
+   }
+
+   /**
+    * @return the WHERE fragment.  It only depends on which factory
+    * methods (and and()s) made this filter, never on their arguments.
+    */
+
+   public String sql()
+   {
+      return this.sql;
+   }
+
+   /**
+    * sets this filter's parameters on st, starting at first
+    *
+    * @return the index of the next parameter after them
+    */
+
+   public int bind(PreparedStatement st, int first) throws SQLException
+   {
+      int i = first;
+      for (Object a : this.args) {
+         if (a instanceof Integer) {
+            st.setInt(i, (Integer)a);
+         } else if (a instanceof String) {
+            st.setString(i, (String)a);
+         } else if (a instanceof Date) {
+            st.setDate(i, (Date)a);
+         } else if (a instanceof List) {
+            st.setArray(i, st.getConnection()
+                        .createArrayOf("INTEGER", ((List<?>)a).toArray()));
+         } else {
+            throw new SQLException("can't bind a " + a.getClass());
+         }
+         i++;
+      }
+      return i;
+   }
+
+   /**
+    * @return this filter inside more SQL, before + sql() + after,
+    * where before has a ? for each of args
+    */
+
+   SearchFilter inside(String before, String after, Object... args)
+   {
+      Object[] all = Arrays.copyOf(args, args.length + this.args.length);
+      System.arraycopy(this.args, 0, all, args.length, this.args.length);
+      return new SearchFilter(before + this.sql + after, all);
+   }
+
+   public String toString()
+   {
+      return this.sql + " " + Arrays.asList(this.args);
+   }
+}
@@ -0,0 +1,1255 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Answers searchDb()'s questions out of memory.  For every tag,
+ * person, location and day there is an IdBitmap of the imageids that
+ * have it.  A search ORs together the bitmaps of the tags the viewer
+ * can see, ANDs that with the bitmap for what they asked for and with
+ * the not-deleted bitmap, and sorts what's left by timestamp, which
+ * is kept in an array.  No joins, and no trip to the database.
+ * It also keeps the BrowseAggregates behind browse(), for the recent,
+ * month and person pages.
+ *
+ * Like ImageTagIndex, it is loaded in the background at startup and
+ * find() returns null until then, so callers fall back to SQL.  Code
+ * in this JVM that changes an image's tags, people, location, date,
+ * or deleted/new flags calls reload() for it afterwards: TagREST,
+ * EditREST and UploadREST.  Changes by anything else are not seen
+ * until restart.
+ *
+ * @version 20261018
+ */
+
+public class SearchIndex
+{
+   /** kinds of search for find() */
+   public static final int ALL = 0;
+   public static final int TAG = 1;
+   public static final int PERSON = 2;
+   public static final int LOCATION = 3;
+   public static final int DAY = 4;
+   public static final int NEW = 5;
+
+   /**
+    * start loading in the background, if nobody has yet.
+    */
+
+   public static void startLoad(ImageTagIndex.ConnectionSource src)
+   {
+      synchronized (SearchIndex.class) {
+         if (loading || loaded) return;
+         loading = true;
+      }
+      Thread t = new Thread(() -> load(src), "search-index-loader");
+      t.setDaemon(true);
+      t.start();
+      synchronized (SearchIndex.class) { loader = t; }
+   }
+
+   /**
+    * interrupt the loader, if it's still going, so that the webapp
+    * can shut down without it.
+    *
+    * @return the thread to wait for, or null if there never was one
+    */
+
+   public static synchronized Thread stopLoad()
+   {
+      if (loader != null) loader.interrupt();
+      return loader;
+   }
+
+   public static boolean loaded()
+   {
+      return loaded;
+   }
+
+   /**
+    * the imageids the viewer can see that match, in timestamp order,
+    * or null if the index isn't loaded yet.
+    *
+    * @param viewTags tags the viewer can see
+    * @param kind ALL, TAG, PERSON, LOCATION, DAY or NEW
+    * @param lo the tag/person/location id, or first day
+    * @param hi last day for DAY (inclusive); otherwise ignored
+    */
+
+   public static List<Integer> find
+   (List<Integer> viewTags, int kind, int lo, int hi)
+   {
+      if (!loaded) return null;
+      long start = System.nanoTime();
+      int[] ids;
+      lock.readLock().lock();
+      try {
+         ids = matches(viewTags, kind, lo, hi);
+      } finally {
+         lock.readLock().unlock();
+      }
+      ArrayList<Integer> ret = new ArrayList<Integer>(ids.length);
+      for (int id : ids) ret.add(id);
+      searches.incrementAndGet();
+      searchUs.addAndGet((System.nanoTime() - start) / 1000);
+      return ret;
+   }
+
+   /**
+    * one page of what find() would return
+    */
+
+   public static class Page
+   {
+      public final List<Integer> ids;
+      /** whether there's another page after this one */
+      public final boolean more;
+      /** how many there are on all the pages together */
+      public final long total;
+      /** whether total is a guess */
+      public final boolean estimate;
+
+      public Page(List<Integer> ids, boolean more, long total,
+                  boolean estimate)
+      {
+         this.ids = ids;
+         this.more = more;
+         this.total = total;
+         this.estimate = estimate;
+      }
+   }
+
+   /**
+    * the first <code>limit</code> of what find() would return that
+    * come after image <code>after</code> in (ts, imageid) order, or
+    * null if the index isn't loaded yet.  after is 0 for the first
+    * page.  The image doesn't have to be in the results any more.
+    */
+
+   public static Page findPage
+   (List<Integer> viewTags, int kind, int lo, int hi, int after, int limit)
+   {
+      if (!loaded) return null;
+      long start = System.nanoTime();
+      Page p;
+      lock.readLock().lock();
+      try {
+         p = page(matches(viewTags, kind, lo, hi), after, limit);
+      } finally {
+         lock.readLock().unlock();
+      }
+      searches.incrementAndGet();
+      searchUs.addAndGet((System.nanoTime() - start) / 1000);
+      return p;
+   }
+
+   // the page of ids, which are in (ts, imageid) order, that starts
+   // after image after.  Read lock held.
+   private static Page page(int[] ids, int after, int limit)
+   {
+      int from = 0;
+      if (after > 0) {
+         // first position whose (ts, id) is past after's
+         int a = 0;
+         int b = ids.length;
+         while (a < b) {
+            int m = (a + b) >>> 1;
+            if (!before(after, ids[m])) a = m + 1;
+            else b = m;
+         }
+         from = a;
+      }
+      int to = (int)Math.min(ids.length, (long)from + limit);
+      ArrayList<Integer> ret = new ArrayList<Integer>(to - from);
+      for (int i = from; i < to; i++) ret.add(ids[i]);
+      return new Page(ret, to < ids.length, ids.length, false);
+   }
+
+   /**
+    * a search on several things at once, for facets().  Within
+    * location, camera and date an image has to match any of what's
+    * asked for, since it only has one of each; it has to have all of
+    * the people and tags.
+    */
+
+   public static class FacetQuery
+   {
+      /** first and last day (inclusive), or MIN/MAX_VALUE */
+      public int firstDay = Integer.MIN_VALUE;
+      public int lastDay = Integer.MAX_VALUE;
+      /** people who must all be in it */
+      public int[] people = new int[0];
+      /** tags it must all have; only visible ones can match */
+      public int[] tags = new int[0];
+      /** locations it can be at, subtrees already expanded, or null */
+      public int[] locations = null;
+      /** cameras it can be from, or null */
+      public String[] cameras = null;
+      /** only new images */
+      public boolean fresh = false;
+   }
+
+   /**
+    * what facets() found: a page of matches, and for each dimension,
+    * how many images each choice there would give.  For location,
+    * camera, year and new that's counted as if nothing had been asked
+    * for in that dimension (but everything else had), so the other
+    * choices still show up; for people and tags it's counted among
+    * the matches, since asking for another one narrows the search.
+    */
+
+   public static class Facets
+   {
+      public final Page page;
+      /** { year, count }, by year */
+      public final int[][] years;
+      /** { person, count }, most first */
+      public final int[][] people;
+      /** { tag, count }, most first */
+      public final int[][] tags;
+      /** count by location id, each image at its own location only */
+      public final int[] locations;
+      /** count by camera, "" for none, most first */
+      public final Map<String, Integer> cameras;
+      /** how many are new */
+      public final int fresh;
+
+      Facets(Page page, int[][] years, int[][] people, int[][] tags,
+             int[] locations, Map<String, Integer> cameras, int fresh)
+      {
+         this.page = page;
+         this.years = years;
+         this.people = people;
+         this.tags = tags;
+         this.locations = locations;
+         this.cameras = cameras;
+         this.fresh = fresh;
+      }
+   }
+
+   /**
+    * runs q for a viewer, and counts the facets, or returns null if
+    * the index isn't loaded yet.
+    *
+    * The people and tags are ANDed as bitmaps first.  Then one pass
+    * over what's left checks each image's day, location, camera and
+    * new flag against the columns: an image that passes all four is
+    * a match and counts in every dimension, its people included, and
+    * one that fails just one counts in that one's facet only.  The
+    * tag facet is then the size of each visible tag's bitmap ANDed
+    * with the matches, and the page is the first limit matches in
+    * time order, picked out without sorting the rest.
+    *
+    * @param after imageid the page starts after, or 0
+    */
+
+   public static Facets facets
+   (List<Integer> viewTags, FacetQuery q, int after, int limit)
+   {
+      if (!loaded) return null;
+      long start = System.nanoTime();
+      Facets f;
+      lock.readLock().lock();
+      try {
+         f = facetsLocked(viewTags, q, after, limit);
+      } finally {
+         lock.readLock().unlock();
+      }
+      facetSearches.incrementAndGet();
+      facetUs.addAndGet((System.nanoTime() - start) / 1000);
+      return f;
+   }
+
+   private static Facets facetsLocked
+   (List<Integer> viewTags, FacetQuery q, int after, int limit)
+   {
+      IdBitmap c = visible(viewTags);
+      for (int p : q.people) c = andOrEmpty(c, byPerson.get(p));
+      for (int t : q.tags) {
+         c = andOrEmpty(c, viewTags.contains(t) ? byTag.get(t) : null);
+      }
+      int[] ids = c.toArray();
+      int[] fr = IdBitmap.and(c, fresh).toArray();
+
+      boolean[] locIn = null;
+      if (q.locations != null) {
+         locIn = new boolean[locMax + 1];
+         for (int l : q.locations) {
+            if (l >= 0 && l <= locMax) locIn[l] = true;
+         }
+      }
+      boolean[] camIn = null;
+      if (q.cameras != null) {
+         camIn = new boolean[cameraNames.size()];
+         for (String s : q.cameras) {
+            Integer k = cameraIds.get(s);
+            if (k != null) camIn[k] = true;
+         }
+      }
+
+      int[] years = new int[YEARS];
+      int[] locs = new int[locMax + 1];
+      int[] cams = new int[cameraNames.size()];
+      int[] ppl = new int[personMax + 1];
+      int nfresh = 0;
+      int[] match = new int[ids.length];
+      int m = 0;
+      int fi = 0;
+      for (int img : ids) {
+         while (fi < fr.length && fr[fi] < img) fi++;
+         boolean isNew = fi < fr.length && fr[fi] == img;
+         int d = day[img];
+         int l = loc[img];
+         boolean okDay = d >= q.firstDay && d <= q.lastDay;
+         boolean okLoc = locIn == null || locIn[l];
+         boolean okCam = camIn == null || camIn[cam[img]];
+         boolean okNew = !q.fresh || isNew;
+         int fails = (okDay ? 0 : 1) + (okLoc ? 0 : 1) + (okCam ? 0 : 1) +
+            (okNew ? 0 : 1);
+         if (fails > 1) continue;
+         if (fails == 0) {
+            match[m++] = img;
+            if (persons[img] != null) {
+               for (int p : persons[img]) ppl[p]++;
+            }
+         }
+         // with at most one failing, "all the others pass" is just
+         // "this one's the one failing, or none is"
+         if (okLoc && okCam && okNew && d != NO_DAY) {
+            int y = BrowseAggregates.year(d) - YEAR0;
+            if (y >= 0 && y < YEARS) years[y]++;
+         }
+         if (okDay && okCam && okNew) locs[l]++;
+         if (okDay && okLoc && okNew) cams[cam[img]]++;
+         if (okDay && okLoc && okCam && isNew) nfresh++;
+      }
+
+      IdBitmap matched = IdBitmap.of(match, m);
+      ArrayList<int[]> people = new ArrayList<int[]>();
+      for (int p = 0; p < ppl.length; p++) {
+         if (ppl[p] > 0) people.add(new int[] { p, ppl[p] });
+      }
+      ArrayList<int[]> tags = new ArrayList<int[]>();
+      for (int t : new HashSet<Integer>(viewTags)) {
+         IdBitmap b = byTag.get(t);
+         int n = (b == null) ? 0 : IdBitmap.andCardinality(b, matched);
+         if (n > 0) tags.add(new int[] { t, n });
+      }
+      people.sort((a, b) -> (b[1] != a[1]) ? b[1] - a[1] : a[0] - b[0]);
+      tags.sort((a, b) -> (b[1] != a[1]) ? b[1] - a[1] : a[0] - b[0]);
+
+      ArrayList<int[]> byYear = new ArrayList<int[]>();
+      for (int y = 0; y < YEARS; y++) {
+         if (years[y] > 0) byYear.add(new int[] { YEAR0 + y, years[y] });
+      }
+      ArrayList<Integer> camOrder = new ArrayList<Integer>();
+      for (int k = 0; k < cams.length; k++) {
+         if (cams[k] > 0) camOrder.add(k);
+      }
+      camOrder.sort((a, b) -> cams[b] - cams[a]);
+      LinkedHashMap<String, Integer> camCounts =
+         new LinkedHashMap<String, Integer>();
+      for (int k : camOrder) camCounts.put(cameraNames.get(k), cams[k]);
+
+      return new Facets(firstPage(match, m, after, limit),
+                        byYear.toArray(new int[0][]),
+                        people.toArray(new int[0][]),
+                        tags.toArray(new int[0][]), locs, camCounts, nfresh);
+   }
+
+   /**
+    * what page() would give for the first n of ids once sorted by
+    * time, without sorting them: the keys past after's go through a
+    * heap that only keeps the limit smallest.  ids are in ascending
+    * order.  Read lock held.
+    */
+
+   private static Page firstPage(int[] ids, int n, int after, int limit)
+   {
+      if ((n > 0 && ids[n - 1] >= (1 << ID_BITS)) || after >= (1 << ID_BITS)) {
+         int[] sorted = Arrays.copyOf(ids, n);
+         sortByTime(sorted);
+         return page(sorted, after, limit);
+      }
+      // the keys only have whole seconds, so past after's second is
+      // checked with before()
+      long from = Long.MIN_VALUE;
+      long fromSec = Long.MIN_VALUE;
+      if (after > 0) {
+         fromSec = (after < time.length) ? time[after] : NO_TS;
+         from = ((fromSec + TIME_OFFSET) << ID_BITS) | after;
+      }
+      // a max-heap, so the biggest of the ones kept is at the top
+      long[] heap = new long[limit];
+      int size = 0;
+      int past = 0;
+      for (int i = 0; i < n; i++) {
+         long k = ((time[ids[i]] + TIME_OFFSET) << ID_BITS) | ids[i];
+         boolean next = (subSeconds && time[ids[i]] == fromSec)
+            ? before(after, ids[i]) : k > from;
+         if (!next) continue;
+         past++;
+         if (size < limit) {
+            int j = size++;
+            while (j > 0 && heap[(j - 1) / 2] < k) {
+               heap[j] = heap[(j - 1) / 2];
+               j = (j - 1) / 2;
+            }
+            heap[j] = k;
+         } else if (k < heap[0]) {
+            int j = 0;
+            while (true) {
+               int c = 2 * j + 1;
+               if (c >= size) break;
+               if (c + 1 < size && heap[c + 1] > heap[c]) c++;
+               if (heap[c] <= k) break;
+               heap[j] = heap[c];
+               j = c;
+            }
+            heap[j] = k;
+         }
+      }
+      int[] kept = new int[size];
+      for (int i = 0; i < size; i++) {
+         kept[i] = (int)(heap[i] & ((1L << ID_BITS) - 1));
+      }
+      if (subSeconds && size == limit) {
+         // the heap chose among images in its last second by id; the
+         // rest of that second may come before some of those
+         long last = time[kept[0]];
+         for (int i = 0; i < size; i++) last = Math.max(last, time[kept[i]]);
+         IdBitmap tie = new IdBitmap();
+         for (int i = 0; i < n; i++) {
+            if (time[ids[i]] == last && (after <= 0 || before(after, ids[i]))) {
+               tie.add(ids[i]);
+            }
+         }
+         for (int img : kept) if (time[img] != last) tie.add(img);
+         kept = tie.toArray();
+      }
+      sortByTime(kept);
+      ArrayList<Integer> ret = new ArrayList<Integer>(size);
+      for (int i = 0; i < size; i++) ret.add(kept[i]);
+      return new Page(ret, past > size, n, false);
+   }
+
+   private static IdBitmap andOrEmpty(IdBitmap a, IdBitmap b)
+   {
+      return (b == null) ? new IdBitmap() : IdBitmap.and(a, b);
+   }
+
+   // the sorted imageids for find().  Read lock held.
+   private static int[] matches
+   (List<Integer> viewTags, int kind, int lo, int hi)
+   {
+      IdBitmap match;
+      switch (kind) {
+      case TAG:
+         // in SQL, the tag has to be one of the visible ones too
+         match = viewTags.contains(lo) ? byTag.get(lo) : null;
+         break;
+      case PERSON:
+         match = byPerson.get(lo);
+         break;
+      case LOCATION:
+         match = byLocation.get(lo);
+         break;
+      case DAY:
+         ArrayList<IdBitmap> days = new ArrayList<IdBitmap>();
+         for (int d = lo; d <= hi; d++) days.add(byDay.get(d));
+         match = IdBitmap.or(days);
+         break;
+      case NEW:
+         match = fresh;
+         break;
+      default:
+         match = live;
+      }
+      if (match == null) return new int[0];
+      int[] ids = IdBitmap.and(visible(viewTags), match).toArray();
+      sortByTime(ids);
+      return ids;
+   }
+
+   /**
+    * the groups for a browse landing page, or null if the index isn't
+    * loaded yet.
+    *
+    * @param kind BrowseAggregates.DAY (the latest n), MONTH or PERSON
+    */
+
+   public static List<BrowseAggregates.Group> browse
+   (List<Integer> viewTags, int kind, int n)
+   {
+      if (!loaded) return null;
+      long start = System.nanoTime();
+      List<Integer> key = new ArrayList<Integer>(viewTags);
+      key.sort(null);
+      key.add(0, kind);
+      key.add(1, n);
+      List<BrowseAggregates.Group> ret;
+      // merging can fill in a lowest imageid that a delete took away;
+      // readers racing to do that all write the same answer
+      lock.readLock().lock();
+      try {
+         synchronized (browseCache) { ret = browseCache.get(key); }
+         if (ret != null) {
+            browseHits.incrementAndGet();
+            return ret;
+         }
+         switch (kind) {
+         case BrowseAggregates.DAY:
+            ret = agg.days(viewTags, n);
+            break;
+         case BrowseAggregates.MONTH:
+            ret = agg.months(viewTags);
+            break;
+         default:
+            ret = agg.people(viewTags);
+         }
+         ret = Collections.unmodifiableList(ret);
+         synchronized (browseCache) { browseCache.put(key, ret); }
+      } finally {
+         lock.readLock().unlock();
+      }
+      browses.incrementAndGet();
+      browseUs.addAndGet((System.nanoTime() - start) / 1000);
+      return ret;
+   }
+
+   /**
+    * @return { imageids, their locations } for every live image with
+    * any of these tags, or null if the index isn't loaded yet
+    */
+
+   public static int[][] visibleLocations(List<Integer> viewTags)
+   {
+      if (!loaded) return null;
+      lock.readLock().lock();
+      try {
+         int[] ids = visible(viewTags).toArray();
+         int[] locs = new int[ids.length];
+         for (int i = 0; i < ids.length; i++) locs[i] = loc[ids[i]];
+         return new int[][] { ids, locs };
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * @return the live images with any of these tags, or null if the
+    * index isn't loaded yet.  It's shared; don't change it.
+    */
+
+   public static IdBitmap visibleImages(List<Integer> viewTags)
+   {
+      if (!loaded) return null;
+      lock.readLock().lock();
+      try {
+         return visible(viewTags);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * the live images with any of these tags.  ORing forty-odd tag
+    * bitmaps costs more than the rest of a search put together, and
+    * there are only as many different sets of tags as there are kinds
+    * of visitor, so the answers are kept until something changes.
+    * Call with the read lock held.
+    */
+
+   private static IdBitmap visible(List<Integer> viewTags)
+   {
+      List<Integer> key = new ArrayList<Integer>(viewTags);
+      key.sort(null);
+      synchronized (visibleCache) {
+         IdBitmap v = visibleCache.get(key);
+         if (v != null) {
+            visibleHits.incrementAndGet();
+            return v;
+         }
+      }
+      ArrayList<IdBitmap> tags = new ArrayList<IdBitmap>();
+      for (int t : key) tags.add(byTag.get(t));
+      IdBitmap v = IdBitmap.and(IdBitmap.or(tags), live);
+      synchronized (visibleCache) {
+         visibleCache.put(key, v);
+      }
+      visibleMisses.incrementAndGet();
+      return v;
+   }
+
+   // something in the bitmaps changed.  Write lock held.
+   private static void changed()
+   {
+      visibleCache.clear();
+      browseCache.clear();
+   }
+
+   /**
+    * @return days since 1970-01-01 for a "2004-07-01" string, like
+    * date(ts) in postgres, or Integer.MIN_VALUE if it isn't one
+    */
+
+   public static int day(String s)
+   {
+      try { return (int)LocalDate.parse(s).toEpochDay(); }
+      catch (DateTimeParseException | NullPointerException e) {
+         return Integer.MIN_VALUE;
+      }
+   }
+
+   /**
+    * tell the index that img got (or lost) tag, for the paths that
+    * change nothing else about an image, like TagREST
+    */
+
+   public static void added(int img, int tag)
+   {
+      retag(img, tag, true);
+   }
+
+   public static void removed(int img, int tag)
+   {
+      retag(img, tag, false);
+   }
+
+   private static void retag(int img, int tag, boolean add)
+   {
+      if (deferred(img)) return;
+      reloading.lock();
+      lock.writeLock().lock();
+      try {
+         // an image we've never heard of has nothing to count yet;
+         // its reload() will do that
+         boolean counted = img < time.length;
+         int[] people = counted ? peopleOf(img) : null;
+         if (counted) agg.remove(img, day[img], people);
+         if (add) bitmap(byTag, tag).add(img);
+         else bitmap(byTag, tag).remove(img);
+         if (counted && live.contains(img)) {
+            agg.add(img, day[img], tagsOf(img), people);
+         }
+         changed();
+      } finally {
+         lock.writeLock().unlock();
+         reloading.unlock();
+      }
+   }
+
+   /**
+    * read everything about img from the database again and fix up the
+    * bitmaps.  Cheap enough for the edit paths, but not free: an
+    * image is taken out of every tag and person bitmap by brute force
+    * rather than remembering which ones it was in.
+    *
+    * <p>One reload (or added()/removed()) at a time, from the queries
+    * until the bitmaps are fixed up.  Otherwise a reload that read the
+    * rows before some change was committed could put them in after a
+    * reload that read them after it, and the index would keep the old
+    * rows until the image changed again.</p>
+    */
+
+   public static void reload(int img, Connection db) throws SQLException
+   {
+      reload(Arrays.asList(img), db);
+   }
+
+   public static void reload(Collection<Integer> imgs, Connection db)
+   throws SQLException
+   {
+      if (imgs.isEmpty()) return;
+      synchronized (SearchIndex.class) {
+         if (loading) {
+            pendingReloads.addAll(imgs);
+            return;
+         }
+      }
+      if (!loaded) return;
+
+      reloading.lock();
+      try {
+         reloadLocked(imgs, db);
+      } finally {
+         reloading.unlock();
+      }
+      reloads.addAndGet(imgs.size());
+   }
+
+   // reloading held
+   private static void reloadLocked(Collection<Integer> imgs, Connection db)
+   throws SQLException
+   {
+      java.sql.Array ary = db.createArrayOf("INTEGER", imgs.toArray());
+      Rows rows = new Rows();
+      PreparedStatement st = StatementCache.prepare
+         (db, "searchindex_image", SQL_IMAGE + " WHERE imageid = ANY(?);");
+      st.setArray(1, ary);
+      rows.images(st.executeQuery());
+      st = StatementCache.prepare
+         (db, "searchindex_tags", SQL_TAGS + " WHERE image = ANY(?);");
+      st.setArray(1, ary);
+      rows.pairs(st.executeQuery(), rows.tags);
+      st = StatementCache.prepare
+         (db, "searchindex_people", SQL_PEOPLE + " WHERE image = ANY(?);");
+      st.setArray(1, ary);
+      rows.pairs(st.executeQuery(), rows.people);
+
+      lock.writeLock().lock();
+      try {
+         for (int img : imgs) {
+            if (img < time.length) agg.remove(img, day[img], peopleOf(img));
+            for (IdBitmap b : byTag.values()) b.remove(img);
+            for (IdBitmap b : byPerson.values()) b.remove(img);
+            if (img < time.length) {
+               bitmap(byLocation, loc[img]).remove(img);
+               bitmap(byDay, day[img]).remove(img);
+            }
+            live.remove(img);
+            fresh.remove(img);
+            if (img < persons.length) persons[img] = null;
+         }
+         rows.apply();
+         for (int img : imgs) {
+            if (live.contains(img)) {
+               agg.add(img, day[img], tagsOf(img), peopleOf(img));
+            }
+         }
+         changed();
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * @return true if the index can't take img's change right now, in
+    * which case it remembers to reload img once it can.  (The load may
+    * or may not have seen the change.)
+    */
+
+   private static boolean deferred(int img)
+   {
+      synchronized (SearchIndex.class) {
+         if (loading) pendingReloads.add(img);
+         return !loaded;
+      }
+   }
+
+   /**
+    * what came back from the database for some images, before it is
+    * put into the bitmaps.  SearchIndexBench makes up its own.
+    */
+
+   static class Rows
+   {
+      ArrayList<long[]> images = new ArrayList<long[]>();
+      ArrayList<String> cameras = new ArrayList<String>();
+      ArrayList<int[]> tags = new ArrayList<int[]>();
+      ArrayList<int[]> people = new ArrayList<int[]>();
+
+      void images(ResultSet rs) throws SQLException
+      {
+         while (rs.next()) {
+            images.add(new long[] { rs.getInt(1), rs.getLong(2), rs.getInt(3),
+                                    rs.getInt(4), rs.getBoolean(5) ? 1 : 0,
+                                    rs.getBoolean(6) ? 1 : 0, rs.getInt(8) });
+            cameras.add(rs.getString(7));
+         }
+         rs.close();
+      }
+
+      void pairs(ResultSet rs, List<int[]> to) throws SQLException
+      {
+         while (rs.next()) to.add(new int[] { rs.getInt(1), rs.getInt(2) });
+         rs.close();
+      }
+
+      // call with the write lock held
+      void apply()
+      {
+         for (int i = 0; i < images.size(); i++) {
+            long[] r = images.get(i);
+            int img = (int)r[0];
+            grow(img);
+            time[img] = r[1];
+            usec[img] = (int)r[6];
+            if (usec[img] != 0) subSeconds = true;
+            day[img] = (int)r[2];
+            loc[img] = (int)r[3];
+            locMax = Math.max(locMax, loc[img]);
+            cam[img] = camera(cameras.get(i));
+            bitmap(byLocation, loc[img]).add(img);
+            bitmap(byDay, day[img]).add(img);
+            if (r[4] != 0) live.add(img);
+            if (r[5] != 0) fresh.add(img);
+         }
+         for (int[] p : tags) bitmap(byTag, p[1]).add(p[0]);
+         for (int[] p : people) addPerson(p[0], p[1]);
+      }
+   }
+
+   private static void load(ImageTagIndex.ConnectionSource src)
+   {
+      long start = System.currentTimeMillis();
+      try (Connection db = src.get()) {
+         db.setAutoCommit(false);
+         try {
+            lock.writeLock().lock();
+            try {
+               loadInto(db);
+               countAll();
+            } finally {
+               lock.writeLock().unlock();
+            }
+         } finally {
+            db.rollback();
+            db.setAutoCommit(true);
+         }
+         List<Integer> again;
+         synchronized (SearchIndex.class) {
+            loading = false;
+            loaded = true;
+            again = new ArrayList<Integer>(pendingReloads);
+            pendingReloads.clear();
+         }
+         loadMs = System.currentTimeMillis() - start;
+         reload(again, db);
+      } catch (SQLException e) {
+         loadErrors.incrementAndGet();
+         synchronized (SearchIndex.class) {
+            loading = false;
+            pendingReloads.clear();
+         }
+      }
+   }
+
+   /**
+    * load rows in place of the database, for SearchIndexBench
+    */
+
+   static void install(Rows rows)
+   {
+      lock.writeLock().lock();
+      try {
+         rows.apply();
+         countAll();
+         changed();
+      } finally {
+         lock.writeLock().unlock();
+      }
+      loaded = true;
+   }
+
+   // for SearchIndexBench's cold searches and browses
+   static void forgetVisible()
+   {
+      synchronized (visibleCache) { visibleCache.clear(); }
+   }
+
+   static void forgetBrowse()
+   {
+      synchronized (browseCache) { browseCache.clear(); }
+   }
+
+   // straight into the bitmaps, rather than through Rows, since
+   // there could be millions of them.  Write lock held.
+   private static void loadInto(Connection db) throws SQLException
+   {
+      try (PreparedStatement st = db.prepareStatement
+           (SQL_IMAGE + " ORDER BY imageid;")) {
+         st.setFetchSize(10000);
+         ResultSet rs = st.executeQuery();
+         while (rs.next()) {
+            ImageTagIndex.checkInterrupted();
+            int img = rs.getInt(1);
+            grow(img);
+            time[img] = rs.getLong(2);
+            usec[img] = rs.getInt(8);
+            if (usec[img] != 0) subSeconds = true;
+            day[img] = rs.getInt(3);
+            loc[img] = rs.getInt(4);
+            locMax = Math.max(locMax, loc[img]);
+            cam[img] = camera(rs.getString(7));
+            bitmap(byLocation, loc[img]).add(img);
+            bitmap(byDay, day[img]).add(img);
+            if (rs.getBoolean(5)) live.add(img);
+            if (rs.getBoolean(6)) fresh.add(img);
+         }
+         rs.close();
+      }
+      if (ImageTagIndex.awaitLoad()) {
+         // the same rows, already read once
+         for (int img = 0; img < time.length; img++) {
+            int[] t = ImageTagIndex.get(img);
+            if (t == null) continue;
+            for (int tag : t) bitmap(byTag, tag).add(img);
+         }
+      } else {
+         try (PreparedStatement st = db.prepareStatement
+              (SQL_TAGS + " ORDER BY image;")) {
+            st.setFetchSize(10000);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+               ImageTagIndex.checkInterrupted();
+               bitmap(byTag, rs.getInt(2)).add(rs.getInt(1));
+            }
+            rs.close();
+         }
+      }
+      try (PreparedStatement st = db.prepareStatement
+           (SQL_PEOPLE + " ORDER BY image;")) {
+         st.setFetchSize(10000);
+         ResultSet rs = st.executeQuery();
+         while (rs.next()) {
+            ImageTagIndex.checkInterrupted();
+            addPerson(rs.getInt(1), rs.getInt(2));
+         }
+         rs.close();
+      }
+   }
+
+   // write lock held
+   private static void addPerson(int img, int person)
+   {
+      bitmap(byPerson, person).add(img);
+      grow(img);
+      int[] p = persons[img];
+      if (p == null) {
+         persons[img] = new int[] { person };
+      } else if (Arrays.binarySearch(p, person) < 0) {
+         p = Arrays.copyOf(p, p.length + 1);
+         p[p.length - 1] = person;
+         Arrays.sort(p);
+         persons[img] = p;
+      }
+      personMax = Math.max(personMax, person);
+   }
+
+   private static IdBitmap bitmap(Map<Integer, IdBitmap> m, int key)
+   {
+      IdBitmap b = m.get(key);
+      if (b == null) {
+         b = new IdBitmap();
+         m.put(key, b);
+      }
+      return b;
+   }
+
+   // write lock held
+   private static void grow(int img)
+   {
+      if (img < time.length) return;
+      int n = Math.max(img + 1, time.length + time.length / 2);
+      time = Arrays.copyOf(time, n);
+      usec = Arrays.copyOf(usec, n);
+      day = Arrays.copyOf(day, n);
+      loc = Arrays.copyOf(loc, n);
+      cam = Arrays.copyOf(cam, n);
+      persons = Arrays.copyOf(persons, n);
+   }
+
+   // the number for a camera name, giving it one if it's new.  There
+   // are only ever a few dozen.  Write lock held.
+   private static int camera(String name)
+   {
+      Integer k = cameraIds.get(name);
+      if (k == null) {
+         k = cameraNames.size();
+         cameraNames.add(name);
+         cameraIds.put(name, k);
+      }
+      return k;
+   }
+
+   /**
+    * tags and people of one image, the slow way.  Fine for one image
+    * at a time on the edit paths.  Lock held.
+    */
+
+   private static int[] tagsOf(int img)
+   {
+      return keysContaining(byTag, img);
+   }
+
+   private static int[] peopleOf(int img)
+   {
+      int[] p = (img < persons.length) ? persons[img] : null;
+      return (p == null) ? new int[0] : p.clone();
+   }
+
+   private static int[] keysContaining(Map<Integer, IdBitmap> m, int img)
+   {
+      int[] ret = new int[4];
+      int n = 0;
+      for (Map.Entry<Integer, IdBitmap> e : m.entrySet()) {
+         if (!e.getValue().contains(img)) continue;
+         if (n == ret.length) ret = Arrays.copyOf(ret, n * 2);
+         ret[n++] = e.getKey();
+      }
+      return Arrays.copyOf(ret, n);
+   }
+
+   /**
+    * fills in agg from scratch, after the bitmaps are loaded.  Inverts
+    * the tag and person bitmaps into per-image lists first, since
+    * asking every bitmap about every image would take all day.  Write
+    * lock held.
+    */
+
+   private static void countAll()
+   {
+      int[][] tags = invert(byTag);
+      int[][] people = invert(byPerson);
+      int[] none = new int[0];
+      for (int img : live.toArray()) {
+         if (img >= tags.length || tags[img] == null) continue;
+         int[] p = (img < people.length && people[img] != null)
+            ? people[img] : none;
+         agg.add(img, day[img], tags[img], p);
+      }
+   }
+
+   private static int[][] invert(Map<Integer, IdBitmap> m)
+   {
+      int[][] ret = new int[time.length][];
+      for (Map.Entry<Integer, IdBitmap> e : m.entrySet()) {
+         int key = e.getKey();
+         for (int img : e.getValue().toArray()) {
+            if (img >= ret.length) continue;
+            int[] a = ret[img];
+            if (a == null) {
+               ret[img] = new int[] { key };
+            } else {
+               a = Arrays.copyOf(a, a.length + 1);
+               a[a.length - 1] = key;
+               ret[img] = a;
+            }
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * BrowseAggregates.Rescan: the lowest live image in tag set s with
+    * this day, month or person.  Read lock held.
+    */
+
+   private static int rescan(BrowseAggregates a, int s, int kind, int key)
+   {
+      if (kind == BrowseAggregates.MONTH) {
+         int y = key / 12;
+         int first = (int)LocalDate.of(y, key % 12 + 1, 1).toEpochDay();
+         int last = (int)LocalDate.of(y, key % 12 + 1, 1).plusMonths(1)
+            .toEpochDay();
+         int min = 0;
+         for (int d = first; d < last; d++) {
+            int m = rescan(a, s, BrowseAggregates.DAY, d);
+            if (m != 0 && (min == 0 || m < min)) min = m;
+         }
+         return min;
+      }
+      IdBitmap b = (kind == BrowseAggregates.DAY)
+         ? byDay.get(key) : byPerson.get(key);
+      if (b == null) return 0;
+      for (int img : b.toArray()) {
+         if (a.setOf(img) == s && live.contains(img)) return img;
+      }
+      return 0;
+   }
+
+   /**
+    * sorts imageids by timestamp (then id) without boxing them, by
+    * packing (seconds since 1834, id) into one long apiece, and then
+    * sorting each second's images by the fraction of it, if there are
+    * any fractions.  That needs ids to fit in 30 bits, which leaves a
+    * while yet; past that it does it the slow way.
+    */
+
+   private static void sortByTime(int[] ids)
+   {
+      if (ids.length > 0 && ids[ids.length - 1] >= (1 << ID_BITS)) {
+         Integer[] boxed = new Integer[ids.length];
+         for (int i = 0; i < ids.length; i++) boxed[i] = ids[i];
+         Arrays.sort(boxed, (a, b) -> before(a, b) ? -1 : (a == b) ? 0 : 1);
+         for (int i = 0; i < ids.length; i++) ids[i] = boxed[i];
+         return;
+      }
+      long[] k = new long[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+         long secs = time[ids[i]] + TIME_OFFSET;
+         k[i] = (secs << ID_BITS) | ids[i];
+      }
+      Arrays.sort(k);
+      for (int i = 0; i < ids.length; i++) {
+         ids[i] = (int)(k[i] & ((1L << ID_BITS) - 1));
+      }
+      if (!subSeconds) return;
+      // insertion sort within each second; there are only ever a few
+      for (int i = 1; i < ids.length; i++) {
+         int img = ids[i];
+         int j = i - 1;
+         while (j >= 0 && time[ids[j]] == time[img] && before(img, ids[j])) {
+            ids[j + 1] = ids[j];
+            j--;
+         }
+         ids[j + 1] = img;
+      }
+   }
+
+   /**
+    * whether image a comes before image b in (ts, imageid) order,
+    * which is the order SearchREST's SQL pages in.  An imageid we
+    * don't know is taken to have no ts.  Read lock held.
+    */
+
+   private static boolean before(int a, int b)
+   {
+      long ta = (a < time.length) ? time[a] : NO_TS;
+      long tb = (b < time.length) ? time[b] : NO_TS;
+      if (ta != tb) return ta < tb;
+      int ua = (a < usec.length) ? usec[a] : 0;
+      int ub = (b < usec.length) ? usec[b] : 0;
+      if (ua != ub) return ua < ub;
+      return a < b;
+   }
+
+   static long bytes()
+   {
+      lock.readLock().lock();
+      try {
+         long b = time.length * 24L + live.bytes() + fresh.bytes() +
+            agg.bytes();
+         for (int[] p : persons) if (p != null) b += 16 + p.length * 4;
+         for (Map<Integer, IdBitmap> m : Arrays.asList(byTag, byPerson,
+                                                       byLocation, byDay)) {
+            for (IdBitmap x : m.values()) b += x.bytes();
+         }
+         return b;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // images with no ts sort last, as they do in postgres
+   private static final long NO_TS = 4000000000L;
+   private static final int NO_DAY = BrowseAggregates.NO_DAY;
+   private static final String SQL_IMAGE =
+      "SELECT imageid, COALESCE(FLOOR(EXTRACT(EPOCH FROM ts))::bigint, " +
+      NO_TS + "), " +
+      "COALESCE(date(ts) - DATE '1970-01-01', " + NO_DAY + "), " +
+      "COALESCE(location, 0), deleted IS NULL, " +
+      "COALESCE(newimage, false), COALESCE(camera, ''), " +
+      "COALESCE(EXTRACT(MICROSECONDS FROM ts)::int % 1000000, 0) FROM image";
+   private static final String SQL_TAGS = "SELECT image, tag FROM imagetag";
+   private static final String SQL_PEOPLE =
+      "SELECT image, subject FROM imagesubject";
+
+   private static final int ID_BITS = 30;
+   private static final int VISIBLE_MAX = 64;
+   private static final long TIME_OFFSET = 1L << 32;
+   // the years facets() counts
+   private static final int YEAR0 = 1800;
+   private static final int YEARS = 400;
+
+   private static final ReentrantReadWriteLock lock =
+      new ReentrantReadWriteLock();
+   // taken before lock, by reload() and retag()
+   private static final ReentrantLock reloading = new ReentrantLock();
+   private static final HashMap<Integer, IdBitmap> byTag =
+      new HashMap<Integer, IdBitmap>();
+   private static final HashMap<Integer, IdBitmap> byPerson =
+      new HashMap<Integer, IdBitmap>();
+   private static final HashMap<Integer, IdBitmap> byLocation =
+      new HashMap<Integer, IdBitmap>();
+   private static final HashMap<Integer, IdBitmap> byDay =
+      new HashMap<Integer, IdBitmap>();
+   private static final BrowseAggregates agg =
+      new BrowseAggregates(SearchIndex::rescan);
+   private static final IdBitmap live = new IdBitmap();
+   private static final IdBitmap fresh = new IdBitmap();
+   // seconds since 1970 and the microseconds after that, which
+   // together order images the way postgres does by ts
+   private static long[] time = new long[1024];
+   private static int[] usec = new int[1024];
+   // whether any usec is not 0; if not, the seconds are enough
+   private static boolean subSeconds = false;
+   private static int[] day = new int[1024];
+   private static int[] loc = new int[1024];
+   private static int[] cam = new int[1024];
+   // each image's people, sorted, or null for none: the column form
+   // of byPerson, so facets() can count people as it goes
+   private static int[][] persons = new int[1024][];
+   private static int locMax = 0;
+   private static int personMax = 0;
+   private static final ArrayList<String> cameraNames =
+      new ArrayList<String>(Arrays.asList(""));
+   private static final HashMap<String, Integer> cameraIds =
+      new HashMap<String, Integer>(Map.of("", 0));
+
+   // changed only with the write lock held, or under its own lock
+   // with the read lock held
+   private static final Map<List<Integer>, IdBitmap> visibleCache =
+      lruMap(VISIBLE_MAX);
+   // browse() answers, by kind, n and visible tags
+   private static final Map<List<Integer>, List<BrowseAggregates.Group>>
+      browseCache = lruMap(VISIBLE_MAX * 3);
+
+   private static <T> Map<List<Integer>, T> lruMap(int max)
+   {
+      return new LinkedHashMap<List<Integer>, T>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<List<Integer>, T> e) {
+            return size() > max;
+         }
+      };
+   }
+
+   private static volatile boolean loaded = false;
+   private static boolean loading = false;
+   private static Thread loader = null;
+   private static final HashSet<Integer> pendingReloads = new HashSet<Integer>();
+   private static volatile long loadMs = 0;
+
+   private static final AtomicLong searches = Vars.counter("searchindex_searches");
+   private static final AtomicLong searchUs = Vars.counter("searchindex_us_total");
+   private static final AtomicLong visibleHits =
+      Vars.counter("searchindex_visible_hits");
+   private static final AtomicLong visibleMisses =
+      Vars.counter("searchindex_visible_misses");
+   private static final AtomicLong browseHits =
+      Vars.counter("searchindex_browse_hits");
+   private static final AtomicLong browses =
+      Vars.counter("searchindex_browses");
+   private static final AtomicLong browseUs =
+      Vars.counter("searchindex_browse_us_total");
+   private static final AtomicLong facetSearches =
+      Vars.counter("searchindex_facet_searches");
+   private static final AtomicLong facetUs =
+      Vars.counter("searchindex_facet_us_total");
+   private static final AtomicLong reloads = Vars.counter("searchindex_reloads");
+   private static final AtomicLong loadErrors =
+      Vars.counter("searchindex_load_errors");
+
+   static {
+      Vars.gauge("searchindex_load_ms", () -> loadMs);
+      Vars.gauge("searchindex_bytes", () -> loaded ? bytes() : 0);
+   }
+}
@@ -0,0 +1,390 @@
+package net.photoprism;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Times SearchIndex on made-up data, and checks its answers against
+ * the same data worked out the slow way.
+ *
+ * java net.photoprism.SearchIndexBench [images] [iterations]
+ *
+ * There's no database here, so the "join" column is the part of
+ * searchDb's work that doesn't depend on postgres being clever: walk
+ * the imagetag rows for visible tags, keep the live ones that match,
+ * dedup them in a hash set and sort by ts.  A real searchDb also pays
+ * for the round trip, the other joins and the ResultSet, so it can
+ * only be slower.  "cold" is a search by a visitor whose tags aren't
+ * in the visible cache yet.
+ *
+ * @version 20261018
+ */
+
+public class SearchIndexBench
+{
+   // what the index was given, kept here as plain arrays by imageid
+   private static long[] ts;
+   private static int[] usec;
+   private static int[] day;
+   private static int[] loc;
+   private static String[] cam;
+   private static boolean[] live;
+   private static boolean[] fresh;
+   private static int[][] tags;
+   private static int[][] people;
+
+   public static void main(String[] args)
+   {
+      int nimg = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+      int iters = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+      Random r = new Random(1);
+
+      // twenty years of timestamps, a third of them with microseconds;
+      // one of 480 upload tags, each a couple of weeks' worth, and for
+      // 30% one or two of 5 shared tags too; 0-2 of 3000 people, one
+      // of 5000 locations, one of 20 cameras (or none); 2% deleted,
+      // 1% new
+      ts = new long[nimg + 1];
+      usec = new int[nimg + 1];
+      day = new int[nimg + 1];
+      loc = new int[nimg + 1];
+      cam = new String[nimg + 1];
+      live = new boolean[nimg + 1];
+      fresh = new boolean[nimg + 1];
+      tags = new int[nimg + 1][];
+      people = new int[nimg + 1][];
+      SearchIndex.Rows rows = new SearchIndex.Rows();
+      Random cr = new Random(2);
+      Random ur = new Random(3);
+      long t2000 = 946684800L;
+      for (int i = 1; i <= nimg; i++) {
+         ts[i] = t2000 + (long)(r.nextDouble() * 20 * 365 * 86400);
+         day[i] = (int)(ts[i] / 86400);
+         loc[i] = r.nextInt(5000);
+         live[i] = r.nextInt(50) != 0;
+         fresh[i] = r.nextInt(100) == 0;
+         usec[i] = (ur.nextInt(3) == 0) ? ur.nextInt(1000000) : 0;
+         rows.images.add(new long[] { i, ts[i], day[i], loc[i],
+                                      live[i] ? 1 : 0, fresh[i] ? 1 : 0,
+                                      usec[i] });
+         int c = cr.nextInt(21);
+         cam[i] = (c == 20) ? "" : "Camera " + c;
+         rows.cameras.add(cam[i]);
+         tags[i] = new int[] { 20 + (int)((ts[i] - t2000) /
+                                          (20 * 365 * 86400 / 480)) };
+         if (r.nextInt(10) < 3) {
+            for (int j = (r.nextInt(6) == 0) ? 2 : 1; j > 0; j--) {
+               int tag = r.nextInt(5);
+               if (!has(tags[i], tag)) tags[i] = with(tags[i], tag);
+            }
+         }
+         for (int t : tags[i]) rows.tags.add(new int[] { i, t });
+         people[i] = new int[0];
+         for (int j = r.nextInt(3); j > 0; j--) {
+            int p = r.nextInt(3000);
+            if (!has(people[i], p)) people[i] = with(people[i], p);
+         }
+         for (int p : people[i]) rows.people.add(new int[] { i, p });
+      }
+      long t = System.nanoTime();
+      SearchIndex.install(rows);
+      System.out.printf("loaded in %d ms%n", (System.nanoTime() - t) / 1000000);
+      rows = null;
+
+      // the viewer can see 40 tags, a few shared ones among them
+      List<Integer> view = new ArrayList<Integer>();
+      while (view.size() < 40) {
+         int v = (view.size() < 2) ? r.nextInt(5) : 20 + r.nextInt(480);
+         if (!view.contains(v)) view.add(v);
+      }
+      // what the join needs: imagetag rows grouped by tag
+      HashMap<Integer, List<int[]>> rowsByTag =
+         new HashMap<Integer, List<int[]>>();
+      for (int i = 1; i <= nimg; i++) {
+         for (int tag : tags[i]) {
+            rowsByTag.computeIfAbsent(tag, k -> new ArrayList<int[]>())
+               .add(new int[] { i, tag });
+         }
+      }
+
+      int day0 = (int)((t2000 + 10L * 365 * 86400) / 86400);
+      String[] names = { "day", "month", "person", "location", "tag", "new" };
+      int[][] q = { { SearchIndex.DAY, day0, day0 },
+                    { SearchIndex.DAY, day0, day0 + 30 },
+                    { SearchIndex.PERSON, 17, 0 },
+                    { SearchIndex.LOCATION, 42, 0 },
+                    { SearchIndex.TAG, view.get(0), 0 },
+                    { SearchIndex.NEW, 0, 0 } };
+
+      System.out.printf("%d images, %d KB of bitmaps%n",
+                        nimg, SearchIndex.bytes() / 1024);
+      for (int pass = 0; pass < 2; pass++) {
+         for (int n = 0; n < q.length; n++) {
+            int kind = q[n][0], lo = q[n][1], hi = q[n][2];
+            int found = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iters; i++) {
+               found = SearchIndex.find(view, kind, lo, hi).size();
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iters; i++) {
+               SearchIndex.forgetVisible();
+               SearchIndex.find(view, kind, lo, hi);
+            }
+            long t2 = System.nanoTime();
+            int joined = 0;
+            for (int i = 0; i < iters; i++) {
+               LinkedHashSet<Integer> ids = new LinkedHashSet<Integer>();
+               ArrayList<Integer> hits = new ArrayList<Integer>();
+               for (int v : view) {
+                  for (int[] p : rowsByTag.getOrDefault(v, List.of())) {
+                     int img = p[0];
+                     boolean ok;
+                     switch (kind) {
+                     case SearchIndex.DAY:
+                        ok = day[img] >= lo && day[img] <= hi;
+                        break;
+                     case SearchIndex.PERSON: ok = has(people[img], lo); break;
+                     case SearchIndex.LOCATION: ok = loc[img] == lo; break;
+                     case SearchIndex.TAG: ok = p[1] == lo; break;
+                     default: ok = fresh[img];
+                     }
+                     if (ok && live[img]) hits.add(img);
+                  }
+               }
+               hits.sort(SearchIndexBench::byTs);
+               ids.addAll(hits);
+               joined = ids.size();
+            }
+            long t3 = System.nanoTime();
+            if (pass == 0) continue;
+            System.out.printf("%-8s %6d hits   bitmaps %8.1f us   " +
+                              "(cold %8.1f us)   join %9.1f us%s%n",
+                              names[n], found,
+                              (t1 - t0) / 1000.0 / iters,
+                              (t2 - t1) / 1000.0 / iters,
+                              (t3 - t2) / 1000.0 / iters,
+                              (found == joined) ? "" : "   MISMATCH " + joined);
+         }
+      }
+
+      // paging through a search of 100 at a time has to give back
+      // what find() does, and both have to be in ts order
+      for (int n = 0; n < q.length; n++) {
+         List<Integer> all = SearchIndex.find(view, q[n][0], q[n][1], q[n][2]);
+         ArrayList<Integer> sorted = new ArrayList<Integer>(all);
+         sorted.sort(SearchIndexBench::byTs);
+         ArrayList<Integer> paged = new ArrayList<Integer>();
+         int after = 0;
+         int pages = 0;
+         long t0 = System.nanoTime();
+         while (true) {
+            SearchIndex.Page p = SearchIndex.findPage
+               (view, q[n][0], q[n][1], q[n][2], after, 100);
+            paged.addAll(p.ids);
+            pages++;
+            if (!p.more) break;
+            after = p.ids.get(p.ids.size() - 1);
+         }
+         long t1 = System.nanoTime();
+         System.out.printf("paged %-8s %5d pages %8.1f us/page%s%s%n",
+                           names[n], pages, (t1 - t0) / 1000.0 / pages,
+                           paged.equals(all) ? "" : "   MISMATCH",
+                           sorted.equals(all) ? "" : "   ORDER");
+      }
+
+      // facets, against checking every visible image one at a time
+      int[] near = new int[50];
+      for (int i = 0; i < near.length; i++) near[i] = 100 + i;
+      String[] fnames = { "nothing", "year", "person+year", "places",
+                          "camera+new", "tag+person" };
+      SearchIndex.FacetQuery[] fq = new SearchIndex.FacetQuery[fnames.length];
+      for (int i = 0; i < fq.length; i++) fq[i] = new SearchIndex.FacetQuery();
+      int y2010 = (int)LocalDate.of(2010, 1, 1).toEpochDay();
+      int y2011 = (int)LocalDate.of(2011, 1, 1).toEpochDay();
+      fq[1].firstDay = fq[2].firstDay = y2010;
+      fq[1].lastDay = fq[2].lastDay = y2011 - 1;
+      fq[2].people = fq[5].people = new int[] { 17 };
+      fq[3].locations = near;
+      fq[4].cameras = new String[] { "Camera 3", "Camera 4" };
+      fq[4].fresh = true;
+      fq[5].tags = new int[] { view.get(0) };
+      for (int pass = 0; pass < 2; pass++) {
+         for (int n = 0; n < fq.length; n++) {
+            SearchIndex.Facets f = null;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iters / 10; i++) {
+               f = SearchIndex.facets(view, fq[n], 0, 100);
+            }
+            long t1 = System.nanoTime();
+            if (pass == 0) continue;
+            String bad = checkFacets(view, fq[n], f);
+            System.out.printf("facets %-11s %7d hits %5d people %4d years" +
+                              "   %8.1f us%s%n", fnames[n], f.page.total,
+                              f.people.length, f.years.length,
+                              (t1 - t0) / 1000.0 / (iters / 10), bad);
+         }
+      }
+
+      // browse pages: the totals, against grouping every visible image
+      for (int pass = 0; pass < 2; pass++) {
+         for (int kind = 0; kind < 3; kind++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iters; i++) SearchIndex.browse(view, kind, 12);
+            long tc = System.nanoTime();
+            for (int i = 0; i < iters; i++) {
+               SearchIndex.forgetBrowse();
+               SearchIndex.browse(view, kind, 12);
+            }
+            long t1 = System.nanoTime();
+            TreeMap<Integer, int[]> want = null;
+            for (int i = 0; i < iters; i++) want = groupBy(view, kind);
+            long t2 = System.nanoTime();
+
+            // the totals have to match, after some retagging too
+            if (pass == 1 && kind == 2) {
+               for (int i = 0; i < 1000; i++) {
+                  int img = 1 + r.nextInt(nimg);
+                  if (r.nextBoolean() || tags[img].length == 0) {
+                     int tag = view.get(r.nextInt(40));
+                     SearchIndex.added(img, tag);
+                     if (!has(tags[img], tag)) tags[img] = with(tags[img], tag);
+                  } else {
+                     int tag = tags[img][0];
+                     SearchIndex.removed(img, tag);
+                     tags[img] = Arrays.copyOfRange(tags[img], 1,
+                                                    tags[img].length);
+                  }
+               }
+            }
+            String bad = "";
+            List<BrowseAggregates.Group> all =
+               SearchIndex.browse(view, kind, Integer.MAX_VALUE);
+            want = groupBy(view, kind);
+            if (all.size() != want.size()) bad = "   SIZE " + want.size();
+            for (BrowseAggregates.Group g : all) {
+               int[] w = want.get(g.key);
+               if (w == null || w[0] != g.count || w[1] != g.min) {
+                  bad = "   MISMATCH at " + g.key;
+                  break;
+               }
+            }
+            if (pass == 0) continue;
+            System.out.printf("browse %-6s %5d groups   totals %8.1f us   " +
+                              "(cold %8.1f us)   group by %9.1f us%s%n",
+                              new String[] { "day", "month", "person" }[kind],
+                              want.size(), (tc - t0) / 1000.0 / iters,
+                              (t1 - tc) / 1000.0 / iters,
+                              (t2 - t1) / 1000.0 / iters, bad);
+         }
+      }
+   }
+
+   // the order postgres gives ORDER BY ts, imageid
+   private static int byTs(int a, int b)
+   {
+      if (ts[a] != ts[b]) return Long.compare(ts[a], ts[b]);
+      if (usec[a] != usec[b]) return Integer.compare(usec[a], usec[b]);
+      return Integer.compare(a, b);
+   }
+
+   private static boolean has(int[] a, int x)
+   {
+      for (int y : a) if (y == x) return true;
+      return false;
+   }
+
+   private static int[] with(int[] a, int x)
+   {
+      int[] ret = Arrays.copyOf(a, a.length + 1);
+      ret[a.length] = x;
+      return ret;
+   }
+
+   private static boolean visible(HashSet<Integer> view, int img)
+   {
+      if (!live[img]) return false;
+      for (int t : tags[img]) if (view.contains(t)) return true;
+      return false;
+   }
+
+   // facets() worked out the slow way; "" if they agree
+   private static String checkFacets
+   (List<Integer> view, SearchIndex.FacetQuery q, SearchIndex.Facets f)
+   {
+      HashSet<Integer> v = new HashSet<Integer>(view);
+      HashSet<Integer> locs = new HashSet<Integer>();
+      if (q.locations != null) for (int l : q.locations) locs.add(l);
+      List<String> cams = (q.cameras == null) ? null : Arrays.asList(q.cameras);
+      int total = 0;
+      TreeMap<Integer, Integer> years = new TreeMap<Integer, Integer>();
+      HashMap<Integer, Integer> persons = new HashMap<Integer, Integer>();
+      HashMap<String, Integer> cameras = new HashMap<String, Integer>();
+      for (int img = 1; img < ts.length; img++) {
+         if (!visible(v, img)) continue;
+         boolean ok = true;
+         for (int x : q.people) ok &= has(people[img], x);
+         for (int x : q.tags) ok &= has(tags[img], x);
+         if (!ok) continue;
+         boolean okDay = day[img] >= q.firstDay && day[img] <= q.lastDay;
+         boolean okLoc = q.locations == null || locs.contains(loc[img]);
+         boolean okCam = cams == null || cams.contains(cam[img]);
+         boolean okNew = !q.fresh || fresh[img];
+         if (okLoc && okCam && okNew) {
+            years.merge(LocalDate.ofEpochDay(day[img]).getYear(), 1,
+                        Integer::sum);
+         }
+         if (okDay && okLoc && okNew) cameras.merge(cam[img], 1, Integer::sum);
+         if (!(okDay && okLoc && okCam && okNew)) continue;
+         total++;
+         for (int x : people[img]) persons.merge(x, 1, Integer::sum);
+      }
+      if (total != f.page.total) return "   TOTAL " + total;
+      if (years.size() != f.years.length) return "   YEARS " + years.size();
+      for (int[] y : f.years) {
+         if (!Integer.valueOf(y[1]).equals(years.get(y[0]))) {
+            return "   YEAR " + y[0];
+         }
+      }
+      if (persons.size() != f.people.length) {
+         return "   PEOPLE " + persons.size();
+      }
+      for (int[] x : f.people) {
+         if (!Integer.valueOf(x[1]).equals(persons.get(x[0]))) {
+            return "   PERSON " + x[0];
+         }
+      }
+      if (!cameras.equals(f.cameras)) return "   CAMERAS";
+      return "";
+   }
+
+   // what the GROUP BY would say, deduped; { count, min }
+   private static TreeMap<Integer, int[]> groupBy(List<Integer> view, int kind)
+   {
+      HashSet<Integer> v = new HashSet<Integer>(view);
+      TreeMap<Integer, int[]> ret = new TreeMap<Integer, int[]>();
+      for (int img = 1; img < ts.length; img++) {
+         if (!visible(v, img)) continue;
+         int[] keys;
+         if (kind == BrowseAggregates.PERSON) {
+            keys = people[img];
+         } else {
+            keys = new int[] { (kind == BrowseAggregates.DAY) ? day[img]
+                               : BrowseAggregates.month(day[img]) };
+         }
+         for (int k : keys) {
+            int i = img;
+            int[] g = ret.computeIfAbsent(k, x -> new int[] { 0, i });
+            g[0]++;
+         }
+      }
+      return ret;
+   }
+}
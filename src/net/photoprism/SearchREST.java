@@ -2,13 +2,17 @@ package net.photoprism;
 
 import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Base64;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,7 +44,12 @@ public class SearchREST extends PhotoServlet
    * pictures containing that person.
    * </ul>
    *
-   * <p>The output is a JSON object.</p>
+   * <p>The output is a JSON array of imageids.  If there is a
+   * <code>limit</code> parameter, it is instead one page of them, as
+   * an object: <code>{ ids: [..], total: 1234, estimate: false,
+   * next: "..." }</code>.  Pass <code>next</code> back as
+   * <code>after</code> (with the same search) to get the page after
+   * that; there is no <code>next</code> on the last page.</p>
    *
    * <p>Whatever kind of search is requested, the results will be
    * filtered according to the tokens presented with the request.<p>
@@ -52,9 +61,6 @@ public class SearchREST extends PhotoServlet
   public void doGet(HttpServletRequest req, HttpServletResponse res)
   throws IOException
   {
-    // retry the database connection if we don't have one
-    if (db == null) getDBConnection();
-
     List<Integer> view_tags;
     try { view_tags = getPerms(req).viewableTags(); }
     catch (SQLException e) {
@@ -66,82 +72,315 @@ public class SearchREST extends PhotoServlet
        return;
     }
 
-    List<Integer> ids = null;
-    String q = null;
+    Query query = null;
+    String q;
     try {
-       q = PhotoUtils.sanitizeStr(req.getParameter("d"));
+       q = req.getParameter("d");
        if (q != null) {
-          ids = searchDb(view_tags, "date(ts)='" + q + "'");
+          LocalDate day = LocalDate.parse(q);
+          query = new Query(SearchIndex.DAY, (int)day.toEpochDay(),
+                            (int)day.toEpochDay(), SearchFilter.day(day));
        }
-       q = PhotoUtils.sanitizeInt(req.getParameter("l"));
+       q = req.getParameter("l");
        if (q != null) {
-          ids = searchDb(view_tags, "locationid=" + q);
+          int l = Integer.parseInt(q);
+          query = new Query(SearchIndex.LOCATION, l, 0,
+                            SearchFilter.location(l));
        }
-       q = PhotoUtils.sanitizeInt(req.getParameter("p"));
+       q = req.getParameter("p");
        if (q != null) {
-          ids = searchDb(view_tags, "s.subject=" + q);
+          int p = Integer.parseInt(q);
+          query = new Query(SearchIndex.PERSON, p, 0, SearchFilter.person(p));
        }
-       q = PhotoUtils.sanitizeInt(req.getParameter("t"));
+       q = req.getParameter("t");
        if (q != null) {
-          ids = searchDb(view_tags, "tag.id=" + q);
+          int t = Integer.parseInt(q);
+          query = new Query(SearchIndex.TAG, t, 0, SearchFilter.tag(t));
        }
-       q = PhotoUtils.sanitizeInt(req.getParameter("n"));
-       if (q != null) {
-          ids = searchDb(view_tags, "newimage=true");
+       if (req.getParameter("n") != null) {
+          query = new Query(SearchIndex.NEW, 0, 0, SearchFilter.NEW);
        }
-    } catch (SQLException e) {
-       res.sendError(SC_SERVFAIL, e.toString());
+    } catch (NumberFormatException | DateTimeParseException e) {
+       res.sendError(SC_BAD_REQUEST, "bad search: " + e.getMessage());
        return;
     }
 
-    if (ids == null) {
-       // note that ids == null isn't the "0 results found" case
+    if (query == null) {
        res.sendError(SC_BAD_REQUEST, "no search to do");
        return;
     }
 
-    JSONArray ret = new JSONArray();
-    for (int i : ids) ret.put(i);
-    sendJSON(res, ret);
+    try {
+       q = PhotoUtils.sanitizeInt(req.getParameter("limit"));
+       if (q != null) {
+          SearchIndex.Page page = searchPage
+             (view_tags, query, req.getParameter("after"),
+              Integer.parseInt(q));
+          JSONObject ret = pageJSON(page);
+          ret.put("ids", new JSONArray(page.ids));
+          sendJSON(res, ret);
+          return;
+       }
+       List<Integer> ids = search(view_tags, query);
+       JSONArray ret = new JSONArray();
+       for (int i : ids) ret.put(i);
+       sendJSON(res, ret);
+    } catch (IllegalArgumentException e) {
+       res.sendError(SC_BAD_REQUEST, e.getMessage());
+    } catch (SQLException e) {
+       res.sendError(SC_SERVFAIL, e.toString());
+    }
   }
 
+   /**
+    * asks the SearchIndex first, and if it isn't loaded (or lo is
+    * Integer.MIN_VALUE, meaning the caller couldn't work out what to
+    * ask it), runs the equivalent SQL instead.
+    *
+    * @param kind one of the SearchIndex kinds
+    * @param lo id, or first day, for the SearchIndex
+    * @param hi last day, for SearchIndex.DAY
+    * @param where the same search for searchDb
+    */
+
+   public static List<Integer> search
+   (List<Integer> tags, int kind, int lo, int hi, SearchFilter where)
+   throws SQLException
+   {
+      List<Integer> ids = null;
+      if (lo != Integer.MIN_VALUE) ids = SearchIndex.find(tags, kind, lo, hi);
+      if (ids == null) ids = searchDb(tags, where);
+      return ids;
+   }
+
+   /**
+    * one search, described both ways: for SearchIndex (kind, lo, hi)
+    * and for searchDb (where).
+    */
+
+   public static class Query
+   {
+      public final int kind;
+      public final int lo;
+      public final int hi;
+      public final SearchFilter where;
+
+      public Query(int kind, int lo, int hi, SearchFilter where)
+      {
+         this.kind = kind;
+         this.lo = lo;
+         this.hi = hi;
+         this.where = where;
+      }
+   }
+
+   public static List<Integer> search(List<Integer> tags, Query q)
+   throws SQLException
+   {
+      return search(tags, q.kind, q.lo, q.hi, q.where);
+   }
+
+   /**
+    * writes the details of everything search() would find to out, in
+    * the same order, in at most one database round trip.  The ids
+    * come from SearchIndex if it can, and then only the images that
+    * aren't in DetailCache are fetched.  Otherwise the search is a
+    * subquery of the details query.
+    */
+
+   public static void searchEach(Query q, DetailCache.Writer out)
+   throws SQLException, IOException
+   {
+      List<Integer> tags = out.perms().viewableTags();
+      if (q.lo != Integer.MIN_VALUE) {
+         List<Integer> ids = SearchIndex.find(tags, q.kind, q.lo, q.hi);
+         if (ids != null) {
+            out.ids(db(), ids);
+            return;
+         }
+      }
+      Photo.fetchWhere
+         (db(), out.perms(), "search_details",
+          q.where.inside("i.imageid IN (" + SQL_SEARCH + "AND (", "))",
+                         tags),
+          out);
+   }
+
+   /**
+    * one page of a search, in (ts, imageid) order, images with no ts
+    * last.  From SearchIndex if it can, otherwise with a keyset query,
+    * which postgres can answer by walking an index on image
+    * (COALESCE(ts, 'infinity'), imageid) and stopping after limit
+    * rows, so the first page of a 50,000 image tag costs about the
+    * same as the first page of a 50 image one.
+    *
+    * @param after the "next" of the previous page, or null for the
+    * first page
+    * @param limit page size, at most MAX_PAGE
+    * @throws IllegalArgumentException if after is garbage
+    */
+
+   public static SearchIndex.Page searchPage
+   (List<Integer> tags, Query q, String after, int limit)
+   throws SQLException
+   {
+      limit = Math.max(1, Math.min(limit, MAX_PAGE));
+      long[] token = parseToken(after);
+      int last = (int)token[0];
+      if (q.lo != Integer.MIN_VALUE) {
+         SearchIndex.Page p = SearchIndex.findPage
+            (tags, q.kind, q.lo, q.hi, last, limit);
+         if (p != null) return p;
+      }
+
+      Connection db = db();
+      PreparedStatement st;
+      if (last == 0) {
+         st = StatementCache.prepare
+            (db, "search_page", SQL_SEARCH + "AND (" + q.where.sql() + ") " +
+             "ORDER BY " + SQL_KEY + " LIMIT ?;");
+         st.setArray(1, db.createArrayOf("INTEGER", tags.toArray()));
+         int n = q.where.bind(st, 2);
+         st.setInt(n, limit + 1);
+      } else {
+         // (ts, imageid) of the last one we sent, however it's been
+         // edited since, rather than trusting the client with a ts.
+         // A null ts is 'infinity' on both sides, or the comparison
+         // would be null and drop every image without one.
+         st = StatementCache.prepare
+            (db, "search_page_after",
+             SQL_SEARCH + "AND (" + q.where.sql() + ") " +
+             "AND (" + SQL_KEY + ") > " +
+             "(COALESCE((SELECT ts FROM image WHERE imageid = ?), " +
+             "'infinity'), ?) " +
+             "ORDER BY " + SQL_KEY + " LIMIT ?;");
+         st.setArray(1, db.createArrayOf("INTEGER", tags.toArray()));
+         int n = q.where.bind(st, 2);
+         st.setInt(n, last);
+         st.setInt(n + 1, last);
+         st.setInt(n + 2, limit + 1);
+      }
+      ArrayList<Integer> ids = new ArrayList<Integer>();
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) ids.add(rs.getInt(1));
+      rs.close();
+      boolean more = ids.size() > limit;
+      if (more) ids.remove(limit);
+
+      // counting them all is the slow part we're trying to avoid, so
+      // ask the planner on the first page and carry it in the token
+      long total = token[1];
+      boolean estimate = token[2] != 0;
+      if (last == 0) {
+         st = StatementCache.prepare
+            (db, "search_estimate", "EXPLAIN (FORMAT JSON) " + SQL_SEARCH +
+             "AND (" + q.where.sql() + ");");
+         st.setArray(1, db.createArrayOf("INTEGER", tags.toArray()));
+         q.where.bind(st, 2);
+         rs = st.executeQuery();
+         total = ids.size();
+         estimate = false;
+         if (more && rs.next()) {
+            total = new JSONArray(rs.getString(1)).getJSONObject(0)
+               .getJSONObject("Plan").getLong("Plan Rows");
+            total = Math.max(total, limit + 1);
+            estimate = true;
+         }
+         rs.close();
+      }
+      return new SearchIndex.Page(ids, more, total, estimate);
+   }
+
+   /**
+    * @return the page's total, estimate and next (if there's another
+    * page) as a JSON object, for the caller to add the page to
+    */
+
+   public static JSONObject pageJSON(SearchIndex.Page p)
+   {
+      JSONObject ret = new JSONObject();
+      ret.put("total", p.total);
+      ret.put("estimate", p.estimate);
+      if (p.more && p.ids.size() > 0) {
+         String s = p.ids.get(p.ids.size() - 1) + "." + p.total + "." +
+            (p.estimate ? 1 : 0);
+         ret.put("next", Base64.getUrlEncoder().withoutPadding()
+                 .encodeToString(s.getBytes(StandardCharsets.US_ASCII)));
+      }
+      return ret;
+   }
+
+   // { last imageid, total, estimate } out of an "after" token
+   static long[] parseToken(String after)
+   {
+      if (after == null || after.isEmpty()) return new long[] { 0, 0, 0 };
+      try {
+         String s = new String(Base64.getUrlDecoder().decode(after),
+                               StandardCharsets.US_ASCII);
+         String[] f = s.split("\\.");
+         long[] ret = { Integer.parseInt(f[0]), Long.parseLong(f[1]),
+                        Integer.parseInt(f[2]) };
+         if (ret[0] <= 0) throw new IllegalArgumentException();
+         return ret;
+      } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+         throw new IllegalArgumentException("bad after token");
+      }
+   }
+
   /**
-   * method to turn an arbitrary SQL WHERE clause into an array
-   * of matching ImageIDs.  See code for the tables that you can
-   * pick from.
+   * method to turn a SearchFilter into an array of matching ImageIDs.
    *
-   * @param where a SQL WHERE fragment (e.g. 'Date = 2004-07-01').
-   * Important that it not be user supplied -- not escaped.
+   * @param where which images, e.g. SearchFilter.day(2004-07-01)
    * @param tags List of tags to assume visible in results
    * @return array of int imageIDs
    * @exception SQLException if anything goes wrong with the database
    */
 
-   public static List<Integer> searchDb(List<Integer> tags, String where)
+   public static List<Integer> searchDb
+   (List<Integer> tags, SearchFilter where)
    throws SQLException
    {
-      // first concoct a SQL query with the supplied pieces
-      PreparedStatement st = db.prepareStatement
-         ("SELECT imageid FROM image i " +
-          "INNER JOIN imagetag it ON i.imageid = it.image " +
-          "INNER JOIN tag ON it.tag = tag.id " +
-          "LEFT JOIN " +
-          "(imagesubject INNER JOIN person ON personid=subject) s " +
-          "ON s.image = i.imageid " +
-          "LEFT JOIN location l ON i.location = l.locationid " +
-          "WHERE i.deleted IS NULL AND it.tag = ANY(?) " +
-          "AND (" + where + ") ORDER BY i.ts;");
+      return searchDb(db(), tags, where);
+   }
+
+   /**
+    * same as above, for a caller that has its own connection
+    */
+
+   public static List<Integer> searchDb
+   (Connection db, List<Integer> tags, SearchFilter where)
+   throws SQLException
+   {
+      // first concoct a SQL query with the supplied pieces.  Each
+      // kind of filter is its own entry in the StatementCache, but
+      // not each value.
+      PreparedStatement st = StatementCache.prepare
+         (db, "search",
+          SQL_SEARCH + "AND (" + where.sql() + ") ORDER BY " + SQL_KEY + ";");
       st.setArray(1, db.createArrayOf("INTEGER", tags.toArray()));
+      where.bind(st, 2);
 
-      // use a HashSet to dedup imageIDs (repetition can happen because
-      // multiple tokens can provide a path to the same image), then copy
-      // into an int array
-      HashSet<Integer> ids = new HashSet<Integer>();
+      // one row per image, however many of the tokens reach it
+      ArrayList<Integer> ids = new ArrayList<Integer>();
       ResultSet rs = st.executeQuery();
       while (rs.next()) ids.add(rs.getInt(1));
       rs.close();
-      st.close();
-      return new ArrayList<Integer>(ids);
+      return ids;
    }
 
+   /** the most one page can have */
+   public static final int MAX_PAGE = 1000;
+
+   // the order pages come in, and SearchIndex's: its NO_TS puts
+   // images with no ts last, and so does 'infinity'
+   private static final String SQL_KEY =
+      "COALESCE(i.ts, 'infinity'), i.imageid";
+
+   // the part of every search up to its where clause, which goes
+   // after "AND".  The one parameter is the visible tags.  Nothing
+   // is joined, so each image is one row; see SearchFilter.
+   private static final String SQL_SEARCH =
+      "SELECT i.imageid FROM image i " +
+      "WHERE i.deleted IS NULL AND EXISTS (SELECT 1 FROM imagetag it " +
+      "WHERE it.image = i.imageid AND it.tag = ANY(?)) ";
 }
@@ -0,0 +1,172 @@
+package net.photoprism;
+
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compares PhotoServlet.sendFile(), which has the FileChannel
+ * transferTo() the bytes, with the 1k-at-a-time copy loop it used to
+ * have, sending a made-up file over a loopback socket to a thread
+ * that throws the bytes away.  For each it prints the throughput,
+ * and the CPU time and bytes allocated on the sending thread.
+ *
+ * java net.photoprism.SendFileBench [mb] [times]
+ *
+ * This can't show the connector's own sendfile(2), which needs
+ * Tomcat; with that on, sendFile() hands over the file name and does
+ * no copying at all.
+ *
+ * @version 20261018
+ */
+
+public class SendFileBench
+{
+   public static void main(String[] args) throws Exception
+   {
+      int mb = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+      int times = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+      File f = File.createTempFile("sendfilebench", ".jpg");
+      f.deleteOnExit();
+      byte[] junk = new byte[PhotoUtils.MB];
+      new Random(1).nextBytes(junk);
+      try (OutputStream out = new FileOutputStream(f)) {
+         for (int i = 0; i < mb; i++) out.write(junk);
+      }
+
+      ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+      AtomicLong drained = new AtomicLong();
+      Thread drain = new Thread(() -> {
+            byte[] b = new byte[64 * PhotoUtils.KB];
+            try (Socket s = server.accept();
+                 InputStream in = s.getInputStream()) {
+               int n;
+               while ((n = in.read(b)) > 0) drained.addAndGet(n);
+            } catch (IOException e) {
+               System.err.println("drain: " + e);
+            }
+         }, "drain");
+      drain.start();
+      Socket sock = new Socket(server.getInetAddress(), server.getLocalPort());
+      ServletOutputStream out = new SocketStream(sock.getOutputStream());
+
+      HttpServletRequest req = fake(HttpServletRequest.class, null);
+      HttpServletResponse res = fake(HttpServletResponse.class, out);
+      PhotoServlet servlet = new PhotoServlet();
+
+      for (int round = 0; round < 2; round++) {
+         // the first round is warm-up
+         time("1k copy loop", f, times, round > 0,
+              () -> copyLoop(f, out));
+         time("sendFile", f, times, round > 0,
+              () -> servlet.sendFile(f, req, res, "image/jpeg"));
+      }
+      sock.close();
+      drain.join();
+      System.out.println("drained " + drained.get() + " bytes, expected " +
+                         4L * times * f.length());
+      server.close();
+   }
+
+   private interface Send
+   {
+      void send() throws IOException;
+   }
+
+   private static void time
+   (String what, File f, int times, boolean print, Send s)
+   throws IOException
+   {
+      ThreadMXBean mx = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long tid = Thread.currentThread().getId();
+      long alloc = mx.getThreadAllocatedBytes(tid);
+      long cpu = mx.getCurrentThreadCpuTime();
+      long start = System.nanoTime();
+      for (int i = 0; i < times; i++) s.send();
+      long ns = System.nanoTime() - start;
+      cpu = mx.getCurrentThreadCpuTime() - cpu;
+      alloc = mx.getThreadAllocatedBytes(tid) - alloc;
+      if (!print) return;
+      System.out.println(String.format
+         ("%-14s %8.1f MB/s   cpu %7.2f ms   alloc %9d bytes  per send",
+          what, (double)f.length() * times / PhotoUtils.MB / (ns / 1e9),
+          cpu / 1e6 / times, alloc / times));
+   }
+
+   /**
+    * what sendFile() did before transferTo(), less the headers
+    */
+
+   private static void copyLoop(File f, OutputStream o) throws IOException
+   {
+      BufferedOutputStream out = new BufferedOutputStream(o);
+      byte[] b = new byte[1024];
+      try (FileInputStream in = new FileInputStream(f)) {
+         while (true) {
+            int bytes = in.read(b);
+            if (bytes == -1) break;
+            out.write(b, 0, bytes);
+         }
+      }
+      out.flush();
+   }
+
+   /**
+    * the socket, standing in for Tomcat's response stream.  close()
+    * only flushes, so it lasts for the whole run.
+    */
+
+   private static class SocketStream extends ServletOutputStream
+   {
+      private final OutputStream out;
+
+      SocketStream(OutputStream out) { this.out = out; }
+
+      public void write(int b) throws IOException { this.out.write(b); }
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         this.out.write(b, off, len);
+      }
+      public void flush() throws IOException { this.out.flush(); }
+      public void close() throws IOException { this.out.flush(); }
+      public boolean isReady() { return true; }
+      public void setWriteListener(WriteListener l) { }
+   }
+
+   /**
+    * a request or response that does nothing, answers no headers or
+    * attributes, and (for a response) writes to out
+    */
+
+   private static <T> T fake(Class<T> c, ServletOutputStream out)
+   {
+      Map<Class<?>, Object> zero = new HashMap<Class<?>, Object>();
+      zero.put(boolean.class, false);
+      zero.put(int.class, 0);
+      zero.put(long.class, 0L);
+      return c.cast(Proxy.newProxyInstance
+         (c.getClassLoader(), new Class<?>[] { c }, (p, m, a) -> {
+            if (m.getName().equals("getOutputStream")) return out;
+            return zero.get(m.getReturnType());
+         }));
+   }
+}
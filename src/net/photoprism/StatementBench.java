@@ -0,0 +1,193 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times the image-permission path (Perms + imgPerm, which every
+ * ImageREST request does) and the browse detail path (searchDb +
+ * fetchMany) against a real database, first with the StatementCache
+ * switched off and then on.  Then times a mix of searches like the
+ * browse pages make (days, months, people, places, tags, new) written
+ * out as literal SQL, the way they were before SearchFilter, and as
+ * SearchFilters.  Run it on a copy of the photo database:
+ *
+ * java net.photoprism.StatementBench jdbc:postgresql://host/photo
+ *   user password token imageid [iterations]
+ *
+ * where token is a valid token cookie and imageid an image it can see.
+ * With no arguments it only counts the distinct statements a made-up
+ * mix of searches needs each way, which is what postgres has to parse
+ * and plan.
+ *
+ * @version 20261018
+ */
+
+public class StatementBench
+{
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length == 0) {
+         Random r = new Random(1);
+         List<Integer> ids = new ArrayList<Integer>();
+         for (int i = 1; i <= 3000; i++) ids.add(i);
+         List<LocalDate> days = new ArrayList<LocalDate>();
+         for (int i = 0; i < 3000; i++) {
+            days.add(LocalDate.ofEpochDay(10957 + r.nextInt(7300)));
+         }
+         for (int literal = 1; literal >= 0; literal--) {
+            Set<String> sql = new HashSet<String>();
+            for (SearchFilter f : mix(1000, days, ids, ids, ids,
+                                      literal == 1)) {
+               sql.add(f.sql());
+            }
+            System.out.printf("%-7s 1000 searches, %4d distinct statements%n",
+                              (literal == 1) ? "before" : "after",
+                              sql.size());
+         }
+         return;
+      }
+      if (args.length < 5) {
+         System.err.println("Usage: StatementBench url user password " +
+                            "token imageid [iterations]\n" +
+                            "       StatementBench");
+         System.exit(1);
+      }
+      String token = args[3];
+      int img = Integer.parseInt(args[4]);
+      int n = (args.length > 5) ? Integer.parseInt(args[5]) : 2000;
+
+      try (Connection db = DriverManager.getConnection
+           (args[0], args[1], args[2])) {
+         TokenUtils.Perms perms = new TokenUtils.Perms(token, db);
+         List<Integer> ids = SearchREST.searchDb
+            (db, perms.viewableTags(), SearchFilter.ALL);
+         if (ids.size() > 50) ids = ids.subList(0, 50);
+
+         for (int cached = 0; cached < 2; cached++) {
+            StatementCache.setLimits(cached * 64, cached * 3);
+            // the first pass is to warm up the JIT and the server
+            for (int pass = 0; pass < 2; pass++) {
+               long t0 = System.nanoTime();
+               for (int i = 0; i < n; i++) {
+                  new TokenUtils.Perms(token, db).imgPerm(img, db);
+               }
+               long t1 = System.nanoTime();
+               for (int i = 0; i < n / 10; i++) {
+                  SearchREST.searchDb(db, perms.viewableTags(),
+                                      SearchFilter.ALL);
+                  Photo.fetchMany(db, perms, ids);
+               }
+               long t2 = System.nanoTime();
+               if (pass == 0) continue;
+               System.out.printf("%-7s perms+imgPerm %8.1f us   " +
+                                 "search+fetchMany(%d) %9.1f us%n",
+                                 (cached == 0) ? "before" : "after",
+                                 (t1 - t0) / 1000.0 / n, ids.size(),
+                                 (t2 - t1) / 1000.0 / (n / 10));
+            }
+         }
+
+         // the search mix, with values that are really in there
+         List<LocalDate> days = new ArrayList<LocalDate>();
+         ResultSet rs = db.createStatement().executeQuery
+            ("SELECT DISTINCT date(ts) FROM image WHERE ts IS NOT NULL;");
+         while (rs.next()) days.add(rs.getDate(1).toLocalDate());
+         rs.close();
+         List<Integer> people = column
+            (db, "SELECT DISTINCT subject FROM imagesubject;");
+         List<Integer> places = column
+            (db, "SELECT DISTINCT location FROM image " +
+             "WHERE location IS NOT NULL;");
+         List<Integer> tags = perms.viewableTags();
+         for (int literal = 1; literal >= 0; literal--) {
+            List<SearchFilter> mix =
+               mix(n / 10, days, people, places, tags, literal == 1);
+            Set<String> sql = new HashSet<String>();
+            for (SearchFilter f : mix) sql.add(f.sql());
+            for (int pass = 0; pass < 2; pass++) {
+               long t0 = System.nanoTime();
+               for (SearchFilter f : mix) {
+                  SearchREST.searchDb(db, perms.viewableTags(), f);
+               }
+               long t1 = System.nanoTime();
+               if (pass == 0) continue;
+               System.out.printf("%-7s search mix %8.1f us   " +
+                                 "%d distinct statements for %d searches%n",
+                                 (literal == 1) ? "before" : "after",
+                                 (t1 - t0) / 1000.0 / mix.size(),
+                                 sql.size(), mix.size());
+            }
+         }
+      }
+      System.out.print(Vars.dump());
+   }
+
+   /**
+    * n searches, about in the proportions the browse pages ask for
+    * them.  With literal, each value is written into the SQL, the way
+    * BrowseREST and SearchREST used to.
+    */
+
+   private static List<SearchFilter> mix
+   (int n, List<LocalDate> days, List<Integer> people, List<Integer> places,
+    List<Integer> tags, boolean literal)
+   {
+      Random r = new Random(1);
+      List<SearchFilter> ret = new ArrayList<SearchFilter>();
+      for (int i = 0; i < n; i++) {
+         int k = r.nextInt(20);
+         if (k < 8) {
+            LocalDate d = days.get(r.nextInt(days.size()));
+            ret.add(literal ? new SearchFilter("date(ts)='" + d + "'")
+                    : SearchFilter.day(d));
+         } else if (k < 12) {
+            YearMonth m = YearMonth.from(days.get(r.nextInt(days.size())));
+            String q = "'" + m + "-01'";
+            ret.add(literal ? new SearchFilter
+                    ("i.ts >= date " + q + " AND i.ts < date " + q +
+                     "+ INTERVAL '1 month'")
+                    : SearchFilter.month(m));
+         } else if (k < 15) {
+            int p = people.get(r.nextInt(people.size()));
+            ret.add(literal ? new SearchFilter
+                    ("EXISTS (SELECT 1 FROM imagesubject s WHERE " +
+                     "s.image = i.imageid AND s.subject=" + p + ")")
+                    : SearchFilter.person(p));
+         } else if (k < 17) {
+            int l = places.get(r.nextInt(places.size()));
+            ret.add(literal ? new SearchFilter("i.location=" + l)
+                    : SearchFilter.location(l));
+         } else if (k < 19) {
+            int t = tags.get(r.nextInt(tags.size()));
+            ret.add(literal ? new SearchFilter
+                    ("EXISTS (SELECT 1 FROM imagetag t WHERE " +
+                     "t.image = i.imageid AND t.tag=" + t + ")")
+                    : SearchFilter.tag(t));
+         } else {
+            ret.add(literal ? new SearchFilter("newimage=true")
+                    : SearchFilter.NEW);
+         }
+      }
+      return ret;
+   }
+
+   private static List<Integer> column(Connection db, String sql)
+   throws SQLException
+   {
+      List<Integer> ret = new ArrayList<Integer>();
+      ResultSet rs = db.createStatement().executeQuery(sql);
+      while (rs.next()) ret.add(rs.getInt(1));
+      rs.close();
+      return ret;
+   }
+}
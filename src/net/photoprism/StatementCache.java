@@ -0,0 +1,242 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+
+/**
+ * Keeps PreparedStatements open between requests, per database
+ * connection, keyed by their SQL text.  The hot queries (permissions,
+ * imgPerm, searchDb, fetchMany, the browse lists) used to be prepared,
+ * run once, and closed on every request.
+ *
+ * Statements are prepared on the physical postgres connection under
+ * the pool's proxy, so they survive the connection going back to the
+ * pool, and the next request to borrow it finds them still there.
+ * When the pool finally closes the connection, its statements go
+ * with it, and the cache forgets it the next time a new connection
+ * shows up.  Each connection holds at most maxPerConn statements; the
+ * least recently used one is closed to make room.
+ *
+ * Once a statement has been asked for promoteAfter times, it is told
+ * to use a named server-side statement from its next execution on,
+ * so postgres parses and plans it once per connection instead of
+ * every time.
+ *
+ * Rules for callers: don't close what prepare() gives you (close the
+ * ResultSet, though), and don't ask for the same SQL again while you
+ * are still reading a ResultSet from it.
+ *
+ * @version 20261018
+ */
+
+public class StatementCache
+{
+   private static class Entry
+   {
+      final PreparedStatement st;
+      final Stats stats;
+      long uses = 0;
+      long serverRuns = 0;
+
+      Entry(PreparedStatement st, Stats stats)
+      {
+         this.st = st;
+         this.stats = stats;
+      }
+   }
+
+   /**
+    * counters for one query template, by the name the caller gave it
+    */
+
+   private static class Stats
+   {
+      final AtomicLong hits;
+      final AtomicLong misses;
+      final AtomicLong planReuse;
+
+      Stats(String name)
+      {
+         this.hits = Vars.counter("stmt_" + name + "_hits");
+         this.misses = Vars.counter("stmt_" + name + "_misses");
+         this.planReuse = Vars.counter("stmt_" + name + "_plan_reuse");
+      }
+   }
+
+   /**
+    * @param db a connection, usually db() from a servlet
+    * @param name short label for the counters, like "imgperm"
+    * @param sql the query
+    * @return a PreparedStatement with its parameters cleared; don't
+    * close it
+    */
+
+   public static PreparedStatement prepare
+   (Connection db, String name, String sql)
+   throws SQLException
+   {
+      Connection conn = physical(db);
+      Stats stats = statsFor(name);
+      if (conn == null) {
+         // not postgres underneath, so nothing we know how to keep.
+         // StatementFinalizer will close it with the connection.
+         stats.misses.incrementAndGet();
+         return db.prepareStatement(sql);
+      }
+
+      Map<String, Entry> cache;
+      synchronized (caches) {
+         cache = caches.get(conn);
+         if (cache == null) {
+            // a connection we haven't seen, so maybe the pool has
+            // retired some others since last time
+            sweep();
+            cache = newCache();
+            caches.put(conn, cache);
+         }
+      }
+
+      synchronized (cache) {
+         Entry e = cache.get(sql);
+         if (e != null && (maxPerConn == 0 || e.st.isClosed())) {
+            // closed under us, or we are switched off and only
+            // remembering it so it can be closed here
+            cache.remove(sql);
+            closeQuietly(e.st);
+            e = null;
+         }
+         if (e == null) {
+            stats.misses.incrementAndGet();
+            e = new Entry(conn.prepareStatement(sql), stats);
+            cache.put(sql, e);
+         } else {
+            stats.hits.incrementAndGet();
+            e.st.clearParameters();
+         }
+         e.uses++;
+         PGStatement pg = e.st.unwrap(PGStatement.class);
+         if (e.uses == promoteAfter) {
+            pg.setPrepareThreshold(1);
+            promotions.incrementAndGet();
+         }
+         if (pg.isUseServerPrepare()) {
+            if (e.serverRuns > 0) stats.planReuse.incrementAndGet();
+            e.serverRuns++;
+         }
+         return e.st;
+      }
+   }
+
+   /**
+    * @param max statements to keep per connection; 0 to prepare fresh
+    * every time, as before there was a cache
+    * @param promote uses before a statement goes server-side; 0 to
+    * leave that up to the driver's own prepareThreshold
+    */
+
+   public static void setLimits(int max, int promote)
+   {
+      maxPerConn = max;
+      promoteAfter = promote;
+   }
+
+   /**
+    * closes every statement being kept, for when the webapp goes away
+    * and the pool's connections don't
+    */
+
+   public static void closeAll()
+   {
+      synchronized (caches) {
+         for (Map<String, Entry> cache : caches.values()) {
+            synchronized (cache) {
+               for (Entry e : cache.values()) closeQuietly(e.st);
+               cache.clear();
+            }
+         }
+         caches.clear();
+      }
+   }
+
+   private static Map<String, Entry> newCache()
+   {
+      return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+            if (maxPerConn > 0 && size() > maxPerConn) {
+               closeQuietly(e.getValue().st);
+               evictions.incrementAndGet();
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   private static Connection physical(Connection db) throws SQLException
+   {
+      if (db instanceof PGConnection) return db;
+      if (db.isWrapperFor(PGConnection.class)) {
+         return (Connection)db.unwrap(PGConnection.class);
+      }
+      return null;
+   }
+
+   /**
+    * forgets connections that have been closed.  (A WeakHashMap
+    * wouldn't do: the statements refer to their connection.)  Call
+    * with caches locked.
+    */
+
+   private static void sweep() throws SQLException
+   {
+      Iterator<Connection> i = caches.keySet().iterator();
+      while (i.hasNext()) {
+         if (i.next().isClosed()) i.remove();
+      }
+   }
+
+   private static Stats statsFor(String name)
+   {
+      return stats.computeIfAbsent(name, k -> new Stats(k));
+   }
+
+   private static void closeQuietly(PreparedStatement st)
+   {
+      try { st.close(); }
+      catch (SQLException ignored) { }
+   }
+
+   private static long cached()
+   {
+      long n = 0;
+      synchronized (caches) {
+         for (Map<String, Entry> c : caches.values()) n += c.size();
+      }
+      return n;
+   }
+
+   private static final HashMap<Connection, Map<String, Entry>> caches =
+      new HashMap<Connection, Map<String, Entry>>();
+   private static final ConcurrentHashMap<String, Stats> stats =
+      new ConcurrentHashMap<String, Stats>();
+   private static volatile int maxPerConn = 64;
+   private static volatile int promoteAfter = 3;
+
+   private static final AtomicLong evictions =
+      Vars.counter("stmt_cache_evictions");
+   private static final AtomicLong promotions =
+      Vars.counter("stmt_cache_promotions");
+
+   static {
+      Vars.gauge("stmt_cache_size", () -> cached());
+   }
+}
@@ -0,0 +1,304 @@
+package net.photoprism;
+
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+/**
+ * Compares the ways BrowseREST can send image details: building the
+ * JSONObject and its String and then writing it (fetchMany), writing
+ * each image as it is read (fetchEach), and copying each image's
+ * bytes out of a warm DetailCache.  For each it prints the time to
+ * first byte, the total time, the bytes allocated, and the most heap
+ * that was live at any point while the answer was being written.
+ * Against a copy of the photo database:
+ *
+ * java net.photoprism.StreamBench jdbc:postgresql://host/photo
+ *   user password token [images]
+ *
+ * where token is a valid token cookie.  With no database arguments
+ * (java net.photoprism.StreamBench [images]) the Photos are made up
+ * instead, which leaves out JDBC but shows the JSON side.
+ *
+ * @version 20261018
+ */
+
+public class StreamBench
+{
+   /**
+    * where a way of sending gets its photos from
+    */
+
+   private interface Source
+   {
+      List<Photo> all() throws SQLException;
+      void each(Photo.Each each) throws SQLException, IOException;
+      void cached(DetailCache.Writer w) throws SQLException, IOException;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length == 1 || args.length == 0) {
+         int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+         Map<Integer, Integer> levels = new HashMap<Integer, Integer>();
+         for (int t = 0; t < 500; t++) levels.put(t, TokenUtils.Perms.READ);
+         run(n, made(n), new TokenUtils.Perms(levels));
+         return;
+      }
+      if (args.length < 4) {
+         System.err.println("Usage: StreamBench url user password " +
+                            "token [images]\n" +
+                            "       StreamBench [images]");
+         System.exit(1);
+      }
+      int n = (args.length > 4) ? Integer.parseInt(args[4]) : 10000;
+      try (Connection db = DriverManager.getConnection
+           (args[0], args[1], args[2])) {
+         TokenUtils.Perms perms = new TokenUtils.Perms(args[3], db);
+         List<Integer> found = SearchREST.searchDb
+            (db, perms.viewableTags(), SearchFilter.ALL);
+         List<Integer> ids = new ArrayList<Integer>
+            (found.subList(0, Math.min(n, found.size())));
+         found = null;
+         run(ids.size(), new Source() {
+               public List<Photo> all() throws SQLException {
+                  return Photo.fetchMany(db, perms, ids);
+               }
+               public void each(Photo.Each each)
+               throws SQLException, IOException {
+                  Photo.fetchEach(db, perms, ids, each);
+               }
+               public void cached(DetailCache.Writer w)
+               throws SQLException, IOException {
+                  w.ids(db, ids);
+               }
+            }, perms);
+      }
+   }
+
+   private static void run(int n, Source src, TokenUtils.Perms perms)
+   throws Exception
+   {
+      DetailCache.setLimits(n, Long.MAX_VALUE);
+      // a pass or two to warm up the JIT (and the server's cache, and
+      // DetailCache)
+      for (int i = 0; i < 2; i++) {
+         for (int way = 0; way < WAYS.length; way++) {
+            send(way, src, perms, new Sink(false));
+         }
+      }
+      ThreadMXBean mx = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long me = Thread.currentThread().getId();
+      for (int way = 0; way < WAYS.length; way++) {
+         long ttfb = Long.MAX_VALUE;
+         long total = Long.MAX_VALUE;
+         long alloc = Long.MAX_VALUE;
+         long bytes = 0;
+         for (int i = 0; i < 5; i++) {
+            Sink s = new Sink(false);
+            long a0 = mx.getThreadAllocatedBytes(me);
+            long start = System.nanoTime();
+            send(way, src, perms, s);
+            ttfb = Math.min(ttfb, s.first - start);
+            total = Math.min(total, System.nanoTime() - start);
+            alloc = Math.min(alloc, mx.getThreadAllocatedBytes(me) - a0);
+            bytes = s.bytes;
+         }
+         Sink s = new Sink(true);
+         send(way, src, perms, s);
+         System.out.printf("%-8s %6d images %9d bytes   first byte %7.1f ms" +
+                           "   total %7.1f ms (%5.2f ms/1000)" +
+                           "   alloc %7.1f MB (%5.2f MB/1000)" +
+                           "   peak heap %8.0f KB%n",
+                           WAYS[way], n, bytes, ttfb / 1e6, total / 1e6,
+                           total / 1e3 / n, alloc / 1048576.0,
+                           alloc * 1000.0 / n / 1048576.0,
+                           (s.peak - s.base) / 1024.0);
+      }
+      System.out.println("(check " + check + ")");
+   }
+
+   private static final String[] WAYS = { "buffered", "streamed", "cached" };
+
+   private static void send
+   (int way, Source src, TokenUtils.Perms perms, Sink sink) throws Exception
+   {
+      switch (way) {
+      case 0: buffered(src, sink); break;
+      case 1: streamed(src, sink); break;
+      default: cached(src, perms, sink);
+      }
+   }
+
+   // what BrowseREST did: fetchMany, a JSONArray of them, the String
+   private static void buffered(Source src, Sink sink) throws Exception
+   {
+      JSONObject ret = new JSONObject();
+      ret.put("title", "benchmark");
+      JSONArray imgs = new JSONArray();
+      List<Photo> photos = src.all();
+      for (Photo p : photos) imgs.put(p.toJSON());
+      ret.put("images", imgs);
+      String s = ret.toString();
+      Writer out = new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+      out.write(s);
+      out.close();
+      // in the servlet these are all still live until doGet() returns,
+      // so use them once the write is done
+      check += photos.size() + imgs.length() + ret.length();
+   }
+
+   // what it does now: fetchEach through a JSONWriter
+   private static void streamed(Source src, Sink sink) throws Exception
+   {
+      Writer w = new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+      JSONWriter out = new JSONWriter(w);
+      out.object();
+      out.key("title").value("benchmark");
+      out.key("images").array();
+      src.each(p -> out.value(p.toJSON()));
+      out.endArray();
+      out.endObject();
+      w.close();
+   }
+
+   // and now: the same bytes out of DetailCache
+   private static void cached
+   (Source src, TokenUtils.Perms perms, Sink sink) throws Exception
+   {
+      OutputStream out = new BufferedOutputStream(sink, BUFFER);
+      out.write("{\"title\":\"benchmark\",\"images\":["
+                .getBytes(StandardCharsets.UTF_8));
+      src.cached(new DetailCache.Writer(out, perms));
+      out.write(']');
+      out.write('}');
+      out.close();
+   }
+
+   /**
+    * counts what's written to it, notes when the first of it came,
+    * and if asked, how much heap is live every so often
+    */
+
+   private static class Sink extends OutputStream
+   {
+      long first = 0;
+      long bytes = 0;
+      long base;
+      long peak = 0;
+      final boolean sample;
+      long next = 0;
+
+      Sink(boolean sample)
+      {
+         this.sample = sample;
+         this.base = sample ? live() : 0;
+      }
+
+      public void write(byte[] buf, int off, int len)
+      {
+         if (this.first == 0) this.first = System.nanoTime();
+         if (this.sample && this.bytes >= this.next) {
+            this.peak = Math.max(this.peak, live());
+            this.next += 256 * 1024;
+         }
+         this.bytes += len;
+      }
+
+      public void write(int b)
+      {
+         write(new byte[] { (byte)b }, 0, 1);
+      }
+
+      private static long live()
+      {
+         Runtime r = Runtime.getRuntime();
+         r.gc();
+         r.gc();
+         return r.totalMemory() - r.freeMemory();
+      }
+   }
+
+   // n made-up Photos, about as full as real ones
+   private static Source made(int n)
+   {
+      return new Source() {
+         public List<Photo> all() {
+            List<Photo> ret = new ArrayList<Photo>(n);
+            Random r = new Random(1);
+            for (int i = 1; i <= n; i++) ret.add(photo(i, r));
+            return ret;
+         }
+         public void each(Photo.Each each) throws IOException {
+            Random r = new Random(1);
+            for (int i = 1; i <= n; i++) each.photo(photo(i, r));
+         }
+         public void cached(DetailCache.Writer w)
+         throws SQLException, IOException {
+            // the first time, put them all in DetailCache
+            if (ids.size() == 0) {
+               each(w);
+               for (int i = 1; i <= n; i++) ids.add(i);
+            } else {
+               w.ids(null, ids);
+            }
+         }
+         final List<Integer> ids = new ArrayList<Integer>();
+      };
+   }
+
+   private static Photo photo(int id, Random r)
+   {
+      Photo p = new Photo(id);
+      p.aperture = "f/" + (2 + r.nextInt(14));
+      p.camera = "Canon EOS 5D Mark " + (2 + r.nextInt(3));
+      p.cap = "Caption number " + id + " about somebody doing something";
+      p.date = "2019-0" + (1 + r.nextInt(9)) + "-1" + r.nextInt(10);
+      p.exposure = "1/" + (30 + r.nextInt(1000));
+      p.file = "IMG_" + (1000 + id) + ".CR2";
+      p.focallen = (24 + r.nextInt(150)) + "mm";
+      p.height = 4000;
+      p.width = 6000;
+      p.rotation = 0;
+      p.timezone = "America/Los_Angeles";
+      p.ts = new Timestamp(1546300800000L + id * 60000L);
+      p.isnew.set(false);
+      p.flash.set(r.nextBoolean());
+      p.permlevel = TokenUtils.Perms.READ;
+      p.location = new Photo.LocationNode(r.nextInt(5000),
+                                          "Somewhere " + r.nextInt(5000));
+      p.tags = new ArrayList<Photo.idThing>();
+      p.tags.add(new Photo.idThing(20 + r.nextInt(400), "upload tag"));
+      if (r.nextInt(3) == 0) p.tags.add(new Photo.idThing(3, "family"));
+      p.people = new ArrayList<Photo.idThing>();
+      for (int j = r.nextInt(3); j > 0; j--) {
+         p.people.add(new Photo.idThing(r.nextInt(3000),
+                                        "First Last" + r.nextInt(3000)));
+      }
+      return p;
+   }
+
+   // what buffered() adds up from what it built, printed at the end
+   private static long check = 0;
+
+   // about what tomcat (or OutputStreamWriter) buffers before it
+   // sends anything
+   private static final int BUFFER = 8192;
+}
@@ -28,7 +28,7 @@ public class SuggestREST extends PhotoServlet
       JSONObject ret = new JSONObject();
       Array tag_ary = null;
       try {
-         tag_ary = db.createArrayOf
+         tag_ary = db().createArrayOf
             ("INTEGER", getPerms(req).writableTags().toArray());
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, "could not resolve tokens to tags");
@@ -51,7 +51,7 @@ public class SuggestREST extends PhotoServlet
             int loc = 1;
             try { loc = Integer.parseInt(req.getParameter("loc")); }
             catch (NumberFormatException ignored) { }
-            ret.put("loc", LocationREST.getLocationNode(db, loc));
+            ret.put("loc", LocationREST.getLocationNode(db(), loc));
          }
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, e.toString());
@@ -71,7 +71,7 @@ public class SuggestREST extends PhotoServlet
                         String dbfield, String jsonfield)
    throws SQLException
    {
-      PreparedStatement st = db.prepareStatement
+      PreparedStatement st = db().prepareStatement
          ("SELECT " + dbfield + " FROM image i INNER JOIN imagetag it " +
           "ON i.imageid=it.image WHERE it.tag = ANY(?) " +
           "GROUP BY 1 ORDER BY MAX(i.imageid) DESC;");
@@ -56,19 +56,37 @@ public class TagREST extends PhotoServlet
       Hashtable<Integer, TokenUtils.Tag> tagbag =
          new Hashtable<Integer, TokenUtils.Tag>();
 
+      // the short form only depends on your tag levels, so it can
+      // come from ResponseCache.  The verbose one has your tokens in
+      // it, and refcounts, which change without a DataVersion bump.
+      String key = null;
+      long version = DataVersion.get();
+      if (req.getParameter("v") == null) {
+         TokenUtils.Perms perms;
+         try { perms = getPerms(req); }
+         catch (SQLException e) {
+            res.sendError(SC_SERVFAIL, "" + e);
+            return;
+         }
+         if (perms.size() > 0) {
+            key = ResponseCache.key(perms.fingerprint(), req);
+            if (ResponseCache.serve(req, res, key)) return;
+         }
+      }
+
       try {
          // first we get information on the tokens you provided.
          // TODO: consider whether including the token itself is
          // actually needed.
          ArrayList<TokenUtils.Token> supplied_tokens =
             new ArrayList<TokenUtils.Token>();
-         PreparedStatement st = db.prepareStatement
+         PreparedStatement st = db().prepareStatement
             ("SELECT id, token, tag, refcode, refcount, maxref, " +
              "TO_CHAR(expiration, 'YYYY-MM-DD') expires, " +
              "level FROM token WHERE token = ANY(?) " +
              "AND (expiration IS NULL OR expiration > now());");
          st.setArray
-            (1, db.createArrayOf("TEXT", findCookie(req, "token").split(":")));
+            (1, db().createArrayOf("TEXT", findCookie(req, "token").split(":")));
          ResultSet rs = st.executeQuery();
          while (rs.next()) supplied_tokens.add(new TokenUtils.Token(rs));
          rs.close();
@@ -81,11 +99,11 @@ public class TagREST extends PhotoServlet
          for (TokenUtils.Token t : supplied_tokens) {
             tag_list.add(t.tag);
          }
-         st = db.prepareStatement
+         st = db().prepareStatement
             ("SELECT t.id, t.tag, t.description, count(it.id) n FROM tag t " +
              "INNER JOIN imagetag it ON t.id=it.tag " +
              "WHERE t.id=ANY(?) GROUP BY 1, 2, 3;");
-         st.setArray(1, db.createArrayOf("INTEGER", tag_list.toArray()));
+         st.setArray(1, db().createArrayOf("INTEGER", tag_list.toArray()));
          rs = st.executeQuery();
          while (rs.next()) {
             // this is just an 'assert' that we didn't somehow repeat
@@ -112,14 +130,14 @@ public class TagREST extends PhotoServlet
          tag_list.clear();
          for (TokenUtils.Tag t : tagbag.values())
             if (t.level >= TokenUtils.Perms.WRITE) tag_list.add(t.id);
-         st = db.prepareStatement
+         st = db().prepareStatement
             ("SELECT t2.id, t2.tag, t2.description, count(it2.id) n " +
              "FROM tag t1 INNER JOIN imagetag it1 ON t1.id=it1.tag " +
              "INNER JOIN imagetag it2 ON it1.image=it2.image " +
              "INNER JOIN tag t2 ON it2.tag=t2.id " +
              "WHERE t1.id = ANY(?) GROUP BY 1, 2;");
          // this is very legal & very cool
-         st.setArray(1, db.createArrayOf("INTEGER", tag_list.toArray()));
+         st.setArray(1, db().createArrayOf("INTEGER", tag_list.toArray()));
          rs = st.executeQuery();
          while (rs.next()) {
             TokenUtils.Tag tag = tagbag.get(rs.getInt("id"));
@@ -138,7 +156,12 @@ public class TagREST extends PhotoServlet
          if (req.getParameter("v") == null) {
             JSONArray ret = new JSONArray();
             for (TokenUtils.Tag t : tagbag.values()) ret.put(t.toMinJson());
-            sendJSON(res, ret);
+            if (key != null) {
+               ResponseCache.send(req, res, key, version, ret.toString(),
+                                  "text/json");
+            } else {
+               sendJSON(res, ret);
+            }
             return;
          }
 
@@ -147,12 +170,12 @@ public class TagREST extends PhotoServlet
          tag_list.clear();
          for (TokenUtils.Tag t : tagbag.values())
             if (t.level >= 3 || t.level == 0) tag_list.add(t.id);
-         st = db.prepareStatement
+         st = db().prepareStatement
             ("SELECT id, token, tag, refcode, refcount, maxref, " +
              "TO_CHAR(expiration, 'YYYY-MM-DD') expires, level " +
              "FROM token WHERE tag = ANY(?) " +
              "AND (expiration IS NULL OR expiration > now());");
-         st.setArray(1, db.createArrayOf("INTEGER", tag_list.toArray()));
+         st.setArray(1, db().createArrayOf("INTEGER", tag_list.toArray()));
          rs = st.executeQuery();
          while (rs.next()) {
             TokenUtils.Tag tag = tagbag.get(rs.getInt("tag"));
@@ -203,7 +226,13 @@ public class TagREST extends PhotoServlet
       int tagid = -1;
       try { tagid = Integer.parseInt(tag); }
       catch (NumberFormatException ignored) {}
-      if (tagid < 0) tagid = TokenUtils.lookupTag(tag, db);
+      if (tagid < 0) {
+         try { tagid = TokenUtils.lookupTag(tag, db()); }
+         catch (SQLException e) {
+            res.sendError(SC_SERVFAIL, "" + e);
+            return;
+         }
+      }
 
       // validate "img" parameter
       int imgid = -1;
@@ -214,20 +243,20 @@ public class TagREST extends PhotoServlet
       }
 
       try {
-         if (getPerms(req).imgPerm(imgid, db)  < TokenUtils.Perms.WRITE) {
+         if (getPerms(req).imgPerm(imgid, db())  < TokenUtils.Perms.WRITE) {
             res.sendError(SC_FORBIDDEN, "unable to modify that image");
             return;
          }
 
          switch (op) {
          case "add":
-            if (!tryAddTag(imgid, tagid, req, db)) {
+            if (!tryAddTag(imgid, tagid, req, db())) {
                res.sendError(SC_FORBIDDEN, "unable to add that tag");
                return;
             }
             break;
          case "del":
-            if (!tryDeleteTag(imgid, tagid, req, db)) {
+            if (!tryDeleteTag(imgid, tagid, req, db())) {
                res.sendError(SC_FORBIDDEN, "unable to delete that tag");
                return;
             }
@@ -259,6 +288,12 @@ public class TagREST extends PhotoServlet
       st.setInt(1, img);
       st.setInt(2, tag);
       st.executeUpdate();
+      ImageTagIndex.removed(img, tag);
+      SearchIndex.removed(img, tag);
+      TextIndex.reload(img, db);
+      LocationTree.changed();
+      DetailCache.invalidate(img);
+      DataVersion.changed();
       return true;
    }
 
@@ -275,6 +310,12 @@ public class TagREST extends PhotoServlet
       st.setInt(1, img);
       st.setInt(2, tag);
       st.executeUpdate();
+      ImageTagIndex.added(img, tag);
+      SearchIndex.added(img, tag);
+      TextIndex.reload(img, db);
+      LocationTree.changed();
+      DetailCache.invalidate(img);
+      DataVersion.changed();
       return true;
    }
 
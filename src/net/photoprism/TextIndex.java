@@ -0,0 +1,1017 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * Full-text search over each image's caption, title, place (and the
+ * places that place is inside), people and tag names, out of an
+ * inverted index in memory.  Every word a query has must be in the
+ * image somewhere, either as a whole word or as the start of one
+ * ("ber" finds "berkeley"); the images are ranked by BM25, with a
+ * word in the title or a person's name counting for more than one in
+ * the caption, and a whole word for more than a prefix.  What the
+ * viewer can see comes from SearchIndex, so search() says null until
+ * both are loaded.
+ *
+ * Like SearchIndex it is loaded in the background at startup, here by
+ * several threads at once, each with its own connection and its own
+ * range of imageids; each one tokenizes its range into a Slice and
+ * the slices are put together at the end.  Code in this JVM that
+ * changes an image's text, tags or people calls reload() for it:
+ * EditREST, UploadREST, ImageInserter and TagREST.
+ *
+ * @version 20261018
+ */
+
+public class TextIndex
+{
+   /**
+    * start loading in the background, if nobody has yet, with this
+    * many connections at once
+    */
+
+   public static void startLoad(ImageTagIndex.ConnectionSource src,
+                                int threads)
+   {
+      synchronized (TextIndex.class) {
+         if (loading || loaded) return;
+         loading = true;
+      }
+      Thread t = new Thread(() -> load(src, Math.max(1, threads)),
+                            "text-index-loader");
+      t.setDaemon(true);
+      t.start();
+      synchronized (TextIndex.class) { loader = t; }
+   }
+
+   /**
+    * interrupt the loader, if it's still going, so that the webapp
+    * can shut down without it.
+    *
+    * @return the thread to wait for, or null if there never was one
+    */
+
+   public static synchronized Thread stopLoad()
+   {
+      if (loader != null) loader.interrupt();
+      return loader;
+   }
+
+   public static boolean loaded()
+   {
+      return loaded;
+   }
+
+   /**
+    * the images the viewer can see that have every word of q, best
+    * first, or null if this or SearchIndex isn't loaded yet.
+    *
+    * @param offset how many of the best to skip, at most MAX_OFFSET
+    * @param limit how many to return after that
+    */
+
+   public static SearchIndex.Page search
+   (List<Integer> viewTags, String q, int offset, int limit)
+   {
+      if (!loaded) return null;
+      IdBitmap visible = SearchIndex.visibleImages(viewTags);
+      if (visible == null) return null;
+      long start = System.nanoTime();
+      SearchIndex.Page p;
+      lock.readLock().lock();
+      try {
+         p = search(visible, tokens(q), offset, limit);
+      } finally {
+         lock.readLock().unlock();
+      }
+      searches.incrementAndGet();
+      searchUs.addAndGet((System.nanoTime() - start) / 1000);
+      return p;
+   }
+
+   // read lock held
+   private static SearchIndex.Page search
+   (IdBitmap visible, List<String> words, int offset, int limit)
+   {
+      List<Integer> none = new ArrayList<Integer>();
+      if (words.isEmpty() || docs == 0) {
+         return new SearchIndex.Page(none, false, 0, false);
+      }
+
+      // what each word could be, rarest word first, since that one
+      // decides which images are even worth looking at
+      ArrayList<Term[]> terms = new ArrayList<Term[]>();
+      ArrayList<float[]> weights = new ArrayList<float[]>();
+      ArrayList<Long> sizes = new ArrayList<Long>();
+      for (String w : new HashSet<String>(words)) {
+         ArrayList<Term> ts = expand(w);
+         if (ts.isEmpty()) return new SearchIndex.Page(none, false, 0, false);
+         float[] wt = new float[ts.size()];
+         long n = 0;
+         for (int i = 0; i < wt.length; i++) {
+            wt[i] = ts.get(i).text.equals(w) ? 1f : PREFIX_WEIGHT;
+            n += ts.get(i).n;
+         }
+         int at = 0;
+         while (at < sizes.size() && sizes.get(at) <= n) at++;
+         terms.add(at, ts.toArray(new Term[0]));
+         weights.add(at, wt);
+         sizes.add(at, n);
+      }
+      float avg = (float)((double)totalLen / docs);
+
+      // the first word: its best score in each visible image it's in
+      int[] cand;
+      float[] score;
+      Term[] first = terms.get(0);
+      float[] fw = weights.get(0);
+      if (first.length == 1) {
+         Term t = first[0];
+         float idf = idf(t) * fw[0];
+         cand = new int[t.n];
+         score = new float[t.n];
+         int c = 0;
+         for (int i = 0; i < t.n; i++) {
+            int img = t.post[i] >>> TF_BITS;
+            if (!visible.contains(img)) continue;
+            cand[c] = img;
+            score[c++] = idf * bm25(t.post[i] & TF_MASK, img, avg);
+         }
+         cand = Arrays.copyOf(cand, c);
+         score = Arrays.copyOf(score, c);
+      } else if (sizes.get(0) * DENSE_RATIO > docLen.length) {
+         // so many that a score for every imageid is cheaper than
+         // merging the lists.  The array comes back all zeroes.
+         float[] best = scratch();
+         for (int j = 0; j < first.length; j++) {
+            Term t = first[j];
+            float idf = idf(t) * fw[j];
+            for (int i = 0; i < t.n; i++) {
+               int img = t.post[i] >>> TF_BITS;
+               float s = idf * bm25(t.post[i] & TF_MASK, img, avg);
+               if (s > best[img]) best[img] = s;
+            }
+         }
+         cand = new int[(int)Math.min(sizes.get(0), docLen.length)];
+         score = new float[cand.length];
+         int c = 0;
+         for (int img = 0; img < docLen.length; img++) {
+            if (best[img] == 0) continue;
+            if (visible.contains(img)) {
+               cand[c] = img;
+               score[c++] = best[img];
+            }
+            best[img] = 0;
+         }
+         unscratch(best);
+         cand = Arrays.copyOf(cand, c);
+         score = Arrays.copyOf(score, c);
+      } else {
+         // merge the words' lists, in imageid order, through a heap of
+         // which list is at the lowest imageid, so only the images in
+         // one are touched
+         int k = first.length;
+         int[] at = new int[k];
+         int[] cur = new int[k];
+         int[] heap = new int[k];
+         float[] idf = new float[k];
+         long total = 0;
+         for (int j = 0; j < k; j++) {
+            idf[j] = idf(first[j]) * fw[j];
+            total += first[j].n;
+            cur[j] = first[j].post[0] >>> TF_BITS;
+            int i = j;
+            for (; i > 0 && cur[j] < cur[heap[(i - 1) / 2]]; i = (i - 1) / 2) {
+               heap[i] = heap[(i - 1) / 2];
+            }
+            heap[i] = j;
+         }
+         cand = new int[(int)Math.min(total, docLen.length)];
+         score = new float[cand.length];
+         int c = 0;
+         int last = -1;
+         boolean seen = false;
+         while (k > 0) {
+            int j = heap[0];
+            Term t = first[j];
+            int img = cur[j];
+            if (img != last) {
+               last = img;
+               seen = visible.contains(img);
+               if (seen) {
+                  cand[c] = img;
+                  score[c++] = 0;
+               }
+            }
+            if (seen) {
+               float s = idf[j] * bm25(t.post[at[j]] & TF_MASK, img, avg);
+               if (s > score[c - 1]) score[c - 1] = s;
+            }
+            // on to the next in list j, or drop it; then sift down
+            if (++at[j] < t.n) {
+               cur[j] = t.post[at[j]] >>> TF_BITS;
+            } else {
+               j = heap[--k];
+            }
+            int v = cur[j];
+            int i = 0;
+            while (true) {
+               int m = 2 * i + 1;
+               if (m >= k) break;
+               if (m + 1 < k && cur[heap[m + 1]] < cur[heap[m]]) m++;
+               if (cur[heap[m]] >= v) break;
+               heap[i] = heap[m];
+               i = m;
+            }
+            if (k > 0) heap[i] = j;
+         }
+         cand = Arrays.copyOf(cand, c);
+         score = Arrays.copyOf(score, c);
+      }
+
+      // every other word: keep the images it's in too
+      for (int k = 1; k < terms.size() && cand.length > 0; k++) {
+         float[] cur = new float[cand.length];
+         Term[] ts = terms.get(k);
+         float[] wt = weights.get(k);
+         for (int j = 0; j < ts.length; j++) {
+            Term t = ts[j];
+            float idf = idf(t) * wt[j];
+            if ((long)cand.length * 16 < t.n) {
+               // a few images and a long list: look each one up
+               for (int i = 0; i < cand.length; i++) {
+                  int at = find(t, cand[i]);
+                  if (at < 0) continue;
+                  float s = idf * bm25(t.post[at] & TF_MASK, cand[i], avg);
+                  if (s > cur[i]) cur[i] = s;
+               }
+            } else {
+               int i = 0;
+               int p = 0;
+               while (i < cand.length && p < t.n) {
+                  int img = t.post[p] >>> TF_BITS;
+                  if (img < cand[i]) {
+                     p++;
+                  } else if (img > cand[i]) {
+                     i++;
+                  } else {
+                     float s = idf * bm25(t.post[p] & TF_MASK, img, avg);
+                     if (s > cur[i]) cur[i] = s;
+                     i++;
+                     p++;
+                  }
+               }
+            }
+         }
+         int c = 0;
+         for (int i = 0; i < cand.length; i++) {
+            if (cur[i] == 0) continue;
+            cand[c] = cand[i];
+            score[c++] = score[i] + cur[i];
+         }
+         cand = Arrays.copyOf(cand, c);
+         score = Arrays.copyOf(score, c);
+      }
+
+      return top(cand, score, Math.min(offset, MAX_OFFSET), limit);
+   }
+
+   /**
+    * the page of cand from offset, by score and then newest first,
+    * without sorting the ones that don't make it
+    */
+
+   private static SearchIndex.Page top
+   (int[] cand, float[] score, int offset, int limit)
+   {
+      int k = (int)Math.min(cand.length, (long)offset + limit);
+      // a min-heap of the k best, as score bits above imageid; scores
+      // are positive, so their bits sort the same way they do
+      long[] heap = new long[k];
+      int size = 0;
+      for (int i = 0; i < cand.length && k > 0; i++) {
+         long key = ((long)Float.floatToIntBits(score[i]) << 32) | cand[i];
+         if (size < k) {
+            int j = size++;
+            while (j > 0 && heap[(j - 1) / 2] > key) {
+               heap[j] = heap[(j - 1) / 2];
+               j = (j - 1) / 2;
+            }
+            heap[j] = key;
+         } else if (key > heap[0]) {
+            int j = 0;
+            while (true) {
+               int c = 2 * j + 1;
+               if (c >= size) break;
+               if (c + 1 < size && heap[c + 1] < heap[c]) c++;
+               if (heap[c] >= key) break;
+               heap[j] = heap[c];
+               j = c;
+            }
+            heap[j] = key;
+         }
+      }
+      Arrays.sort(heap, 0, size);
+      ArrayList<Integer> ids = new ArrayList<Integer>();
+      for (int i = size - 1 - offset; i >= 0; i--) ids.add((int)heap[i]);
+      return new SearchIndex.Page(ids, k < cand.length, cand.length, false);
+   }
+
+   /**
+    * an array of zeroes, one per imageid, to give back to unscratch()
+    * with zeroes in it again.  Only a few are kept, so a burst of
+    * searches doesn't leave one per request thread.  Read lock held.
+    */
+
+   private static float[] scratch()
+   {
+      synchronized (scratch) {
+         while (!scratch.isEmpty()) {
+            float[] f = scratch.pop();
+            if (f.length == docLen.length) return f;
+         }
+      }
+      return new float[docLen.length];
+   }
+
+   private static void unscratch(float[] f)
+   {
+      synchronized (scratch) {
+         if (scratch.size() < SCRATCH_MAX) scratch.push(f);
+      }
+   }
+
+   // BM25, as idf(t) * bm25(..)
+   private static float idf(Term t)
+   {
+      return (float)Math.log(1 + (docs - t.n + 0.5) / (t.n + 0.5));
+   }
+
+   private static float bm25(int tf, int img, float avg)
+   {
+      return tf * (K1 + 1) / (tf + K1 * (1 - B + B * docLen[img] / avg));
+   }
+
+   /**
+    * w itself, if it's a word anywhere, and the words that start with
+    * it, the commonest MAX_EXPANSIONS of them.  Read lock held.
+    */
+
+   private static ArrayList<Term> expand(String w)
+   {
+      ArrayList<Term> ret = new ArrayList<Term>();
+      Term exact = dict.get(w);
+      if (exact != null) ret.add(exact);
+      if (w.length() < MIN_PREFIX) return ret;
+      ArrayList<Term> more = new ArrayList<Term>
+         (dict.subMap(w, false, w + Character.MAX_VALUE, false).values());
+      if (more.size() > MAX_EXPANSIONS) {
+         more.sort((a, b) -> b.n - a.n);
+         more = new ArrayList<Term>(more.subList(0, MAX_EXPANSIONS));
+      }
+      ret.addAll(more);
+      return ret;
+   }
+
+   /**
+    * @return the words in s, lower case and without accents
+    */
+
+   public static List<String> tokens(String s)
+   {
+      List<String> ret = new ArrayList<String>();
+      if (s == null) return ret;
+      // most of it is plain ASCII, which doesn't need the slow part
+      boolean ascii = true;
+      for (int i = 0; i < s.length() && ascii; i++) ascii = s.charAt(i) < 128;
+      if (!ascii) {
+         s = Normalizer.normalize(s, Normalizer.Form.NFD)
+            .replaceAll("\\p{M}+", "");
+      }
+      s = s.toLowerCase(Locale.ROOT);
+      int i = 0;
+      while (i < s.length()) {
+         while (i < s.length() && !Character.isLetterOrDigit(s.charAt(i))) i++;
+         int j = i;
+         while (j < s.length() && Character.isLetterOrDigit(s.charAt(j))) j++;
+         if (j > i) ret.add(s.substring(i, j));
+         i = j;
+      }
+      return ret;
+   }
+
+   /**
+    * read these images' text again, after a change.  Deleted ones are
+    * dropped.
+    */
+
+   public static void reload(int img, Connection db) throws SQLException
+   {
+      reload(Arrays.asList(img), db);
+   }
+
+   public static void reload(Collection<Integer> imgs, Connection db)
+   throws SQLException
+   {
+      if (imgs.isEmpty()) return;
+      synchronized (TextIndex.class) {
+         if (loading) {
+            pendingReloads.addAll(imgs);
+            return;
+         }
+      }
+      if (!loaded) return;
+
+      // one at a time, from the query until the postings are fixed
+      // up, so a reload that read the old text can't land after one
+      // that read the new
+      reloading.lock();
+      try {
+         reloadLocked(imgs, db);
+      } finally {
+         reloading.unlock();
+      }
+      reloads.addAndGet(imgs.size());
+   }
+
+   // reloading held
+   private static void reloadLocked(Collection<Integer> imgs, Connection db)
+   throws SQLException
+   {
+      Map<Integer, String> places = places(db, false);
+      PreparedStatement st = StatementCache.prepare
+         (db, "textindex_images", SQL_DOCS + "AND i.imageid = ANY(?);");
+      st.setArray(1, db.createArrayOf("INTEGER", imgs.toArray()));
+      Slice s = new Slice();
+      s.add(st.executeQuery(), places, null);
+      if (s.missingPlace) {
+         places = places(db, true);
+         st.setArray(1, db.createArrayOf("INTEGER", imgs.toArray()));
+         s = new Slice();
+         s.add(st.executeQuery(), places, null);
+      }
+
+      lock.writeLock().lock();
+      try {
+         for (int img : imgs) remove(img);
+         install(s);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * one word's postings: imageid << TF_BITS | weighted count, in
+    * imageid order
+    */
+
+   private static class Term
+   {
+      final String text;
+      int[] post = new int[2];
+      int n = 0;
+
+      Term(String text)
+      {
+         this.text = text;
+      }
+
+      void add(int img, int tf)
+      {
+         int v = (img << TF_BITS) | Math.min(tf, TF_MASK);
+         if (this.n == this.post.length) {
+            this.post = Arrays.copyOf(this.post, this.n * 2);
+         }
+         if (this.n == 0 || (this.post[this.n - 1] >>> TF_BITS) < img) {
+            this.post[this.n++] = v;
+            return;
+         }
+         int at = -find(this, img) - 1;
+         System.arraycopy(this.post, at, this.post, at + 1, this.n - at);
+         this.post[at] = v;
+         this.n++;
+      }
+
+      void remove(int img)
+      {
+         int at = find(this, img);
+         if (at < 0) return;
+         System.arraycopy(this.post, at + 1, this.post, at, this.n - at - 1);
+         this.n--;
+      }
+   }
+
+   // where img is in t's postings, or -(insertion point) - 1
+   private static int find(Term t, int img)
+   {
+      int a = 0;
+      int b = t.n - 1;
+      while (a <= b) {
+         int m = (a + b) >>> 1;
+         int v = t.post[m] >>> TF_BITS;
+         if (v < img) a = m + 1;
+         else if (v > img) b = m - 1;
+         else return m;
+      }
+      return -(a + 1);
+   }
+
+   /**
+    * some images, tokenized, with their own dictionary, before they go
+    * into the index.  A loader thread fills one of these for its range
+    * of imageids without any lock, so the only part done under the
+    * write lock is appending postings.
+    */
+
+   private static class Slice
+   {
+      final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+      final ArrayList<String> words = new ArrayList<String>();
+      int[] imgs = new int[64];
+      int[] lens = new int[64];
+      // each image's words, as { word, count, word, count.. }
+      int[][] doc = new int[64][];
+      int n = 0;
+      boolean missingPlace = false;
+
+      /**
+       * @param tagNames if not null, the names of the tags, and the
+       * tags come from ImageTagIndex instead of the query
+       */
+
+      void add(ResultSet rs, Map<Integer, String> places,
+               Map<Integer, String> tagNames)
+      throws SQLException
+      {
+         while (rs.next()) {
+            ImageTagIndex.checkInterrupted();
+            int img = rs.getInt(1);
+            int loc = rs.getInt(4);
+            String place = places.get(loc);
+            if (place == null && loc != 0) missingPlace = true;
+            String tags = rs.getString(6);
+            if (tagNames != null) {
+               StringBuilder sb = new StringBuilder();
+               int[] t = ImageTagIndex.get(img);
+               if (t != null) {
+                  for (int tag : t) {
+                     String name = tagNames.get(tag);
+                     if (name != null) sb.append(name).append(' ');
+                  }
+               }
+               tags = sb.toString();
+            }
+            add(img, rs.getString(2), rs.getString(3), place,
+                rs.getString(5), tags);
+         }
+         rs.close();
+      }
+
+      void add(int img, String caption, String title, String place,
+               String people, String tags)
+      {
+         if (img >= (1 << (32 - TF_BITS)) || img <= 0) return;
+         HashMap<Integer, Integer> tf = new HashMap<Integer, Integer>();
+         int len = 0;
+         len += count(tf, caption, W_CAPTION);
+         len += count(tf, title, W_TITLE);
+         len += count(tf, place, W_PLACE);
+         len += count(tf, people, W_PERSON);
+         len += count(tf, tags, W_TAG);
+         if (this.n == this.imgs.length) {
+            this.imgs = Arrays.copyOf(this.imgs, this.n * 2);
+            this.lens = Arrays.copyOf(this.lens, this.n * 2);
+            this.doc = Arrays.copyOf(this.doc, this.n * 2);
+         }
+         int[] d = new int[tf.size() * 2];
+         int k = 0;
+         for (Map.Entry<Integer, Integer> e : tf.entrySet()) {
+            d[k++] = e.getKey();
+            d[k++] = e.getValue();
+         }
+         this.imgs[this.n] = img;
+         this.lens[this.n] = len;
+         this.doc[this.n++] = d;
+      }
+
+      private int count(HashMap<Integer, Integer> tf, String s, int weight)
+      {
+         int len = 0;
+         for (String w : tokens(s)) {
+            Integer id = this.ids.get(w);
+            if (id == null) {
+               id = this.words.size();
+               this.ids.put(w, id);
+               this.words.add(w);
+            }
+            tf.merge(id, weight, Integer::sum);
+            len += weight;
+         }
+         return len;
+      }
+   }
+
+   /**
+    * s's images into the index.  They mustn't be in it already.
+    * Write lock held.
+    */
+
+   private static void install(Slice s)
+   {
+      Term[] terms = new Term[s.words.size()];
+      for (int i = 0; i < terms.length; i++) {
+         String w = s.words.get(i);
+         terms[i] = dict.computeIfAbsent(w, Term::new);
+      }
+      for (int i = 0; i < s.n; i++) {
+         int img = s.imgs[i];
+         grow(img);
+         int[] d = s.doc[i];
+         Term[] mine = new Term[d.length / 2];
+         for (int j = 0; j < d.length; j += 2) {
+            Term t = terms[d[j]];
+            t.add(img, d[j + 1]);
+            mine[j / 2] = t;
+         }
+         docTerms[img] = mine;
+         docLen[img] = s.lens[i];
+         totalLen += s.lens[i];
+         docs++;
+      }
+   }
+
+   // write lock held
+   private static void remove(int img)
+   {
+      if (img >= docTerms.length || docTerms[img] == null) return;
+      for (Term t : docTerms[img]) {
+         t.remove(img);
+         if (t.n == 0) dict.remove(t.text);
+      }
+      docTerms[img] = null;
+      totalLen -= docLen[img];
+      docLen[img] = 0;
+      docs--;
+   }
+
+   private static void grow(int img)
+   {
+      if (img < docLen.length) return;
+      int n = Math.max(img + 1, docLen.length * 2);
+      docLen = Arrays.copyOf(docLen, n);
+      docTerms = Arrays.copyOf(docTerms, n);
+   }
+
+   private static void load(ImageTagIndex.ConnectionSource src, int threads)
+   {
+      long start = System.currentTimeMillis();
+      try (Connection db = src.get()) {
+         Map<Integer, String> places = places(db, true);
+         // imagetag has already been read once, by ImageTagIndex
+         Map<Integer, String> tagNames =
+            ImageTagIndex.awaitLoad() ? tagNames(db) : null;
+         String sql = (tagNames == null) ? SQL_DOCS : SQL_DOCS_UNTAGGED;
+         int lo = 0;
+         int hi = 0;
+         ResultSet rs = db.createStatement().executeQuery
+            ("SELECT COALESCE(MIN(imageid), 0), COALESCE(MAX(imageid), 0) " +
+             "FROM image;");
+         if (rs.next()) {
+            lo = rs.getInt(1);
+            hi = rs.getInt(2) + 1;
+         }
+         rs.close();
+
+         Slice[] slices = build(threads, lo, hi, (from, to) -> {
+               Slice s = new Slice();
+               try (Connection c = src.get()) {
+                  // a cursor, so pgjdbc doesn't hold a whole range at
+                  // once; that only works outside autocommit
+                  c.setAutoCommit(false);
+                  try (PreparedStatement st = c.prepareStatement
+                       (sql + "AND i.imageid >= ? AND i.imageid < ?;")) {
+                     st.setFetchSize(10000);
+                     st.setInt(1, from);
+                     st.setInt(2, to);
+                     s.add(st.executeQuery(), places, tagNames);
+                  } finally {
+                     c.rollback();
+                     c.setAutoCommit(true);
+                  }
+               }
+               return s;
+            });
+
+         lock.writeLock().lock();
+         try {
+            for (Slice s : slices) install(s);
+         } finally {
+            lock.writeLock().unlock();
+         }
+         List<Integer> again;
+         synchronized (TextIndex.class) {
+            loading = false;
+            loaded = true;
+            again = new ArrayList<Integer>(pendingReloads);
+            pendingReloads.clear();
+         }
+         loadMs = System.currentTimeMillis() - start;
+         loadThreads = threads;
+         reload(again, db);
+      } catch (SQLException e) {
+         loadErrors.incrementAndGet();
+         synchronized (TextIndex.class) {
+            loading = false;
+            pendingReloads.clear();
+         }
+      }
+   }
+
+   /**
+    * for TextIndexBench: throws the index away and builds it again
+    * with threads, out of made.apply(img) = { caption, title, place,
+    * people, tags } for imageids 1..n.
+    *
+    * @return the ns spent tokenizing, then installing
+    */
+
+   static long[] rebuild(int threads, int n, IntFunction<String[]> made)
+   {
+      lock.writeLock().lock();
+      try {
+         dict.clear();
+         docTerms = new Term[1024][];
+         docLen = new int[1024];
+         totalLen = 0;
+         docs = 0;
+         long t0 = System.nanoTime();
+         Slice[] slices = build(threads, 1, n + 1, (from, to) -> {
+               Slice s = new Slice();
+               for (int i = from; i < to; i++) {
+                  String[] d = made.apply(i);
+                  s.add(i, d[0], d[1], d[2], d[3], d[4]);
+               }
+               return s;
+            });
+         long t1 = System.nanoTime();
+         for (Slice s : slices) install(s);
+         return new long[] { t1 - t0, System.nanoTime() - t1 };
+      } catch (SQLException e) {
+         throw new IllegalStateException(e);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // for TextIndexBench: one image's words replaced, as reload() does
+   static void replace(int img, String[] d)
+   {
+      Slice s = new Slice();
+      s.add(img, d[0], d[1], d[2], d[3], d[4]);
+      lock.writeLock().lock();
+      try {
+         remove(img);
+         install(s);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // for TextIndexBench: search() by what's visible, not by tags
+   static SearchIndex.Page search
+   (IdBitmap visible, List<String> words, int limit)
+   {
+      lock.readLock().lock();
+      try {
+         return search(visible, words, 0, limit);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // how many different words there are
+   static int words()
+   {
+      lock.readLock().lock();
+      try {
+         return dict.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * makes the Slice for imageids from..to-1
+    */
+
+   private interface Range
+   {
+      Slice get(int from, int to) throws SQLException;
+   }
+
+   /**
+    * [lo, hi) cut into 4 ranges per thread, which threads take in turn
+    * as they finish, so one slow range doesn't hold up the rest
+    */
+
+   private static Slice[] build(int threads, int lo, int hi, Range range)
+   throws SQLException
+   {
+      int parts = threads * 4;
+      long step = Math.max(1, ((long)hi - lo + parts - 1) / parts);
+      Slice[] ret = new Slice[parts];
+      SQLException[] err = new SQLException[1];
+      AtomicLong next = new AtomicLong(0);
+      Thread[] ts = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+         ts[i] = new Thread(() -> {
+               for (int p = (int)next.getAndIncrement(); p < parts;
+                    p = (int)next.getAndIncrement()) {
+                  int from = (int)Math.min(hi, lo + p * step);
+                  int to = (int)Math.min(hi, lo + (p + 1) * step);
+                  try {
+                     ret[p] = range.get(from, to);
+                  } catch (SQLException e) {
+                     synchronized (err) { err[0] = e; }
+                     return;
+                  }
+               }
+            }, "text-index-loader-" + i);
+         ts[i].start();
+      }
+      for (Thread t : ts) {
+         try {
+            t.join();
+         } catch (InterruptedException e) {
+            // stopLoad(): the workers give up at their next row
+            for (Thread w : ts) w.interrupt();
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted", e);
+         }
+      }
+      synchronized (err) {
+         if (err[0] != null) throw err[0];
+      }
+      return ret;
+   }
+
+   /**
+    * each location's description and the descriptions of the places
+    * it's inside, by locationid.  Kept, since locations only get
+    * added; fresh asks for them again.
+    */
+
+   private static Map<Integer, String> places(Connection db, boolean fresh)
+   throws SQLException
+   {
+      Map<Integer, String> p = placeCache;
+      if (!fresh && !p.isEmpty()) return p;
+      HashMap<Integer, String> desc = new HashMap<Integer, String>();
+      HashMap<Integer, Integer> parent = new HashMap<Integer, Integer>();
+      PreparedStatement st = StatementCache.prepare
+         (db, "textindex_places",
+          "SELECT locationid, COALESCE(parent, 0), description " +
+          "FROM location;");
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+         desc.put(rs.getInt(1), rs.getString(3));
+         parent.put(rs.getInt(1), rs.getInt(2));
+      }
+      rs.close();
+      HashMap<Integer, String> ret = new HashMap<Integer, String>();
+      for (int id : desc.keySet()) {
+         StringBuilder sb = new StringBuilder();
+         HashSet<Integer> seen = new HashSet<Integer>();
+         for (Integer l = id; l != null && seen.add(l); l = parent.get(l)) {
+            if (desc.get(l) != null) sb.append(desc.get(l)).append(' ');
+         }
+         ret.put(id, sb.toString());
+      }
+      // a new map each time, never changed once it's published, so
+      // a reload reading the old one isn't disturbed
+      p = Collections.unmodifiableMap(ret);
+      placeCache = p;
+      return p;
+   }
+
+   private static Map<Integer, String> tagNames(Connection db)
+   throws SQLException
+   {
+      HashMap<Integer, String> ret = new HashMap<Integer, String>();
+      ResultSet rs = db.createStatement().executeQuery
+         ("SELECT id, tag FROM tag;");
+      while (rs.next()) ret.put(rs.getInt(1), rs.getString(2));
+      rs.close();
+      return ret;
+   }
+
+   static long bytes()
+   {
+      lock.readLock().lock();
+      try {
+         long b = docLen.length * 8L;
+         for (Term t : dict.values()) {
+            b += 96 + t.text.length() * 2 + t.post.length * 4;
+         }
+         for (Term[] d : docTerms) if (d != null) b += 16 + d.length * 4;
+         return b;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // BM25's usual constants
+   private static final float K1 = 1.2f;
+   private static final float B = 0.75f;
+   // how much a word counts, by where in the image it is
+   private static final int W_CAPTION = 1;
+   private static final int W_TITLE = 3;
+   private static final int W_PLACE = 1;
+   private static final int W_PERSON = 2;
+   private static final int W_TAG = 1;
+   // a word that only starts with what was asked for
+   private static final float PREFIX_WEIGHT = 0.7f;
+   static final int MIN_PREFIX = 2;
+   static final int MAX_EXPANSIONS = 64;
+   // a word's lists cover more than 1/DENSE_RATIO of the imageids:
+   // score into an array by imageid rather than merging them
+   private static final int DENSE_RATIO = 8;
+   private static final int SCRATCH_MAX = 2;
+   /** the furthest into the results search() will page */
+   public static final int MAX_OFFSET = 10000;
+   // a posting is imageid << TF_BITS | count, so imageids must be
+   // under 2^27
+   private static final int TF_BITS = 5;
+   private static final int TF_MASK = (1 << TF_BITS) - 1;
+
+   // caption, title, location, people, tag names
+   private static final String SQL_DOCS_PEOPLE =
+      "SELECT i.imageid, i.caption, i.title, COALESCE(i.location, 0), " +
+      "(SELECT string_agg(CONCAT(p.firstname, ' ', p.lastname), ' ') " +
+      " FROM imagesubject s INNER JOIN person p ON s.subject = p.personid " +
+      " WHERE s.image = i.imageid), ";
+   private static final String SQL_DOCS = SQL_DOCS_PEOPLE +
+      "(SELECT string_agg(t.tag, ' ') FROM imagetag it " +
+      " INNER JOIN tag t ON it.tag = t.id WHERE it.image = i.imageid) " +
+      "FROM image i WHERE i.deleted IS NULL ";
+   // the same with the tag names left for Slice.add() to fill in
+   private static final String SQL_DOCS_UNTAGGED = SQL_DOCS_PEOPLE +
+      "NULL FROM image i WHERE i.deleted IS NULL ";
+
+   private static final ReentrantReadWriteLock lock =
+      new ReentrantReadWriteLock();
+   // the rest are guarded by lock
+   private static final TreeMap<String, Term> dict =
+      new TreeMap<String, Term>();
+   private static Term[][] docTerms = new Term[1024][];
+   private static int[] docLen = new int[1024];
+   private static long totalLen = 0;
+   private static int docs = 0;
+
+   // taken before lock, by reload()
+   private static final ReentrantLock reloading = new ReentrantLock();
+
+   private static final ArrayDeque<float[]> scratch = new ArrayDeque<float[]>();
+
+   private static volatile Map<Integer, String> placeCache =
+      Collections.emptyMap();
+
+   private static volatile boolean loaded = false;
+   private static boolean loading = false;
+   private static Thread loader = null;
+   private static final HashSet<Integer> pendingReloads = new HashSet<Integer>();
+   private static volatile long loadMs = 0;
+   private static volatile long loadThreads = 0;
+
+   private static final AtomicLong searches = Vars.counter("textindex_searches");
+   private static final AtomicLong searchUs = Vars.counter("textindex_us_total");
+   private static final AtomicLong reloads = Vars.counter("textindex_reloads");
+   private static final AtomicLong loadErrors =
+      Vars.counter("textindex_load_errors");
+
+   static {
+      Vars.gauge("textindex_load_ms", () -> loadMs);
+      Vars.gauge("textindex_load_threads", () -> loadThreads);
+      Vars.gauge("textindex_bytes", () -> loaded ? bytes() : 0);
+      Vars.gauge("textindex_words", TextIndex::words);
+   }
+}
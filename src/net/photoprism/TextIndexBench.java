@@ -0,0 +1,244 @@
+package net.photoprism;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Times TextIndex on made-up images: builds the index with one thread
+ * and then with threads, and times some searches against a viewer who
+ * can see about 60% of the images.  Each search's total is checked
+ * against a brute-force scan for the same words (where a short prefix
+ * stands for its commonest MAX_EXPANSIONS words).
+ *
+ * java net.photoprism.TextIndexBench [images] [threads] [iterations]
+ *
+ * @version 20261018
+ */
+
+public class TextIndexBench
+{
+   public static void main(String[] args)
+   {
+      int nimg = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+      int threads = (args.length > 1) ? Integer.parseInt(args[1])
+         : Runtime.getRuntime().availableProcessors();
+      int iters = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+      Made m = new Made(nimg);
+
+      for (int t : new int[] { 1, threads }) {
+         long[] ns = TextIndex.rebuild(t, nimg, m::doc);
+         System.out.printf("build %2d threads: tokenize %7.0f ms   " +
+                           "install %6.0f ms   %d images, %d words%n",
+                           t, ns[0] / 1e6, ns[1] / 1e6, nimg,
+                           TextIndex.words());
+      }
+      System.out.printf("%d KB%n", TextIndex.bytes() / 1024);
+
+      Random r = new Random(3);
+      int[] vis = new int[nimg];
+      int nv = 0;
+      for (int i = 1; i <= nimg; i++) if (r.nextInt(10) < 6) vis[nv++] = i;
+      IdBitmap visible = IdBitmap.of(vis, nv);
+      Brute brute = new Brute(m);
+
+      String[] queries = {
+         m.word(0), m.word(5000), m.word(40), m.word(12).substring(0, 2),
+         m.word(300).substring(0, 4), m.word(3) + " " + m.word(90),
+         m.person(17), m.place(40), m.tags[7], m.tags[7] + " " + m.word(1),
+      };
+      for (String q : queries) {
+         List<String> words = TextIndex.tokens(q);
+         SearchIndex.Page p = null;
+         for (int i = 0; i < iters; i++) {
+            p = TextIndex.search(visible, words, 100);
+         }
+         long t0 = System.nanoTime();
+         for (int i = 0; i < iters; i++) {
+            p = TextIndex.search(visible, words, 100);
+         }
+         long t1 = System.nanoTime();
+         long n = brute.count(visible, words);
+         System.out.printf("%-28s %7d hits %9.1f us %s%n", "\"" + q + "\"",
+                           p.total, (t1 - t0) / 1000.0 / iters,
+                           (n == p.total) ? "" : "(brute force " + n + ")");
+      }
+
+      // edits, one image at a time, the way EditREST and TagREST do it
+      long t0 = System.nanoTime();
+      for (int i = 0; i < 1000; i++) {
+         int img = 1 + r.nextInt(nimg);
+         String[] d = m.doc(img);
+         d[0] += " edited";
+         TextIndex.replace(img, d);
+      }
+      System.out.printf("reload one image %9.1f us%n",
+                        (System.nanoTime() - t0) / 1000.0 / 1000);
+   }
+
+   /**
+    * every made-up image's words, as ids into one dictionary, and how
+    * many images each word is in, for counting matches the slow way
+    */
+
+   private static class Brute
+   {
+      final TreeMap<String, Integer> ids = new TreeMap<String, Integer>();
+      final ArrayList<Integer> df = new ArrayList<Integer>();
+      final int[][] doc;
+
+      Brute(Made m)
+      {
+         this.doc = new int[m.n + 1][];
+         for (int i = 1; i <= m.n; i++) {
+            HashSet<Integer> mine = new HashSet<Integer>();
+            for (String f : m.doc(i)) {
+               for (String w : TextIndex.tokens(f)) {
+                  Integer id = this.ids.get(w);
+                  if (id == null) {
+                     id = this.df.size();
+                     this.ids.put(w, id);
+                     this.df.add(0);
+                  }
+                  if (mine.add(id)) this.df.set(id, this.df.get(id) + 1);
+               }
+            }
+            this.doc[i] = mine.stream().mapToInt(Integer::intValue).toArray();
+         }
+      }
+
+      // what TextIndex.expand() makes of w
+      HashSet<Integer> expand(String w)
+      {
+         HashSet<Integer> ret = new HashSet<Integer>();
+         Integer exact = this.ids.get(w);
+         if (exact != null) ret.add(exact);
+         if (w.length() < TextIndex.MIN_PREFIX) return ret;
+         ArrayList<Integer> more = new ArrayList<Integer>
+            (this.ids.subMap(w, false, w + Character.MAX_VALUE, false)
+             .values());
+         more.sort((a, b) -> this.df.get(b) - this.df.get(a));
+         ret.addAll(more.subList(0, Math.min(more.size(),
+                                             TextIndex.MAX_EXPANSIONS)));
+         return ret;
+      }
+
+      long count(IdBitmap visible, List<String> words)
+      {
+         ArrayList<HashSet<Integer>> ws = new ArrayList<HashSet<Integer>>();
+         for (String w : new HashSet<String>(words)) ws.add(expand(w));
+         long n = 0;
+         for (int i = 1; i < this.doc.length; i++) {
+            if (!visible.contains(i)) continue;
+            boolean all = true;
+            for (HashSet<Integer> w : ws) {
+               boolean any = false;
+               for (int id : this.doc[i]) {
+                  if (w.contains(id)) {
+                     any = true;
+                     break;
+                  }
+               }
+               if (!any) {
+                  all = false;
+                  break;
+               }
+            }
+            if (all) n++;
+         }
+         return n;
+      }
+   }
+
+   /**
+    * made-up captions, titles, places, people and tags, the same
+    * every time for the same imageid
+    */
+
+   private static class Made
+   {
+      final int n;
+      final String[] tags = new String[400];
+      final String[] first = new String[300];
+      final String[] last = new String[500];
+      final String[] places = new String[5000];
+      final int[] parent = new int[5000];
+
+      Made(int n)
+      {
+         this.n = n;
+         Random r = new Random(1);
+         for (int i = 0; i < tags.length; i++) tags[i] = name(r, 2);
+         for (int i = 0; i < first.length; i++) first[i] = name(r, 2);
+         for (int i = 0; i < last.length; i++) last[i] = name(r, 3);
+         for (int i = 0; i < places.length; i++) {
+            places[i] = name(r, 3) + ((i % 3 == 0) ? " " + name(r, 2) : "");
+            parent[i] = (i < 20) ? -1 : r.nextInt(i / 4 + 1);
+         }
+      }
+
+      String[] doc(int img)
+      {
+         Random r = new Random(img * 7919L);
+         StringBuilder cap = new StringBuilder();
+         for (int i = 4 + r.nextInt(9); i > 0; i--) {
+            cap.append(word(zipf(r))).append(' ');
+         }
+         StringBuilder title = new StringBuilder();
+         if (r.nextBoolean()) {
+            for (int i = 1 + r.nextInt(3); i > 0; i--) {
+               title.append(word(zipf(r))).append(' ');
+            }
+         }
+         StringBuilder people = new StringBuilder();
+         for (int i = r.nextInt(3); i > 0; i--) {
+            people.append(person(r.nextInt(3000))).append(' ');
+         }
+         StringBuilder tg = new StringBuilder(tags[r.nextInt(tags.length)]);
+         if (r.nextInt(3) == 0) tg.append(' ').append(tags[3]);
+         return new String[] { cap.toString(), title.toString(),
+                               place(r.nextInt(places.length)),
+                               people.toString(), tg.toString() };
+      }
+
+      // the place and everything it's inside
+      String place(int p)
+      {
+         StringBuilder sb = new StringBuilder();
+         for (; p >= 0; p = parent[p]) sb.append(places[p]).append(' ');
+         return sb.toString();
+      }
+
+      String person(int p)
+      {
+         return first[p % first.length] + " " + last[p % last.length];
+      }
+
+      // word number i of a 50,000 word language
+      String word(int i)
+      {
+         return name(new Random(i * 31L + 5), 2 + i % 3);
+      }
+
+      // mostly the common words
+      private static int zipf(Random r)
+      {
+         double x = r.nextDouble();
+         return (int)(50000 * x * x * x);
+      }
+
+      private static String name(Random r, int syllables)
+      {
+         String c = "bcdfghjklmnprstvwz";
+         String v = "aeiou";
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < syllables; i++) {
+            sb.append(c.charAt(r.nextInt(c.length())));
+            sb.append(v.charAt(r.nextInt(v.length())));
+         }
+         return sb.toString();
+      }
+   }
+}
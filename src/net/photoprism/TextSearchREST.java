@@ -0,0 +1,83 @@
+package net.photoprism;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Searches captions, titles, places, people and tag names for words,
+ * out of TextIndex.
+ *
+ * @version 20261018
+ */
+
+public class TextSearchREST extends PhotoServlet
+{
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * <code>q</code> is the words.  An image has to have all of them,
+    * or words that start with them, and the best matches come first.
+    * <code>limit</code> (default 100) is how many to return and
+    * <code>offset</code> how many to skip.
+    *
+    * <p>The output is <code>{ ids: [..], total: 1234, next: 100 }</code>,
+    * with <code>next</code> the offset of the next page, if there is
+    * one.  Only images the tokens can see are counted.  503 until the
+    * index has loaded.</p>
+    */
+
+   public void doGet(HttpServletRequest req, HttpServletResponse res)
+   throws IOException
+   {
+      List<Integer> view_tags;
+      try { view_tags = getPerms(req).viewableTags(); }
+      catch (SQLException e) {
+         res.sendError(SC_SERVFAIL, e.toString());
+         return;
+      }
+      if (view_tags == null || view_tags.size() == 0) {
+         res.sendError(SC_FORBIDDEN, "no valid tokens");
+         return;
+      }
+
+      String q = req.getParameter("q");
+      if (q == null || TextIndex.tokens(q).isEmpty()) {
+         res.sendError(SC_BAD_REQUEST, "no search to do");
+         return;
+      }
+      int limit = DEFAULT_PAGE;
+      int offset = 0;
+      try {
+         String s = req.getParameter("limit");
+         if (s != null) limit = Integer.parseInt(s);
+         s = req.getParameter("offset");
+         if (s != null) offset = Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+         res.sendError(SC_BAD_REQUEST, "bad search: " + e.getMessage());
+         return;
+      }
+      limit = Math.max(1, Math.min(limit, SearchREST.MAX_PAGE));
+      offset = Math.max(0, Math.min(offset, TextIndex.MAX_OFFSET));
+
+      SearchIndex.Page page = TextIndex.search(view_tags, q, offset, limit);
+      if (page == null) {
+         res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                       "text index not loaded yet");
+         return;
+      }
+      JSONObject ret = new JSONObject();
+      ret.put("ids", new JSONArray(page.ids));
+      ret.put("total", page.total);
+      if (page.more && offset + limit <= TextIndex.MAX_OFFSET) {
+         ret.put("next", offset + limit);
+      }
+      sendJSON(res, ret);
+   }
+
+   private static final int DEFAULT_PAGE = 100;
+}
@@ -0,0 +1,454 @@
+package net.photoprism;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps small renditions packed end to end in a few big files that
+ * are memory-mapped, instead of one file apiece in pkeep's cache
+ * directory.  Serving a thumbnail out of here is a hash lookup and a
+ * copy out of the page cache: no open(), no stat(), no close(), and
+ * no file handle to leak.
+ *
+ * The files ("segments") are append-only.  Each record is
+ *
+ * <pre>
+ *   int magic, int imageid, int size, int crc32, int length,
+ *   short instlen, inst bytes (utf-8), length bytes of jpeg
+ * </pre>
+ *
+ * and a record with length -1 is a tombstone that kills every earlier
+ * record for that imageid.  The index from (imageid, size, inst) to
+ * (segment, offset, length) lives only in memory and is rebuilt by
+ * scanning the segments at startup, oldest first, so the newest
+ * record for a key wins.  The magic number is written last, which
+ * means a record that was half written when we died is just where
+ * the scan stops.
+ *
+ * Re-rendering an image or invalidating it leaves dead records
+ * behind.  Every few minutes, a full segment that is mostly dead has
+ * its live records copied into the current segment, and is deleted.
+ * Its tombstones go too, unless an older segment still has a record
+ * one of them keeps dead.
+ *
+ * @version 20261018
+ */
+
+public class ThumbStore
+{
+   /**
+    * open (or create) a store in dir.
+    *
+    * @param dir where the segments live; created if needed
+    * @param segmentBytes size of each segment file
+    * @param maxItemBytes largest rendition worth packing
+    */
+
+   public ThumbStore(File dir, int segmentBytes, int maxItemBytes)
+   throws IOException
+   {
+      this.dir = dir;
+      this.segmentBytes = segmentBytes;
+      this.maxItemBytes = maxItemBytes;
+      this.index = new ConcurrentHashMap<RenditionCache.Key, Loc>();
+      this.segments = new ArrayList<Segment>();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("can't create " + dir);
+      }
+
+      File[] files = dir.listFiles((d, n) -> n.startsWith("seg-") &&
+                                   n.endsWith(".dat"));
+      Arrays.sort(files);
+      for (File f : files) {
+         Segment s = new Segment(f, seqOf(f));
+         this.segments.add(s);
+         scan(s);
+      }
+      if (this.segments.isEmpty()) {
+         this.active = newSegment(1);
+      } else {
+         this.active = this.segments.get(this.segments.size() - 1);
+      }
+
+      this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "thumbstore-compactor");
+            t.setDaemon(true);
+            return t;
+         });
+      this.compactor.scheduleWithFixedDelay
+         (() -> compact(), COMPACT_INTERVAL_SECS, COMPACT_INTERVAL_SECS,
+          TimeUnit.SECONDS);
+
+      Vars.gauge("thumbstore_entries", () -> this.index.size());
+      Vars.gauge("thumbstore_segments", () -> this.segmentCount());
+      Vars.gauge("thumbstore_live_bytes", () -> this.liveBytes());
+   }
+
+   /**
+    * where one record's jpeg bytes are
+    */
+
+   private static class Loc
+   {
+      final Segment seg;
+      final int offset;      // of the record header
+      final int dataOffset;  // of the jpeg
+      final int length;
+
+      Loc(Segment seg, int offset, int dataOffset, int length)
+      {
+         this.seg = seg;
+         this.offset = offset;
+         this.dataOffset = dataOffset;
+         this.length = length;
+      }
+
+      int recordBytes() { return this.dataOffset - this.offset + this.length; }
+   }
+
+   private static class Segment
+   {
+      final File file;
+      final int seq;
+      final MappedByteBuffer buf;
+      int end = 0;                            // where the next record goes
+      final AtomicLong live = new AtomicLong(); // bytes of live records
+
+      Segment(File file, int seq) throws IOException
+      {
+         this.file = file;
+         this.seq = seq;
+         try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            this.buf = raf.getChannel().map
+               (FileChannel.MapMode.READ_WRITE, 0, raf.length());
+         }
+      }
+
+      int capacity() { return this.buf.capacity(); }
+   }
+
+   private Segment newSegment(int seq) throws IOException
+   {
+      File f = new File(this.dir, String.format("seg-%06d.dat", seq));
+      // sparse until written, so a mostly empty segment doesn't cost
+      // its full size on disk
+      try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+         raf.setLength(this.segmentBytes);
+      }
+      Segment s = new Segment(f, seq);
+      this.segments.add(s);
+      return s;
+   }
+
+   private static int seqOf(File f)
+   {
+      String n = f.getName();
+      return Integer.parseInt(n.substring(4, n.length() - 4));
+   }
+
+   /**
+    * rebuild the index from one segment, and find where it ends.
+    */
+
+   private void scan(Segment s)
+   {
+      ByteBuffer b = s.buf.duplicate();
+      int pos = 0;
+      while (pos + HEADER_BYTES <= b.capacity()) {
+         if (b.getInt(pos) != MAGIC) break;
+         int id = b.getInt(pos + 4);
+         int size = b.getInt(pos + 8);
+         int crc = b.getInt(pos + 12);
+         int len = b.getInt(pos + 16);
+         int instLen = b.getShort(pos + 20) & 0xffff;
+         int data = pos + HEADER_BYTES + instLen;
+         if (len == -1) {
+            dropId(id);
+            pos = data;
+            continue;
+         }
+         if (len < 0 || data + len > b.capacity()) break;
+         byte[] ib = new byte[instLen];
+         b.position(pos + HEADER_BYTES);
+         b.get(ib);
+         ByteBuffer jpeg = b.duplicate();
+         jpeg.position(data).limit(data + len);
+         CRC32 c = new CRC32();
+         c.update(jpeg);
+         if ((int)c.getValue() != crc) break;
+         RenditionCache.Key k = new RenditionCache.Key
+            (id, size, new String(ib, StandardCharsets.UTF_8));
+         Loc loc = new Loc(s, pos, data, len);
+         s.live.addAndGet(loc.recordBytes());
+         Loc old = this.index.put(k, loc);
+         if (old != null) old.seg.live.addAndGet(-old.recordBytes());
+         pos = data + len;
+      }
+      s.end = pos;
+   }
+
+   /**
+    * @return whether a rendition of this many bytes belongs here
+    */
+
+   public boolean wants(long length)
+   {
+      return length <= this.maxItemBytes;
+   }
+
+   /**
+    * @return a read-only view of the jpeg, or null if we don't have it
+    */
+
+   public ByteBuffer get(RenditionCache.Key k)
+   {
+      Loc loc = this.index.get(k);
+      if (loc == null) {
+         misses.incrementAndGet();
+         return null;
+      }
+      hits.incrementAndGet();
+      ByteBuffer b = loc.seg.buf.asReadOnlyBuffer();
+      b.position(loc.dataOffset).limit(loc.dataOffset + loc.length);
+      return b.slice();
+   }
+
+   public synchronized void put(RenditionCache.Key k, byte[] jpeg)
+   {
+      if (jpeg.length > this.maxItemBytes) return;
+      byte[] inst = k.inst.getBytes(StandardCharsets.UTF_8);
+      CRC32 c = new CRC32();
+      c.update(jpeg);
+      try {
+         Loc loc = append(k.id, k.size, (int)c.getValue(), inst, jpeg);
+         loc.seg.live.addAndGet(loc.recordBytes());
+         Loc old = this.index.put(k, loc);
+         if (old != null) old.seg.live.addAndGet(-old.recordBytes());
+         puts.incrementAndGet();
+      } catch (IOException e) {
+         errors.incrementAndGet();
+      }
+   }
+
+   /**
+    * forget every rendition of one image.  The tombstone makes this
+    * stick across a restart.
+    */
+
+   public synchronized void invalidate(int id)
+   {
+      try {
+         append(id, 0, 0, new byte[0], null);
+      } catch (IOException e) {
+         errors.incrementAndGet();
+      }
+      dropId(id);
+   }
+
+   private void dropId(int id)
+   {
+      Iterator<Map.Entry<RenditionCache.Key, Loc>> it =
+         this.index.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<RenditionCache.Key, Loc> e = it.next();
+         if (e.getKey().id == id) {
+            e.getValue().seg.live.addAndGet(-e.getValue().recordBytes());
+            it.remove();
+         }
+      }
+   }
+
+   /**
+    * write a record (or a tombstone, if jpeg is null) at the end of
+    * the active segment, starting a new one if it doesn't fit.
+    * Caller holds the lock.
+    */
+
+   private Loc append(int id, int size, int crc, byte[] inst, byte[] jpeg)
+   throws IOException
+   {
+      int len = (jpeg == null) ? 0 : jpeg.length;
+      int need = HEADER_BYTES + inst.length + len;
+      if (need > this.segmentBytes) throw new IOException("too big: " + need);
+      if (this.active.end + need > this.active.capacity()) {
+         this.active = newSegment(this.active.seq + 1);
+      }
+      Segment s = this.active;
+      int pos = s.end;
+      ByteBuffer b = s.buf.duplicate();
+      b.position(pos + 4);
+      b.putInt(id);
+      b.putInt(size);
+      b.putInt(crc);
+      b.putInt(jpeg == null ? -1 : len);
+      b.putShort((short)inst.length);
+      b.put(inst);
+      if (jpeg != null) b.put(jpeg);
+      // last, so a torn write is never mistaken for a record
+      b.putInt(pos, MAGIC);
+      s.end = pos + need;
+      return new Loc(s, pos, pos + HEADER_BYTES + inst.length, len);
+   }
+
+   /**
+    * copy the live records out of any full segment that is mostly
+    * garbage, then delete it.  Readers that already have a buffer
+    * into the old segment keep working, because the mapping lives on
+    * until the buffer is collected.
+    */
+
+   void compact()
+   {
+      List<Segment> victims = new ArrayList<Segment>();
+      synchronized (this) {
+         for (Segment s : this.segments) {
+            if (s == this.active) continue;
+            if (s.live.get() < (long)s.end * COMPACT_LIVE_PERCENT / 100) {
+               victims.add(s);
+            }
+         }
+      }
+      for (Segment s : victims) compact(s);
+   }
+
+   private synchronized void compact(Segment victim)
+   {
+      // A tombstone in the victim is only still needed if some older
+      // segment has a record it keeps dead; the rest are dropped.  The
+      // ones carried forward are written first, and every live record
+      // for their ids (wherever it is) copied after them, since on
+      // the next scan they kill everything earlier, including records
+      // that were written after the original tombstone.
+      Set<Integer> dead = ids(victim, true);
+      Set<Integer> older = new HashSet<Integer>();
+      for (Segment s : this.segments) {
+         if (s.seq < victim.seq) older.addAll(ids(s, false));
+      }
+      dead.retainAll(older);
+      Loc mark = null;
+      for (int id : dead) {
+         try { mark = append(id, 0, 0, new byte[0], null); }
+         catch (IOException x) { errors.incrementAndGet(); return; }
+      }
+
+      long moved = 0;
+      for (Map.Entry<RenditionCache.Key, Loc> e : this.index.entrySet()) {
+         Loc loc = e.getValue();
+         RenditionCache.Key k = e.getKey();
+         if (loc.seg != victim &&
+             !(dead.contains(k.id) && before(loc, mark))) continue;
+         byte[] jpeg = new byte[loc.length];
+         ByteBuffer b = loc.seg.buf.duplicate();
+         b.position(loc.dataOffset);
+         b.get(jpeg);
+         try {
+            Loc nl = append(k.id, k.size, loc.seg.buf.getInt(loc.offset + 12),
+                            k.inst.getBytes(StandardCharsets.UTF_8), jpeg);
+            nl.seg.live.addAndGet(nl.recordBytes());
+            loc.seg.live.addAndGet(-loc.recordBytes());
+            e.setValue(nl);
+            moved += loc.length;
+         } catch (IOException x) {
+            // leave the victim alone.  If a tombstone went out above,
+            // a restart before the next try loses those renditions,
+            // which just means rendering them again.
+            errors.incrementAndGet();
+            return;
+         }
+      }
+      this.segments.remove(victim);
+      if (!victim.file.delete()) errors.incrementAndGet();
+      compactions.incrementAndGet();
+      compactedBytes.addAndGet(moved);
+   }
+
+   /**
+    * @return the imageids of the tombstones in s, or if !tombstones,
+    * of all its records
+    */
+
+   private static Set<Integer> ids(Segment s, boolean tombstones)
+   {
+      Set<Integer> ret = new HashSet<Integer>();
+      ByteBuffer b = s.buf.duplicate();
+      int pos = 0;
+      while (pos < s.end) {
+         int len = b.getInt(pos + 16);
+         int instLen = b.getShort(pos + 20) & 0xffff;
+         if (len == -1 || !tombstones) ret.add(b.getInt(pos + 4));
+         pos += HEADER_BYTES + instLen + Math.max(len, 0);
+      }
+      return ret;
+   }
+
+   // whether a comes before b in scan order
+   private static boolean before(Loc a, Loc b)
+   {
+      return a.seg.seq < b.seg.seq ||
+         (a.seg == b.seg && a.offset < b.offset);
+   }
+
+   private synchronized int segmentCount()
+   {
+      return this.segments.size();
+   }
+
+   private synchronized long liveBytes()
+   {
+      long n = 0;
+      for (Segment s : this.segments) n += s.live.get();
+      return n;
+   }
+
+   public void close()
+   {
+      this.compactor.shutdownNow();
+   }
+
+   public String toString()
+   {
+      return "ThumbStore(" + this.dir + ", " + this.index.size() +
+         " entries in " + segmentCount() + " segments)";
+   }
+
+   private final File dir;
+   private final int segmentBytes;
+   private final int maxItemBytes;
+   private final ConcurrentHashMap<RenditionCache.Key, Loc> index;
+   private final List<Segment> segments;
+   private Segment active;
+   private final ScheduledExecutorService compactor;
+
+   private static final int MAGIC = 0x54484d42;  // "THMB"
+   private static final int HEADER_BYTES = 22;
+   public static final int DEFAULT_SEGMENT_BYTES = 64 * PhotoUtils.MB;
+   private static final int COMPACT_LIVE_PERCENT = 50;
+   private static final long COMPACT_INTERVAL_SECS = 300;
+
+   private static final AtomicLong hits = Vars.counter("thumbstore_hits");
+   private static final AtomicLong misses = Vars.counter("thumbstore_misses");
+   private static final AtomicLong puts = Vars.counter("thumbstore_puts");
+   private static final AtomicLong errors = Vars.counter("thumbstore_errors");
+   private static final AtomicLong compactions =
+      Vars.counter("thumbstore_compactions");
+   private static final AtomicLong compactedBytes =
+      Vars.counter("thumbstore_compacted_bytes");
+}
@@ -0,0 +1,56 @@
+package net.photoprism;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * For timing by hand: packs n fake thumbnails into a ThumbStore, also
+ * writes them one per file the way pkeep does, then reads them back
+ * at random both ways.
+ *
+ * java net.photoprism.ThumbStoreBench dir [n] [bytes]
+ *
+ * @version 20261018
+ */
+
+public class ThumbStoreBench
+{
+   public static void main(String[] args) throws IOException
+   {
+      File dir = new File(args[0]);
+      int n = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+      int bytes = args.length > 2 ? Integer.parseInt(args[2]) : 6000;
+      ThumbStore ts = new ThumbStore(new File(dir, "packed"),
+                                     ThumbStore.DEFAULT_SEGMENT_BYTES,
+                                     256 * 1024);
+      File loose = new File(dir, "loose");
+      byte[] jpeg = new byte[bytes];
+      new Random(1).nextBytes(jpeg);
+      for (int i = 0; i < n; i++) {
+         ts.put(new RenditionCache.Key(i, 192, ""), jpeg);
+         File d = new File(loose, String.format("%02d", i % 100));
+         d.mkdirs();
+         Files.write(new File(d, i + ".192.jpg").toPath(), jpeg);
+      }
+      Random r = new Random(2);
+      byte[] sink = new byte[bytes];
+      long start = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+         ts.get(new RenditionCache.Key(r.nextInt(n), 192, "")).get(sink);
+      }
+      long packed = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+         int id = r.nextInt(n);
+         File f = new File(new File(loose, String.format("%02d", id % 100)),
+                           id + ".192.jpg");
+         if (f.canRead()) sink = Files.readAllBytes(f.toPath());
+      }
+      long perFile = System.nanoTime() - start;
+      System.out.println(n + " reads: packed " + packed / n + "ns each, " +
+                         "one file apiece " + perFile / n + "ns each");
+      ts.close();
+   }
+}
@@ -84,7 +84,7 @@ public class TokenServlet extends PhotoServlet
       }
 
       try { 
-         PreparedStatement st = db.prepareStatement
+         PreparedStatement st = db().prepareStatement
             ("SELECT id, token, refcount, maxref, expiration, now() " +
              "FROM token WHERE refcode = ?;");
          st.setString(1, b.toString());
@@ -118,11 +118,12 @@ public class TokenServlet extends PhotoServlet
          res.addCookie(c);
 
          // update the reference count
-         st = db.prepareStatement
+         st = db().prepareStatement
             ("UPDATE token SET refcount = ? WHERE id = ?;");
          st.setInt(1, rs.getInt(3) + 1);
          st.setInt(2, rs.getInt(1));
          st.execute();
+         TokenUtils.invalidateToken(rs.getString(2));
 
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, e.toString());
@@ -173,7 +174,7 @@ public class TokenServlet extends PhotoServlet
       // either you have write access to "t", or nobody has write
       // access to "t".
       try {
-         if (!TokenUtils.canAddTag(tag, findCookie(req, "token"), db)) {
+         if (!TokenUtils.canAddTag(tag, findCookie(req, "token"), db())) {
             res.sendError(SC_FORBIDDEN);
             return;
          }
@@ -192,7 +193,7 @@ public class TokenServlet extends PhotoServlet
       String newcode = Integer.toString(sr.nextInt(100000000));
 
       try {
-         PreparedStatement st = db.prepareStatement
+         PreparedStatement st = db().prepareStatement
             ("INSERT INTO token " +
              "(token, tag, maxref, expiration, level, refcode) " +
              "VALUES (?, ?, ?, ?, ?, ?);");
@@ -203,6 +204,7 @@ public class TokenServlet extends PhotoServlet
          st.setInt(5, lvl);
          st.setString(6, newcode);
          st.executeUpdate();
+         TokenUtils.invalidateToken(newtoken);
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, e.toString());
          return;
@@ -220,8 +222,8 @@ public class TokenServlet extends PhotoServlet
    throws IOException
    {
       try {
-         PreparedStatement st = db.prepareStatement
-            ("SELECT id, tag FROM token WHERE refcode=?;");
+         PreparedStatement st = db().prepareStatement
+            ("SELECT id, tag, token FROM token WHERE refcode=?;");
          st.setString(1, req.getParameter("del"));
          ResultSet rs = st.executeQuery();
          if (!rs.next()) {
@@ -230,19 +232,22 @@ public class TokenServlet extends PhotoServlet
          }
          int tokenid = rs.getInt(1);
          int tagid = rs.getInt(2);
+         String token = rs.getString(3);
          rs.close();
 
          // the rule for whether you are allowed to delete a token is
          // the same as the rule for whether you would be allowed to
          // create that token.
-         if (!TokenUtils.canAddTag(tagid, findCookie(req, "token"), db)) {
+         if (!TokenUtils.canAddTag(tagid, findCookie(req, "token"), db())) {
             res.sendError(SC_FORBIDDEN);
             return;
          }
 
-         st = db.prepareStatement("DELETE FROM token WHERE id=?;");
+         st = db().prepareStatement("DELETE FROM token WHERE id=?;");
          st.setInt(1, tokenid);
          st.executeUpdate();
+         // cached Perms for anybody holding this token are now wrong
+         TokenUtils.invalidateToken(token);
       } catch (SQLException e) {
          res.sendError(SC_SERVFAIL, e.toString());
          return;
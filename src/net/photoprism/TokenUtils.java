@@ -1,13 +1,24 @@
 package net.photoprism;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -109,7 +120,10 @@ public class TokenUtils
 
    public static class Perms
    {
-      public Hashtable<Integer, Integer> tag_map;
+      public final Map<Integer, Integer> tag_map;
+      private final int[] perm_tags;
+      private final int[] perm_levels;
+      private String fingerprint = null;
       public static final int NONE = 0;
       public static final int READ = 1;
       public static final int DOWNLOAD = 2; // maybe not used?
@@ -118,27 +132,116 @@ public class TokenUtils
 
       public Perms() {
          this.tag_map = null;
+         this.perm_tags = new int[0];
+         this.perm_levels = new int[0];
       }
 
+      /**
+       * looks the cookie up in the database every time.  Servlets
+       * should use cached() instead.
+       */
+
       public Perms(String cookie, Connection db) throws SQLException {
-         this.tag_map = new Hashtable<Integer, Integer>();
-         if (cookie == null || "".equals(cookie)) return;
-         PreparedStatement st = db.prepareStatement
-            ("SELECT tag, level FROM token WHERE token = ANY(?) " +
+         this(load(cookie, db, null));
+      }
+
+      Perms(Map<Integer, Integer> tag_map) {
+         this.tag_map = tag_map;
+         // the same thing unboxed, sorted by tag, for imgPerm
+         this.perm_tags = new int[tag_map.size()];
+         this.perm_levels = new int[tag_map.size()];
+         int i = 0;
+         for (int tag : new TreeSet<Integer>(tag_map.keySet())) {
+            this.perm_tags[i] = tag;
+            this.perm_levels[i++] = tag_map.get(tag);
+         }
+      }
+
+      /**
+       * @param expiresIn if not null, element 0 is set to how many ms
+       * until the first of these tokens expires, or Long.MAX_VALUE
+       * @return { tagid: level } for the tokens in cookie, unmodifiable
+       */
+
+      private static Map<Integer, Integer> load
+      (String cookie, Connection db, long[] expiresIn) throws SQLException {
+         HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+         if (expiresIn != null) expiresIn[0] = Long.MAX_VALUE;
+         if (cookie == null || "".equals(cookie)) {
+            return Collections.unmodifiableMap(map);
+         }
+         PreparedStatement st = StatementCache.prepare
+            (db, "perms",
+             "SELECT tag, level, " +
+             "EXTRACT(EPOCH FROM expiration - now()) * 1000 " +
+             "FROM token WHERE token = ANY(?) " +
              "AND (expiration IS NULL OR expiration > now());");
          st.setArray(1, db.createArrayOf("TEXT", cookie.split(":")));
          ResultSet rs = st.executeQuery();
          while (rs.next()) {
             int tag = rs.getInt(1);
             int lvl = rs.getInt(2);
-            if (!this.tag_map.containsKey(tag)) {
-               this.tag_map.put(tag, lvl);
-            } else if (this.tag_map.get(tag) < lvl) {
-               this.tag_map.put(tag, lvl);
+            if (!map.containsKey(tag)) {
+               map.put(tag, lvl);
+            } else if (map.get(tag) < lvl) {
+               map.put(tag, lvl);
+            }
+            long ms = (long)rs.getDouble(3);
+            if (expiresIn != null && !rs.wasNull() && ms < expiresIn[0]) {
+               expiresIn[0] = ms;
             }
          }
          rs.close();
-         st.close();
+         return Collections.unmodifiableMap(map);
+      }
+
+      /**
+       * @return the cached Perms for this cookie, or null if there
+       * isn't a live one.  Doesn't need a database connection.
+       */
+
+      public static Perms peek(String cookie)
+      {
+         CachedPerms c = permsCache.get((cookie == null) ? "" : cookie);
+         if (c != null && c.until > System.currentTimeMillis()) {
+            permsHits.incrementAndGet();
+            return c.perms;
+         }
+         return null;
+      }
+
+      /**
+       * the same as new Perms(cookie, db), but remembers the answer
+       * for a while, so that the 60 thumbnails on a browse page don't
+       * make 60 trips to the token table.  An entry lives for
+       * permsCacheMs, or until the first of its tokens expires, or
+       * until invalidateToken() is called on any of its tokens,
+       * whichever comes first.  Perms objects are immutable so one
+       * can be shared by every request with the same cookie.
+       */
+
+      public static Perms cached(String cookie, Connection db)
+      throws SQLException
+      {
+         Perms p = peek(cookie);
+         if (p != null) return p;
+         if (cookie == null) cookie = "";
+         long now = System.currentTimeMillis();
+         permsMisses.incrementAndGet();
+         long gen = permsGeneration.get();
+         long[] expiresIn = new long[1];
+         p = new Perms(load(cookie, db, expiresIn));
+         if (permsCacheMs <= 0) return p;
+
+         long ttl = Math.min(permsCacheMs, expiresIn[0]);
+         if (ttl > 0) {
+            if (permsCache.size() >= permsCacheMax) trimPermsCache(now);
+            permsCache.put(cookie, new CachedPerms(p, now + ttl));
+            // if a token changed while we were reading, what we just
+            // put in may be stale; let the next request read again
+            if (permsGeneration.get() != gen) permsCache.remove(cookie);
+         }
+         return p;
       }
 
       public List<Integer> filteredTags(int min_level)
@@ -152,6 +255,32 @@ public class TokenUtils
          return ret;
       }
 
+      /**
+       * @return the same short string for any two Perms with the same
+       * tag levels, whatever tokens they came from, for caching
+       * answers that only depend on those
+       */
+
+      public String fingerprint() {
+         // two threads may both work it out; they get the same string
+         if (this.fingerprint == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < this.perm_tags.length; i++) {
+               sb.append(this.perm_tags[i]).append(':')
+                  .append(this.perm_levels[i]).append(',');
+            }
+            try {
+               MessageDigest md = MessageDigest.getInstance("SHA-256");
+               this.fingerprint = Base64.getUrlEncoder().withoutPadding()
+                  .encodeToString(md.digest(sb.toString().getBytes
+                                            (StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+               throw new IllegalStateException(e);
+            }
+         }
+         return this.fingerprint;
+      }
+
       public List<Integer> viewableTags()
       {
          return this.filteredTags(READ);
@@ -169,28 +298,107 @@ public class TokenUtils
 
       /**
        * given an imageid and a db connection, return the maximum of
-       * the permission levels represented by this.tag_map.
+       * the permission levels represented by this.tag_map.  Once the
+       * ImageTagIndex is loaded this doesn't touch the database.
        */
 
       public int imgPerm(int img, Connection db) throws SQLException
       {
-         int perm = this.NONE;
-         if (this.tag_map != null && this.tag_map.size() > 0) {
-            PreparedStatement st = db.prepareStatement
-               ("SELECT tag FROM imagetag WHERE image=?;");
-            st.setInt(1, img);
-            ResultSet rs = st.executeQuery();
-            while (rs.next()) {
-               if (this.tag_map.getOrDefault(rs.getInt(1), this.NONE) > perm) {
-                  perm = this.tag_map.get(rs.getInt(1));
-               }
+         if (this.perm_tags.length == 0) return this.NONE;
+         return ImageTagIndex.best(ImageTagIndex.fetch(img, db),
+                                   this.perm_tags, this.perm_levels);
+      }
+
+      /**
+       * imgPerm for a lot of images at once, with at most one query
+       * for the ones the index doesn't know.
+       *
+       * @return permission level for each of imgs, in the same order
+       */
+
+      public int[] imgPerms(int[] imgs, Connection db) throws SQLException
+      {
+         int[] ret = new int[imgs.length];
+         if (this.perm_tags.length == 0) return ret;
+         int[][] tags = ImageTagIndex.fetch(imgs, db);
+         for (int i = 0; i < imgs.length; i++) {
+            ret[i] = ImageTagIndex.best(tags[i], this.perm_tags,
+                                        this.perm_levels);
+         }
+         return ret;
+      }
+
+   }
+
+   private static class CachedPerms
+   {
+      final Perms perms;
+      final long until;
+
+      CachedPerms(Perms perms, long until)
+      {
+         this.perms = perms;
+         this.until = until;
+      }
+   }
+
+   /**
+    * forget every cached Perms whose cookie includes this token.  Call
+    * after anything changes a row in the token table.
+    */
+
+   public static void invalidateToken(String token)
+   {
+      if (token == null) return;
+      token = token.trim();
+      permsGeneration.incrementAndGet();
+      Iterator<String> i = permsCache.keySet().iterator();
+      while (i.hasNext()) {
+         for (String t : i.next().split(":")) {
+            if (t.trim().equals(token)) {
+               i.remove();
+               permsInvalidations.incrementAndGet();
+               break;
             }
-            rs.close();
-            st.close();
          }
-         return perm;
       }
+   }
+
+   /**
+    * @param maxEntries most cookies to remember
+    * @param ttlMs longest to remember one; 0 turns the cache off
+    */
+
+   public static void setPermsCache(int maxEntries, long ttlMs)
+   {
+      permsCacheMax = maxEntries;
+      permsCacheMs = ttlMs;
+      permsCache.clear();
+   }
+
+   private static void trimPermsCache(long now)
+   {
+      permsCache.values().removeIf(c -> c.until <= now);
+      // still full of live entries: start over rather than keep
+      // track of which ones are least recently used
+      if (permsCache.size() >= permsCacheMax) permsCache.clear();
+   }
+
+   private static final ConcurrentHashMap<String, CachedPerms> permsCache =
+      new ConcurrentHashMap<String, CachedPerms>();
+   private static final AtomicLong permsGeneration = new AtomicLong();
+   private static volatile int permsCacheMax = 10000;
+   private static volatile long permsCacheMs = 60000;
+
+   private static final AtomicLong permsHits =
+      Vars.counter("perms_cache_hits");
+   private static final AtomicLong permsMisses =
+      Vars.counter("perms_cache_misses");
+   private static final AtomicLong permsInvalidations =
+      Vars.counter("perms_cache_invalidations");
 
+   static {
+      Vars.gauge("perms_cache_size", () -> permsCache.size());
    }
 
    /**
@@ -208,8 +416,8 @@ public class TokenUtils
    throws SQLException
    {
       List<String> tokenlist = Arrays.asList(cookie.split(":"));
-      PreparedStatement st = db.prepareStatement
-         ("SELECT token, level FROM token WHERE token.tag=?;");
+      PreparedStatement st = StatementCache.prepare
+         (db, "canaddtag", "SELECT token, level FROM token WHERE token.tag=?;");
       st.setInt(1, tagid);
       ResultSet rs = st.executeQuery();
       boolean icanwrite = false;
@@ -224,7 +432,6 @@ public class TokenUtils
          }
       }
       rs.close();
-      st.close();
       return icanwrite || !someonecanwrite;
    }
 
@@ -242,8 +449,9 @@ public class TokenUtils
    throws SQLException
    {
       List<String> tokenlist = Arrays.asList(cookie.split(":"));
-      PreparedStatement st = db.prepareStatement
-         ("SELECT tag.id, t.token, t.level FROM token t " +
+      PreparedStatement st = StatementCache.prepare
+         (db, "canremovetag",
+          "SELECT tag.id, t.token, t.level FROM token t " +
           "INNER JOIN tag ON t.tag=tag.id " +
           "INNER JOIN imagetag it ON it.tag=tag.id " +
           "WHERE it.image = ?;");
@@ -274,8 +482,8 @@ public class TokenUtils
    {
       int tagid = -1;
       try {
-         PreparedStatement st = db.prepareStatement
-            ("SELECT id FROM tag WHERE tag=?;");
+         PreparedStatement st = StatementCache.prepare
+            (db, "lookuptag", "SELECT id FROM tag WHERE tag=?;");
          st.setString(1, tag);
          ResultSet rs = st.executeQuery();
          rs.next();
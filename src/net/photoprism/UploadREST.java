@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -161,6 +162,12 @@ public class UploadREST extends PhotoServlet
       StringWriter logger = new StringWriter();
       PrintWriter out = new PrintWriter(logger);
       ArrayList<Integer> newids = new ArrayList<Integer>();
+      Connection db;
+      try { db = db(); }
+      catch (SQLException e) {
+         res.sendError(SC_SERVFAIL, "" + e);
+         return;
+      }
 
       // now go over the saved file parts
       for (int i = 0; i < md.fileparts.size(); ++i) {
@@ -229,8 +236,13 @@ public class UploadREST extends PhotoServlet
             for (int j : md.tags) {
                st.setInt(2, j);
                st.executeUpdate();
+               ImageTagIndex.added(i, j);
             }
          }
+         SearchIndex.reload(newids, db);
+         TextIndex.reload(newids, db);
+         LocationTree.changed();
+         DataVersion.changed();
       } catch (SQLException e) {
          out.println("*** database error: " + e.getMessage());
          out.println("the data may be screwed up now!");
@@ -0,0 +1,72 @@
+package net.photoprism;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A bag of named counters, in the spirit of the VARS dict that pkeep
+ * serves on its status port.  Anything in the servlet JVM that wants
+ * to be observable can grab a counter by name and bump it, or
+ * register a gauge that gets sampled when somebody asks.  VarsREST
+ * dumps the whole thing as text.
+ *
+ * Counters are created on first use and live forever, so it is fine
+ * (and intended) for an object that gets replaced at init time to
+ * keep counting into the same place.
+ *
+ * @version 20261018
+ */
+
+public class Vars
+{
+   private static final ConcurrentHashMap<String, AtomicLong> counters =
+      new ConcurrentHashMap<String, AtomicLong>();
+   private static final ConcurrentHashMap<String, LongSupplier> gauges =
+      new ConcurrentHashMap<String, LongSupplier>();
+
+   /**
+    * @param name String like "rendition_cache_hits"
+    * @return the AtomicLong for that name, created at 0 if needed
+    */
+
+   public static AtomicLong counter(String name)
+   {
+      return counters.computeIfAbsent(name, k -> new AtomicLong());
+   }
+
+   /**
+    * register a value that is computed when the vars are dumped
+    * rather than counted, such as the size of a queue.  A later
+    * registration under the same name replaces the earlier one.
+    */
+
+   public static void gauge(String name, LongSupplier f)
+   {
+      gauges.put(name, f);
+   }
+
+   /**
+    * @return every counter and gauge, one "name value" per line,
+    * sorted by name so two dumps can be diffed.
+    */
+
+   public static String dump()
+   {
+      TreeMap<String, Long> all = new TreeMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> e : counters.entrySet())
+         all.put(e.getKey(), e.getValue().get());
+      for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+         all.put(e.getKey(), e.getValue().getAsLong());
+      StringBuffer b = new StringBuffer();
+      for (Map.Entry<String, Long> e : all.entrySet()) {
+         b.append(e.getKey());
+         b.append(' ');
+         b.append(e.getValue());
+         b.append('\n');
+      }
+      return b.toString();
+   }
+}
@@ -0,0 +1,62 @@
+package net.photoprism;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the contents of Vars as text/plain, one "name value" per
+ * line, so that caches and queues inside the servlet JVM can be
+ * watched the same way as pkeep's status page.
+ *
+ * The numbers say a fair amount about what's in the database, so only
+ * a request from this machine (and not passed along by a proxy) gets
+ * them, or one with an X-Vars-Token header that matches the "token"
+ * init parameter.
+ *
+ * @version 20261018
+ */
+
+public class VarsREST extends PhotoServlet
+{
+   private static final long serialVersionUID = 1L;
+
+   public void init(ServletConfig config) throws ServletException
+   {
+      super.init(config);
+      String t = config.getInitParameter("token");
+      if (t != null && t.length() > 0) {
+         this.token = t.getBytes(StandardCharsets.UTF_8);
+      }
+   }
+
+   public void doGet(HttpServletRequest req, HttpServletResponse res)
+   throws IOException
+   {
+      if (!allowed(req)) {
+         res.sendError(SC_FORBIDDEN);
+         return;
+      }
+      sendString(res, Vars.dump(), "text/plain");
+   }
+
+   private boolean allowed(HttpServletRequest req) throws IOException
+   {
+      String t = req.getHeader("X-Vars-Token");
+      if (t != null && this.token != null) {
+         return MessageDigest.isEqual(this.token,
+                                      t.getBytes(StandardCharsets.UTF_8));
+      }
+      if (req.getHeader("X-Forwarded-For") != null) return false;
+      // a literal address, so no DNS lookup
+      return InetAddress.getByName(req.getRemoteAddr()).isLoopbackAddress();
+   }
+
+   // null if there is no token, and only localhost can look
+   private byte[] token = null;
+}
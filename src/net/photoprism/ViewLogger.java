@@ -0,0 +1,215 @@
+package net.photoprism;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes rows into imageviews in the background, so that serving an
+ * image never waits for the database to take a log row.  log() puts
+ * the row in a bounded queue and returns; a flusher thread writes
+ * whatever has piled up as one multi-row INSERT, every flushMs or
+ * whenever batchRows rows are waiting, whichever comes first.
+ *
+ * If the queue is full (the database is down or very slow), the row
+ * is dropped and counted.  So is a row the database won't take; the
+ * rest of its batch is put in one row at a time.  Nobody has ever
+ * made a decision based on one missing view.
+ *
+ * The view time is taken when log() is called rather than left to
+ * the column default, since the row may not reach the database until
+ * a second later.
+ *
+ * @version 20261018
+ */
+
+public class ViewLogger
+{
+   /**
+    * @param queueRows how many rows may wait before we start dropping
+    * @param batchRows most rows to put in one INSERT
+    * @param flushMs longest a row waits for its batch to fill up
+    */
+
+   public ViewLogger(int queueRows, int batchRows, long flushMs)
+   {
+      this.queue = new ArrayBlockingQueue<View>(queueRows);
+      this.batchRows = batchRows;
+      this.flushMs = flushMs;
+      this.flusher = new Thread(() -> this.run(), "viewlog-flusher");
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+      Vars.gauge("viewlog_queue", () -> this.queue.size());
+      Vars.gauge("viewlog_last_flush_ms", () -> this.lastFlushMs);
+   }
+
+   private static class View
+   {
+      final int image;
+      final int person;
+      final int size;
+      final String remoteHost;
+      final Timestamp ts;
+
+      View(int image, int person, int size, String remoteHost)
+      {
+         this.image = image;
+         this.person = person;
+         this.size = size;
+         this.remoteHost = remoteHost;
+         this.ts = new Timestamp(System.currentTimeMillis());
+      }
+   }
+
+   /**
+    * note that an image was viewed.  Never blocks.
+    *
+    * @param img ImageID
+    * @param user PersonID of logged in user, if any
+    * @param size size of image rendered
+    * @param client probably the req.getRemoteHost()
+    */
+
+   public void log(int img, int user, int size, String client)
+   {
+      if (!this.running ||
+          !this.queue.offer(new View(img, user, size, client))) {
+         dropped.incrementAndGet();
+      }
+   }
+
+   private void run()
+   {
+      List<View> batch = new ArrayList<View>(this.batchRows);
+      while (this.running || !this.queue.isEmpty()) {
+         try {
+            View first = this.queue.poll(this.flushMs, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            // give the batch until flushMs after its first row to fill
+            long deadline = System.currentTimeMillis() + this.flushMs;
+            while (this.running && batch.size() < this.batchRows) {
+               long wait = deadline - System.currentTimeMillis();
+               if (wait <= 0) break;
+               View v = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+               if (v == null) break;
+               batch.add(v);
+            }
+            this.queue.drainTo(batch, this.batchRows - batch.size());
+         } catch (InterruptedException e) {
+            // close() wants us to hurry up; fall through and flush
+         }
+         if (!batch.isEmpty()) {
+            flush(batch);
+            batch.clear();
+         }
+      }
+   }
+
+   private void flush(List<View> batch)
+   {
+      long start = System.nanoTime();
+      try (Connection db = PhotoUtils.getConnection()) {
+         try {
+            insert(db, batch);
+            rows.addAndGet(batch.size());
+         } catch (SQLException e) {
+            // one bad row (say, a view of an image deleted since)
+            // fails the whole INSERT, so put them in one at a time and
+            // lose only that one.  Not if the database went away,
+            // though.
+            String state = e.getSQLState();
+            if (state != null && state.startsWith(SQLSTATE_CONNECTION)) {
+               throw e;
+            }
+            errors.incrementAndGet();
+            for (View v : batch) {
+               try {
+                  insert(db, Collections.singletonList(v));
+                  rows.incrementAndGet();
+                  retried.incrementAndGet();
+               } catch (SQLException x) {
+                  dropped.incrementAndGet();
+               }
+            }
+         }
+      } catch (SQLException e) {
+         // the rows are gone either way; count them so somebody notices
+         errors.incrementAndGet();
+         dropped.addAndGet(batch.size());
+      }
+      this.lastFlushMs = (System.nanoTime() - start) / 1000000;
+      flushes.incrementAndGet();
+      flushMsTotal.addAndGet(this.lastFlushMs);
+   }
+
+   private static void insert(Connection db, List<View> views)
+   throws SQLException
+   {
+      StringBuffer sql = new StringBuffer
+         ("INSERT INTO imageviews (image, person, size, remotehost, viewtime) " +
+          "VALUES ");
+      for (int i = 0; i < views.size(); i++) {
+         if (i > 0) sql.append(',');
+         sql.append("(?,?,?,?,?)");
+      }
+      try (PreparedStatement st = db.prepareStatement(sql.toString())) {
+         int n = 1;
+         for (View v : views) {
+            st.setInt(n++, v.image);
+            st.setInt(n++, v.person);
+            st.setInt(n++, v.size);
+            st.setString(n++, v.remoteHost);
+            st.setTimestamp(n++, v.ts);
+         }
+         st.executeUpdate();
+      }
+   }
+
+   /**
+    * write out everything that is queued and stop.  Rows logged after
+    * this are dropped.
+    *
+    * @param waitMs how long to wait for the last flush
+    */
+
+   public void close(long waitMs)
+   {
+      this.running = false;
+      this.flusher.interrupt();
+      try { this.flusher.join(waitMs); }
+      catch (InterruptedException ignored) { }
+   }
+
+   public String toString()
+   {
+      return "ViewLogger(" + this.queue.size() + " queued, batches of " +
+         this.batchRows + " every " + this.flushMs + "ms)";
+   }
+
+   private final ArrayBlockingQueue<View> queue;
+   private final int batchRows;
+   private final long flushMs;
+   private final Thread flusher;
+   private volatile boolean running = true;
+   private volatile long lastFlushMs = 0;
+
+   // SQLSTATE class 08, connection exceptions
+   private static final String SQLSTATE_CONNECTION = "08";
+
+   private static final AtomicLong rows = Vars.counter("viewlog_rows");
+   private static final AtomicLong retried =
+      Vars.counter("viewlog_retried_rows");
+   private static final AtomicLong dropped = Vars.counter("viewlog_dropped");
+   private static final AtomicLong errors = Vars.counter("viewlog_errors");
+   private static final AtomicLong flushes = Vars.counter("viewlog_flushes");
+   private static final AtomicLong flushMsTotal =
+      Vars.counter("viewlog_flush_ms_total");
+}
@@ -12,6 +12,8 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import net.photoprism.DataVersion;
+import net.photoprism.DetailCache;
 import net.photoprism.PhotoUtils;
 
 /**
@@ -157,6 +159,10 @@ public class GPXInserter
           upd.executeUpdate(sql.toString());
           pw.println("adjusted timestamp on image " + imgid);
         }
+        // only does anything if this is running inside the webapp;
+        // from the command line, the caches' max ages cover it
+        DetailCache.invalidate(imgid);
+        DataVersion.changed();
       }
     } // while rs.next()
 